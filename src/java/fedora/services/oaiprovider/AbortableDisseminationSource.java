@@ -0,0 +1,21 @@
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A DisseminationSource whose requests can be aborted from another thread.
+ */
+public interface AbortableDisseminationSource
+        extends DisseminationSource {
+
+    /**
+     * Same as <code>get(dissURI, date)</code>, except that the request can
+     * be aborted while it is being made or its content is being read.
+     *
+     * @throws IOException
+     *         if the dissemination can't be read or the request is aborted.
+     */
+    public InputStream get(String dissURI, String date, RequestAbort abort)
+            throws IOException;
+}
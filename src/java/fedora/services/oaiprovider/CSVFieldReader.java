@@ -0,0 +1,431 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads CSV query results one record at a time, as described in RFC 4180.
+ * <p>
+ * The values of the current record are unquoted into a buffer that is reused
+ * for each record and kept there by offset, so they can be compared with each
+ * other and with strings without being copied. Quoted values may contain
+ * commas, doubled quotes and line breaks. Blank lines are skipped, as is a
+ * header of quoted column names at the start, such as CSVTupleReader gives.
+ * </p>
+ */
+public class CSVFieldReader {
+
+    private final Reader m_in;
+
+    private final char[] m_buf = new char[8192];
+
+    private int m_pos;
+
+    private int m_limit;
+
+    // the unquoted values of the current record
+    private char[] m_chars = new char[256];
+
+    private int m_length;
+
+    private int[] m_starts = new int[8];
+
+    private int[] m_ends = new int[8];
+
+    private boolean[] m_quoted = new boolean[8];
+
+    private int m_count;
+
+    private boolean m_started;
+
+    private boolean m_skipLF;
+
+    public CSVFieldReader(Reader in) {
+        m_in = in;
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false if there are no more.
+     * @throws IOException
+     *         if the input can't be read or a quoted value is malformed.
+     */
+    public boolean next() throws IOException {
+        while (readRecord()) {
+            if (m_count == 1 && m_ends[0] == 0 && !m_quoted[0]) {
+                continue;
+            }
+            if (!m_started) {
+                m_started = true;
+                if (isHeader()) continue;
+            }
+            return true;
+        }
+        m_count = 0;
+        return false;
+    }
+
+    public int getFieldCount() {
+        return m_count;
+    }
+
+    /**
+     * Get the length of a value.
+     */
+    public int getLength(int i) {
+        check(i);
+        return m_ends[i] - m_starts[i];
+    }
+
+    /**
+     * Get a character of a value.
+     */
+    public char charAt(int i, int index) {
+        check(i);
+        return m_chars[m_starts[i] + index];
+    }
+
+    /**
+     * Get a copy of a value.
+     */
+    public String getField(int i) {
+        return getField(i, 0);
+    }
+
+    /**
+     * Get a copy of a value from an offset, as with String.substring.
+     */
+    public String getField(int i, int offset) {
+        check(i);
+        return new String(m_chars, m_starts[i] + offset, m_ends[i]
+                - m_starts[i] - offset);
+    }
+
+    public boolean fieldEquals(int i, String value) {
+        check(i);
+        int start = m_starts[i];
+        int length = m_ends[i] - start;
+        if (length != value.length()) return false;
+        for (int k = 0; k < length; k++) {
+            if (m_chars[start + k] != value.charAt(k)) return false;
+        }
+        return true;
+    }
+
+    public boolean fieldEquals(int i, CSVFieldReader other, int j) {
+        check(i);
+        other.check(j);
+        return getLength(i) == other.getLength(j)
+                && compareField(i, other, j) == 0;
+    }
+
+    /**
+     * Compare a value with one of another record, as String.compareTo does.
+     */
+    public int compareField(int i, CSVFieldReader other, int j) {
+        check(i);
+        other.check(j);
+        int a = m_starts[i];
+        int b = other.m_starts[j];
+        int aLength = m_ends[i] - a;
+        int bLength = other.m_ends[j] - b;
+        int n = Math.min(aLength, bLength);
+        for (int k = 0; k < n; k++) {
+            char c = m_chars[a + k];
+            char d = other.m_chars[b + k];
+            if (c != d) return c - d;
+        }
+        return aLength - bLength;
+    }
+
+    /**
+     * Append a value, unquoted.
+     */
+    public void appendField(int i, StringBuilder out) {
+        check(i);
+        out.append(m_chars, m_starts[i], m_ends[i] - m_starts[i]);
+    }
+
+    /**
+     * Append the record as a CSV line, without a line break, quoting values
+     * as needed.
+     */
+    public void appendRecord(StringBuilder out) {
+        appendRecord(out, 0);
+    }
+
+    /**
+     * Append the values of the record from an index as a CSV line.
+     */
+    public void appendRecord(StringBuilder out, int from) {
+        for (int i = from; i < m_count; i++) {
+            if (i > from) out.append(',');
+            int start = m_starts[i];
+            int end = m_ends[i];
+            if (needsQuotes(m_chars, start, end)) {
+                out.append('"');
+                for (int k = start; k < end; k++) {
+                    if (m_chars[k] == '"') out.append('"');
+                    out.append(m_chars[k]);
+                }
+                out.append('"');
+            } else {
+                out.append(m_chars, start, end - start);
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        m_in.close();
+    }
+
+    /**
+     * Give the current record as a CSV line.
+     */
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        appendRecord(out);
+        return out.toString();
+    }
+
+    /**
+     * Append a value to a CSV line, quoting it if it contains a comma, quote
+     * or line break.
+     */
+    public static void appendQuoted(String value, StringBuilder out) {
+        boolean quote = false;
+        for (int k = 0; k < value.length() && !quote; k++) {
+            quote = needsQuotes(value.charAt(k));
+        }
+        if (!quote) {
+            out.append(value);
+        } else {
+            out.append('"');
+            out.append(value.replace("\"", "\"\""));
+            out.append('"');
+        }
+    }
+
+    public static String quote(String value) {
+        StringBuilder out = new StringBuilder(value.length());
+        appendQuoted(value, out);
+        return out.toString();
+    }
+
+    /**
+     * Compare two CSV lines by the unquoted values in a column, as
+     * String.compareTo does, without copying them. A missing value is taken
+     * as empty.
+     */
+    public static int compareField(String a, String b, int column) {
+        int i = getStart(a, column);
+        int j = getStart(b, column);
+        boolean aQuoted = i < a.length() && a.charAt(i) == '"';
+        boolean bQuoted = j < b.length() && b.charAt(j) == '"';
+        if (aQuoted) i++;
+        if (bQuoted) j++;
+        while (true) {
+            int c = charAt(a, i, aQuoted);
+            int d = charAt(b, j, bQuoted);
+            if (c != d) return c - d;
+            if (c == -1) return 0;
+            i += (aQuoted && c == '"') ? 2 : 1;
+            j += (bQuoted && d == '"') ? 2 : 1;
+        }
+    }
+
+    // the unquoted character of a value at a position in a line, or -1 at
+    // the end of the value
+    private static int charAt(String line, int pos, boolean quoted) {
+        if (pos >= line.length()) return -1;
+        char c = line.charAt(pos);
+        if (quoted) {
+            if (c != '"') return c;
+            return pos + 1 < line.length() && line.charAt(pos + 1) == '"' ? '"'
+                    : -1;
+        }
+        return c == ',' ? -1 : c;
+    }
+
+    // the position in a line where a column starts
+    private static int getStart(String line, int column) {
+        int pos = 0;
+        boolean quoted = false;
+        for (int col = 0; col < column; pos++) {
+            if (pos >= line.length()) return pos;
+            char c = line.charAt(pos);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                col++;
+            }
+        }
+        return pos;
+    }
+
+    private static boolean needsQuotes(char[] chars, int start, int end) {
+        for (int k = start; k < end; k++) {
+            if (needsQuotes(chars[k])) return true;
+        }
+        return false;
+    }
+
+    private static boolean needsQuotes(char c) {
+        return c == ',' || c == '"' || c == '\n' || c == '\r';
+    }
+
+    private void check(int i) {
+        if (i >= m_count) {
+            throw new IndexOutOfBoundsException("No value " + i
+                    + " in CSV record with " + m_count + " values");
+        }
+    }
+
+    /**
+     * Tell whether the current record is a header: quoted column names.
+     */
+    private boolean isHeader() {
+        for (int i = 0; i < m_count; i++) {
+            if (!m_quoted[i] || m_ends[i] == m_starts[i]) return false;
+            for (int k = m_starts[i]; k < m_ends[i]; k++) {
+                char c = m_chars[k];
+                if (!(c == '_' || Character.isLetter(c) || (k > m_starts[i] && Character
+                        .isDigit(c)))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean readRecord() throws IOException {
+        m_count = 0;
+        m_length = 0;
+        int c = read();
+        if (m_skipLF) {
+            m_skipLF = false;
+            if (c == '\n') c = read();
+        }
+        if (c == -1) return false;
+        while (true) {
+            int start = m_length;
+            boolean quoted = c == '"';
+            if (quoted) {
+                c = readQuoted();
+                if (c != ',' && c != '\n' && c != '\r' && c != -1) {
+                    throw new IOException("Unexpected character after quoted "
+                            + "value in CSV record: " + (char) c);
+                }
+            } else if (c != ',' && c != '\n' && c != '\r' && c != -1) {
+                m_pos--; // read it again with the rest of the value
+                c = readUnquoted();
+            }
+            addField(start, quoted);
+            if (c != ',') {
+                m_skipLF = c == '\r';
+                return true;
+            }
+            c = read();
+        }
+    }
+
+    /**
+     * Read the rest of an unquoted value, giving the character after it, or
+     * -1 at the end of the input.
+     */
+    private int readUnquoted() throws IOException {
+        while (true) {
+            char[] buf = m_buf;
+            int p = m_pos;
+            while (p < m_limit) {
+                char c = buf[p];
+                if (c == ',' || c == '\n' || c == '\r') {
+                    append(buf, m_pos, p);
+                    m_pos = p + 1;
+                    return c;
+                }
+                p++;
+            }
+            append(buf, m_pos, p);
+            m_pos = p;
+            if (!fill()) return -1;
+        }
+    }
+
+    /**
+     * Read the rest of a quoted value after its opening quote, giving the
+     * character after its closing quote, or -1 at the end of the input.
+     */
+    private int readQuoted() throws IOException {
+        while (true) {
+            char[] buf = m_buf;
+            int p = m_pos;
+            while (p < m_limit && buf[p] != '"') {
+                p++;
+            }
+            append(buf, m_pos, p);
+            m_pos = p;
+            if (p == m_limit) {
+                if (!fill()) {
+                    throw new IOException("Unterminated quoted value in CSV "
+                            + "record");
+                }
+            } else {
+                m_pos++;
+                int c = read();
+                if (c != '"') return c;
+                append('"');
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (m_pos == m_limit && !fill()) return -1;
+        return m_buf[m_pos++];
+    }
+
+    private boolean fill() throws IOException {
+        int n = m_in.read(m_buf, 0, m_buf.length);
+        m_pos = 0;
+        m_limit = n > 0 ? n : 0;
+        return n > 0;
+    }
+
+    private void append(char c) {
+        if (m_length == m_chars.length) grow(m_length + 1);
+        m_chars[m_length++] = c;
+    }
+
+    private void append(char[] chars, int from, int to) {
+        int n = to - from;
+        if (m_length + n > m_chars.length) grow(m_length + n);
+        System.arraycopy(chars, from, m_chars, m_length, n);
+        m_length += n;
+    }
+
+    private void grow(int length) {
+        char[] chars = new char[Math.max(length, m_chars.length * 2)];
+        System.arraycopy(m_chars, 0, chars, 0, m_length);
+        m_chars = chars;
+    }
+
+    private void addField(int start, boolean quoted) {
+        if (m_count == m_starts.length) {
+            int[] starts = new int[m_count * 2];
+            int[] ends = new int[m_count * 2];
+            boolean[] quotedFlags = new boolean[m_count * 2];
+            System.arraycopy(m_starts, 0, starts, 0, m_count);
+            System.arraycopy(m_ends, 0, ends, 0, m_count);
+            System.arraycopy(m_quoted, 0, quotedFlags, 0, m_count);
+            m_starts = starts;
+            m_ends = ends;
+            m_quoted = quotedFlags;
+        }
+        m_starts[m_count] = start;
+        m_ends[m_count] = m_length;
+        m_quoted[m_count] = quoted;
+        m_count++;
+    }
+}
@@ -0,0 +1,106 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+
+import org.jrdf.graph.Node;
+import org.trippi.TrippiException;
+import org.trippi.TupleIterator;
+import org.trippi.io.CSVTupleWriter;
+
+/**
+ * Reads a TupleIterator as CSV text, one tuple at a time, as the tuples are
+ * received.
+ * <p>
+ * The text is the same as that written by
+ * <code>TupleIterator.toStream(out, RDFFormat.CSV)</code>: a header line with
+ * the quoted column names, followed by one line per tuple. Closing the reader
+ * closes the TupleIterator.
+ * </p>
+ */
+public class CSVTupleReader
+        extends Reader {
+
+    private final TupleIterator m_tuples;
+
+    private final String[] m_names;
+
+    private final CSVTupleWriter m_writer;
+
+    private final StringBuilder m_line = new StringBuilder();
+
+    private int m_pos;
+
+    public CSVTupleReader(TupleIterator tuples) throws TrippiException {
+        m_tuples = tuples;
+        m_names = tuples.names();
+        // only used to format values
+        m_writer = new CSVTupleWriter(new ByteArrayOutputStream(), null);
+        for (int i = 0; i < m_names.length; i++) {
+            if (i > 0) m_line.append(',');
+            appendQuoted(m_names[i]);
+        }
+        m_line.append('\n');
+    }
+
+    public int read(char[] buf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (m_pos == m_line.length() && !nextLine()) {
+            return -1;
+        }
+        int n = Math.min(len, m_line.length() - m_pos);
+        m_line.getChars(m_pos, m_pos + n, buf, off);
+        m_pos += n;
+        return n;
+    }
+
+    public void close() throws IOException {
+        try {
+            m_tuples.close();
+        } catch (TrippiException e) {
+            throw toIOException(e);
+        }
+    }
+
+    private boolean nextLine() throws IOException {
+        m_line.setLength(0);
+        m_pos = 0;
+        try {
+            if (!m_tuples.hasNext()) return false;
+            Map<?, ?> tuple = m_tuples.next();
+            for (int i = 0; i < m_names.length; i++) {
+                if (i > 0) m_line.append(',');
+                Node node = (Node) tuple.get(m_names[i]);
+                if (node != null) {
+                    String value = m_writer.getValue(node);
+                    if (value.indexOf(',') == -1 && value.indexOf('"') == -1) {
+                        m_line.append(value);
+                    } else {
+                        appendQuoted(value);
+                    }
+                }
+            }
+        } catch (TrippiException e) {
+            throw toIOException(e);
+        }
+        m_line.append('\n');
+        return true;
+    }
+
+    private void appendQuoted(String value) {
+        m_line.append('"');
+        m_line.append(value.replaceAll("\"", "\"\""));
+        m_line.append('"');
+    }
+
+    private static IOException toIOException(TrippiException e) {
+        IOException ioe =
+                new IOException("Error reading query results: "
+                        + e.getMessage());
+        ioe.initCause(e);
+        return ioe;
+    }
+}
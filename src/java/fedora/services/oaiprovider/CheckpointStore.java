@@ -0,0 +1,270 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Keeps the results of completed queries on disk, so that if an update
+ * fails, the queries that had already finished don't have to be run again
+ * when it is retried.
+ * <p>
+ * Results are keyed by the text of the query, which includes its date range,
+ * and saved gzip-compressed. The gzip checksum of a saved result is verified
+ * before the result is used; a result that fails the check is discarded.
+ * Results are removed once the update that needed them has completed, and
+ * any older than the time-to-live are removed regardless.
+ * </p>
+ */
+public class CheckpointStore {
+
+    private static final Logger logger =
+            Logger.getLogger(CheckpointStore.class.getName());
+
+    private static final String SUFFIX = ".csv.gz";
+
+    private static final String PART_SUFFIX = ".part";
+
+    private final File m_dir;
+
+    private final long m_ttl;
+
+    private long m_resumed;
+
+    private long m_committed;
+
+    /**
+     * @param dir
+     *        the directory to keep results in; created if needed.
+     * @param ttl
+     *        how long to keep results, in milliseconds.
+     */
+    public CheckpointStore(File dir, long ttl) throws IOException {
+        m_dir = dir;
+        m_ttl = ttl;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create checkpoint directory "
+                    + dir);
+        }
+        expire();
+    }
+
+    /**
+     * Open the saved result of the given query, if there is a good one.
+     *
+     * @return the result, or null if there is none.
+     */
+    public InputStream open(String query) {
+        File file = getFile(query);
+        if (!file.exists()) return null;
+        if (System.currentTimeMillis() - file.lastModified() > m_ttl) {
+            file.delete();
+            return null;
+        }
+        if (!verify(file)) {
+            logger.warn("Discarding corrupt checkpoint " + file.getPath());
+            file.delete();
+            return null;
+        }
+        try {
+            InputStream in =
+                    new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)));
+            synchronized (this) {
+                m_resumed++;
+            }
+            return in;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Start saving the result of the given query. Everything written is
+     * also written to <code>out</code>. The result is only kept if the
+     * checkpoint is committed.
+     */
+    public Checkpoint create(String query, OutputStream out)
+            throws IOException {
+        return new Checkpoint(getFile(query), out);
+    }
+
+    /**
+     * Remove the saved results of the given queries.
+     */
+    public void remove(Collection<String> queries) {
+        for (String query : queries) {
+            getFile(query).delete();
+        }
+    }
+
+    /**
+     * Remove results that are older than the time-to-live, and any partial
+     * results.
+     */
+    public void expire() {
+        final long before = System.currentTimeMillis() - m_ttl;
+        File[] files = m_dir.listFiles(new FileFilter() {
+
+            public boolean accept(File file) {
+                String name = file.getName();
+                return (name.endsWith(SUFFIX) || name.endsWith(PART_SUFFIX))
+                        && file.lastModified() < before;
+            }
+        });
+        if (files == null) return;
+        int count = 0;
+        for (int i = 0; i < files.length; i++) {
+            if (files[i].delete()) count++;
+        }
+        if (count > 0) {
+            logger.info("Removed " + count + " expired checkpoints from "
+                    + m_dir);
+        }
+    }
+
+    /**
+     * Get the number of results that have been used instead of running their
+     * queries.
+     */
+    public synchronized long getResumed() {
+        return m_resumed;
+    }
+
+    /**
+     * Get the number of results that have been saved.
+     */
+    public synchronized long getCommitted() {
+        return m_committed;
+    }
+
+    private File getFile(String query) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] hash = md.digest(query.getBytes("UTF-8"));
+            StringBuffer name = new StringBuffer();
+            for (int i = 0; i < hash.length; i++) {
+                String hex = Integer.toHexString(hash[i] & 0xFF);
+                if (hex.length() == 1) name.append('0');
+                name.append(hex);
+            }
+            return new File(m_dir, name.append(SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 is not supported", e);
+        } catch (IOException e) {
+            throw new RuntimeException("UTF-8 is not supported", e);
+        }
+    }
+
+    /**
+     * Read the whole file, which checks its gzip checksum and length.
+     */
+    private static boolean verify(File file) {
+        InputStream in = null;
+        try {
+            in = new GZIPInputStream(new FileInputStream(file));
+            byte[] buf = new byte[8192];
+            while (in.read(buf) != -1) {
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * A result being saved.
+     */
+    public class Checkpoint
+            extends OutputStream {
+
+        private final File m_file;
+
+        private final File m_part;
+
+        private final OutputStream m_out;
+
+        private final GZIPOutputStream m_saved;
+
+        private boolean m_closed;
+
+        private Checkpoint(File file, OutputStream out) throws IOException {
+            m_file = file;
+            m_part = new File(file.getPath() + PART_SUFFIX);
+            m_out = out;
+            m_saved =
+                    new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(m_part)));
+        }
+
+        public void write(int b) throws IOException {
+            m_out.write(b);
+            m_saved.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            m_out.write(b, off, len);
+            m_saved.write(b, off, len);
+        }
+
+        public void flush() throws IOException {
+            m_out.flush();
+        }
+
+        /**
+         * Close the checkpoint without saving it. This does not close the
+         * other stream.
+         */
+        public void close() {
+            if (m_closed) return;
+            m_closed = true;
+            try {
+                m_saved.close();
+            } catch (IOException e) {
+            }
+            m_part.delete();
+        }
+
+        /**
+         * Keep the result. This does not close the other stream.
+         */
+        public void commit() throws IOException {
+            if (m_closed) throw new IOException("Checkpoint is closed");
+            m_closed = true;
+            try {
+                m_saved.close();
+            } catch (IOException e) {
+                m_part.delete();
+                throw e;
+            }
+            m_file.delete();
+            if (!m_part.renameTo(m_file)) {
+                m_part.delete();
+                throw new IOException("Unable to rename " + m_part + " to "
+                        + m_file);
+            }
+            synchronized (CheckpointStore.this) {
+                m_committed++;
+            }
+        }
+    }
+}
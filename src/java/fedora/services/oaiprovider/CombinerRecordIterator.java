@@ -25,7 +25,12 @@ public class CombinerRecordIterator
 
     private ResultCombiner m_combiner;
 
-    private String m_nextLine;
+    private SetMembership m_sets;
+
+    private boolean m_hasNext;
+
+    // reused to format the date of each record
+    private final StringBuilder m_date = new StringBuilder();
 
     /**
      * Initialize with combined record query results.
@@ -34,22 +39,36 @@ public class CombinerRecordIterator
                                   String dissTypeURI,
                                   String aboutDissTypeURI,
                                   ResultCombiner combiner) {
+        this(mdPrefix, dissTypeURI, aboutDissTypeURI, combiner, null);
+    }
+
+    /**
+     * Initialize with combined record query results and the set memberships
+     * of their items, which are used instead of any setSpecs in the results.
+     */
+    public CombinerRecordIterator(String mdPrefix,
+                                  String dissTypeURI,
+                                  String aboutDissTypeURI,
+                                  ResultCombiner combiner,
+                                  SetMembership sets) {
         m_mdPrefix = mdPrefix;
         m_dissTypeURI = dissTypeURI;
         m_aboutDissTypeURI = aboutDissTypeURI;
         m_combiner = combiner;
-        m_nextLine = m_combiner.readLine();
+        m_sets = sets;
+        m_hasNext = m_combiner.next();
     }
 
     public boolean hasNext() {
-        return (m_nextLine != null);
+        return m_hasNext;
     }
 
     public FedoraRecord next() throws RepositoryException {
+        if (!m_hasNext) return null;
         try {
-            return getRecord(m_nextLine);
+            return getRecord();
         } finally {
-            if (m_nextLine != null) m_nextLine = m_combiner.readLine();
+            m_hasNext = m_combiner.next();
         }
     }
 
@@ -69,17 +88,17 @@ public class CombinerRecordIterator
     }
 
     /**
-     * Construct a record given a line from the combiner. Expected format is:
-     * "item","itemID","date","state","hasAbout"[,"setSpec1"[,"setSpec2"[,...]]]
-     * For example:
-     * info:fedora/nsdl:2051858,oai:nsdl.org:nsdl:10059:nsdl:2051858,2005-09-20T12:50:01,info:fedora/fedora-system:def/model#Active,true,5101,set2
+     * Construct a record from the current item of the combiner, whose values
+     * from the first query are item, itemID, date and state. For example:
+     * info:fedora/nsdl:2051858,oai:nsdl.org:nsdl:10059:nsdl:2051858,2005-09-20T12:50:01,info:fedora/fedora-system:def/model#Active
      */
-    private FedoraRecord getRecord(String line) throws RepositoryException {
-
-        logger.debug("Constructing record from combined query result line: "
-                + line);
+    private FedoraRecord getRecord() throws RepositoryException {
 
-        String[] parts = line.split(",");
+        CSVFieldReader fields = m_combiner.getFields();
+        if (logger.isDebugEnabled()) {
+            logger.debug("Constructing record from combined query results: "
+                    + fields);
+        }
 
         String itemID = null;
         String recordDissURI = null;
@@ -88,38 +107,37 @@ public class CombinerRecordIterator
         String[] setSpecs = null;
         String aboutDissURI = null;
 
-        // parse the line into values for constructing a FedoraRecord
+        // read the values for constructing a FedoraRecord
         try {
-            if (parts.length < 5) {
-                throw new Exception("Expected at least 5 comma-separated values");
-            }
-
-            String pid = parts[0].substring(12); // everything after
+            String pid = fields.getField(0, 12); // everything after
             // info:fedora/
 
-            itemID = parts[1];
+            itemID = fields.getField(1);
 
             recordDissURI = getDissURI(pid, m_dissTypeURI);
 
-            utcString = formatDatetime(parts[2]);
+            m_date.setLength(0);
+            fields.appendField(2, m_date);
+            utcString = formatDatetime(m_date);
 
-            isDeleted = !parts[3].equals(MODEL.ACTIVE.uri);
+            isDeleted = !fields.fieldEquals(3, MODEL.ACTIVE.uri);
 
-            if (parts[4].equals("true")) {
+            if (m_combiner.hasAbout()) {
                 if (m_aboutDissTypeURI != null) {
                     aboutDissURI = getDissURI(pid, m_aboutDissTypeURI);
                 }
             }
 
-            setSpecs = new String[parts.length - 5];
-            for (int i = 5; i < parts.length; i++) {
-                setSpecs[i - 5] = parts[i];
+            if (m_sets != null) {
+                setSpecs = m_sets.getSetSpecs(itemID);
+            } else {
+                setSpecs = m_combiner.getSetSpecs();
             }
 
         } catch (Exception e) {
             throw new RepositoryException("Error parsing combined query "
                     + "results from Fedora: " + e.getMessage() + ".  Input "
-                    + "line was: " + line, e);
+                    + "line was: " + fields, e);
         }
 
         // if we got here, all the parameters were parsed correctly
@@ -132,7 +150,7 @@ public class CombinerRecordIterator
                                 aboutDissURI);
     }
 
-    private String getDissURI(String pid, String dissType) throws Exception {
+    static String getDissURI(String pid, String dissType) throws Exception {
         try {
             StringBuffer uri = new StringBuffer();
             uri.append("info:fedora/");
@@ -153,8 +171,11 @@ public class CombinerRecordIterator
      * @param datetime
      * @return datetime string such as 2004-01-31T23:11:00Z
      */
-    private String formatDatetime(String datetime) {
-        StringBuffer sb = new StringBuffer(datetime);
+    static String formatDatetime(String datetime) {
+        return formatDatetime(new StringBuilder(datetime));
+    }
+
+    static String formatDatetime(StringBuilder sb) {
         // length() - 5 b/c at most we're dealing with ".SSSZ"
         int i = sb.indexOf(".", sb.length() - 5);
         if (i != -1) {
@@ -0,0 +1,161 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+
+import fedora.client.HttpInputStream;
+
+/**
+ * A PooledFedoraClient that asks for gzip or deflate compressed responses and
+ * decompresses them as they are read.
+ * <p>
+ * All GET requests made by the client go through here, including the
+ * resource index queries made by <code>getTuples</code>. The bytes
+ * transferred before and after decompression are recorded in a
+ * TransferStats.
+ * </p>
+ */
+public class CompressingFedoraClient
+        extends PooledFedoraClient {
+
+    private final TransferStats m_stats;
+
+    public CompressingFedoraClient(String baseURL,
+                                   String user,
+                                   String pass,
+                                   ConnectionPool pool,
+                                   TransferStats stats)
+            throws MalformedURLException {
+        super(baseURL, user, pass, pool);
+        m_stats = stats;
+    }
+
+    public TransferStats getTransferStats() {
+        return m_stats;
+    }
+
+    /**
+     * Same as the superclass, except for the <code>Accept-Encoding</code>
+     * header and decompression of the response.
+     */
+    protected HttpInputStream execute(HttpClient client,
+                                      GetMethod getMethod,
+                                      String location) throws IOException {
+        getMethod.setRequestHeader("Accept-Encoding",
+                                   ContentEncoding.ACCEPT_ENCODING);
+        return new DecodingHttpInputStream(client, getMethod, location);
+    }
+
+    /**
+     * An HttpInputStream whose content is decoded according to the
+     * response's <code>Content-Encoding</code>.
+     */
+    private class DecodingHttpInputStream
+            extends HttpInputStream {
+
+        private final String m_encoding;
+
+        private ContentEncoding.CountingInputStream m_wire;
+
+        private ContentEncoding.CountingInputStream m_content;
+
+        private boolean m_closed;
+
+        public DecodingHttpInputStream(HttpClient client,
+                                       HttpMethod method,
+                                       String url) throws IOException {
+            super(client, method, url);
+            Header encoding = getResponseHeader("Content-Encoding");
+            m_encoding = encoding == null ? null : encoding.getValue();
+        }
+
+        public int getContentLength() {
+            return ContentEncoding.isEncoded(m_encoding) ? -1 : super
+                    .getContentLength();
+        }
+
+        public int read() throws IOException {
+            return getContent().read();
+        }
+
+        public int read(byte[] b) throws IOException {
+            return getContent().read(b, 0, b.length);
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            return getContent().read(b, off, len);
+        }
+
+        public long skip(long n) throws IOException {
+            return getContent().skip(n);
+        }
+
+        public int available() throws IOException {
+            return ContentEncoding.isEncoded(m_encoding) ? 0 : super
+                    .available();
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        public void mark(int readLimit) {
+        }
+
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+
+        public void close() throws IOException {
+            synchronized (this) {
+                if (m_closed) return;
+                m_closed = true;
+            }
+            try {
+                super.close();
+            } finally {
+                m_stats.record(ContentEncoding.isEncoded(m_encoding),
+                               m_wire == null ? 0 : m_wire.getCount(),
+                               m_content == null ? 0 : m_content.getCount());
+            }
+        }
+
+        private InputStream getContent() throws IOException {
+            if (m_content == null) {
+                m_wire = new ContentEncoding.CountingInputStream(new Body());
+                m_content =
+                        new ContentEncoding.CountingInputStream(ContentEncoding
+                                .decode(m_wire, m_encoding));
+            }
+            return m_content;
+        }
+
+        private int readBody(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, len);
+        }
+
+        /**
+         * The body as received.
+         */
+        private class Body
+                extends InputStream {
+
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = readBody(b, 0, 1);
+                return n == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return readBody(b, off, len);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+
+package fedora.services.oaiprovider;
+
+import org.apache.commons.httpclient.ConnectionPoolTimeoutException;
+import org.apache.commons.httpclient.HostConfiguration;
+import org.apache.commons.httpclient.HttpConnection;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.util.IdleConnectionTimeoutThread;
+
+/**
+ * A thread-safe pool of keep-alive HTTP connections that records how busy
+ * it is and how long callers wait for a connection.
+ * <p>
+ * Connections that have been idle for longer than the idle timeout are
+ * closed by a background thread. If stale checking is enabled, each
+ * connection is checked before it is reused.
+ * </p>
+ */
+public class ConnectionPool
+        extends MultiThreadedHttpConnectionManager {
+
+    /** The least time between checks for idle connections. */
+    private static final long MIN_IDLE_CHECK_INTERVAL = 100;
+
+    private final String m_name;
+
+    private IdleConnectionTimeoutThread m_idleThread;
+
+    private long m_borrows;
+
+    private long m_totalWait;
+
+    private long m_maxWait;
+
+    private long m_timeouts;
+
+    private int m_inUse;
+
+    private int m_maxInUse;
+
+    /**
+     * @param name
+     *        what the pool is for, used in log messages.
+     * @param maxTotal
+     *        the most connections open at once.
+     * @param maxPerHost
+     *        the most connections open to any one host.
+     * @param idleTimeout
+     *        how long a connection may sit unused before it is closed, in
+     *        milliseconds, or 0 to keep idle connections open.
+     * @param staleCheck
+     *        whether to check that a pooled connection is still usable
+     *        before reusing it.
+     */
+    public ConnectionPool(String name,
+                          int maxTotal,
+                          int maxPerHost,
+                          long idleTimeout,
+                          boolean staleCheck) {
+        m_name = name;
+        getParams().setMaxTotalConnections(maxTotal);
+        getParams().setDefaultMaxConnectionsPerHost(maxPerHost);
+        getParams().setStaleCheckingEnabled(staleCheck);
+        if (idleTimeout > 0) {
+            m_idleThread = new IdleConnectionTimeoutThread();
+            m_idleThread.setName("oaiprovider-idle-" + name);
+            m_idleThread.setConnectionTimeout(idleTimeout);
+            m_idleThread.setTimeoutInterval(Math.max(MIN_IDLE_CHECK_INTERVAL,
+                                                     idleTimeout / 2));
+            m_idleThread.addConnectionManager(this);
+            m_idleThread.start();
+        }
+    }
+
+    public HttpConnection getConnectionWithTimeout(HostConfiguration host,
+                                                   long timeout)
+            throws ConnectionPoolTimeoutException {
+        long start = System.currentTimeMillis();
+        try {
+            HttpConnection conn = super.getConnectionWithTimeout(host, timeout);
+            long wait = System.currentTimeMillis() - start;
+            synchronized (this) {
+                m_borrows++;
+                m_totalWait += wait;
+                m_maxWait = Math.max(m_maxWait, wait);
+                m_inUse++;
+                m_maxInUse = Math.max(m_maxInUse, m_inUse);
+            }
+            return conn;
+        } catch (ConnectionPoolTimeoutException e) {
+            synchronized (this) {
+                m_timeouts++;
+            }
+            throw e;
+        }
+    }
+
+    public void releaseConnection(HttpConnection conn) {
+        synchronized (this) {
+            m_inUse--;
+        }
+        super.releaseConnection(conn);
+    }
+
+    public synchronized void shutdown() {
+        if (m_idleThread != null) {
+            m_idleThread.shutdown();
+            m_idleThread = null;
+        }
+        super.shutdown();
+    }
+
+    /**
+     * Get the number of connections that have been handed out.
+     */
+    public synchronized long getBorrows() {
+        return m_borrows;
+    }
+
+    /**
+     * Get the total time spent waiting for connections, in milliseconds.
+     */
+    public synchronized long getTotalWait() {
+        return m_totalWait;
+    }
+
+    /**
+     * Get the longest time spent waiting for a connection, in milliseconds.
+     */
+    public synchronized long getMaxWait() {
+        return m_maxWait;
+    }
+
+    /**
+     * Get the number of connections currently in use.
+     */
+    public synchronized int getInUse() {
+        return m_inUse;
+    }
+
+    /**
+     * Get the most connections that have been in use at once.
+     */
+    public synchronized int getMaxInUse() {
+        return m_maxInUse;
+    }
+
+    public synchronized String getStats() {
+        return m_name + " connections: " + m_inUse + " in use, "
+                + getConnectionsInPool() + " open (limit "
+                + getParams().getMaxTotalConnections() + ", "
+                + getParams().getDefaultMaxConnectionsPerHost()
+                + " per host), at most " + m_maxInUse + " in use at once, "
+                + m_borrows + " borrowed, average wait "
+                + (m_borrows == 0 ? 0 : m_totalWait / m_borrows)
+                + "ms, longest wait " + m_maxWait + "ms, " + m_timeouts
+                + " timeouts";
+    }
+}
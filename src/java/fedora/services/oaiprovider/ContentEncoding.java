@@ -0,0 +1,104 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Utility methods for HTTP content encoding.
+ */
+public abstract class ContentEncoding {
+
+    /** The value to send in <code>Accept-Encoding</code>. */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Tell whether a <code>Content-Encoding</code> value (which may be null)
+     * means the body needs decoding.
+     */
+    public static boolean isEncoded(String encoding) {
+        return encoding != null && encoding.trim().length() > 0
+                && !encoding.trim().equalsIgnoreCase("identity");
+    }
+
+    /**
+     * Get a stream that decodes the given body according to its
+     * <code>Content-Encoding</code>, as it is read.
+     *
+     * @throws IOException
+     *         if the encoding isn't supported, or the body doesn't start the
+     *         way the encoding says it should.
+     */
+    public static InputStream decode(InputStream body, String encoding)
+            throws IOException {
+        if (!isEncoded(encoding)) return body;
+        String e = encoding.trim().toLowerCase();
+        if (e.equals("gzip") || e.equals("x-gzip")) {
+            return new GZIPInputStream(body, BUFFER_SIZE);
+        } else if (e.equals("deflate")) {
+            // should be zlib-wrapped, but some servers send raw deflate
+            PushbackInputStream in = new PushbackInputStream(body, 2);
+            byte[] header = new byte[2];
+            int n = in.read(header, 0, 2);
+            if (n == 1) {
+                int b = in.read();
+                if (b != -1) header[n++] = (byte) b;
+            }
+            if (n > 0) in.unread(header, 0, n);
+            boolean zlib =
+                    n == 2 && (header[0] & 0x0F) == 8
+                            && ((header[0] & 0xFF) << 8 | header[1] & 0xFF)
+                                    % 31 == 0;
+            return new InflaterInputStream(in,
+                                           new Inflater(!zlib),
+                                           BUFFER_SIZE);
+        }
+        throw new IOException("Unsupported content encoding: " + encoding);
+    }
+
+    /**
+     * A stream that counts the bytes read through it.
+     */
+    static class CountingInputStream
+            extends FilterInputStream {
+
+        private long m_count;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) m_count++;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) m_count += n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            m_count += skipped;
+            return skipped;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        public long getCount() {
+            return m_count;
+        }
+    }
+}
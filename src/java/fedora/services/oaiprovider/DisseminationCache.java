@@ -0,0 +1,523 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A DisseminationSource that keeps copies of the disseminations read from
+ * another source on disk, so that unchanged disseminations don't have to be
+ * fetched again.
+ * <p>
+ * Entries are keyed by the dissemination URI and the last modified date of
+ * the object, so a dissemination is fetched again whenever its object
+ * changes. Disseminations without a date are never cached.
+ * </p>
+ * <p>
+ * Each entry is a file in the cache directory holding the content followed
+ * by its CRC-32 checksum, which is checked as the entry is served; if it
+ * doesn't match, reading fails at the end of the content and the entry is
+ * discarded, to be fetched again next time. A dissemination is only cached
+ * if it is read to the end. The total size of the entries is bounded, and
+ * the least recently used entries are removed to stay within the bound.
+ * Entries found in the directory at startup are kept, in order of last use.
+ * </p>
+ */
+public class DisseminationCache
+        implements DisseminationSource {
+
+    private static final Logger logger =
+            Logger.getLogger(DisseminationCache.class.getName());
+
+    private static final String ENTRY_SUFFIX = ".diss";
+
+    private static final String PART_SUFFIX = ".part";
+
+    /** Bytes after the content of each entry (the checksum). */
+    private static final int TRAILER_SIZE = 8;
+
+    private final DisseminationSource m_source;
+
+    private final File m_dir;
+
+    private final long m_maxSize;
+
+    private final long m_maxEntrySize;
+
+    /** Entry sizes by file name, least recently used first. */
+    private final LinkedHashMap<String, Long> m_entries;
+
+    private long m_size;
+
+    private long m_hits;
+
+    private long m_misses;
+
+    private long m_evictions;
+
+    private long m_corrupt;
+
+    /**
+     * @param source
+     *        where to get disseminations that aren't cached.
+     * @param dir
+     *        the directory to keep entries in; created if needed.
+     * @param maxSize
+     *        the maximum total size of the entries, in bytes. Disseminations
+     *        larger than a sixteenth of this are not cached.
+     */
+    public DisseminationCache(DisseminationSource source, File dir, long maxSize)
+            throws IOException {
+        m_source = source;
+        m_dir = dir;
+        m_maxSize = maxSize;
+        m_maxEntrySize = maxSize / 16;
+        m_entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + dir);
+        }
+        load();
+    }
+
+    public InputStream get(String dissURI, String date) throws IOException {
+        if (date == null) {
+            return m_source.get(dissURI, date);
+        }
+        String name = getName(dissURI, date);
+        InputStream in = open(name);
+        if (in != null) {
+            synchronized (this) {
+                m_hits++;
+            }
+            return in;
+        }
+        synchronized (this) {
+            m_misses++;
+        }
+        return new CachingInputStream(m_source.get(dissURI, date), name);
+    }
+
+    public void close() {
+        logger.info("Dissemination cache closing: " + getStats());
+        m_source.close();
+    }
+
+    public synchronized long getHits() {
+        return m_hits;
+    }
+
+    public synchronized long getMisses() {
+        return m_misses;
+    }
+
+    public synchronized long getEvictions() {
+        return m_evictions;
+    }
+
+    /**
+     * Get the number of entries that were discarded because their checksum
+     * didn't match.
+     */
+    public synchronized long getCorrupt() {
+        return m_corrupt;
+    }
+
+    public synchronized int getEntryCount() {
+        return m_entries.size();
+    }
+
+    /**
+     * Get the total size of the entries, in bytes.
+     */
+    public synchronized long getSize() {
+        return m_size;
+    }
+
+    public synchronized String getStats() {
+        return m_entries.size() + " entries, " + m_size + " bytes, " + m_hits
+                + " hits, " + m_misses + " misses, " + m_evictions
+                + " evictions, " + m_corrupt + " corrupt";
+    }
+
+    /**
+     * Open the content of an entry, to be verified as it is read.
+     *
+     * @return the content, or null if there's no entry.
+     */
+    private InputStream open(String name) {
+        long length;
+        synchronized (this) {
+            Long size = m_entries.get(name);
+            if (size == null) return null;
+            length = size.longValue() - TRAILER_SIZE;
+        }
+        File file = new File(m_dir, name);
+        InputStream in;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+        } catch (IOException e) {
+            // removed by another thread since it was looked up
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return new VerifyingInputStream(in, length, name);
+    }
+
+    /**
+     * Discard an entry whose checksum didn't match.
+     */
+    private synchronized void corrupt(String name) {
+        logger.warn("Discarding corrupt cache entry "
+                + new File(m_dir, name).getPath());
+        m_corrupt++;
+        remove(name);
+    }
+
+    /**
+     * Add a completely written entry, evicting others as needed.
+     */
+    private synchronized void add(String name, File part) {
+        File file = new File(m_dir, name);
+        if (m_entries.containsKey(name)) {
+            // another thread got there first
+            part.delete();
+            return;
+        }
+        if (!part.renameTo(file)) {
+            logger.warn("Unable to rename " + part.getPath() + " to "
+                    + file.getPath());
+            part.delete();
+            return;
+        }
+        long size = file.length();
+        m_entries.put(name, Long.valueOf(size));
+        m_size += size;
+        Iterator<Map.Entry<String, Long>> eldest =
+                m_entries.entrySet().iterator();
+        while (m_size > m_maxSize && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            m_size -= entry.getValue().longValue();
+            new File(m_dir, entry.getKey()).delete();
+            m_evictions++;
+        }
+    }
+
+    private synchronized void remove(String name) {
+        Long size = m_entries.remove(name);
+        if (size != null) {
+            m_size -= size.longValue();
+            new File(m_dir, name).delete();
+        }
+    }
+
+    /**
+     * Index the entries already in the directory and remove any partial
+     * entries left behind by an earlier run.
+     */
+    private void load() {
+        File[] parts = m_dir.listFiles(new SuffixFilter(PART_SUFFIX));
+        for (int i = 0; i < parts.length; i++) {
+            parts[i].delete();
+        }
+        File[] files = m_dir.listFiles(new SuffixFilter(ENTRY_SUFFIX));
+        Arrays.sort(files, new Comparator<File>() {
+
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        synchronized (this) {
+            for (int i = 0; i < files.length; i++) {
+                long size = files[i].length();
+                m_entries.put(files[i].getName(), Long.valueOf(size));
+                m_size += size;
+            }
+            Iterator<Map.Entry<String, Long>> eldest =
+                    m_entries.entrySet().iterator();
+            while (m_size > m_maxSize && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                eldest.remove();
+                m_size -= entry.getValue().longValue();
+                new File(m_dir, entry.getKey()).delete();
+            }
+        }
+        logger.info("Dissemination cache in " + m_dir.getPath() + ": "
+                + getStats());
+    }
+
+    private static String getName(String dissURI, String date) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            byte[] digest = md5.digest((dissURI + " " + date).getBytes("UTF-8"));
+            StringBuffer name = new StringBuffer(digest.length * 2 + 5);
+            for (int i = 0; i < digest.length; i++) {
+                int b = digest[i] & 0xFF;
+                if (b < 0x10) name.append('0');
+                name.append(Integer.toHexString(b));
+            }
+            name.append(ENTRY_SUFFIX);
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 not supported", e);
+        } catch (IOException e) {
+            throw new RuntimeException("UTF-8 not supported", e);
+        }
+    }
+
+    /**
+     * Passes content through from the source, writing a copy to a partial
+     * entry that is added to the cache if the content is read completely.
+     */
+    private class CachingInputStream
+            extends FilterInputStream {
+
+        private final String m_name;
+
+        private File m_part;
+
+        private DataOutputStream m_copy;
+
+        private final CRC32 m_crc = new CRC32();
+
+        private long m_length;
+
+        private boolean m_eof;
+
+        public CachingInputStream(InputStream in, String name) {
+            super(in);
+            m_name = name;
+            try {
+                m_part = File.createTempFile("diss", PART_SUFFIX, m_dir);
+                m_copy =
+                        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(m_part)));
+            } catch (IOException e) {
+                logger.warn("Unable to create cache entry in "
+                        + m_dir.getPath(), e);
+                discard();
+            }
+        }
+
+        public int read() throws IOException {
+            int c = in.read();
+            if (c == -1) {
+                m_eof = true;
+            } else if (m_copy != null) {
+                copy(new byte[] {(byte) c}, 0, 1);
+            }
+            return c;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n == -1) {
+                m_eof = true;
+            } else if (m_copy != null) {
+                copy(b, off, n);
+            }
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            byte[] buf = new byte[(int) Math.min(n, 8192)];
+            long skipped = 0;
+            while (skipped < n) {
+                int len = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+                if (len == -1) break;
+                skipped += len;
+            }
+            return skipped;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Add the entry if the content was read to the end, or discard it.
+         */
+        public void close() throws IOException {
+            if (!m_eof) {
+                discard();
+            }
+            in.close();
+            if (m_copy != null) {
+                try {
+                    m_copy.writeLong(m_crc.getValue());
+                    m_copy.close();
+                    m_copy = null;
+                    add(m_name, m_part);
+                } catch (IOException e) {
+                    logger.warn("Unable to write cache entry "
+                            + m_part.getPath(), e);
+                    discard();
+                }
+            }
+        }
+
+        private void copy(byte[] b, int off, int len) {
+            m_length += len;
+            if (m_length > m_maxEntrySize) {
+                discard();
+                return;
+            }
+            try {
+                m_copy.write(b, off, len);
+                m_crc.update(b, off, len);
+            } catch (IOException e) {
+                logger.warn("Unable to write cache entry "
+                        + m_part.getPath(), e);
+                discard();
+            }
+        }
+
+        private void discard() {
+            if (m_copy != null) {
+                try {
+                    m_copy.close();
+                } catch (IOException e) {
+                }
+                m_copy = null;
+            }
+            if (m_part != null) {
+                m_part.delete();
+            }
+        }
+    }
+
+    /**
+     * Serves the content of an entry, checking it against the trailing
+     * checksum at the end of the content.
+     */
+    private class VerifyingInputStream
+            extends FilterInputStream {
+
+        private final DataInputStream m_trailer;
+
+        private final String m_name;
+
+        private boolean m_verified;
+
+        public VerifyingInputStream(InputStream file, long length, String name) {
+            super(new CheckedInputStream(new LimitedInputStream(file, length),
+                                         new CRC32()));
+            m_trailer = new DataInputStream(file);
+            m_name = name;
+        }
+
+        public int read() throws IOException {
+            int c = in.read();
+            if (c == -1) verify();
+            return c;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n == -1) verify();
+            return n;
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * At the end of the content, check the checksum, failing and
+         * discarding the entry if it doesn't match.
+         */
+        private void verify() throws IOException {
+            if (m_verified) return;
+            boolean good;
+            try {
+                good =
+                        m_trailer.readLong() == ((CheckedInputStream) in)
+                                .getChecksum().getValue()
+                                && m_trailer.read() == -1;
+            } catch (IOException e) {
+                good = false;
+            }
+            if (!good) {
+                corrupt(m_name);
+                throw new IOException("Corrupt cache entry " + m_name);
+            }
+            m_verified = true;
+        }
+    }
+
+    /**
+     * Reads at most a given number of bytes from a stream.
+     */
+    private static class LimitedInputStream
+            extends FilterInputStream {
+
+        private long m_remaining;
+
+        public LimitedInputStream(InputStream in, long length) {
+            super(in);
+            m_remaining = length;
+        }
+
+        public int read() throws IOException {
+            if (m_remaining <= 0) return -1;
+            int c = in.read();
+            if (c != -1) m_remaining--;
+            return c;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (m_remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, m_remaining));
+            if (n != -1) m_remaining -= n;
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, m_remaining));
+            m_remaining -= skipped;
+            return skipped;
+        }
+
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), m_remaining);
+        }
+
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private static class SuffixFilter
+            implements FileFilter {
+
+        private final String m_suffix;
+
+        public SuffixFilter(String suffix) {
+            m_suffix = suffix;
+        }
+
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(m_suffix);
+        }
+    }
+}
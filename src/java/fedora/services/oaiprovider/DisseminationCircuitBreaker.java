@@ -0,0 +1,241 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A DisseminationSource that stops asking another source for disseminations
+ * that are failing, so that a broken service doesn't hold up every record
+ * that uses it until the socket timeout.
+ * <p>
+ * Failures are tracked per service: a dissemination type with the object
+ * replaced by <code>*</code>, such as <code>info:fedora/&#42;/demo:sdef/get</code>
+ * or <code>info:fedora/&#42;/DC</code>. After a given number of consecutive
+ * failures, the service's breaker opens and requests for it fail
+ * immediately. Once the breaker has been open for the cool-down period, one
+ * request is let through; if it succeeds the breaker closes, otherwise it
+ * opens again.
+ * </p>
+ * <p>
+ * Separately, each dissemination that fails is remembered for a short
+ * time, during which requests for it fail immediately with the original
+ * error.
+ * </p>
+ */
+public class DisseminationCircuitBreaker
+        implements DisseminationSource {
+
+    private static final Logger logger =
+            Logger.getLogger(DisseminationCircuitBreaker.class.getName());
+
+    /** The most failed disseminations that will be remembered at once. */
+    private static final int MAX_FAILURES_REMEMBERED = 10000;
+
+    private final DisseminationSource m_source;
+
+    private final int m_threshold;
+
+    private final long m_coolDown;
+
+    private final long m_failureTTL;
+
+    private final Map<String, Breaker> m_breakers;
+
+    private final LinkedHashMap<String, Failure> m_failures;
+
+    /**
+     * @param source
+     *        where to get disseminations.
+     * @param threshold
+     *        the number of consecutive failures that open a breaker, or 0 to
+     *        never open breakers.
+     * @param coolDown
+     *        how long a breaker stays open before a request is let through
+     *        again, in milliseconds.
+     * @param failureTTL
+     *        how long a failed dissemination is remembered, in milliseconds,
+     *        or 0 to not remember failures.
+     */
+    public DisseminationCircuitBreaker(DisseminationSource source,
+                                       int threshold,
+                                       long coolDown,
+                                       long failureTTL) {
+        m_source = source;
+        m_threshold = threshold;
+        m_coolDown = coolDown;
+        m_failureTTL = failureTTL;
+        m_breakers = new HashMap<String, Breaker>();
+        m_failures = new LinkedHashMap<String, Failure>();
+    }
+
+    public InputStream get(String dissURI, String date) throws IOException {
+        String service = getService(dissURI);
+        Breaker breaker;
+        synchronized (this) {
+            Failure failure = m_failures.get(dissURI);
+            if (failure != null) {
+                if (failure.expires > now()) {
+                    throw new IOException("Failed recently, not retrying until "
+                            + (failure.expires - now()) / 1000 + "s from now: "
+                            + failure.message);
+                }
+                m_failures.remove(dissURI);
+            }
+            breaker = m_breakers.get(service);
+            if (breaker == null) {
+                breaker = new Breaker();
+                m_breakers.put(service, breaker);
+            }
+            if (!breaker.allow()) {
+                throw new IOException("Circuit breaker for " + service
+                        + " is open after " + breaker.failures
+                        + " consecutive failures: " + breaker.message);
+            }
+        }
+        try {
+            InputStream in = m_source.get(dissURI, date);
+            synchronized (this) {
+                breaker.succeeded(service);
+            }
+            return in;
+        } catch (IOException e) {
+            synchronized (this) {
+                breaker.failed(service, e.getMessage());
+                remember(dissURI, e.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    public void close() {
+        logger.info("Circuit breaker states at close: " + getStates());
+        m_source.close();
+    }
+
+    /**
+     * Get a description of the state of each service's breaker (closed,
+     * open or half-open, and the number of consecutive failures), keyed by
+     * service.
+     */
+    public synchronized Map<String, String> getStates() {
+        Map<String, String> states = new TreeMap<String, String>();
+        for (Map.Entry<String, Breaker> entry : m_breakers.entrySet()) {
+            states.put(entry.getKey(), entry.getValue().toString());
+        }
+        return states;
+    }
+
+    /**
+     * Get the number of failed disseminations currently remembered.
+     */
+    public synchronized int getFailureCount() {
+        return m_failures.size();
+    }
+
+    /**
+     * Get the current time in milliseconds.
+     */
+    protected long now() {
+        return System.currentTimeMillis();
+    }
+
+    private void remember(String dissURI, String message) {
+        if (m_failureTTL <= 0) return;
+        m_failures.remove(dissURI);
+        m_failures.put(dissURI, new Failure(now() + m_failureTTL, message));
+        Iterator<Failure> eldest = m_failures.values().iterator();
+        while (m_failures.size() > MAX_FAILURES_REMEMBERED) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Get the service a dissemination URI is for: the URI with the object
+     * PID replaced by <code>*</code>.
+     */
+    static String getService(String dissURI) {
+        int start = dissURI.indexOf('/', "info:fedora/".length());
+        if (!dissURI.startsWith("info:fedora/") || start == -1) {
+            return dissURI;
+        }
+        return "info:fedora/*" + dissURI.substring(start);
+    }
+
+    private static class Failure {
+
+        public final long expires;
+
+        public final String message;
+
+        public Failure(long expires, String message) {
+            this.expires = expires;
+            this.message = message;
+        }
+    }
+
+    private class Breaker {
+
+        public int failures;
+
+        public String message;
+
+        /** When the breaker opened, or 0 if it is closed. */
+        public long openedAt;
+
+        /** Whether a trial request is in progress while half-open. */
+        public boolean trial;
+
+        public boolean allow() {
+            if (openedAt == 0) return true;
+            if (now() - openedAt < m_coolDown || trial) return false;
+            trial = true;
+            return true;
+        }
+
+        public void succeeded(String service) {
+            if (openedAt != 0) {
+                logger.warn("Circuit breaker for " + service + " closed");
+            }
+            failures = 0;
+            message = null;
+            openedAt = 0;
+            trial = false;
+        }
+
+        public void failed(String service, String message) {
+            failures++;
+            this.message = message;
+            if (openedAt != 0) {
+                logger.warn("Circuit breaker for " + service
+                        + " re-opened, trial request failed: " + message);
+                openedAt = now();
+                trial = false;
+            } else if (m_threshold > 0 && failures >= m_threshold) {
+                logger.warn("Circuit breaker for " + service + " opened after "
+                        + failures + " consecutive failures: " + message);
+                openedAt = now();
+            }
+        }
+
+        public String toString() {
+            String state;
+            if (openedAt == 0) {
+                state = "closed";
+            } else if (now() - openedAt < m_coolDown) {
+                state = "open";
+            } else {
+                state = "half-open";
+            }
+            return state + " (" + failures + " consecutive failures)";
+        }
+    }
+}
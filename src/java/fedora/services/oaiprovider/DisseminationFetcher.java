@@ -0,0 +1,164 @@
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts fetching disseminations on a bounded pool of threads, so that a
+ * record's about dissemination can be requested from Fedora while its
+ * metadata dissemination is being read and written.
+ * <p>
+ * Only the request is made on the pool. The content is given back as the
+ * source's own stream, to be read by the caller as it arrives, so nothing
+ * is held in memory. A fetch that is not taken must be discarded so that its
+ * stream is closed.
+ * </p>
+ * <p>
+ * Nothing is fetched for upcoming records: proai lists all of the records
+ * to be written before its workers ask for them, one at a time, so only the
+ * disseminations of the record being written are known to be needed.
+ * </p>
+ */
+public class DisseminationFetcher {
+
+    private final DisseminationSource m_source;
+
+    private final ThreadPoolExecutor m_executor;
+
+    /**
+     * @param source
+     *        where to fetch disseminations from.
+     * @param threads
+     *        the maximum number of concurrent requests.
+     */
+    public DisseminationFetcher(DisseminationSource source, int threads) {
+        m_source = source;
+        m_executor =
+                new ThreadPoolExecutor(threads,
+                                       threads,
+                                       60,
+                                       TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue<Runnable>(),
+                                       new FetchThreadFactory());
+    }
+
+    /**
+     * Start requesting a dissemination. The date is passed on to the source.
+     */
+    public Fetch fetch(String dissURI, String date) {
+        Fetch fetch = new Fetch(dissURI, date);
+        fetch.m_future = m_executor.submit(fetch);
+        return fetch;
+    }
+
+    /**
+     * Stop the fetch threads. Requests in progress are interrupted.
+     */
+    public void close() {
+        m_executor.shutdownNow();
+    }
+
+    /**
+     * A dissemination being requested.
+     */
+    public class Fetch
+            implements Callable<InputStream> {
+
+        private final String m_dissURI;
+
+        private final String m_date;
+
+        private Future<InputStream> m_future;
+
+        private InputStream m_stream;
+
+        private boolean m_taken;
+
+        private boolean m_discarded;
+
+        private Fetch(String dissURI, String date) {
+            m_dissURI = dissURI;
+            m_date = date;
+        }
+
+        public InputStream call() throws IOException {
+            InputStream in = m_source.get(m_dissURI, m_date);
+            synchronized (this) {
+                if (!m_discarded) {
+                    m_stream = in;
+                    return in;
+                }
+            }
+            close(in);
+            return null;
+        }
+
+        /**
+         * Wait for the dissemination and take its stream, which the caller
+         * must close.
+         *
+         * @throws IOException
+         *         if the dissemination can't be read.
+         */
+        public InputStream get() throws IOException {
+            try {
+                InputStream in = m_future.get();
+                synchronized (this) {
+                    m_taken = true;
+                }
+                return in;
+            } catch (InterruptedException e) {
+                discard();
+                throw new IOException("Interrupted while fetching "
+                        + m_dissURI);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("Error fetching " + m_dissURI + ": "
+                        + e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        /**
+         * Give up the dissemination if it has not been taken, closing its
+         * stream whenever it arrives.
+         */
+        public void discard() {
+            InputStream in;
+            synchronized (this) {
+                if (m_taken || m_discarded) return;
+                m_discarded = true;
+                in = m_stream;
+            }
+            m_future.cancel(true);
+            if (in != null) close(in);
+        }
+    }
+
+    private static void close(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static class FetchThreadFactory
+            implements ThreadFactory {
+
+        private int m_count;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "oaiprovider-fetch-" + ++m_count);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
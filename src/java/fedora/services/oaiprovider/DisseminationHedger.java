@@ -0,0 +1,314 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A DisseminationSource that sends a second, identical request to another
+ * source when the response to the first is slow to start, and uses whichever
+ * response starts first.
+ * <p>
+ * The delay before hedging is a percentile of the recent response times, but
+ * never less than a given minimum. Until enough responses have been seen,
+ * the minimum is used. Hedges are limited to a percentage of requests: each
+ * request earns a fraction of a hedge and each hedge spends one, with at
+ * most a few hedges saved up for bursts.
+ * </p>
+ * <p>
+ * The request that loses is aborted if the source is an
+ * AbortableDisseminationSource, and otherwise its response is closed as soon
+ * as it starts. Requests are made on a pool of threads no larger than the
+ * number of connections the source may open, so any more wait for a thread
+ * as they would for a connection.
+ * </p>
+ */
+public class DisseminationHedger
+        implements DisseminationSource {
+
+    private static final Logger logger =
+            Logger.getLogger(DisseminationHedger.class.getName());
+
+    /** The number of recent response times the delay is computed from. */
+    private static final int SAMPLES = 1000;
+
+    /** How many responses are needed before the percentile is used. */
+    private static final int MIN_SAMPLES = 100;
+
+    /** How often (in responses) the delay is recomputed. */
+    private static final int RECOMPUTE_INTERVAL = 100;
+
+    /** The most hedges that can be saved up. */
+    private static final double MAX_TOKENS = 10;
+
+    private final DisseminationSource m_source;
+
+    private final double m_percentile;
+
+    private final long m_minDelay;
+
+    private final double m_budget;
+
+    private final ThreadPoolExecutor m_executor;
+
+    private final long[] m_samples = new long[SAMPLES];
+
+    private int m_sampleCount;
+
+    private long m_delay;
+
+    private double m_tokens;
+
+    private long m_requests;
+
+    private long m_hedges;
+
+    private long m_hedgeWins;
+
+    /**
+     * @param source
+     *        where to get disseminations.
+     * @param percentile
+     *        the percentile of recent response times to wait for before
+     *        hedging, e.g. 95.
+     * @param minDelay
+     *        the least time to wait before hedging, in milliseconds.
+     * @param budget
+     *        the most hedges to send, as a percentage of requests.
+     * @param maxThreads
+     *        the most requests to make at once, e.g. the source's connection
+     *        limit.
+     */
+    public DisseminationHedger(DisseminationSource source,
+                               double percentile,
+                               long minDelay,
+                               double budget,
+                               int maxThreads) {
+        m_source = source;
+        m_percentile = percentile;
+        m_minDelay = minDelay;
+        m_budget = budget / 100;
+        m_delay = minDelay;
+        m_executor =
+                new ThreadPoolExecutor(maxThreads,
+                                       maxThreads,
+                                       60,
+                                       TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue<Runnable>(),
+                                       new HedgeThreadFactory());
+        m_executor.allowCoreThreadTimeOut(true);
+    }
+
+    public InputStream get(String dissURI, String date) throws IOException {
+        long delay;
+        synchronized (this) {
+            m_requests++;
+            m_tokens = Math.min(MAX_TOKENS, m_tokens + m_budget);
+            delay = m_delay;
+        }
+        CompletionService<InputStream> responses =
+                new ExecutorCompletionService<InputStream>(m_executor);
+        Request first = new Request(dissURI, date);
+        Request second = null;
+        Future<InputStream> firstFuture = responses.submit(first);
+        first.m_future = firstFuture;
+        try {
+            Future<InputStream> done =
+                    responses.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null && spendToken()) {
+                logger.debug("No response for " + dissURI + " after "
+                        + delay + "ms, sending hedge request");
+                second = new Request(dissURI, date);
+                second.m_future = responses.submit(second);
+            }
+            if (done == null) {
+                done = responses.take();
+            }
+            try {
+                InputStream in = done.get();
+                if (second != null) {
+                    if (done == firstFuture) {
+                        second.abandon();
+                    } else {
+                        first.abandon();
+                        synchronized (this) {
+                            m_hedgeWins++;
+                        }
+                    }
+                }
+                return in;
+            } catch (ExecutionException e) {
+                if (second == null) throw unwrap(e);
+                // the other one may still succeed
+                try {
+                    InputStream in = responses.take().get();
+                    if (done == firstFuture) {
+                        synchronized (this) {
+                            m_hedgeWins++;
+                        }
+                    }
+                    return in;
+                } catch (ExecutionException e2) {
+                    throw unwrap(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            first.abandon();
+            if (second != null) second.abandon();
+            throw new IOException("Interrupted while getting " + dissURI);
+        }
+    }
+
+    public void close() {
+        logger.info("Hedger closing: " + getStats());
+        m_executor.shutdownNow();
+        m_source.close();
+    }
+
+    public synchronized long getRequests() {
+        return m_requests;
+    }
+
+    public synchronized long getHedges() {
+        return m_hedges;
+    }
+
+    /**
+     * Get the number of hedge requests whose response was used.
+     */
+    public synchronized long getHedgeWins() {
+        return m_hedgeWins;
+    }
+
+    /**
+     * Get the current delay before hedging, in milliseconds.
+     */
+    public synchronized long getDelay() {
+        return m_delay;
+    }
+
+    public synchronized String getStats() {
+        return m_requests + " requests, " + m_hedges + " hedges, "
+                + m_hedgeWins + " hedge wins, current delay " + m_delay
+                + "ms";
+    }
+
+    private synchronized boolean spendToken() {
+        if (m_tokens < 1) return false;
+        m_tokens -= 1;
+        m_hedges++;
+        return true;
+    }
+
+    private synchronized void addSample(long millis) {
+        m_samples[m_sampleCount % SAMPLES] = millis;
+        m_sampleCount++;
+        if (m_sampleCount >= MIN_SAMPLES
+                && m_sampleCount % RECOMPUTE_INTERVAL == 0) {
+            int n = Math.min(m_sampleCount, SAMPLES);
+            long[] sorted = new long[n];
+            System.arraycopy(m_samples, 0, sorted, 0, n);
+            Arrays.sort(sorted);
+            int i = (int) Math.ceil(m_percentile / 100 * n) - 1;
+            m_delay = Math.max(m_minDelay, sorted[Math.max(0, Math.min(i, n - 1))]);
+        }
+    }
+
+    private static IOException unwrap(ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+            return (IOException) e.getCause();
+        }
+        IOException ioe = new IOException(e.getCause().getMessage());
+        ioe.initCause(e.getCause());
+        return ioe;
+    }
+
+    private class Request
+            implements Callable<InputStream> {
+
+        private final String m_dissURI;
+
+        private final String m_date;
+
+        private final RequestAbort m_abort = new RequestAbort();
+
+        private Future<InputStream> m_future;
+
+        private InputStream m_in;
+
+        private boolean m_abandoned;
+
+        public Request(String dissURI, String date) {
+            m_dissURI = dissURI;
+            m_date = date;
+        }
+
+        public InputStream call() throws IOException {
+            long start = System.currentTimeMillis();
+            InputStream in;
+            if (m_source instanceof AbortableDisseminationSource) {
+                in =
+                        ((AbortableDisseminationSource) m_source)
+                                .get(m_dissURI, m_date, m_abort);
+            } else {
+                in = m_source.get(m_dissURI, m_date);
+            }
+            addSample(System.currentTimeMillis() - start);
+            synchronized (this) {
+                if (m_abandoned) {
+                    close(in);
+                    return null;
+                }
+                m_in = in;
+            }
+            return in;
+        }
+
+        /**
+         * Abort this request, or stop it from being made if it is still
+         * waiting for a thread, and close its response, now or whenever it
+         * arrives.
+         */
+        public void abandon() {
+            m_future.cancel(false);
+            m_abort.abort();
+            synchronized (this) {
+                m_abandoned = true;
+                if (m_in != null) {
+                    close(m_in);
+                }
+            }
+        }
+
+        private void close(InputStream in) {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static class HedgeThreadFactory
+            implements ThreadFactory {
+
+        private int m_count;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "oaiprovider-hedge-" + ++m_count);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
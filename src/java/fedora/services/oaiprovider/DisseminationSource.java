@@ -0,0 +1,29 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Something that disseminations can be read from.
+ */
+public interface DisseminationSource {
+
+    /**
+     * Get the content of a dissemination.
+     *
+     * @param dissURI
+     *        the dissemination, e.g. <code>info:fedora/demo:1/DC</code>.
+     * @param date
+     *        the last modified date of the object the dissemination is of,
+     *        as given in the record's sourceInfo, or null if unknown.
+     * @throws IOException
+     *         if the dissemination can't be read.
+     */
+    public InputStream get(String dissURI, String date) throws IOException;
+
+    /**
+     * Release any resources held by this source.
+     */
+    public void close();
+}
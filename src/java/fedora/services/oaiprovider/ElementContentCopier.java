@@ -0,0 +1,261 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import proai.error.RepositoryException;
+
+/**
+ * Copies the content of a wrapper element (everything between its start and
+ * end tags) from an XML stream to a writer as it is read.
+ * <p>
+ * Everything before the wrapper's start tag is discarded, as is everything
+ * after its matching end tag. The only lookahead is the few characters needed
+ * to recognize a start or end tag with the wrapper's name, so memory use does
+ * not depend on the size of the document. Nested elements with the same name
+ * are copied as content.
+ * </p>
+ * <p>
+ * If the end tag is missing, the content has already been written by the
+ * time the error is detected, so callers should treat the output as invalid.
+ * </p>
+ */
+public class ElementContentCopier {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final char[] m_name;
+
+    private final String m_description;
+
+    /**
+     * @param elementName
+     *        the (qualified) name of the wrapper element, e.g.
+     *        <code>abouts</code>.
+     * @param description
+     *        what the document is, for error messages, e.g.
+     *        <code>abouts xml</code>.
+     */
+    public ElementContentCopier(String elementName, String description) {
+        m_name = elementName.toCharArray();
+        m_description = description;
+    }
+
+    /**
+     * Copy the content of the wrapper element.
+     *
+     * @throws RepositoryException
+     *         if the start or end tag of the wrapper element is not found.
+     * @throws IOException
+     *         if reading or writing fails.
+     */
+    public void copy(Reader in, Writer out) throws IOException,
+            RepositoryException {
+        new Copy(in, out).run();
+    }
+
+    private String tag(boolean end) {
+        return "<" + (end ? "/" : "") + new String(m_name) + ">";
+    }
+
+    /**
+     * The state of a single copy.
+     */
+    private class Copy {
+
+        private final Reader m_in;
+
+        private final Writer m_out;
+
+        private final char[] m_inBuf = new char[BUFFER_SIZE];
+
+        private int m_inPos;
+
+        private int m_inLen;
+
+        private final char[] m_outBuf = new char[BUFFER_SIZE];
+
+        private int m_outLen;
+
+        /** A character read ahead and not yet consumed, or -2 if none. */
+        private int m_pushback = -2;
+
+        public Copy(Reader in, Writer out) {
+            m_in = in;
+            m_out = out;
+        }
+
+        public void run() throws IOException {
+            if (!skipToStart()) {
+                throw new RepositoryException("Bad " + m_description
+                        + ": opening " + tag(false) + " not found");
+            }
+            boolean found = copyToEnd();
+            flush();
+            if (!found) {
+                throw new RepositoryException("Bad " + m_description
+                        + ": closing " + tag(true) + " not found");
+            }
+        }
+
+        /**
+         * Discard input up to and including the wrapper's start tag.
+         *
+         * @return false if no start tag was found
+         */
+        private boolean skipToStart() throws IOException {
+            int c = read();
+            while (c != -1) {
+                if (c == '<') {
+                    if (matchName(read(), false)) {
+                        return skipTag();
+                    }
+                }
+                c = read();
+            }
+            return false;
+        }
+
+        /**
+         * Copy input up to the wrapper's end tag, tracking nested elements of
+         * the same name.
+         *
+         * @return false if no end tag was found
+         */
+        private boolean copyToEnd() throws IOException {
+            int depth = 0;
+            int c = read();
+            while (c != -1) {
+                if (c != '<') {
+                    write(c);
+                    c = read();
+                    continue;
+                }
+                write('<');
+                c = read();
+                if (c == '/') {
+                    write('/');
+                    if (matchName(read(), true)) {
+                        if (depth == 0) {
+                            // drop the "</name" written so far
+                            m_outLen -= m_name.length + 2;
+                            return true;
+                        }
+                        depth--;
+                    }
+                    c = m_pushback;
+                    m_pushback = -2;
+                } else if (matchName(c, true)) {
+                    if (!copyTag()) depth++;
+                    c = read();
+                } else {
+                    c = m_pushback;
+                    m_pushback = -2;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Try to match the element name starting with the given character.
+         * On return, the first character that was not part of the name is in
+         * the pushback slot, whether or not the name matched.
+         */
+        private boolean matchName(int c, boolean echo) throws IOException {
+            int i = 0;
+            while (i < m_name.length && c == m_name[i]) {
+                if (echo) write(c);
+                i++;
+                c = read();
+            }
+            boolean matched =
+                    i == m_name.length
+                            && (c == '>' || c == '/' || isWhitespace(c));
+            m_pushback = c;
+            return matched;
+        }
+
+        /**
+         * Skip the rest of a start tag (after its name).
+         *
+         * @return false if the input ended inside the tag
+         */
+        private boolean skipTag() throws IOException {
+            int c = m_pushback;
+            m_pushback = -2;
+            int quote = 0;
+            while (c != -1 && (quote != 0 || c != '>')) {
+                if (quote == 0 && (c == '"' || c == '\'')) {
+                    quote = c;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                c = read();
+            }
+            return c != -1;
+        }
+
+        /**
+         * Copy the rest of a start or end tag (after its name).
+         *
+         * @return true if the tag was an empty-element tag
+         */
+        private boolean copyTag() throws IOException {
+            int c = m_pushback;
+            m_pushback = -2;
+            int quote = 0;
+            int prev = 0;
+            while (c != -1 && (quote != 0 || c != '>')) {
+                write(c);
+                if (quote == 0 && (c == '"' || c == '\'')) {
+                    quote = c;
+                } else if (c == quote) {
+                    quote = 0;
+                }
+                prev = c;
+                c = read();
+            }
+            if (c != -1) write(c);
+            return prev == '/';
+        }
+
+        private int read() throws IOException {
+            if (m_pushback != -2) {
+                int c = m_pushback;
+                m_pushback = -2;
+                return c;
+            }
+            if (m_inPos == m_inLen) {
+                m_inLen = m_in.read(m_inBuf);
+                m_inPos = 0;
+                if (m_inLen <= 0) {
+                    m_inLen = 0;
+                    return -1;
+                }
+            }
+            return m_inBuf[m_inPos++];
+        }
+
+        private void write(int c) throws IOException {
+            if (m_outLen == m_outBuf.length) {
+                // keep enough to be able to drop a pending end tag
+                int keep = m_name.length + 2;
+                m_out.write(m_outBuf, 0, m_outLen - keep);
+                System.arraycopy(m_outBuf, m_outLen - keep, m_outBuf, 0, keep);
+                m_outLen = keep;
+            }
+            m_outBuf[m_outLen++] = (char) c;
+        }
+
+        private void flush() throws IOException {
+            m_out.write(m_outBuf, 0, m_outLen);
+            m_outLen = 0;
+        }
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+}
@@ -0,0 +1,193 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A DisseminationSource that serves datastream disseminations from a single
+ * export of the object, so that all the datastream-based formats and abouts
+ * of an item cost one request instead of one each.
+ * <p>
+ * When a datastream dissemination (<code>info:fedora/PID/DSID</code>) is
+ * requested for a record with a known date, and the datastream is one of
+ * those this source was configured with, the object's FOXML is exported in
+ * the archive context and the inline content of all the configured
+ * datastreams is kept in a small in-memory cache, keyed by object and record
+ * date. Other requests, and datastreams the export doesn't have inline, go
+ * to the other source.
+ * </p>
+ */
+public class ExportDisseminationSource
+        implements DisseminationSource {
+
+    private static final Logger logger =
+            Logger.getLogger(ExportDisseminationSource.class.getName());
+
+    private final DisseminationSource m_source;
+
+    private final String m_baseURL;
+
+    private final Set<String> m_dsIDs;
+
+    private final int m_maxItems;
+
+    private final long m_ttl;
+
+    private final LinkedHashMap<String, Export> m_exports;
+
+    private long m_exportCount;
+
+    private long m_hits;
+
+    private long m_misses;
+
+    /**
+     * @param source
+     *        where to get the export, and any disseminations that can't be
+     *        served from one.
+     * @param baseURL
+     *        the Fedora base URL, ending with <code>/</code>.
+     * @param dsIDs
+     *        the datastreams to keep from each export.
+     * @param maxItems
+     *        the most objects to keep datastreams for at once.
+     * @param ttl
+     *        how long to keep an object's datastreams, in milliseconds.
+     */
+    public ExportDisseminationSource(DisseminationSource source,
+                                     String baseURL,
+                                     Set<String> dsIDs,
+                                     int maxItems,
+                                     long ttl) {
+        m_source = source;
+        m_baseURL = baseURL;
+        m_dsIDs = dsIDs;
+        m_maxItems = maxItems;
+        m_ttl = ttl;
+        m_exports = new LinkedHashMap<String, Export>(16, 0.75f, true);
+    }
+
+    public InputStream get(String dissURI, String date) throws IOException {
+        String[] parts = dissURI.split("/");
+        if (date == null || parts.length != 3
+                || !dissURI.startsWith("info:fedora/")
+                || !m_dsIDs.contains(parts[2])) {
+            return m_source.get(dissURI, date);
+        }
+        byte[] content = getExport(parts[1], date).get(parts[2]);
+        synchronized (this) {
+            if (content == null) {
+                m_misses++;
+            } else {
+                m_hits++;
+            }
+        }
+        if (content == null) {
+            return m_source.get(dissURI, date);
+        }
+        return new ByteArrayInputStream(content);
+    }
+
+    public void close() {
+        logger.info("Export source closing: " + getStats());
+        m_source.close();
+    }
+
+    /**
+     * Get the number of exports that have been requested.
+     */
+    public synchronized long getExportCount() {
+        return m_exportCount;
+    }
+
+    /**
+     * Get the number of disseminations served from an export.
+     */
+    public synchronized long getHits() {
+        return m_hits;
+    }
+
+    public synchronized String getStats() {
+        return m_exportCount + " exports, " + m_hits + " hits, " + m_misses
+                + " misses";
+    }
+
+    /**
+     * Get the datastreams of the object as of the given record date,
+     * exporting it if needed. If the export fails, an empty map is returned.
+     */
+    private Map<String, byte[]> getExport(String pid, String date) {
+        String key = pid + " " + date;
+        Export export;
+        boolean run = false;
+        synchronized (this) {
+            export = m_exports.get(key);
+            if (export == null || export.expires < System.currentTimeMillis()) {
+                export = new Export(pid);
+                m_exports.put(key, export);
+                m_exportCount++;
+                run = true;
+                Iterator<Export> eldest = m_exports.values().iterator();
+                while (m_exports.size() > m_maxItems) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        if (run) {
+            export.run();
+        }
+        try {
+            return export.get();
+        } catch (InterruptedException e) {
+            return Collections.emptyMap();
+        } catch (ExecutionException e) {
+            return Collections.emptyMap();
+        }
+    }
+
+    private class Export
+            extends FutureTask<Map<String, byte[]>> {
+
+        public final long expires;
+
+        public Export(final String pid) {
+            super(new Callable<Map<String, byte[]>>() {
+
+                public Map<String, byte[]> call() {
+                    String url =
+                            m_baseURL + "objects/" + pid
+                                    + "/export?context=archive";
+                    InputStream in = null;
+                    try {
+                        in = m_source.get(url, null);
+                        return FoxmlDatastreamParser.parse(in, m_dsIDs);
+                    } catch (IOException e) {
+                        logger.warn("Unable to export " + pid
+                                + ", getting datastreams individually: "
+                                + e.getMessage());
+                        return Collections.emptyMap();
+                    } finally {
+                        if (in != null) try {
+                            in.close();
+                        } catch (IOException e) {
+                        }
+                    }
+                }
+            });
+            expires = System.currentTimeMillis() + m_ttl;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import fedora.client.FedoraClient;
+
+/**
+ * Reads disseminations from Fedora over HTTP. Requests can only be aborted if
+ * the client is a PooledFedoraClient.
+ */
+public class FedoraDisseminationSource
+        implements AbortableDisseminationSource {
+
+    private final FedoraClient m_fedora;
+
+    public FedoraDisseminationSource(FedoraClient fedora) {
+        m_fedora = fedora;
+    }
+
+    public InputStream get(String dissURI, String date) throws IOException {
+        return m_fedora.get(dissURI, true);
+    }
+
+    public InputStream get(String dissURI, String date, RequestAbort abort)
+            throws IOException {
+        if (m_fedora instanceof PooledFedoraClient) {
+            return ((PooledFedoraClient) m_fedora).get(dissURI, true, abort);
+        }
+        return get(dissURI, date);
+    }
+
+    public void close() {
+    }
+}
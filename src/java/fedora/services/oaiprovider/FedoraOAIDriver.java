@@ -5,6 +5,9 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSourceFactory;
 import org.apache.log4j.Logger;
 
 import proai.SetInfo;
@@ -31,6 +34,9 @@ public class FedoraOAIDriver
 
     private static final String _XSI_DECLARATION = "xmlns:xsi=\"" + _XSI_URI + "\"";
 
+    private static final ElementContentCopier _ABOUTS =
+            new ElementContentCopier("abouts", "abouts xml");
+
     private static final Logger logger =
             Logger.getLogger(FedoraOAIDriver.class.getName());
 
@@ -89,6 +95,112 @@ public class FedoraOAIDriver
 
     public static final String PROP_VOLATILE = NS + "volatile";
 
+    public static final String PROP_ABOUT_THREADS = NS + "aboutThreads";
+
+    public static final String PROP_CACHE_DIR = NS + "cache.dir";
+
+    public static final String PROP_CACHE_SIZE = NS + "cache.size";
+
+    public static final String PROP_BREAKER_THRESHOLD = NS + "breaker.threshold";
+
+    public static final String PROP_BREAKER_COOLDOWN = NS + "breaker.coolDown";
+
+    public static final String PROP_BREAKER_FAILURE_TTL =
+            NS + "breaker.failureTTL";
+
+    public static final String PROP_HEDGE_PERCENTILE = NS + "hedge.percentile";
+
+    public static final String PROP_HEDGE_MIN_DELAY = NS + "hedge.minDelay";
+
+    public static final String PROP_HEDGE_BUDGET = NS + "hedge.budget";
+
+    public static final String PROP_HTTP_ENGINE = NS + "httpEngine";
+
+    public static final String PROP_DISS_COMPRESSION =
+            NS + "disseminationCompression";
+
+    public static final String PROP_QUERY_COMPRESSION = NS + "queryCompression";
+
+    public static final String PROP_DISS_MAX_CONNS =
+            NS + "disseminationMaxConnections";
+
+    public static final String PROP_DISS_MAX_CONNS_PER_HOST =
+            NS + "disseminationMaxConnectionsPerHost";
+
+    public static final String PROP_QUERY_MAX_CONNS =
+            NS + "queryMaxConnections";
+
+    public static final String PROP_QUERY_MAX_CONNS_PER_HOST =
+            NS + "queryMaxConnectionsPerHost";
+
+    public static final String PROP_CONN_IDLE_TIMEOUT =
+            NS + "connectionIdleTimeout";
+
+    public static final String PROP_CONN_STALE_CHECK =
+            NS + "connectionStaleCheck";
+
+    public static final String PROP_QUERY_THREADS = NS + "queryThreads";
+
+    public static final String PROP_QUERY_STREAMING = NS + "queryStreaming";
+
+    public static final String PROP_SPOOL_DIR = NS + "spool.dir";
+
+    public static final String PROP_SPOOL_MEMORY = NS + "spool.memory";
+
+    public static final String PROP_SPOOL_QUOTA = NS + "spool.quota";
+
+    public static final String PROP_CHECKPOINT_DIR = NS + "checkpoint.dir";
+
+    public static final String PROP_CHECKPOINT_TTL = NS + "checkpoint.ttl";
+
+    public static final String PROP_WINDOW_SIZE = NS + "window.size";
+
+    public static final String PROP_WINDOW_MIN_SIZE = NS + "window.minSize";
+
+    public static final String PROP_WINDOW_AHEAD = NS + "window.ahead";
+
+    public static final String PROP_WINDOW_EARLIEST = NS + "window.earliest";
+
+    public static final String PROP_LATEST_DATE_FILE = NS + "latestDate.file";
+
+    public static final String PROP_LATEST_DATE_TTL = NS + "latestDate.ttl";
+
+    public static final String PROP_SET_INDEX_MEMORY = NS + "setIndex.memory";
+
+    public static final String PROP_FAN_OUT = NS + "fanOut";
+
+    public static final String PROP_LOCAL_SORT = NS + "localSort";
+
+    public static final String PROP_LOCAL_SORT_MEMORY =
+            NS + "localSort.memory";
+
+    public static final String PROP_LOWLEVEL_OBJECT_STORE =
+            NS + "lowlevel.objectStore";
+
+    public static final String PROP_LOWLEVEL_DATASTREAM_STORE =
+            NS + "lowlevel.datastreamStore";
+
+    public static final String PROP_LOWLEVEL_LAYOUT = NS + "lowlevel.layout";
+
+    public static final String PROP_LOWLEVEL_HASH_PATH_FORMAT =
+            NS + "lowlevel.hashPathFormat";
+
+    public static final String PROP_LOWLEVEL_DB_DRIVER =
+            NS + "lowlevel.db.driverClassName";
+
+    public static final String PROP_LOWLEVEL_JDBC_URL =
+            NS + "lowlevel.jdbc.url";
+
+    public static final String PROP_LOWLEVEL_JDBC_USER =
+            NS + "lowlevel.jdbc.user";
+
+    public static final String PROP_LOWLEVEL_JDBC_PASSWORD =
+            NS + "lowlevel.jdbc.password";
+
+    public static final String PROP_EXPORT_ITEMS = NS + "export.items";
+
+    public static final String PROP_EXPORT_TTL = NS + "export.ttl";
+
     private QueryFactory m_queryFactory;
 
     private URL m_identify;
@@ -105,6 +217,18 @@ public class FedoraOAIDriver
 
     private InvocationSpec m_setSpecDiss;
 
+    private DisseminationSource m_source;
+
+    private DisseminationFetcher m_fetcher;
+
+    private TransferStats m_disseminationStats;
+
+    private TransferStats m_queryStats;
+
+    private ConnectionPool m_disseminationPool;
+
+    private ConnectionPool m_queryPool;
+
     public FedoraOAIDriver() {
     }
 
@@ -130,11 +254,46 @@ public class FedoraOAIDriver
         }
 
         String className = getRequired(props, PROP_QUERY_FACTORY);
+        long idleTimeout =
+                getOptionalInt(props, PROP_CONN_IDLE_TIMEOUT, 60) * 1000L;
+        boolean staleCheck =
+                getOptionalBoolean(props, PROP_CONN_STALE_CHECK, true);
+        m_disseminationPool =
+                new ConnectionPool("Dissemination",
+                                   getOptionalInt(props,
+                                                  PROP_DISS_MAX_CONNS,
+                                                  30),
+                                   getOptionalInt(props,
+                                                  PROP_DISS_MAX_CONNS_PER_HOST,
+                                                  15),
+                                   idleTimeout,
+                                   staleCheck);
+        m_queryPool =
+                new ConnectionPool("Query",
+                                   getOptionalInt(props,
+                                                  PROP_QUERY_MAX_CONNS,
+                                                  30),
+                                   getOptionalInt(props,
+                                                  PROP_QUERY_MAX_CONNS_PER_HOST,
+                                                  15),
+                                   idleTimeout,
+                                   staleCheck);
         try {
-            m_fedora =
-                    new FedoraClient(m_fedoraBaseURL,
-                                     m_fedoraUser,
-                                     m_fedoraPass);
+            if (getOptionalBoolean(props, PROP_DISS_COMPRESSION, false)) {
+                m_disseminationStats = new TransferStats("Disseminations");
+                m_fedora =
+                        new CompressingFedoraClient(m_fedoraBaseURL,
+                                                    m_fedoraUser,
+                                                    m_fedoraPass,
+                                                    m_disseminationPool,
+                                                    m_disseminationStats);
+            } else {
+                m_fedora =
+                        new PooledFedoraClient(m_fedoraBaseURL,
+                                               m_fedoraUser,
+                                               m_fedoraPass,
+                                               m_disseminationPool);
+            }
             m_fedora.TIMEOUT_SECONDS =
                     getRequiredInt(props, PROP_DISS_CONN_TIMEOUT);
             m_fedora.SOCKET_TIMEOUT_SECONDS =
@@ -142,19 +301,32 @@ public class FedoraOAIDriver
         } catch (Exception e) {
             throw new RepositoryException("Error parsing baseURL", e);
         }
+        m_source = getDisseminationSource(props);
 
         try {
             Class<?> queryFactoryClass = Class.forName(className);
             m_queryFactory = (QueryFactory) queryFactoryClass.newInstance();
-            FedoraClient queryClient =
-                    new FedoraClient(m_fedoraBaseURL,
-                                     m_fedoraUser,
-                                     m_fedoraPass);
+            FedoraClient queryClient;
+            if (getOptionalBoolean(props, PROP_QUERY_COMPRESSION, false)) {
+                m_queryStats = new TransferStats("Queries");
+                queryClient =
+                        new CompressingFedoraClient(m_fedoraBaseURL,
+                                                    m_fedoraUser,
+                                                    m_fedoraPass,
+                                                    m_queryPool,
+                                                    m_queryStats);
+            } else {
+                queryClient =
+                        new PooledFedoraClient(m_fedoraBaseURL,
+                                               m_fedoraUser,
+                                               m_fedoraPass,
+                                               m_queryPool);
+            }
             queryClient.TIMEOUT_SECONDS =
                     getRequiredInt(props, PROP_QUERY_CONN_TIMEOUT);
             queryClient.SOCKET_TIMEOUT_SECONDS =
                     getRequiredInt(props, PROP_QUERY_SOCK_TIMEOUT);
-            m_queryFactory.init(m_fedora, queryClient, props);
+            m_queryFactory.init(m_source, queryClient, props);
         } catch (Exception e) {
             throw new RepositoryException("Unable to initialize " + className,
                                           e);
@@ -164,6 +336,120 @@ public class FedoraOAIDriver
                 InvocationSpec
                         .getInstance(getOptional(props,
                                                  PROP_SETSPEC_DESC_DISSTYPE));
+
+        int aboutThreads = getOptionalInt(props, PROP_ABOUT_THREADS, 0);
+        if (aboutThreads > 0) {
+            m_fetcher =
+                    new DisseminationFetcher(m_source, aboutThreads);
+        }
+    }
+
+    /**
+     * Get the source to read disseminations from: Fedora, wrapped in
+     * whichever of hedging, circuit breakers, low-level storage, object
+     * exports and caching are configured.
+     */
+    private DisseminationSource getDisseminationSource(Properties props)
+            throws RepositoryException {
+        DisseminationSource source = new FedoraDisseminationSource(m_fedora);
+        String engine = getOptional(props, PROP_HTTP_ENGINE);
+        if (engine.equals("nio")) {
+            try {
+                NioHttpClient client =
+                        new NioHttpClient(m_fedora.TIMEOUT_SECONDS * 1000,
+                                          m_fedora.SOCKET_TIMEOUT_SECONDS * 1000,
+                                          m_fedora.MAX_CONNECTIONS_PER_HOST);
+                if (m_disseminationStats != null) {
+                    client.setCompression(m_disseminationStats);
+                }
+                source =
+                        new NioDisseminationSource(client,
+                                                   m_fedoraBaseURL,
+                                                   m_fedoraUser,
+                                                   m_fedoraPass,
+                                                   source);
+            } catch (IOException e) {
+                throw new RepositoryException("Unable to initialize NIO "
+                        + "HTTP engine", e);
+            }
+        } else if (!engine.equals("") && !engine.equals("blocking")) {
+            throw new RepositoryException("Unrecognized value for "
+                    + PROP_HTTP_ENGINE + ": " + engine);
+        }
+        int hedgePercentile = getOptionalInt(props, PROP_HEDGE_PERCENTILE, 0);
+        if (hedgePercentile > 0) {
+            source =
+                    new DisseminationHedger(source,
+                                            hedgePercentile,
+                                            getOptionalInt(props,
+                                                           PROP_HEDGE_MIN_DELAY,
+                                                           100),
+                                            getOptionalInt(props,
+                                                           PROP_HEDGE_BUDGET,
+                                                           5),
+                                            m_fedora.MAX_CONNECTIONS_PER_HOST);
+        }
+        int breakerThreshold = getOptionalInt(props, PROP_BREAKER_THRESHOLD, 0);
+        int failureTTL = getOptionalInt(props, PROP_BREAKER_FAILURE_TTL, 0);
+        if (breakerThreshold > 0 || failureTTL > 0) {
+            source =
+                    new DisseminationCircuitBreaker(source,
+                                                    breakerThreshold,
+                                                    getOptionalInt(props,
+                                                                   PROP_BREAKER_COOLDOWN,
+                                                                   60) * 1000L,
+                                                    failureTTL * 1000L);
+        }
+        String objectStore = getOptional(props, PROP_LOWLEVEL_OBJECT_STORE);
+        if (objectStore.length() > 0) {
+            source =
+                    new LowlevelDisseminationSource(source,
+                                                    getLowlevelLayout(props,
+                                                                      new File(objectStore)));
+        }
+        int exportItems = getOptionalInt(props, PROP_EXPORT_ITEMS, 0);
+        if (exportItems > 0) {
+            source =
+                    new ExportDisseminationSource(source,
+                                                  m_fedoraBaseURL,
+                                                  getDatastreamIDs(),
+                                                  exportItems,
+                                                  getOptionalInt(props,
+                                                                 PROP_EXPORT_TTL,
+                                                                 600) * 1000L);
+        }
+        String cacheDir = getOptional(props, PROP_CACHE_DIR);
+        if (cacheDir.length() > 0) {
+            long cacheSize = getOptionalInt(props, PROP_CACHE_SIZE, 256);
+            try {
+                source =
+                        new DisseminationCache(source,
+                                               new File(cacheDir),
+                                               cacheSize * 1024 * 1024);
+            } catch (IOException e) {
+                throw new RepositoryException("Unable to initialize "
+                        + "dissemination cache in " + cacheDir, e);
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Get the IDs of the datastreams disseminated for the metadata formats
+     * and abouts.
+     */
+    private Set<String> getDatastreamIDs() {
+        Set<String> dsIDs = new HashSet<String>();
+        for (FedoraMetadataFormat format : m_metadataFormats.values()) {
+            if (format.getMetadataSpec().isDatastreamInvocation()) {
+                dsIDs.add(format.getMetadataSpec().method());
+            }
+            InvocationSpec about = format.getAboutSpec();
+            if (about != null && about.isDatastreamInvocation()) {
+                dsIDs.add(about.method());
+            }
+        }
+        return dsIDs;
     }
 
     public void write(PrintWriter out) throws RepositoryException {
@@ -234,9 +520,13 @@ public class FedoraOAIDriver
         out.println("<record>");
         writeRecordHeader(itemID, deleted, date, setSpecs, out);
         if (!deleted) {
-            writeRecordMetadata(dissURI, out);
-            if (!aboutDissURI.equals("null")) {
-                writeRecordAbouts(aboutDissURI, out);
+            if (m_fetcher == null) {
+                writeRecordMetadata(dissURI, date, out);
+                if (!aboutDissURI.equals("null")) {
+                    writeRecordAbouts(aboutDissURI, date, out);
+                }
+            } else {
+                writeRecordFetchingAbout(dissURI, aboutDissURI, date, out);
             }
         } else {
             logger
@@ -246,6 +536,37 @@ public class FedoraOAIDriver
         out.println("</record>");
     }
 
+    /**
+     * Request the about dissemination of a record while its metadata
+     * dissemination is read and written, then write the about dissemination
+     * as it arrives.
+     */
+    private void writeRecordFetchingAbout(String dissURI,
+                                          String aboutDissURI,
+                                          String date,
+                                          PrintWriter out)
+            throws RepositoryException {
+        if (aboutDissURI.equals("null")) {
+            writeRecordMetadata(dissURI, date, out);
+            return;
+        }
+        DisseminationFetcher.Fetch about =
+                m_fetcher.fetch(aboutDissURI, date);
+        try {
+            writeRecordMetadata(dissURI, date, out);
+            InputStream in;
+            try {
+                in = about.get();
+            } catch (IOException e) {
+                throw new RepositoryException("IO error reading aboutDiss "
+                        + aboutDissURI, e);
+            }
+            writeRecordAbouts(aboutDissURI, in, out);
+        } finally {
+            about.discard();
+        }
+    }
+
     private static void writeRecordHeader(String itemID,
                                           boolean deleted,
                                           String date,
@@ -265,76 +586,77 @@ public class FedoraOAIDriver
         out.println("  </header>");
     }
 
-    private void writeRecordMetadata(String dissURI, PrintWriter out)
+    private void writeRecordMetadata(String dissURI,
+                                     String date,
+                                     PrintWriter out)
             throws RepositoryException {
-
         InputStream in = null;
         try {
-            in = m_fedora.get(dissURI, true);
-            BufferedReader reader =
-                    new BufferedReader(new InputStreamReader(in));
-            StringBuffer buf = new StringBuffer();
-            String line = reader.readLine();
-            while (line != null) {
-                buf.append(line + "\n");
-                line = reader.readLine();
-            }
-            String xml =
-                    buf.toString().replaceAll("\\s*<\\?xml.*?\\?>\\s*", "");
+            in = m_source.get(dissURI, date);
+        } catch (IOException e) {
+            throw new RepositoryException("IO error reading " + dissURI, e);
+        }
+        writeRecordMetadata(dissURI, in, out);
+    }
+
+    private void writeRecordMetadata(String dissURI,
+                                     InputStream in,
+                                     PrintWriter out)
+            throws RepositoryException {
+        try {
+            Reader reader =
+                    new XMLDeclarationFilter(XMLStreams.newReader(in));
             if ((dissURI.split("/").length == 3) && (dissURI.endsWith("/DC"))) {
                 // If it's a DC datastream dissemination, inject the
                 // xsi:schemaLocation attribute if needed
-                if (xml.indexOf(_XSI_URI) == -1) {
-                    xml = xml.replaceAll("<oai_dc:dc ", "<oai_dc:dc "
-                            + _XSI_DECLARATION + " " + _DC_SCHEMALOCATION + " ");
-                }
+                reader =
+                        new RootAttributeFilter(reader,
+                                                "oai_dc:dc",
+                                                _XSI_URI,
+                                                _XSI_DECLARATION + " "
+                                                        + _DC_SCHEMALOCATION);
             }
             out.println("  <metadata>");
-            out.print(xml);
+            int last = XMLStreams.copy(reader, out);
+            if (last != -1 && last != '\n') {
+                out.println();
+            }
             out.println("  </metadata>");
         } catch (IOException e) {
             throw new RepositoryException("IO error reading " + dissURI, e);
         } finally {
-            if (in != null) try {
+            try {
                 in.close();
             } catch (IOException e) {
             }
         }
     }
 
-    private void writeRecordAbouts(String aboutDissURI, PrintWriter out)
+    private void writeRecordAbouts(String aboutDissURI,
+                                   String date,
+                                   PrintWriter out)
             throws RepositoryException {
-        String aboutWrapperStart = "<abouts>";
-        String aboutWrapperEnd = "</abouts>";
         InputStream in = null;
         try {
-            in = m_fedora.get(aboutDissURI, true);
-            BufferedReader reader =
-                    new BufferedReader(new InputStreamReader(in));
-            StringBuffer buf = new StringBuffer();
-            String line = reader.readLine();
-            while (line != null) {
-                buf.append(line + "\n");
-                line = reader.readLine();
-            }
-            // strip xml declaration and leading whitespace
-            String xml =
-                    buf.toString().replaceAll("\\s*<\\?xml.*?\\?>\\s*", "");
-            int i = xml.indexOf(aboutWrapperStart);
-            if (i == -1)
-                throw new RepositoryException("Bad abouts xml: opening "
-                        + aboutWrapperStart + " not found");
-            xml = xml.substring(i + aboutWrapperStart.length());
-            i = xml.lastIndexOf(aboutWrapperEnd);
-            if (i == -1)
-                throw new RepositoryException("Bad abouts xml: closing "
-                        + aboutWrapperEnd + " not found");
-            out.print(xml.substring(0, i));
+            in = m_source.get(aboutDissURI, date);
+        } catch (IOException e) {
+            throw new RepositoryException("IO error reading aboutDiss "
+                    + aboutDissURI, e);
+        }
+        writeRecordAbouts(aboutDissURI, in, out);
+    }
+
+    private void writeRecordAbouts(String aboutDissURI,
+                                   InputStream in,
+                                   PrintWriter out)
+            throws RepositoryException {
+        try {
+            _ABOUTS.copy(XMLStreams.newReader(in), out);
         } catch (IOException e) {
             throw new RepositoryException("IO error reading aboutDiss "
                     + aboutDissURI, e);
         } finally {
-            if (in != null) try {
+            try {
                 in.close();
             } catch (IOException e) {
             }
@@ -342,8 +664,26 @@ public class FedoraOAIDriver
     }
 
     public void close() throws RepositoryException {
-        // TODO Auto-generated method stub
-
+        if (m_fetcher != null) {
+            m_fetcher.close();
+        }
+        if (m_source != null) {
+            m_source.close();
+        }
+        if (m_disseminationStats != null) {
+            logger.info(m_disseminationStats.getStats());
+        }
+        if (m_queryStats != null) {
+            logger.info(m_queryStats.getStats());
+        }
+        if (m_disseminationPool != null) {
+            logger.info(m_disseminationPool.getStats());
+            m_disseminationPool.shutdown();
+        }
+        if (m_queryPool != null) {
+            logger.info(m_queryPool.getStats());
+            m_queryPool.shutdown();
+        }
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -353,7 +693,7 @@ public class FedoraOAIDriver
     /**
      * @param props
      */
-    private Map<String, FedoraMetadataFormat> getMetadataFormats(Properties props)
+    static Map<String, FedoraMetadataFormat> getMetadataFormats(Properties props)
             throws RepositoryException {
         String formats[], prefix, namespaceURI, schemaLocation;
         FedoraMetadataFormat mf;
@@ -396,6 +736,52 @@ public class FedoraOAIDriver
         return map;
     }
 
+    /**
+     * Get the declared layout of the low-level stores, failing if it's
+     * unknown or the stores don't use it.
+     */
+    private static LowlevelDisseminationSource.Layout getLowlevelLayout(Properties props,
+                                                                        File objectStore)
+            throws RepositoryException {
+        File datastreamStore =
+                new File(getRequired(props, PROP_LOWLEVEL_DATASTREAM_STORE));
+        String layout = getRequired(props, PROP_LOWLEVEL_LAYOUT);
+        if (layout.equals("akubra")) {
+            String hashPathFormat =
+                    getOptional(props, PROP_LOWLEVEL_HASH_PATH_FORMAT);
+            return new LowlevelDisseminationSource.HashLayout(objectStore,
+                                                              datastreamStore,
+                                                              hashPathFormat
+                                                                      .length() > 0 ? hashPathFormat
+                                                                      : "##");
+        } else if (layout.equals("legacy")) {
+            String driver = getRequired(props, PROP_LOWLEVEL_DB_DRIVER);
+            Properties dbParams = new Properties();
+            dbParams.setProperty("url", getRequired(props,
+                                                    PROP_LOWLEVEL_JDBC_URL));
+            dbParams.setProperty("username",
+                                 getRequired(props, PROP_LOWLEVEL_JDBC_USER));
+            dbParams.setProperty("password",
+                                 getRequired(props,
+                                             PROP_LOWLEVEL_JDBC_PASSWORD));
+            dbParams.setProperty("driverClassName", driver);
+            DataSource dataSource;
+            try {
+                Class.forName(driver);
+                dataSource = BasicDataSourceFactory.createDataSource(dbParams);
+            } catch (Exception e) {
+                throw new RepositoryException("Could not connect to the "
+                        + "path registry database", e);
+            }
+            return new LowlevelDisseminationSource.RegistryLayout(objectStore,
+                                                                  datastreamStore,
+                                                                  dataSource);
+        } else {
+            throw new RepositoryException("Unknown " + PROP_LOWLEVEL_LAYOUT
+                    + ": " + layout + " (expected akubra or legacy)");
+        }
+    }
+
     protected static String getRequired(Properties props, String key)
             throws RepositoryException {
         String val = props.getProperty(key);
@@ -418,6 +804,50 @@ public class FedoraOAIDriver
         }
     }
 
+    /**
+     * @param props
+     * @param key
+     * @param defaultValue
+     * @return the integer value associated with key or defaultValue if unset
+     */
+    protected static int getOptionalInt(Properties props,
+                                        String key,
+                                        int defaultValue)
+            throws RepositoryException {
+        String val = getOptional(props, key);
+        if (val.equals("")) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(val);
+        } catch (Exception e) {
+            throw new RepositoryException("Value of property " + key
+                    + " is not an integer: " + val);
+        }
+    }
+
+    /**
+     * @param props
+     * @param key
+     * @param defaultValue
+     * @return the boolean value associated with key or defaultValue if unset
+     */
+    protected static boolean getOptionalBoolean(Properties props,
+                                                String key,
+                                                boolean defaultValue)
+            throws RepositoryException {
+        String val = getOptional(props, key);
+        if (val.equals("")) {
+            return defaultValue;
+        } else if (val.equalsIgnoreCase("true")) {
+            return true;
+        } else if (val.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new RepositoryException("Value of property " + key
+                + " is not true or false: " + val);
+    }
+
     /**
      * @param props
      * @param key
@@ -432,15 +862,21 @@ public class FedoraOAIDriver
         return val.trim();
     }
 
+    /**
+     * Write a dissemination to the output as characters, ending it with a
+     * line break if it doesn't already end with one. The stream is closed.
+     * 
+     * @param source
+     *        what is being written, for error messages.
+     */
     private void writeStream(InputStream in, PrintWriter out, String source)
             throws RepositoryException {
-        BufferedReader reader = null;
+        Reader reader = null;
         try {
-            reader = new BufferedReader(new InputStreamReader(in));
-            String line = reader.readLine();
-            while (line != null) {
-                out.println(line);
-                line = reader.readLine();
+            reader = XMLStreams.newReader(in);
+            int last = XMLStreams.copy(reader, out);
+            if (last != -1 && last != '\n') {
+                out.println();
             }
         } catch (IOException e) {
             throw new RepositoryException("Error reading " + source, e);
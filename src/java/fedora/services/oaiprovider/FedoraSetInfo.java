@@ -1,13 +1,10 @@
 
 package fedora.services.oaiprovider;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 
-import fedora.client.FedoraClient;
 import fedora.common.PID;
 import fedora.server.utilities.StreamUtility;
 
@@ -21,7 +18,10 @@ import proai.error.RepositoryException;
 public class FedoraSetInfo
         implements SetInfo {
 
-    private FedoraClient m_fedora;
+    private static final ElementContentCopier _DESCRIPTIONS =
+            new ElementContentCopier("setDescriptions", "set description xml");
+
+    private DisseminationSource m_source;
 
     private final PID m_setPID;
 
@@ -32,13 +32,13 @@ public class FedoraSetInfo
     private final InvocationSpec m_setDiss;
 
     // if setDiss is null, descriptions don't exist, which is ok
-    public FedoraSetInfo(FedoraClient fedora,
+    public FedoraSetInfo(DisseminationSource source,
                          String setObjectPID,
                          String setSpec,
                          String setName,
                          String setDiss,
                          String setDissInfo) {
-        m_fedora = fedora;
+        m_source = source;
         m_setPID = PID.getInstance(setObjectPID);
         m_setSpec = setSpec.replace(' ', '_');
         m_setName = setName;
@@ -67,24 +67,8 @@ public class FedoraSetInfo
         if (m_setDiss == null) return;
         InputStream in = null;
         try {
-            in = m_setDiss.invoke(m_fedora, m_setPID);
-            BufferedReader reader =
-                    new BufferedReader(new InputStreamReader(in));
-            StringBuffer buf = new StringBuffer();
-            String line = reader.readLine();
-            while (line != null) {
-                buf.append(line + "\n");
-                line = reader.readLine();
-            }
-            String xml = buf.toString();
-            int i = xml.indexOf("<setDescriptions>");
-            if (i == -1)
-                throw new RepositoryException("Bad set description xml: opening <setDescriptions> not found");
-            xml = xml.substring(i + 17);
-            i = xml.indexOf("</setDescriptions>");
-            if (i == -1)
-                throw new RepositoryException("Bad set description xml: closing </setDescrptions> not found");
-            out.print(xml.substring(0, i));
+            in = m_setDiss.invoke(m_source, m_setPID);
+            _DESCRIPTIONS.copy(XMLStreams.newReader(in), out);
         } catch (IOException e) {
             throw new RepositoryException("IO error reading " + m_setDiss, e);
         } finally {
@@ -1,8 +1,5 @@
-
 package fedora.services.oaiprovider;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 
 import org.jrdf.graph.Literal;
@@ -14,16 +11,21 @@ import org.trippi.TupleIterator;
 import proai.SetInfo;
 import proai.driver.RemoteIterator;
 import proai.error.RepositoryException;
-import fedora.client.FedoraClient;
 
 public class FedoraSetInfoIterator
         implements RemoteIterator<SetInfo> {
 
-    private FedoraClient m_fedora;
+    private DisseminationSource m_source;
+
+    private TupleIterator m_sets;
+
+    private TupleIterator m_described;
+
+    private String m_setDiss;
 
-    private TupleIterator m_tuples;
+    private Map<?, ?> m_nextSet;
 
-    private List<String[]> m_nextGroup;
+    private String m_nextDescribed;
 
     private SetInfo m_next;
 
@@ -34,91 +36,95 @@ public class FedoraSetInfoIterator
     }
 
     /**
-     * Initialize with tuples. The tuples should look like:
-     * 
+     * Initialize with the sets and the sets that have a set info
+     * dissemination, both ordered by set. The tuples should look like:
+     *
      * <pre>
-     * "setSpec"    ,"setName"         ,"setDiss"
-     * prime        ,Prime             ,null
-     * prime        ,Prime             ,info:fedora/demo:SetPrime/SetInfo.xml
-     * abovetwo:even,Above Two and Even,null
-     * abovetwo:even,Above Two and Even,info:fedora/demo:SetAboveTwoEven/SetInfo.xml
-     * abovetwo:odd ,Above Two and Odd ,null
-     * abovetwo     ,Above Two         ,null
-     * abovetwo     ,Above Two         ,info:fedora/demo:SetAboveTwo/SetInfo.xml
+     * "set"                            ,"setSpec"      ,"setName"
+     * info:fedora/demo:SetAboveTwo     ,abovetwo       ,Above Two
+     * info:fedora/demo:SetAboveTwoEven ,abovetwo:even  ,Above Two and Even
+     * info:fedora/demo:SetAboveTwoOdd  ,abovetwo:odd   ,Above Two and Odd
+     * info:fedora/demo:SetPrime        ,prime          ,Prime
+     *
+     * "set"
+     * info:fedora/demo:SetAboveTwo
+     * info:fedora/demo:SetAboveTwoEven
+     * info:fedora/demo:SetPrime
      * </pre>
+     *
+     * Consecutive rows for the same set are given as one set.
+     *
+     * @param described
+     *        the sets with descriptions, or null if none have them.
+     * @param setDiss
+     *        the set info dissemination type, or null if none.
      */
-    public FedoraSetInfoIterator(FedoraClient fedora, TupleIterator tuples)
-            throws RepositoryException {
-        m_fedora = fedora;
-        m_tuples = tuples;
-        m_nextGroup = new ArrayList<String[]>();
-        m_next = getNext();
-    }
-
-    private SetInfo getNext() throws RepositoryException {
+    public FedoraSetInfoIterator(DisseminationSource source,
+                                 TupleIterator sets,
+                                 TupleIterator described,
+                                 String setDiss) throws RepositoryException {
+        m_source = source;
+        m_sets = sets;
+        m_described = described;
+        m_setDiss = setDiss;
         try {
-            List<String[]> group = getNextGroup();
-            if (group.size() == 0) return null;
-            String[] values = (String[]) group.get(group.size() - 1);
-            return new FedoraSetInfo(m_fedora,
-                                     values[0],
-                                     values[1],
-                                     values[2],
-                                     values[3],
-                                     values[4]);
+            if (m_sets.hasNext()) {
+                m_nextSet = m_sets.next();
+            }
+            if (m_described != null && m_described.hasNext()) {
+                m_nextDescribed = getString(m_described.next(), "set");
+            }
         } catch (TrippiException e) {
             throw new RepositoryException("Error getting next tuple", e);
         }
+        m_next = getNext();
     }
 
-    /**
-     * Return the next group of value[]s that have the same value for the first
-     * element. The first element must not be null.
-     */
-    private List<String[]> getNextGroup() throws RepositoryException,
-            TrippiException {
-        List<String[]> group = m_nextGroup;
-        m_nextGroup = new ArrayList<String[]>();
-        String commonValue = null;
-        if (group.size() > 0) {
-            commonValue = ((String[]) group.get(0))[0];
-        }
-        while (m_tuples.hasNext() && m_nextGroup.size() == 0) {
-            String[] values = getValues(m_tuples.next());
-            String firstValue = values[0];
-            if (firstValue == null)
-                throw new RepositoryException("Not allowed: First value in tuple was null");
-            if (commonValue == null) {
-                commonValue = firstValue;
+    private SetInfo getNext() throws RepositoryException {
+        if (m_nextSet == null) return null;
+        try {
+            Map<?, ?> values = m_nextSet;
+            String set = getString(values, "set");
+            if (set == null) {
+                throw new RepositoryException("Not allowed: set in tuple was "
+                        + "null");
             }
-            if (firstValue.equals(commonValue)) {
-                group.add(values);
-            } else {
-                m_nextGroup.add(values);
+            // use the last row for the set
+            m_nextSet = null;
+            while (m_sets.hasNext()) {
+                Map<?, ?> next = m_sets.next();
+                if (!set.equals(getString(next, "set"))) {
+                    m_nextSet = next;
+                    break;
+                }
+                values = next;
             }
-        }
-        return group;
-    }
 
-    @SuppressWarnings("unchecked")
-    /* trippi is not generic */
-    private String[] getValues(Map valueMap) throws RepositoryException {
-        try {
-            String[] names = m_tuples.names();
-            String[] values = new String[names.length];
-            for (int i = 0; i < names.length; i++) {
-                values[i] = getString((Node) valueMap.get(names[i]));
-                if (names[i].equals("setSpec")) {
-                    values[i] = values[i].replace(' ', '_');
-                }
+            // the described sets are in the same order, so any for this
+            // set are next
+            boolean described = false;
+            while (m_nextDescribed != null && m_nextDescribed.equals(set)) {
+                described = true;
+                m_nextDescribed =
+                        m_described.hasNext() ? getString(m_described.next(),
+                                                          "set") : null;
             }
-            return values;
-        } catch (Exception e) {
-            throw new RepositoryException("Error getting values from tuple", e);
+
+            return new FedoraSetInfo(m_source,
+                                     set,
+                                     getString(values, "setSpec").replace(' ',
+                                                                          '_'),
+                                     getString(values, "setName"),
+                                     m_setDiss,
+                                     described ? set : null);
+        } catch (TrippiException e) {
+            throw new RepositoryException("Error getting next tuple", e);
         }
     }
 
-    private String getString(Node node) throws RepositoryException {
+    private static String getString(Map<?, ?> values, String name)
+            throws RepositoryException {
+        Node node = (Node) values.get(name);
         if (node == null) return null;
         if (node instanceof Literal) {
             return ((Literal) node).getLexicalForm();
@@ -144,11 +150,18 @@ public class FedoraSetInfoIterator
 
     public void close() throws RepositoryException {
         try {
-            if (m_tuples != null) {
-                m_tuples.close();
+            if (m_sets != null) {
+                m_sets.close();
             }
         } catch (TrippiException e) {
             throw new RepositoryException("Unable to close tuple iterator", e);
+        } finally {
+            try {
+                if (m_described != null) {
+                    m_described.close();
+                }
+            } catch (TrippiException e) {
+            }
         }
     }
 
@@ -0,0 +1,237 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+
+/**
+ * The items modified within a date range, each with the dissemination types
+ * it has, from which the records of any metadata format can be read.
+ * <p>
+ * Each item is kept as one line: a hexadecimal bit mask of its types,
+ * followed by its item, itemID, date and state in the CSV format of the
+ * primary ListRecords query. Readers for each format give the lines of the
+ * items with its type, in the form expected by ResultCombiner. The spool is
+ * deleted once the scan has been released and all of its readers closed.
+ * </p>
+ */
+public class FormatScan {
+
+    private final String[] m_types;
+
+    private final ResultSpool.Spool m_spool;
+
+    private int m_readers;
+
+    private boolean m_released;
+
+    /**
+     * @param types
+     *        the dissemination types, in the order of the bits of the mask.
+     * @param spool
+     *        the lines written by a Writer with the same types.
+     */
+    public FormatScan(String[] types, ResultSpool.Spool spool) {
+        m_types = types;
+        m_spool = spool;
+    }
+
+    /**
+     * Open a reader of the items with a type, as lines of primary query
+     * results, or only their itemIDs (as about query results) if they also
+     * have an about type.
+     *
+     * @param aboutType
+     *        the about type, or null for primary query results.
+     */
+    public synchronized BufferedReader getReader(String type,
+                                                 String aboutType)
+            throws IOException {
+        long bit = getBit(m_types, type);
+        long aboutBit = aboutType == null ? 0 : getBit(m_types, aboutType);
+        if (bit == 0 || (aboutType != null && aboutBit == 0)) {
+            throw new IllegalArgumentException("Not scanned for " + type
+                    + (aboutType == null ? "" : " and " + aboutType));
+        }
+        BufferedReader reader =
+                new BufferedReader(new ScanReader(new InputStreamReader(m_spool
+                        .getSharedInputStream(), "UTF-8"), bit, aboutBit));
+        m_readers++;
+        return reader;
+    }
+
+    /**
+     * Give up this scan. Its spool is deleted when any open readers are
+     * closed.
+     */
+    public synchronized void release() {
+        m_released = true;
+        if (m_readers == 0) {
+            m_spool.delete();
+        }
+    }
+
+    private synchronized void readerClosed() {
+        m_readers--;
+        if (m_released && m_readers == 0) {
+            m_spool.delete();
+        }
+    }
+
+    /** The most types that fit in a mask. */
+    public static final int MAX_TYPES = 63;
+
+    private static long getBit(String[] types, String type) {
+        for (int i = 0; i < types.length; i++) {
+            if (types[i].equals(type)) return 1L << i;
+        }
+        return 0;
+    }
+
+    /**
+     * Writes the lines of a scan from rows of items and their types, which
+     * must be ordered by itemID.
+     */
+    public static class Writer {
+
+        private final String[] m_types;
+
+        private final java.io.Writer m_out;
+
+        private String m_itemID;
+
+        private String m_line;
+
+        private long m_mask;
+
+        private int m_items;
+
+        /**
+         * @param types
+         *        the dissemination types to keep track of; at most
+         *        MAX_TYPES.
+         */
+        public Writer(String[] types, OutputStream out) throws IOException {
+            if (types.length > MAX_TYPES) {
+                throw new IllegalArgumentException("Can't scan for more than "
+                        + MAX_TYPES + " dissemination types");
+            }
+            m_types = types;
+            m_out = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        }
+
+        /**
+         * Add a row. Rows of types that are not being kept track of are
+         * ignored.
+         */
+        public void add(String item,
+                        String itemID,
+                        String date,
+                        String state,
+                        String type) throws IOException {
+            if (!itemID.equals(m_itemID)) {
+                flush();
+                m_itemID = itemID;
+                StringBuilder line = new StringBuilder();
+                CSVFieldReader.appendQuoted(item, line);
+                line.append(',');
+                CSVFieldReader.appendQuoted(itemID, line);
+                line.append(',');
+                CSVFieldReader.appendQuoted(date, line);
+                line.append(',');
+                CSVFieldReader.appendQuoted(state, line);
+                m_line = line.toString();
+                m_mask = 0;
+            }
+            m_mask |= getBit(m_types, type);
+        }
+
+        /**
+         * Write the last item and close the output.
+         */
+        public void close() throws IOException {
+            flush();
+            m_out.close();
+        }
+
+        public int getItemCount() {
+            return m_items;
+        }
+
+        private void flush() throws IOException {
+            if (m_line != null && m_mask != 0) {
+                m_out.write(Long.toHexString(m_mask) + "," + m_line + "\n");
+                m_items++;
+            }
+            m_line = null;
+        }
+    }
+
+    /**
+     * Gives the lines of the items that have a type.
+     */
+    private class ScanReader
+            extends java.io.Reader {
+
+        private final CSVFieldReader m_in;
+
+        private final long m_bit;
+
+        private final long m_aboutBit;
+
+        private final StringBuilder m_line = new StringBuilder();
+
+        private int m_pos;
+
+        private boolean m_closed;
+
+        public ScanReader(java.io.Reader in, long bit, long aboutBit) {
+            m_in = new CSVFieldReader(in);
+            m_bit = bit;
+            m_aboutBit = aboutBit;
+        }
+
+        public int read(char[] buf, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (m_pos == m_line.length() && !nextLine()) {
+                return -1;
+            }
+            int n = Math.min(len, m_line.length() - m_pos);
+            m_line.getChars(m_pos, m_pos + n, buf, off);
+            m_pos += n;
+            return n;
+        }
+
+        private boolean nextLine() throws IOException {
+            m_line.setLength(0);
+            m_pos = 0;
+            while (m_in.next()) {
+                long mask = Long.parseLong(m_in.getField(0), 16);
+                if ((mask & m_bit) != 0) {
+                    if (m_aboutBit == 0) {
+                        m_in.appendRecord(m_line, 1);
+                    } else if ((mask & m_aboutBit) != 0) {
+                        CSVFieldReader.appendQuoted(m_in.getField(2), m_line);
+                    } else {
+                        continue;
+                    }
+                    m_line.append('\n');
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void close() throws IOException {
+            m_in.close();
+            if (!m_closed) {
+                m_closed = true;
+                readerClosed();
+            }
+        }
+    }
+}
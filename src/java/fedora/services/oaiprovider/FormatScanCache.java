@@ -0,0 +1,213 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import proai.error.RepositoryException;
+
+/**
+ * Serves the ListRecords queries of every metadata format from one scan of
+ * the items modified within a date range.
+ * <p>
+ * An update asks for the records of every format modified within the same
+ * range, so the first request scans for the dissemination types of all the
+ * formats and the rest read from the same scan. It is scanned again if the
+ * range is different or the scan is too old. Only formats whose metadata
+ * and about disseminations are datastreams can be scanned for.
+ * </p>
+ */
+public class FormatScanCache {
+
+    private static final Logger logger =
+            Logger.getLogger(FormatScanCache.class.getName());
+
+    /**
+     * Queries for items and their dissemination types.
+     */
+    public interface Scanner {
+
+        /**
+         * Write the types of the items modified within a range, ordered by
+         * itemID.
+         *
+         * @param from
+         *        the inclusive start of the range, or null for no start.
+         * @param until
+         *        the inclusive end of the range, or null for no end.
+         * @param types
+         *        the dissemination types to scan for.
+         */
+        void scan(Date from,
+                  Date until,
+                  String[] types,
+                  FormatScan.Writer writer) throws RepositoryException,
+                IOException;
+    }
+
+    private final Scanner m_scanner;
+
+    private final String[] m_types;
+
+    private final ResultSpool m_spool;
+
+    private final long m_maxAge;
+
+    private FormatScan m_scan;
+
+    private Date m_from;
+
+    private Date m_until;
+
+    private long m_scanned;
+
+    /**
+     * @param formats
+     *        the configured formats; those that can't be scanned for are
+     *        queried for separately.
+     * @param maxAge
+     *        how long a scan may be reused, in milliseconds.
+     */
+    public FormatScanCache(Scanner scanner,
+                           Collection<FedoraMetadataFormat> formats,
+                           ResultSpool spool,
+                           long maxAge) {
+        m_scanner = scanner;
+        m_spool = spool;
+        m_maxAge = maxAge;
+        List<String> types = new ArrayList<String>();
+        for (FedoraMetadataFormat format : formats) {
+            if (isScannable(format)) {
+                List<String> more = new ArrayList<String>(types);
+                addType(more, format.getMetadataSpec());
+                addType(more, format.getAboutSpec());
+                if (more.size() <= FormatScan.MAX_TYPES) {
+                    types = more;
+                } else {
+                    logger.warn("Too many dissemination types to scan for; "
+                            + format.getPrefix() + " will be queried for "
+                            + "separately");
+                }
+            }
+        }
+        m_types = types.toArray(new String[types.size()]);
+    }
+
+    public String[] getTypes() {
+        return m_types;
+    }
+
+    /**
+     * Tell whether the records of a format can be read from a scan.
+     */
+    public boolean handles(FedoraMetadataFormat format) {
+        return isScannable(format)
+                && hasType(format.getMetadataSpec())
+                && (format.getAboutSpec() == null || hasType(format
+                        .getAboutSpec()));
+    }
+
+    /**
+     * Open readers of the primary and, if the format has one, about query
+     * results of a format, scanning if needed.
+     *
+     * @return the primary results and the about results, or null for the
+     *         latter if the format has no about dissemination.
+     */
+    public synchronized BufferedReader[] open(Date from,
+                                              Date until,
+                                              FedoraMetadataFormat format)
+            throws RepositoryException {
+        if (!handles(format)) {
+            throw new IllegalArgumentException("Can't scan for "
+                    + format.getPrefix());
+        }
+        if (m_scan == null || !same(from, m_from) || !same(until, m_until)
+                || System.currentTimeMillis() - m_scanned > m_maxAge) {
+            scan(from, until);
+        }
+        String mdType = format.getMetadataSpec().getDisseminationType();
+        BufferedReader[] readers = new BufferedReader[2];
+        try {
+            readers[0] = m_scan.getReader(mdType, null);
+            if (format.getAboutSpec() != null) {
+                readers[1] =
+                        m_scan.getReader(mdType, format.getAboutSpec()
+                                .getDisseminationType());
+            }
+        } catch (IOException e) {
+            close(readers[0]);
+            throw new RepositoryException("Error reading scanned query "
+                    + "results", e);
+        }
+        return readers;
+    }
+
+    private void scan(Date from, Date until) throws RepositoryException {
+        if (m_scan != null) {
+            m_scan.release();
+            m_scan = null;
+        }
+        long start = System.currentTimeMillis();
+        ResultSpool.Spool spool = m_spool.create();
+        FormatScan.Writer writer;
+        try {
+            writer = new FormatScan.Writer(m_types, spool);
+            m_scanner.scan(from, until, m_types, writer);
+            writer.close();
+        } catch (IOException e) {
+            spool.delete();
+            throw new RepositoryException("Error scanning for formats: "
+                    + e.getMessage(), e);
+        } catch (RepositoryException e) {
+            spool.delete();
+            throw e;
+        }
+        m_scan = new FormatScan(m_types, spool);
+        m_from = from;
+        m_until = until;
+        m_scanned = System.currentTimeMillis();
+        logger.info("Scanned " + writer.getItemCount() + " items for "
+                + m_types.length + " dissemination types in "
+                + (m_scanned - start) + "ms (" + spool.getLength()
+                + " bytes" + (spool.isOnDisk() ? " on disk)" : " in memory)"));
+    }
+
+    private boolean hasType(InvocationSpec spec) {
+        for (int i = 0; i < m_types.length; i++) {
+            if (m_types[i].equals(spec.getDisseminationType())) return true;
+        }
+        return false;
+    }
+
+    private static boolean isScannable(FedoraMetadataFormat format) {
+        return format.getMetadataSpec().isDatastreamInvocation()
+                && (format.getAboutSpec() == null || format.getAboutSpec()
+                        .isDatastreamInvocation());
+    }
+
+    private static void addType(List<String> types, InvocationSpec spec) {
+        if (spec != null && !types.contains(spec.getDisseminationType())) {
+            types.add(spec.getDisseminationType());
+        }
+    }
+
+    private static void close(BufferedReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static boolean same(Date a, Date b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
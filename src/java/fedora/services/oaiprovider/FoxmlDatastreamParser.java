@@ -0,0 +1,370 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.commons.codec.binary.Base64;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Extracts the content of datastreams from a FOXML 1.1 document (such as an
+ * object export in the archive context) in a single streaming pass.
+ * <p>
+ * Only the current version of each requested datastream is kept. Inline XML
+ * (<code>xmlContent</code>) is re-serialized as UTF-8, with the namespace
+ * declarations it needs; base64 <code>binaryContent</code> is decoded.
+ * Datastreams with no inline content (externally referenced or redirected)
+ * and deleted datastreams are left out.
+ * </p>
+ * <p>
+ * Managed datastreams in FOXML from Fedora's own object store (the storage
+ * context) refer to their content by internal ID instead; these IDs can be
+ * collected separately.
+ * </p>
+ */
+public class FoxmlDatastreamParser {
+
+    public static final String FOXML_NS = "info:fedora/fedora-system:def/foxml#";
+
+    private static final SAXParserFactory _FACTORY;
+
+    static {
+        _FACTORY = SAXParserFactory.newInstance();
+        _FACTORY.setNamespaceAware(true);
+        _FACTORY.setValidating(false);
+    }
+
+    /**
+     * Parse the FOXML and return the content of the requested datastreams
+     * that have inline content, keyed by datastream ID.
+     */
+    public static Map<String, byte[]> parse(InputStream in, Set<String> dsIDs)
+            throws IOException {
+        return parse(in, dsIDs, null);
+    }
+
+    /**
+     * Parse the FOXML and return the content of the requested datastreams
+     * that have inline content, keyed by datastream ID. If internalIDs is
+     * given, the internal ID of each requested datastream whose current
+     * version refers to its content that way (such as
+     * <code>demo:1+DS1+DS1.0</code>) is put in it, keyed by datastream ID.
+     */
+    public static Map<String, byte[]> parse(InputStream in,
+                                            Set<String> dsIDs,
+                                            Map<String, String> internalIDs)
+            throws IOException {
+        Handler handler = new Handler(dsIDs, internalIDs);
+        try {
+            SAXParser parser;
+            synchronized (_FACTORY) {
+                parser = _FACTORY.newSAXParser();
+            }
+            parser.parse(in, handler);
+        } catch (ParserConfigurationException e) {
+            throw new IOException("Unable to create XML parser: "
+                    + e.getMessage());
+        } catch (SAXException e) {
+            IOException ioe = new IOException("Error parsing FOXML: "
+                    + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+        return handler.getContent();
+    }
+
+    private static class Handler
+            extends DefaultHandler {
+
+        private final Set<String> m_dsIDs;
+
+        private final Map<String, byte[]> m_content =
+                new HashMap<String, byte[]>();
+
+        private final Map<String, String> m_internalIDs;
+
+        /** The CREATED date of the version kept, null if unparseable. */
+        private final Map<String, Date> m_created = new HashMap<String, Date>();
+
+        /** The datastream being read, if it was requested. */
+        private String m_dsID;
+
+        /** The CREATED date of the version being read. */
+        private String m_versionCreated;
+
+        /** Inline XML of the version being read, if any. */
+        private XMLBuilder m_xml;
+
+        /** Base64 content of the version being read, if any. */
+        private StringBuilder m_binary;
+
+        /** Namespace mappings declared before the next start tag. */
+        private final Map<String, String> m_pendingPrefixes =
+                new HashMap<String, String>();
+
+        /** All in-scope namespace mappings, innermost last. */
+        private final LinkedList<Map<String, String>> m_scopes =
+                new LinkedList<Map<String, String>>();
+
+        public Handler(Set<String> dsIDs, Map<String, String> internalIDs) {
+            m_dsIDs = dsIDs;
+            m_internalIDs = internalIDs;
+        }
+
+        public Map<String, byte[]> getContent() {
+            return m_content;
+        }
+
+        public void startPrefixMapping(String prefix, String uri) {
+            m_pendingPrefixes.put(prefix, uri);
+        }
+
+        public void startElement(String uri,
+                                 String localName,
+                                 String qName,
+                                 Attributes atts) throws SAXException {
+            m_scopes.addLast(new HashMap<String, String>(m_pendingPrefixes));
+            m_pendingPrefixes.clear();
+            if (m_xml != null) {
+                m_xml.startElement(qName, atts, this);
+                return;
+            }
+            if (!FOXML_NS.equals(uri)) return;
+            if (localName.equals("datastream")) {
+                String id = atts.getValue("ID");
+                if (m_dsIDs.contains(id) && !"D".equals(atts.getValue("STATE"))) {
+                    m_dsID = id;
+                }
+            } else if (m_dsID != null && localName.equals("datastreamVersion")) {
+                m_versionCreated = atts.getValue("CREATED");
+                if (m_versionCreated == null) m_versionCreated = "";
+            } else if (m_dsID != null && m_versionCreated != null) {
+                if (localName.equals("xmlContent")) {
+                    m_xml = new XMLBuilder();
+                } else if (localName.equals("binaryContent")) {
+                    m_binary = new StringBuilder();
+                } else if (localName.equals("contentLocation")
+                        && "INTERNAL_ID".equals(atts.getValue("TYPE"))
+                        && m_internalIDs != null) {
+                    keep(null, atts.getValue("REF"));
+                }
+            }
+        }
+
+        public void endElement(String uri, String localName, String qName) {
+            m_scopes.removeLast();
+            if (m_xml != null) {
+                if (FOXML_NS.equals(uri) && localName.equals("xmlContent")
+                        && m_xml.getDepth() == 0) {
+                    keep(m_xml.toBytes(), null);
+                    m_xml = null;
+                } else {
+                    m_xml.endElement(qName);
+                }
+                return;
+            }
+            if (!FOXML_NS.equals(uri)) return;
+            if (localName.equals("binaryContent") && m_binary != null) {
+                try {
+                    keep(Base64.decodeBase64(m_binary.toString()
+                            .getBytes("US-ASCII")), null);
+                } catch (UnsupportedEncodingException e) {
+                    // US-ASCII is always supported
+                }
+                m_binary = null;
+            } else if (localName.equals("datastreamVersion")) {
+                m_versionCreated = null;
+            } else if (localName.equals("datastream")) {
+                m_dsID = null;
+            }
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            if (m_xml != null) {
+                m_xml.characters(ch, start, length);
+            } else if (m_binary != null) {
+                m_binary.append(ch, start, length);
+            }
+        }
+
+        public void ignorableWhitespace(char[] ch, int start, int length) {
+            characters(ch, start, length);
+        }
+
+        /**
+         * Keep the content or internal ID of the current version if it is the
+         * latest seen. Versions created at the same time, or whose dates
+         * can't be compared, are taken in document order.
+         */
+        private void keep(byte[] content, String internalID) {
+            Date created = ITQLQueryFactory.parseDatetime(m_versionCreated);
+            Date latest = m_created.get(m_dsID);
+            if (latest == null || created == null || !created.before(latest)) {
+                m_content.remove(m_dsID);
+                if (m_internalIDs != null) m_internalIDs.remove(m_dsID);
+                if (content != null) {
+                    m_content.put(m_dsID, content);
+                } else {
+                    m_internalIDs.put(m_dsID, internalID);
+                }
+                m_created.put(m_dsID, created);
+            }
+        }
+
+        /**
+         * Get the URI a prefix is bound to in the source document.
+         */
+        String lookup(String prefix) {
+            for (int i = m_scopes.size() - 1; i >= 0; i--) {
+                String uri = m_scopes.get(i).get(prefix);
+                if (uri != null) return uri;
+            }
+            return null;
+        }
+
+        Map<String, String> getDeclared() {
+            return m_scopes.getLast();
+        }
+    }
+
+    /**
+     * Serializes SAX events back into XML, declaring namespaces where the
+     * output needs them.
+     */
+    private static class XMLBuilder {
+
+        private final StringBuilder m_out = new StringBuilder();
+
+        /** Namespace mappings declared in the output, innermost last. */
+        private final LinkedList<Map<String, String>> m_scopes =
+                new LinkedList<Map<String, String>>();
+
+        private boolean m_inStartTag;
+
+        public int getDepth() {
+            return m_scopes.size();
+        }
+
+        public void startElement(String qName, Attributes atts, Handler source) {
+            closeStartTag();
+            Map<String, String> declared =
+                    new HashMap<String, String>(source.getDeclared());
+            declare(prefix(qName), source, declared);
+            for (int i = 0; i < atts.getLength(); i++) {
+                String attName = atts.getQName(i);
+                if (attName.indexOf(':') != -1) {
+                    declare(prefix(attName), source, declared);
+                }
+            }
+            m_out.append('<').append(qName);
+            for (Map.Entry<String, String> ns : declared.entrySet()) {
+                m_out.append(ns.getKey().length() == 0 ? " xmlns" : " xmlns:"
+                        + ns.getKey());
+                m_out.append("=\"");
+                escape(ns.getValue(), true);
+                m_out.append('"');
+            }
+            for (int i = 0; i < atts.getLength(); i++) {
+                m_out.append(' ').append(atts.getQName(i)).append("=\"");
+                escape(atts.getValue(i), true);
+                m_out.append('"');
+            }
+            m_scopes.addLast(declared);
+            m_inStartTag = true;
+        }
+
+        public void endElement(String qName) {
+            m_scopes.removeLast();
+            if (m_inStartTag) {
+                m_out.append("/>");
+                m_inStartTag = false;
+            } else {
+                m_out.append("</").append(qName).append('>');
+            }
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            if (m_scopes.isEmpty()) {
+                // whitespace around the root element
+                return;
+            }
+            closeStartTag();
+            escape(new String(ch, start, length), false);
+        }
+
+        public byte[] toBytes() {
+            try {
+                return m_out.toString().getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException("UTF-8 not supported", e);
+            }
+        }
+
+        /**
+         * Add a declaration for the prefix if the output doesn't already
+         * bind it to the right URI.
+         */
+        private void declare(String prefix,
+                             Handler source,
+                             Map<String, String> declared) {
+            if (prefix.equals("xml") || declared.containsKey(prefix)) return;
+            String uri = source.lookup(prefix);
+            if (uri == null) return;
+            if (!uri.equals(lookup(prefix))) {
+                declared.put(prefix, uri);
+            }
+        }
+
+        private String lookup(String prefix) {
+            for (int i = m_scopes.size() - 1; i >= 0; i--) {
+                String uri = m_scopes.get(i).get(prefix);
+                if (uri != null) return uri;
+            }
+            return null;
+        }
+
+        private void closeStartTag() {
+            if (m_inStartTag) {
+                m_out.append('>');
+                m_inStartTag = false;
+            }
+        }
+
+        private void escape(String s, boolean attribute) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '&') {
+                    m_out.append("&amp;");
+                } else if (c == '<') {
+                    m_out.append("&lt;");
+                } else if (c == '>') {
+                    m_out.append("&gt;");
+                } else if (attribute && c == '"') {
+                    m_out.append("&quot;");
+                } else if (attribute && c == '\n') {
+                    m_out.append("&#10;");
+                } else {
+                    m_out.append(c);
+                }
+            }
+        }
+
+        private static String prefix(String qName) {
+            int colon = qName.indexOf(':');
+            return colon == -1 ? "" : qName.substring(0, colon);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+
+import fedora.server.utilities.DateUtility;
+
+/**
+ * The latest record date seen so far, which only moves forward.
+ * <p>
+ * The date is kept in a file, if one is given, so that it survives restarts.
+ * It is also remembered as current for a short time after it is checked, so
+ * that a burst of requests for it needs only one check.
+ * </p>
+ */
+public class HighWaterMark {
+
+    private static final Logger logger =
+            Logger.getLogger(HighWaterMark.class.getName());
+
+    private final File m_file;
+
+    private final long m_ttl;
+
+    private Date m_date;
+
+    private long m_checked;
+
+    /**
+     * @param file
+     *        the file to keep the date in, or null to keep it in memory only.
+     * @param ttl
+     *        how long a checked date stays current, in milliseconds.
+     */
+    public HighWaterMark(File file, long ttl) {
+        m_file = file;
+        m_ttl = ttl;
+        if (file != null && file.exists()) {
+            m_date = read(file);
+        }
+    }
+
+    /**
+     * Get the date, whether or not it is current.
+     *
+     * @return the date, or null if none has been seen.
+     */
+    public synchronized Date getDate() {
+        return m_date;
+    }
+
+    /**
+     * Get the date if it was checked within the time-to-live.
+     *
+     * @return the date, or null if it should be checked again.
+     */
+    public synchronized Date getCurrent() {
+        if (m_date != null
+                && System.currentTimeMillis() - m_checked < m_ttl) {
+            return m_date;
+        }
+        return null;
+    }
+
+    /**
+     * Record the result of a check. The date is only moved forward, but it
+     * becomes current either way.
+     *
+     * @return the date after the update.
+     */
+    public synchronized Date update(Date date) {
+        m_checked = System.currentTimeMillis();
+        if (date != null && (m_date == null || date.after(m_date))) {
+            m_date = date;
+            if (m_file != null) {
+                write(m_file, date);
+            }
+        }
+        return m_date;
+    }
+
+    private static Date read(File file) {
+        BufferedReader in = null;
+        try {
+            in =
+                    new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                             "UTF-8"));
+            String line = in.readLine();
+            Date date =
+                    line == null ? null : DateUtility.convertStringToDate(line
+                            .trim());
+            if (date == null) {
+                logger.warn("Ignoring unreadable latest record date in "
+                        + file);
+            }
+            return date;
+        } catch (IOException e) {
+            logger.warn("Unable to read latest record date from " + file, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Write to a temporary file and rename it, so that a partly written
+     * date is never read.
+     */
+    private static void write(File file, Date date) {
+        File temp = new File(file.getPath() + ".new");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write((DateUtility.convertDateToString(date) + "\n")
+                    .getBytes("UTF-8"));
+            out.close();
+            out = null;
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to rename " + temp + " to "
+                        + file);
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to save latest record date to " + file, e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
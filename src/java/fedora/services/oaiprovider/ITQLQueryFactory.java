@@ -3,9 +3,21 @@ package fedora.services.oaiprovider;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
+import org.jrdf.graph.Literal;
+import org.jrdf.graph.URIReference;
+import org.trippi.TrippiException;
 import org.trippi.TupleIterator;
 import org.trippi.RDFFormat;
 
@@ -23,6 +35,13 @@ public class ITQLQueryFactory
 
     private static final String QUERY_LANGUAGE = "itql";
 
+    // how long a scan of all formats may be reused, in milliseconds
+    private static final long SCAN_MAX_AGE = 30 * 60000L;
+
+    // how often queries are checked for failure while waiting for set
+    // memberships or a scan, in milliseconds
+    private static final long POLL_INTERVAL = 100;
+
     private static final Logger logger =
             Logger.getLogger(FedoraOAIDriver.class.getName());
 
@@ -36,17 +55,39 @@ public class ITQLQueryFactory
 
     private String m_deleted;
 
-    private FedoraClient m_fedora;
+    private DisseminationSource m_source;
 
     private FedoraClient m_queryClient;
 
+    private ThreadPoolExecutor m_executor;
+
+    private boolean m_streaming;
+
+    private ResultSpool m_spool;
+
+    private CheckpointStore m_checkpoints;
+
+    private WindowedRecordIterator.WindowSize m_windowSize;
+
+    private Date m_windowEarliest;
+
+    private int m_windowsAhead;
+
+    private HighWaterMark m_latest;
+
+    private SetMembershipIndex m_setIndex;
+
+    private FormatScanCache m_scans;
+
+    private ResultSorter m_sorter;
+
     public ITQLQueryFactory() {
     }
 
-    public void init(FedoraClient client,
+    public void init(DisseminationSource source,
                      FedoraClient queryClient,
                      Properties props) {
-        m_fedora = client;
+        m_source = source;
         m_queryClient = queryClient;
         m_oaiItemID =
                 FedoraOAIDriver.getRequired(props, FedoraOAIDriver.PROP_ITEMID);
@@ -68,23 +109,285 @@ public class ITQLQueryFactory
         m_deleted =
                 FedoraOAIDriver
                         .getOptional(props, FedoraOAIDriver.PROP_DELETED);
+
+        int threads =
+                FedoraOAIDriver.getOptionalInt(props,
+                                               FedoraOAIDriver.PROP_QUERY_THREADS,
+                                               3);
+        if (threads < 1) {
+            throw new RepositoryException("Property "
+                    + FedoraOAIDriver.PROP_QUERY_THREADS
+                    + " must be at least 1");
+        }
+        m_executor =
+                new ThreadPoolExecutor(threads,
+                                       threads,
+                                       60,
+                                       TimeUnit.SECONDS,
+                                       new LinkedBlockingQueue<Runnable>(),
+                                       new QueryThreadFactory());
+        m_executor.allowCoreThreadTimeOut(true);
+
+        m_streaming =
+                FedoraOAIDriver
+                        .getOptionalBoolean(props,
+                                            FedoraOAIDriver.PROP_QUERY_STREAMING,
+                                            false);
+
+        m_spool = getSpool(props);
+
+        if (FedoraOAIDriver.getOptionalBoolean(props,
+                                               FedoraOAIDriver.PROP_LOCAL_SORT,
+                                               false)) {
+            m_sorter =
+                    new ResultSorter(m_spool,
+                                     FedoraOAIDriver
+                                             .getOptionalInt(props,
+                                                             FedoraOAIDriver.PROP_LOCAL_SORT_MEMORY,
+                                                             16) * 1024L * 1024L);
+        }
+
+        String checkpointDir =
+                FedoraOAIDriver.getOptional(props,
+                                            FedoraOAIDriver.PROP_CHECKPOINT_DIR);
+        if (!checkpointDir.equals("") && !m_streaming) {
+            try {
+                m_checkpoints =
+                        new CheckpointStore(new File(checkpointDir),
+                                            FedoraOAIDriver
+                                                    .getOptionalInt(props,
+                                                                    FedoraOAIDriver.PROP_CHECKPOINT_TTL,
+                                                                    24) * 3600000L);
+            } catch (IOException e) {
+                throw new RepositoryException("Unable to use checkpoint "
+                        + "directory " + checkpointDir, e);
+            }
+        }
+
+        int windowSize =
+                FedoraOAIDriver.getOptionalInt(props,
+                                               FedoraOAIDriver.PROP_WINDOW_SIZE,
+                                               0);
+        if (windowSize > 0) {
+            m_windowSize =
+                    new WindowedRecordIterator.WindowSize(windowSize * 60000L,
+                                                          FedoraOAIDriver
+                                                                  .getOptionalInt(props,
+                                                                                  FedoraOAIDriver.PROP_WINDOW_MIN_SIZE,
+                                                                                  1) * 60000L);
+            m_windowsAhead =
+                    FedoraOAIDriver.getOptionalInt(props,
+                                                   FedoraOAIDriver.PROP_WINDOW_AHEAD,
+                                                   2);
+            String earliest =
+                    FedoraOAIDriver
+                            .getOptional(props,
+                                         FedoraOAIDriver.PROP_WINDOW_EARLIEST);
+            if (earliest.equals("")) {
+                earliest = "2000-01-01T00:00:00Z";
+            }
+            m_windowEarliest = DateUtility.convertStringToDate(earliest);
+            if (m_windowEarliest == null) {
+                throw new RepositoryException("Property "
+                        + FedoraOAIDriver.PROP_WINDOW_EARLIEST
+                        + " is not a valid date: " + earliest);
+            }
+        }
+
+        String latestFile =
+                FedoraOAIDriver.getOptional(props,
+                                            FedoraOAIDriver.PROP_LATEST_DATE_FILE);
+        m_latest =
+                new HighWaterMark(latestFile.equals("") ? null
+                                          : new File(latestFile),
+                                  FedoraOAIDriver
+                                          .getOptionalInt(props,
+                                                          FedoraOAIDriver.PROP_LATEST_DATE_TTL,
+                                                          10) * 1000L);
+
+        int setIndexMemory =
+                FedoraOAIDriver.getOptionalInt(props,
+                                               FedoraOAIDriver.PROP_SET_INDEX_MEMORY,
+                                               0);
+        if (m_itemSetSpecPath != null && setIndexMemory > 0) {
+            if (m_windowSize != null) {
+                // the index would query over the whole range at once, which
+                // windows are there to avoid
+                logger.warn("Property "
+                        + FedoraOAIDriver.PROP_SET_INDEX_MEMORY
+                        + " is ignored when "
+                        + FedoraOAIDriver.PROP_WINDOW_SIZE + " is set");
+            } else {
+                m_setIndex =
+                        new SetMembershipIndex(new SetMembershipLoader(),
+                                               setIndexMemory * 1024L * 1024L);
+            }
+        }
+
+        if (FedoraOAIDriver.getOptionalBoolean(props,
+                                               FedoraOAIDriver.PROP_FAN_OUT,
+                                               false)) {
+            if (m_windowSize != null) {
+                logger.warn("Property " + FedoraOAIDriver.PROP_FAN_OUT
+                        + " is ignored when "
+                        + FedoraOAIDriver.PROP_WINDOW_SIZE + " is set");
+            } else {
+                m_scans =
+                        new FormatScanCache(new FormatScanner(),
+                                            FedoraOAIDriver
+                                                    .getMetadataFormats(props)
+                                                    .values(),
+                                            m_spool,
+                                            SCAN_MAX_AGE);
+            }
+        }
     }
 
     /**
-     * Rather than querying for this information, which can be costly, simply
-     * return the current date.
+     * Get the spool for query results configured by the spool properties.
+     */
+    static ResultSpool getSpool(Properties props) throws RepositoryException {
+        String spoolDir =
+                FedoraOAIDriver.getOptional(props,
+                                            FedoraOAIDriver.PROP_SPOOL_DIR);
+        if (spoolDir.equals("")) {
+            spoolDir = System.getProperty("java.io.tmpdir");
+        }
+        try {
+            return new ResultSpool(new File(spoolDir),
+                                   FedoraOAIDriver
+                                           .getOptionalInt(props,
+                                                           FedoraOAIDriver.PROP_SPOOL_MEMORY,
+                                                           1024) * 1024L,
+                                   FedoraOAIDriver
+                                           .getOptionalInt(props,
+                                                           FedoraOAIDriver.PROP_SPOOL_QUOTA,
+                                                           0) * 1024L * 1024L);
+        } catch (IOException e) {
+            throw new RepositoryException("Unable to use spool directory "
+                    + spoolDir, e);
+        }
+    }
+
+    /**
+     * Query for the latest last-modified date of the items that have any of
+     * the formats. Only items modified after the latest date already seen
+     * are considered, and a date found within the last few seconds is
+     * reused, so polling is cheap when nothing has changed. If the query
+     * fails or there are no records, the current date is returned.
      * 
      * @param formats
      *        iterator over all FedoraMetadataFormats
-     * @return current date according to Fedora
+     * @return the date of the latest record
      */
-    public Date latestRecordDate(Iterator<? extends MetadataFormat> formats)
+    public synchronized Date latestRecordDate(Iterator<? extends MetadataFormat> formats)
             throws RepositoryException {
-        Date current = new Date();
+        Date latest = m_latest.getCurrent();
+        if (latest != null) {
+            logger.debug("Latest record date is still "
+                    + DateUtility.convertDateToString(latest));
+            return latest;
+        }
+        Date mark = m_latest.getDate();
+        String afterUTC =
+                mark == null ? null : DateUtility.convertDateToString(mark);
+        try {
+            while (formats.hasNext()) {
+                MetadataFormat format = formats.next();
+                if (format instanceof FedoraMetadataFormat) {
+                    Date date =
+                            queryLatestDate(getLatestRecordDateQuery(afterUTC,
+                                                                     ((FedoraMetadataFormat) format)
+                                                                             .getMetadataSpec()));
+                    if (date != null
+                            && (latest == null || date.after(latest))) {
+                        latest = date;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            Date current = new Date();
+            logger.warn("Unable to query for the latest record date; using "
+                    + "the current date, "
+                    + DateUtility.convertDateToString(current), e);
+            return current;
+        }
+
+        latest = m_latest.update(latest);
+        if (latest == null) {
+            Date current = new Date();
+            logger.info("There are no records yet; using the current date, "
+                    + DateUtility.convertDateToString(current));
+            return current;
+        }
+        logger.info("Latest record date is "
+                + DateUtility.convertDateToString(latest));
+        return latest;
+    }
+
+    /**
+     * @return the query for the most recently modified item with the given
+     *         dissemination that was modified after the given date, if any.
+     */
+    protected String getLatestRecordDateQuery(String afterUTC,
+                                              InvocationSpec mdSpec) {
+        StringBuilder out = new StringBuilder();
+        out.append("select $date\n");
+        appendCommonFromWhereAnd(out);
+        if (mdSpec.isDatastreamInvocation()) {
+            out.append("and " + getDatastreamDissType(mdSpec, "$item", ""));
+        } else {
+            out.append("and " + getServiceDissType(mdSpec, "$item", ""));
+        }
+        appendDateParts(afterUTC, null, true, out);
+        out.append("order  by $date desc\n");
+        out.append("limit  1");
+        return out.toString();
+    }
+
+    private Date queryLatestDate(String query) throws RepositoryException {
+        TupleIterator tuples = getTuples(query);
+        try {
+            if (!tuples.hasNext()) return null;
+            Object node = tuples.next().get("date");
+            if (!(node instanceof Literal)) {
+                throw new RepositoryException("Expected a date, got " + node);
+            }
+            String value = ((Literal) node).getLexicalForm();
+            Date date = parseDatetime(value);
+            if (date == null) {
+                throw new RepositoryException("Unable to parse date " + value);
+            }
+            return date;
+        } catch (TrippiException e) {
+            throw new RepositoryException("Error reading query results: "
+                    + e.getMessage(), e);
+        } finally {
+            try {
+                tuples.close();
+            } catch (TrippiException e) {
+            }
+        }
+    }
 
-        logger.info("Current date reported by Fedora is "
-                + DateUtility.convertDateToString(current));
-        return current;
+    /**
+     * Parse a date from the Resource Index. Fedora drops trailing zeros from
+     * the milliseconds, e.g. 12:49:14.77, which DateUtility would take as 77
+     * milliseconds rather than 770.
+     */
+    static Date parseDatetime(String datetime) {
+        String value = datetime.trim();
+        int dot = value.indexOf('.');
+        if (dot != -1) {
+            int end = dot + 1;
+            while (end < value.length()
+                    && Character.isDigit(value.charAt(end))) {
+                end++;
+            }
+            String millis = (value.substring(dot + 1, end) + "000").substring(0, 3);
+            value = value.substring(0, dot + 1) + millis + value.substring(end);
+        }
+        return DateUtility.convertStringToDate(value);
     }
 
     public RemoteIterator<SetInfo> listSetInfo(InvocationSpec setInfoSpec) {
@@ -92,8 +395,28 @@ public class ITQLQueryFactory
             // return empty iterator if sets not configured
             return new FedoraSetInfoIterator();
         } else {
-            TupleIterator tuples = getTuples(getListSetInfoQuery(setInfoSpec));
-            return new FedoraSetInfoIterator(m_fedora, tuples);
+            // the sets and, separately, those with descriptions, merged as
+            // they are read
+            TupleIterator sets = getTuples(getListSetsQuery());
+            if (setInfoSpec == null) {
+                return new FedoraSetInfoIterator(m_source, sets, null, null);
+            }
+            TupleIterator described;
+            try {
+                described =
+                        getTuples(getListSetDescriptionsQuery(setInfoSpec));
+            } catch (RepositoryException e) {
+                try {
+                    sets.close();
+                } catch (TrippiException e2) {
+                }
+                throw e;
+            }
+            return new FedoraSetInfoIterator(m_source,
+                                             sets,
+                                             described,
+                                             setInfoSpec
+                                                     .getDisseminationType());
         }
     }
 
@@ -116,66 +439,69 @@ public class ITQLQueryFactory
         }
     }
 
-    public RemoteIterator<FedoraRecord> listRecords(Date from,
-                                                    Date until,
-                                                    FedoraMetadataFormat format) {
-
-        // Construct and get results of one to three queries, depending on conf
-
-        // Parse and convert the dates once; they may be used more than once
-        String afterUTC = getExclusiveDateString(from, false);
-        String beforeUTC = getExclusiveDateString(until, true);
-
-        // do primary query
-        String primaryQuery =
-                getListRecordsPrimaryQuery(afterUTC, beforeUTC, format
-                        .getMetadataSpec());
-        File primaryFile = getCSVResults(primaryQuery);
-
-        // do set membership query, if applicable
-        File setFile = null;
-        if (m_itemSetSpecPath != null && m_itemSetSpecPath.length() > 0) { // need
-            // set
-            // membership
-            // info
-            String setQuery =
-                    getListRecordsSetMembershipQuery(afterUTC,
-                                                     beforeUTC,
-                                                     format.getMetadataSpec());
-            setFile = getCSVResults(setQuery);
+    public RemoteIterator<FedoraRecord> listRecords(final Date from,
+                                                    final Date until,
+                                                    final FedoraMetadataFormat format) {
+        // the queries whose results may be checkpointed for this update
+        final List<String> queries =
+                Collections.synchronizedList(new ArrayList<String>());
+        if (m_checkpoints != null) {
+            m_checkpoints.expire();
         }
-
-        // do about query, if applicable
-        File aboutFile = null;
-        if (format.getAboutSpec() != null) { // need
-            // about
-            // info
-            String aboutQuery =
-                    getListRecordsAboutQuery(afterUTC, beforeUTC, format);
-            aboutFile = getCSVResults(aboutQuery);
+        // the set memberships shared with the other formats, loaded while
+        // the first queries run
+        Future<SetMembership> membership = null;
+        if (m_setIndex != null) {
+            membership = m_executor.submit(new Callable<SetMembership>() {
+
+                public SetMembership call() {
+                    return m_setIndex.get(from, until);
+                }
+            });
         }
-
-        // Get a FedoraRecordIterator over the combined results
-        // that automatically cleans up the result files when closed
-
-        String mdDissType = format.getMetadataSpec().getDisseminationType();
-        String aboutDissType = null;
-
-        if (format.getAboutSpec() != null) {
-            aboutDissType = format.getAboutSpec().getDisseminationType();
+        final Future<SetMembership> sets = membership;
+        RemoteIterator<FedoraRecord> records;
+        if (m_windowSize == null) {
+            // the primary and about results, read from one scan shared with
+            // the other formats
+            Future<BufferedReader[]> scan = null;
+            if (m_scans != null && m_scans.handles(format)) {
+                scan = m_executor.submit(new Callable<BufferedReader[]>() {
+
+                    public BufferedReader[] call() {
+                        return m_scans.open(from, until, format);
+                    }
+                });
+            }
+            records =
+                    new QueryBatch(from, until, format, queries, sets, scan)
+                            .getRecords();
+        } else {
+            WindowedRecordIterator.Source source =
+                    new WindowedRecordIterator.Source() {
+
+                        public WindowedRecordIterator.Window start(Date from,
+                                                                   Date until) {
+                            return new QueryBatch(from,
+                                                  until,
+                                                  format,
+                                                  queries,
+                                                  sets,
+                                                  null);
+                        }
+                    };
+            records =
+                    new WindowedRecordIterator(source,
+                                               from,
+                                               until,
+                                               m_windowEarliest,
+                                               m_windowSize,
+                                               m_windowsAhead);
         }
-
-        try {
-            ResultCombiner combiner =
-                    new ResultCombiner(primaryFile, setFile, aboutFile, true);
-            return new CombinerRecordIterator(format.getPrefix(),
-                                              mdDissType,
-                                              aboutDissType,
-                                              combiner);
-
-        } catch (FileNotFoundException e) {
-            throw new RepositoryException("Programmer error?  Query result "
-                    + "file(s) not found!");
+        if (m_checkpoints == null) {
+            return records;
+        } else {
+            return new CheckpointedRecordIterator(records, queries);
         }
     }
 
@@ -214,9 +540,12 @@ public class ITQLQueryFactory
         }
     }
 
-    // ordering is required for the combiner to work
+    // ordering is required for the combiner to work, unless the results
+    // are sorted locally
     private void appendOrder(StringBuilder out) {
-        out.append("order  by $itemID asc");
+        if (m_sorter == null) {
+            out.append("order  by $itemID asc");
+        }
     }
 
     // this is common for all listRecords queries
@@ -273,6 +602,48 @@ public class ITQLQueryFactory
         return out.toString();
     }
 
+    /**
+     * Unlike the per-format set membership query, this is not limited to
+     * items with a given dissemination, and is not ordered.
+     */
+    protected String getSetMembershipIndexQuery(String afterUTC,
+                                                String beforeUTC) {
+        StringBuilder out = new StringBuilder();
+
+        out.append("select $itemID $setSpec\n");
+        appendCommonFromWhereAnd(out);
+        appendDateParts(afterUTC, beforeUTC, false, out);
+        out.append("and    " + m_itemSetSpecPath);
+        return out.toString();
+    }
+
+    /**
+     * Query for the items with any of the types, one row per item and type.
+     */
+    protected String getFormatScanQuery(String afterUTC,
+                                        String beforeUTC,
+                                        String[] types) {
+        StringBuilder out = new StringBuilder();
+
+        out.append("select $item $itemID $date $state $dissType\n");
+        appendCommonFromWhereAnd(out);
+        out.append("and    " + getStatePattern() + "\n");
+        out.append("and    $item     <" + VIEW.DISSEMINATES + "> $diss\n");
+        out.append("and    $diss     <" + VIEW.DISSEMINATION_TYPE
+                + "> $dissType\n");
+        for (int i = 0; i < types.length; i++) {
+            out.append(i == 0 ? "and  ( " : "    or ");
+            out.append("$dissType <" + MULGARA.IS + "> <" + types[i] + ">");
+            out.append(i == types.length - 1 ? " )\n" : "\n");
+        }
+        appendDateParts(afterUTC, beforeUTC, true, out);
+        // the rows of each item are grouped as they are read, so the scan
+        // is always ordered
+        out.append("order  by $itemID asc");
+
+        return out.toString();
+    }
+
     protected String getListRecordsAboutQuery(String afterUTC,
                                               String beforeUTC,
                                               FedoraMetadataFormat format) {
@@ -303,43 +674,636 @@ public class ITQLQueryFactory
     }
 
     /**
-     * Get the results of the given itql tuple query as a temporary CSV file.
+     * The primary, set membership and about queries for the records of a
+     * format modified within a date range. The queries are started on the
+     * query executor when the batch is created. The set membership query is
+     * only run if the shared set memberships can't be used, and the primary
+     * and about queries are not run if their results are read from a scan.
      */
-    private File getCSVResults(String queryText) throws RepositoryException {
+    private class QueryBatch
+            implements WindowedRecordIterator.Window {
+
+        private final FedoraMetadataFormat m_format;
+
+        private final String m_description;
+
+        private final String m_afterUTC;
+
+        private final String m_beforeUTC;
+
+        private final Collection<String> m_queryLog;
+
+        private final Future<SetMembership> m_membership;
+
+        private final Future<BufferedReader[]> m_scan;
+
+        private ResultQuery m_primaryQuery;
+
+        private ResultQuery m_setQuery;
+
+        private ResultQuery m_aboutQuery;
+
+        private final List<ResultQuery> m_queries =
+                new ArrayList<ResultQuery>();
+
+        private final List<Future<BufferedReader>> m_futures =
+                new ArrayList<Future<BufferedReader>>();
+
+        /** Gives the queries' futures in the order they finish. */
+        private final CompletionService<BufferedReader> m_completed =
+                new ExecutorCompletionService<BufferedReader>(m_executor);
+
+        /** The number of queries seen to have finished. */
+        private int m_finished;
+
+        private final long m_start = System.currentTimeMillis();
+
+        /**
+         * @param queries
+         *        where to record the text of each query run.
+         * @param membership
+         *        the shared set memberships, or null if not used.
+         * @param scan
+         *        the primary and about results from a scan, or null to query
+         *        for them.
+         */
+        public QueryBatch(Date from,
+                          Date until,
+                          FedoraMetadataFormat format,
+                          Collection<String> queries,
+                          Future<SetMembership> membership,
+                          Future<BufferedReader[]> scan) {
+            m_format = format;
+            m_queryLog = queries;
+            m_membership = membership;
+            m_scan = scan;
+            m_description =
+                    format.getPrefix()
+                            + (from == null ? "" : " from "
+                                    + DateUtility.convertDateToString(from))
+                            + (until == null ? "" : " until "
+                                    + DateUtility.convertDateToString(until));
+
+            // Parse and convert the dates once; they may be used more than
+            // once
+            m_afterUTC = getExclusiveDateString(from, false);
+            m_beforeUTC = getExclusiveDateString(until, true);
+
+            // run the primary query and, if applicable, the set membership
+            // and about queries at the same time
+            if (scan == null) {
+                m_primaryQuery =
+                        new ResultQuery("primary",
+                                        getListRecordsPrimaryQuery(m_afterUTC,
+                                                                   m_beforeUTC,
+                                                                   format
+                                                                           .getMetadataSpec()),
+                                        1);
+                submit(m_primaryQuery);
+            }
+            if (m_itemSetSpecPath != null && m_itemSetSpecPath.length() > 0
+                    && membership == null) {
+                submitSetQuery();
+            }
+            if (scan == null && format.getAboutSpec() != null) {
+                m_aboutQuery =
+                        new ResultQuery("about",
+                                        getListRecordsAboutQuery(m_afterUTC,
+                                                                 m_beforeUTC,
+                                                                 format),
+                                        0);
+                submit(m_aboutQuery);
+            }
+        }
 
-        logger.debug("getCSVResults() called with query:\n" + queryText);
+        private void submitSetQuery() {
+            m_setQuery =
+                    new ResultQuery("set membership",
+                                    getListRecordsSetMembershipQuery(m_afterUTC,
+                                                                     m_beforeUTC,
+                                                                     m_format
+                                                                             .getMetadataSpec()),
+                                    0);
+            submit(m_setQuery);
+        }
 
-        Map<String, String> parameters = new HashMap<String, String>();
-        parameters.put("lang", QUERY_LANGUAGE);
-        parameters.put("query", queryText);
+        private void submit(ResultQuery query) {
+            m_queryLog.add(query.getQuery());
+            m_queries.add(query);
+            m_futures.add(m_completed.submit(query));
+        }
 
-        File tempFile = null;
-        OutputStream out = null;
-        try {
-            tempFile =
-                    File.createTempFile("oaiprovider-listrec-tuples", ".csv");
-            tempFile.deleteOnExit(); // just in case
-            out = new FileOutputStream(tempFile);
-        } catch (IOException e) {
-            throw new RepositoryException("Error creating temp query result file",
-                                          e);
+        /**
+         * Wait for all of the queries and combine their results. Queries are
+         * waited for in the order they finish, so if any query fails, the
+         * others are cancelled at once and all of their results are
+         * discarded.
+         */
+        public RemoteIterator<FedoraRecord> getRecords()
+                throws RepositoryException {
+            List<BufferedReader> results = new ArrayList<BufferedReader>();
+            SetMembership sets = null;
+            BufferedReader[] scanned = null;
+            try {
+                if (m_membership != null) {
+                    awaitWhileQuerying(m_membership);
+                    sets = m_membership.get();
+                    if (sets == null) {
+                        submitSetQuery();
+                    }
+                }
+                if (m_scan != null) {
+                    awaitWhileQuerying(m_scan);
+                    scanned = m_scan.get();
+                }
+                while (m_finished < m_futures.size()) {
+                    m_completed.take().get();
+                    m_finished++;
+                }
+                for (Future<BufferedReader> future : m_futures) {
+                    results.add(future.get());
+                }
+            } catch (ExecutionException e) {
+                cancel();
+                close(scanned);
+                if (e.getCause() instanceof RepositoryException) {
+                    throw (RepositoryException) e.getCause();
+                }
+                throw new RepositoryException("Error getting tuples from Fedora: "
+                                                      + e.getCause()
+                                                              .getMessage(),
+                                              e.getCause());
+            } catch (InterruptedException e) {
+                cancel();
+                close(scanned);
+                throw new RepositoryException("Interrupted while waiting for "
+                        + "query results", e);
+            }
+
+            if (m_queries.isEmpty()) {
+                logger.info("ListRecords results for " + m_description
+                        + " were read from a scan after "
+                        + (System.currentTimeMillis() - m_start) + "ms");
+            } else {
+                ResultQuery slowest = m_queries.get(0);
+                for (ResultQuery query : m_queries) {
+                    if (query.getElapsed() > slowest.getElapsed()) {
+                        slowest = query;
+                    }
+                }
+                logger.info("ListRecords queries for " + m_description
+                        + " took " + (System.currentTimeMillis() - m_start)
+                        + "ms; slowest was " + slowest.getName() + " ("
+                        + slowest.getElapsed() + "ms)");
+            }
+
+            BufferedReader primaryResults;
+            BufferedReader aboutResults;
+            if (scanned != null) {
+                primaryResults = scanned[0];
+                aboutResults = scanned[1];
+            } else {
+                primaryResults =
+                        results.get(m_queries.indexOf(m_primaryQuery));
+                aboutResults =
+                        m_aboutQuery == null ? null : results.get(m_queries
+                                .indexOf(m_aboutQuery));
+            }
+            BufferedReader setResults =
+                    m_setQuery == null ? null : results.get(m_queries
+                            .indexOf(m_setQuery));
+
+            // Get a FedoraRecordIterator over the combined results
+            // that automatically closes them (and cleans up any spooled
+            // results) when closed
+
+            String mdDissType =
+                    m_format.getMetadataSpec().getDisseminationType();
+            String aboutDissType = null;
+
+            if (m_format.getAboutSpec() != null) {
+                aboutDissType =
+                        m_format.getAboutSpec().getDisseminationType();
+            }
+
+            ResultCombiner combiner =
+                    new ResultCombiner(primaryResults,
+                                       setResults,
+                                       aboutResults);
+            try {
+                return new CombinerRecordIterator(m_format.getPrefix(),
+                                                  mdDissType,
+                                                  aboutDissType,
+                                                  combiner,
+                                                  sets);
+            } catch (RepositoryException e) {
+                combiner.close();
+                throw e;
+            }
         }
 
-        try {
-            TupleIterator tuples = m_queryClient.getTuples(parameters);
-            logger.debug("Saving query results to disk...");
-            tuples.toStream(out, RDFFormat.CSV);
-            logger.debug("Done saving query results");
-            return tempFile;
-        } catch (Exception e) {
-            tempFile.delete();
-            throw new RepositoryException("Error getting tuples from Fedora: "
-                    + e.getMessage(), e);
-        } finally {
+        /**
+         * Wait for something the queries don't depend on, failing as soon as
+         * any query fails.
+         */
+        private void awaitWhileQuerying(Future<?> future)
+                throws InterruptedException, ExecutionException {
+            while (!future.isDone()) {
+                Future<BufferedReader> done =
+                        m_completed.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (done != null) {
+                    done.get();
+                    m_finished++;
+                }
+            }
+        }
+
+        public void cancel() {
+            for (int i = 0; i < m_queries.size(); i++) {
+                m_futures.get(i).cancel(true);
+                m_queries.get(i).cancel();
+            }
+            if (m_scan != null && !m_scan.cancel(false) && m_scan.isDone()) {
+                try {
+                    close(m_scan.get());
+                } catch (Exception e) {
+                }
+            }
+        }
+
+        private void close(BufferedReader[] readers) {
+            if (readers == null) return;
+            for (int i = 0; i < readers.length; i++) {
+                if (readers[i] != null) {
+                    try {
+                        readers[i].close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the results of an itql tuple query as CSV.
+     * <p>
+     * If streaming, the results are read from Fedora as they are needed.
+     * Otherwise, they are first saved to a spool, which is deleted when the
+     * returned reader is closed. If sorting locally, the results are then
+     * sorted by itemID.
+     * </p>
+     */
+    private class ResultQuery
+            implements Callable<BufferedReader> {
+
+        private final String m_name;
+
+        private final String m_query;
+
+        private final int m_itemIDColumn;
+
+        private TupleIterator m_tuples;
+
+        private ResultSpool.Spool m_results;
+
+        private boolean m_cancelled;
+
+        private long m_elapsed;
+
+        /**
+         * @param itemIDColumn
+         *        the index of the itemID column of the results.
+         */
+        public ResultQuery(String name, String query, int itemIDColumn) {
+            m_name = name;
+            m_query = query;
+            m_itemIDColumn = itemIDColumn;
+        }
+
+        public String getName() {
+            return m_name;
+        }
+
+        public String getQuery() {
+            return m_query;
+        }
+
+        /**
+         * Get how long the query took to run, in milliseconds. If streaming,
+         * this is the time until the results started to arrive.
+         */
+        public synchronized long getElapsed() {
+            return m_elapsed;
+        }
+
+        public BufferedReader call() throws RepositoryException {
+            BufferedReader results = m_streaming ? stream() : spool();
+            if (results == null || m_sorter == null) {
+                return results;
+            }
+            return sort(results);
+        }
+
+        private BufferedReader sort(BufferedReader results)
+                throws RepositoryException {
+            long start = System.currentTimeMillis();
+            BufferedReader sorted;
             try {
-                out.close();
+                sorted = m_sorter.sort(results, m_itemIDColumn);
+            } catch (IOException e) {
+                if (isCancelled()) return null;
+                throw new RepositoryException("Error sorting query results: "
+                        + e.getMessage(), e);
+            }
+            if (isCancelled()) {
+                try {
+                    sorted.close();
+                } catch (IOException e) {
+                }
+                return null;
+            }
+            logger.info("ListRecords " + m_name + " query results sorted in "
+                    + (System.currentTimeMillis() - start) + "ms");
+            return sorted;
+        }
+
+        private BufferedReader stream() throws RepositoryException {
+            long start = System.currentTimeMillis();
+            TupleIterator tuples = getTuples(m_query);
+            synchronized (this) {
+                m_tuples = tuples;
+                m_elapsed = System.currentTimeMillis() - start;
+                if (m_cancelled) {
+                    cancel();
+                    return null;
+                }
+            }
+            logger.info("ListRecords " + m_name + " query started streaming "
+                    + "after " + m_elapsed + "ms");
+            try {
+                return new BufferedReader(new CSVTupleReader(tuples));
             } catch (Exception e) {
+                cancel();
+                throw new RepositoryException("Error getting tuples from Fedora: "
+                        + e.getMessage(), e);
+            }
+        }
+
+        private BufferedReader spool() throws RepositoryException {
+            logger.debug("Running " + m_name + " query:\n" + m_query);
+            long start = System.currentTimeMillis();
+
+            Map<String, String> parameters = new HashMap<String, String>();
+            parameters.put("lang", QUERY_LANGUAGE);
+            parameters.put("query", m_query);
+
+            if (m_checkpoints != null) {
+                InputStream saved = m_checkpoints.open(m_query);
+                if (saved != null) {
+                    synchronized (this) {
+                        m_elapsed = System.currentTimeMillis() - start;
+                    }
+                    logger.info("ListRecords " + m_name + " query results "
+                            + "resumed from checkpoint");
+                    try {
+                        return new BufferedReader(new InputStreamReader(saved,
+                                                                        "UTF-8"));
+                    } catch (IOException e) {
+                        throw new RepositoryException("Error reading "
+                                + "checkpoint", e);
+                    }
+                }
+            }
+
+            ResultSpool.Spool spool;
+            synchronized (this) {
+                if (m_cancelled) return null;
+                spool = m_spool.create();
+                m_results = spool;
+            }
+
+            CheckpointStore.Checkpoint checkpoint = null;
+            try {
+                TupleIterator tuples = m_queryClient.getTuples(parameters);
+                synchronized (this) {
+                    m_tuples = tuples;
+                    if (m_cancelled) {
+                        tuples.close();
+                        return null;
+                    }
+                }
+                logger.debug("Spooling " + m_name + " query results...");
+                if (m_checkpoints == null) {
+                    tuples.toStream(spool, RDFFormat.CSV);
+                } else {
+                    checkpoint = m_checkpoints.create(m_query, spool);
+                    tuples.toStream(checkpoint, RDFFormat.CSV);
+                    checkpoint.commit();
+                }
+                spool.close();
+            } catch (Exception e) {
+                if (checkpoint != null) checkpoint.close();
+                spool.delete();
+                if (isCancelled()) return null;
+                // report the underlying problem, e.g. the spool quota
+                Throwable cause = e;
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                throw new RepositoryException("Error getting tuples from Fedora: "
+                        + cause.getMessage(), e);
+            }
+
+            synchronized (this) {
+                m_elapsed = System.currentTimeMillis() - start;
+                if (m_cancelled) {
+                    spool.delete();
+                    return null;
+                }
+            }
+            logger.info("ListRecords " + m_name + " query took " + m_elapsed
+                    + "ms (" + spool.getLength() + " bytes of results"
+                    + (spool.isOnDisk() ? ", " + spool.getDiskBytes()
+                            + " bytes on disk)" : " in memory)"));
+            try {
+                return new BufferedReader(new InputStreamReader(spool
+                        .getInputStream(), "UTF-8"));
+            } catch (IOException e) {
+                spool.delete();
+                throw new RepositoryException("Error reading spooled query "
+                        + "results", e);
+            }
+        }
+
+        /**
+         * Stop the query if it is still running and discard its results.
+         */
+        public synchronized void cancel() {
+            m_cancelled = true;
+            if (m_tuples != null) {
+                try {
+                    m_tuples.close();
+                } catch (Exception e) {
+                }
+            }
+            if (m_results != null) {
+                m_results.delete();
+            }
+        }
+
+        private synchronized boolean isCancelled() {
+            return m_cancelled;
+        }
+    }
+
+    /**
+     * Removes the checkpointed results of an update once all of its records
+     * have been read.
+     */
+    private class CheckpointedRecordIterator
+            implements RemoteIterator<FedoraRecord> {
+
+        private final RemoteIterator<FedoraRecord> m_records;
+
+        private final List<String> m_queries;
+
+        public CheckpointedRecordIterator(RemoteIterator<FedoraRecord> records,
+                                          List<String> queries) {
+            m_records = records;
+            m_queries = queries;
+        }
+
+        public boolean hasNext() throws RepositoryException {
+            if (m_records.hasNext()) return true;
+            synchronized (m_queries) {
+                m_checkpoints.remove(m_queries);
+                m_queries.clear();
             }
+            return false;
+        }
+
+        public FedoraRecord next() throws RepositoryException {
+            return m_records.next();
+        }
+
+        public void close() throws RepositoryException {
+            m_records.close();
+        }
+
+        public void remove() throws UnsupportedOperationException {
+            throw new UnsupportedOperationException("CheckpointedRecordIterator does not support remove().");
+        }
+    }
+
+    /**
+     * Loads the set memberships of all items modified within a range, for
+     * every format, with one query.
+     */
+    private class SetMembershipLoader
+            implements SetMembershipIndex.Loader {
+
+        public void load(Date from,
+                         Date until,
+                         SetMembership.Builder builder)
+                throws RepositoryException {
+            TupleIterator tuples =
+                    getTuples(getSetMembershipIndexQuery(getExclusiveDateString(from,
+                                                                                false),
+                                                         getExclusiveDateString(until,
+                                                                                true)));
+            try {
+                while (tuples.hasNext()) {
+                    Map<?, ?> row = tuples.next();
+                    Object itemID = row.get("itemID");
+                    Object setSpec = row.get("setSpec");
+                    if (!(itemID instanceof Literal)
+                            || !(setSpec instanceof Literal)) {
+                        throw new RepositoryException("Expected itemID and "
+                                + "setSpec, got " + row);
+                    }
+                    if (!builder.add(((Literal) itemID).getLexicalForm(),
+                                     ((Literal) setSpec).getLexicalForm())) {
+                        return;
+                    }
+                }
+            } catch (TrippiException e) {
+                throw new RepositoryException("Error reading query results: "
+                        + e.getMessage(), e);
+            } finally {
+                try {
+                    tuples.close();
+                } catch (TrippiException e) {
+                }
+            }
+        }
+
+        public Date getSetsModified() throws RepositoryException {
+            return queryLatestDate("select $date\n" + "from   <#ri>\n"
+                    + "where  $set <" + m_setSpec + "> $setSpec\n"
+                    + "and    $set <" + VIEW.LAST_MODIFIED_DATE + "> $date\n"
+                    + "order  by $date desc\n" + "limit  1");
+        }
+    }
+
+    /**
+     * Scans for the types of all items modified within a range with one
+     * query.
+     */
+    private class FormatScanner
+            implements FormatScanCache.Scanner {
+
+        public void scan(Date from,
+                         Date until,
+                         String[] types,
+                         FormatScan.Writer writer)
+                throws RepositoryException, IOException {
+            TupleIterator tuples =
+                    getTuples(getFormatScanQuery(getExclusiveDateString(from,
+                                                                        false),
+                                                 getExclusiveDateString(until,
+                                                                        true),
+                                                 types));
+            try {
+                while (tuples.hasNext()) {
+                    Map<?, ?> row = tuples.next();
+                    writer.add(getValue(row, "item"),
+                               getValue(row, "itemID"),
+                               getValue(row, "date"),
+                               getValue(row, "state"),
+                               getValue(row, "dissType"));
+                }
+            } catch (TrippiException e) {
+                throw new RepositoryException("Error reading query results: "
+                        + e.getMessage(), e);
+            } finally {
+                try {
+                    tuples.close();
+                } catch (TrippiException e) {
+                }
+            }
+        }
+    }
+
+    private static String getValue(Map<?, ?> row, String name)
+            throws RepositoryException {
+        Object node = row.get(name);
+        if (node instanceof Literal) {
+            return ((Literal) node).getLexicalForm();
+        } else if (node instanceof URIReference) {
+            return ((URIReference) node).getURI().toString();
+        }
+        throw new RepositoryException("Expected " + name + ", got " + row);
+    }
+
+    private static class QueryThreadFactory
+            implements ThreadFactory {
+
+        private int m_count;
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "oaiprovider-query-" + ++m_count);
+            thread.setDaemon(true);
+            return thread;
         }
     }
 
@@ -374,39 +1338,42 @@ public class ITQLQueryFactory
         return s.toString();
     }
 
-    protected String getListSetInfoQuery(InvocationSpec setInfoSpec) {
-        StringBuffer query = new StringBuffer();
-
-        String setInfoDissQuery =
-                "      $setDiss <test:noMatch> <test:noMatch>\n";
-        String target = "$setDiss";
-        String dissType = "";
-        String commonWhereClause =
-                "where $set <" + m_setSpec + "> $setSpec\n" + "and $set <"
-                        + m_setSpecName + "> $setName\n";
-
-        if (setInfoSpec != null) {
+    /**
+     * Query for every set, ordered by set.
+     */
+    protected String getListSetsQuery() {
+        StringBuilder query = new StringBuilder();
+        query.append("select $set $setSpec $setName\n");
+        query.append("from   <#ri>\n");
+        appendSetWhere(query);
+        query.append("order  by $set asc");
+        return query.toString();
+    }
 
-            dissType = setInfoSpec.getDisseminationType();
-            if (setInfoSpec.isDatastreamInvocation()) {
-                setInfoDissQuery =
-                        getDatastreamDissType(setInfoSpec, "$set", "");
-                target = "$diss";
-            } else {
-                setInfoDissQuery = getServiceDissType(setInfoSpec, "$set", "");
-                target = "$SDef";
-            }
+    /**
+     * Query for the sets that have a set info dissemination, ordered by set
+     * as the sets query is.
+     */
+    protected String getListSetDescriptionsQuery(InvocationSpec setInfoSpec) {
+        StringBuilder query = new StringBuilder();
+        query.append("select $set\n");
+        query.append("from   <#ri>\n");
+        appendSetWhere(query);
+        query.append("and ");
+        if (setInfoSpec.isDatastreamInvocation()) {
+            query.append(getDatastreamDissType(setInfoSpec, "$set", ""));
+        } else {
+            query.append(getServiceDissType(setInfoSpec, "$set", ""));
         }
-
-        query.append("select $set $setSpec $setName '" + dissType + "'\n"
-                + "  subquery(" + "    select " + target + "\n	  from <#ri>\n");
-        query.append(commonWhereClause);
-        query.append("and " + setInfoDissQuery);
-        query.append(")\n");
-        query.append("from <#ri>" + commonWhereClause);
+        query.append("order  by $set asc");
         return query.toString();
     }
 
+    private void appendSetWhere(StringBuilder out) {
+        out.append("where  $set <" + m_setSpec + "> $setSpec\n");
+        out.append("and    $set <" + m_setSpecName + "> $setName\n");
+    }
+
     private TupleIterator getTuples(String query) throws RepositoryException {
         logger.debug("getTuples() called with query:\n" + query);
         Map<String, String> parameters = new HashMap<String, String>();
@@ -78,6 +78,19 @@ public class InvocationSpec {
         }
     }
 
+    /**
+     * Invoke this on the given object, reading the dissemination from the
+     * given source.
+     */
+    public InputStream invoke(DisseminationSource source, PID onWhom) {
+        try {
+            return source.get(getDisseminationType(onWhom), null);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not disseminate content for "
+                    + getDisseminationType(onWhom), e);
+        }
+    }
+
     /**
      * Build an InvocationSpec instance from the given properties.
      * <code>info:fedora/&#42;/{SDef|&#42;}/method[?param1=value1...]</code>
@@ -0,0 +1,410 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.log4j.Logger;
+
+import proai.error.RepositoryException;
+
+/**
+ * A DisseminationSource that reads datastream disseminations straight from
+ * the files in Fedora's low-level storage, for when the provider runs on the
+ * same host as Fedora.
+ * <p>
+ * For <code>info:fedora/PID/DSID</code>, the object's FOXML is read from the
+ * object store to find the current version of the datastream. Inline XML is
+ * served from the FOXML, and managed content from its file in the datastream
+ * store. Where those files are is up to the stores' {@link Layout}: either
+ * the akubra-fs layout of Fedora 3.2 and later ({@link HashLayout}), or the
+ * timestamped directories of earlier versions, whose paths are kept in
+ * Fedora's database ({@link RegistryLayout}).
+ * </p>
+ * <p>
+ * Everything else (service disseminations, externally referenced or
+ * redirected datastreams, and anything that can't be found or read) goes to
+ * the other source.
+ * </p>
+ */
+public class LowlevelDisseminationSource
+        implements DisseminationSource {
+
+    private static final Logger logger =
+            Logger.getLogger(LowlevelDisseminationSource.class.getName());
+
+    private final DisseminationSource m_source;
+
+    private final Layout m_layout;
+
+    private long m_hits;
+
+    private long m_misses;
+
+    /**
+     * @param source
+     *        where to get disseminations that can't be read from storage.
+     * @param layout
+     *        where the stores keep their files.
+     */
+    public LowlevelDisseminationSource(DisseminationSource source,
+                                       Layout layout) {
+        m_source = source;
+        m_layout = layout;
+    }
+
+    public InputStream get(String dissURI, String date) throws IOException {
+        String[] parts = dissURI.split("/");
+        InputStream in = null;
+        if (parts.length == 3 && dissURI.startsWith("info:fedora/")) {
+            try {
+                in = getDatastream(parts[1], parts[2]);
+            } catch (IOException e) {
+                logger.warn("Unable to read " + dissURI
+                        + " from storage, requesting it instead: "
+                        + e.getMessage());
+            }
+        }
+        synchronized (this) {
+            if (in == null) {
+                m_misses++;
+            } else {
+                m_hits++;
+            }
+        }
+        if (in == null) {
+            return m_source.get(dissURI, date);
+        }
+        return in;
+    }
+
+    public void close() {
+        logger.info("Low-level storage source closing: " + getStats());
+        m_layout.close();
+        m_source.close();
+    }
+
+    /**
+     * Get the number of disseminations read from storage.
+     */
+    public synchronized long getHits() {
+        return m_hits;
+    }
+
+    public synchronized String getStats() {
+        return m_hits + " read from storage, " + m_misses + " requested";
+    }
+
+    /**
+     * Get the content of the current version of the datastream, or null if
+     * it isn't inline or managed.
+     */
+    private InputStream getDatastream(String pid, String dsID)
+            throws IOException {
+        File objectFile = m_layout.getObjectFile(pid);
+        if (objectFile == null || !objectFile.exists()) return null;
+        Map<String, String> internalIDs = new HashMap<String, String>();
+        Map<String, byte[]> content;
+        InputStream foxml = open(objectFile);
+        try {
+            content =
+                    FoxmlDatastreamParser.parse(foxml, Collections
+                            .singleton(dsID), internalIDs);
+        } finally {
+            foxml.close();
+        }
+        if (content.containsKey(dsID)) {
+            return new ByteArrayInputStream(content.get(dsID));
+        }
+        String internalID = internalIDs.get(dsID);
+        if (internalID == null) return null;
+        File file = m_layout.getDatastreamFile(internalID);
+        if (file == null) {
+            throw new IOException("Datastream not in path registry: "
+                    + internalID);
+        }
+        if (!file.exists()) {
+            throw new IOException("Datastream file not found: " + file);
+        }
+        return open(file);
+    }
+
+    private static InputStream open(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        return Channels.newInputStream(channel);
+    }
+
+    /**
+     * Throw a RepositoryException unless the store is a directory whose
+     * top-level entries (other than hidden ones) all have names the layout
+     * would give them.
+     */
+    private static void checkStore(File store, String layout, String pattern)
+            throws RepositoryException {
+        String[] names = store.list();
+        if (names == null) {
+            throw new RepositoryException("Low-level store is not a readable "
+                    + "directory: " + store);
+        }
+        for (String name : names) {
+            if (!name.startsWith(".") && !name.matches(pattern)) {
+                throw new RepositoryException("Low-level store " + store
+                        + " does not use the " + layout + " layout (found "
+                        + name + ")");
+            }
+        }
+    }
+
+    /**
+     * Where a pair of stores keep the files for objects and datastreams.
+     */
+    public interface Layout {
+
+        /**
+         * Get the FOXML file of the object, or null if it isn't stored.
+         */
+        public File getObjectFile(String pid) throws IOException;
+
+        /**
+         * Get the file holding a managed datastream's content, given its
+         * internal ID (<code>PID+DSID+VERSIONID</code>), or null if it isn't
+         * stored.
+         */
+        public File getDatastreamFile(String internalID) throws IOException;
+
+        public void close();
+    }
+
+    /**
+     * The akubra-fs layout, the default since Fedora 3.2: each file is named
+     * for its encoded blob ID, in a directory given by the leading hex
+     * digits of the MD5 of the blob ID, according to a hash path format
+     * such as <code>##</code> (one level of two digits) or
+     * <code>#/#</code>.
+     */
+    public static class HashLayout
+            implements Layout {
+
+        private final File m_objectStore;
+
+        private final File m_datastreamStore;
+
+        private final String m_hashPathFormat;
+
+        /**
+         * @param objectStore
+         *        the base directory of the object store.
+         * @param datastreamStore
+         *        the base directory of the datastream store.
+         * @param hashPathFormat
+         *        the hash path format of both stores.
+         * @throws RepositoryException
+         *         if either store doesn't use the layout.
+         */
+        public HashLayout(File objectStore,
+                          File datastreamStore,
+                          String hashPathFormat)
+                throws RepositoryException {
+            m_objectStore = objectStore;
+            m_datastreamStore = datastreamStore;
+            m_hashPathFormat = hashPathFormat;
+            int digits = hashPathFormat.indexOf('/');
+            if (digits == -1) digits = hashPathFormat.length();
+            String pattern =
+                    digits == 0 ? "info%3Afedora%2F.*" : "[0-9a-f]{" + digits
+                            + "}";
+            checkStore(objectStore, "akubra-fs", pattern);
+            checkStore(datastreamStore, "akubra-fs", pattern);
+        }
+
+        public File getObjectFile(String pid) {
+            return getPath(m_objectStore, "info:fedora/" + pid, m_hashPathFormat);
+        }
+
+        public File getDatastreamFile(String internalID) {
+            return getPath(m_datastreamStore, "info:fedora/"
+                    + internalID.replace('+', '/'), m_hashPathFormat);
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * The layout of Fedora 3.0 and 3.1, where files are kept in
+     * <code>yyyy/MMdd/HH/mm</code> directories by the time they were
+     * stored, and their paths are recorded in the objectPaths and
+     * datastreamPaths tables of Fedora's database.
+     */
+    public static class RegistryLayout
+            implements Layout {
+
+        private final File m_objectStore;
+
+        private final File m_datastreamStore;
+
+        private final DataSource m_dataSource;
+
+        /**
+         * @param objectStore
+         *        the base directory of the object store.
+         * @param datastreamStore
+         *        the base directory of the datastream store.
+         * @param dataSource
+         *        Fedora's database.
+         * @throws RepositoryException
+         *         if either store doesn't use the layout.
+         */
+        public RegistryLayout(File objectStore,
+                              File datastreamStore,
+                              DataSource dataSource)
+                throws RepositoryException {
+            m_objectStore = objectStore;
+            m_datastreamStore = datastreamStore;
+            m_dataSource = dataSource;
+            checkStore(objectStore, "legacy", "[0-9]{4}");
+            checkStore(datastreamStore, "legacy", "[0-9]{4}");
+        }
+
+        public File getObjectFile(String pid) throws IOException {
+            return resolve(m_objectStore, lookup("objectPaths", pid));
+        }
+
+        public File getDatastreamFile(String internalID) throws IOException {
+            return resolve(m_datastreamStore, lookup("datastreamPaths",
+                                                     internalID));
+        }
+
+        public void close() {
+            if (m_dataSource instanceof BasicDataSource) {
+                try {
+                    ((BasicDataSource) m_dataSource).close();
+                } catch (SQLException e) {
+                    logger.warn("Unable to close path registry connections", e);
+                }
+            }
+        }
+
+        /**
+         * Get the path registered for the token, or null if there isn't one.
+         */
+        protected String lookup(String table, String token) throws IOException {
+            Connection conn = null;
+            PreparedStatement stmt = null;
+            ResultSet results = null;
+            try {
+                conn = m_dataSource.getConnection();
+                stmt =
+                        conn.prepareStatement("SELECT path FROM " + table
+                                + " WHERE token = ?");
+                stmt.setString(1, token);
+                results = stmt.executeQuery();
+                return results.next() ? results.getString(1) : null;
+            } catch (SQLException e) {
+                IOException ioe =
+                        new IOException("Path registry lookup failed: "
+                                + e.getMessage());
+                ioe.initCause(e);
+                throw ioe;
+            } finally {
+                try {
+                    if (results != null) results.close();
+                    if (stmt != null) stmt.close();
+                    if (conn != null) conn.close();
+                } catch (SQLException e) {
+                    logger.warn("Unable to release path registry connection", e);
+                }
+            }
+        }
+
+        private static File resolve(File store, String path) {
+            if (path == null) return null;
+            File file = new File(path);
+            return file.isAbsolute() ? file : new File(store, path);
+        }
+    }
+
+    /**
+     * Get the file a blob is stored in.
+     */
+    static File getPath(File baseDir, String blobID, String hashPathFormat) {
+        String hash = md5(blobID);
+        StringBuilder path = new StringBuilder();
+        int h = 0;
+        for (int i = 0; i < hashPathFormat.length(); i++) {
+            char c = hashPathFormat.charAt(i);
+            path.append(c == '#' ? hash.charAt(h++) : c);
+        }
+        path.append('/').append(encode(blobID));
+        return new File(baseDir, path.toString());
+    }
+
+    /**
+     * Encode a blob ID the way akubra-fs does for file names.
+     */
+    static String encode(String blobID) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < blobID.length(); i++) {
+            char c = blobID.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || "-=()[];".indexOf(c) != -1) {
+                out.append(c);
+            } else if (c == ':') {
+                out.append("%3A");
+            } else if (c == ' ') {
+                out.append("%20");
+            } else if (c == '+') {
+                out.append("%2B");
+            } else if (c == '_') {
+                out.append("%5F");
+            } else if (c == '*') {
+                out.append("%2A");
+            } else if (c == '.') {
+                out.append(i == blobID.length() - 1 ? "%2E" : ".");
+            } else {
+                try {
+                    out.append(URLEncoder.encode(String.valueOf(c), "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException("UTF-8 not supported", e);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static String md5(String s) {
+        try {
+            byte[] digest =
+                    MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 not supported", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 not supported", e);
+        }
+    }
+}
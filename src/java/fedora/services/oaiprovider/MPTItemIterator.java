@@ -3,6 +3,7 @@ package fedora.services.oaiprovider;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -42,10 +43,25 @@ public class MPTItemIterator
 
     private final int aboutDissIndex;
 
+    private final SetMembership sets;
+
     public MPTItemIterator(SQLProvider queryEngine,
                            DataSource d,
                            FedoraMetadataFormat format,
                            String aboutDissTarget) {
+        this(queryEngine, d, format, aboutDissTarget, null);
+    }
+
+    /**
+     * @param sets
+     *        the set memberships of the items, if they are not in the
+     *        results.
+     */
+    public MPTItemIterator(SQLProvider queryEngine,
+                           DataSource d,
+                           FedoraMetadataFormat format,
+                           String aboutDissTarget,
+                           SetMembership sets) {
 
         try {
             results = new MPTResultSetsManager(d, queryEngine);
@@ -54,6 +70,7 @@ public class MPTItemIterator
         }
 
         this.format = format;
+        this.sets = sets;
 
         this.itemIDIndex = queryEngine.getTargets().indexOf("$itemID");
         if (itemIDIndex == -1) {
@@ -130,7 +147,9 @@ public class MPTItemIterator
                  * grouped by itemID
                  */
                 Set<String> setSpecs = new HashSet<String>();
-                if (setSpecIndex != -1) {
+                if (sets != null) {
+                    setSpecs.addAll(Arrays.asList(sets.getSetSpecs(itemID)));
+                } else if (setSpecIndex != -1) {
                     Node setSpecResult = ((Node) result.get(setSpecIndex));
                     if (setSpecResult != null) {
                         setSpecs.add(setSpecResult.getValue());
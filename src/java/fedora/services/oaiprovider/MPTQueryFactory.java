@@ -1,6 +1,8 @@
 
 package fedora.services.oaiprovider;
 
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -80,6 +82,9 @@ public class MPTQueryFactory
     public static final String PROP_BACKSLASH_ESCAPE =
             FedoraOAIDriver.NS + "mpt.db.backslashIsEscape";
 
+    /* How long a scan of all formats may be reused, in milliseconds */
+    private static final long SCAN_MAX_AGE = 30 * 60000L;
+
     private String itemID;
 
     private String setSpec;
@@ -94,15 +99,19 @@ public class MPTQueryFactory
 
     private TableManager adaptor;
 
-    private FedoraClient client;
+    private DisseminationSource source;
 
     private DataSource dataSource;
 
-    public void init(FedoraClient client,
+    private SetMembershipIndex setIndex;
+
+    private FormatScanCache scans;
+
+    public void init(DisseminationSource source,
                      FedoraClient queryClient,
                      Properties props) {
 
-        this.client = client;
+        this.source = source;
         this.adaptor = getTableManager(props);
 
         this.itemID =
@@ -125,6 +134,29 @@ public class MPTQueryFactory
         this.deletedState =
                 FedoraOAIDriver
                         .getOptional(props, FedoraOAIDriver.PROP_DELETED);
+
+        int setIndexMemory =
+                FedoraOAIDriver.getOptionalInt(props,
+                                               FedoraOAIDriver.PROP_SET_INDEX_MEMORY,
+                                               0);
+        if (setSpecPath != null && setSpecPath.length() > 0
+                && setIndexMemory > 0) {
+            this.setIndex =
+                    new SetMembershipIndex(new SetMembershipLoader(),
+                                           setIndexMemory * 1024L * 1024L);
+        }
+
+        if (FedoraOAIDriver.getOptionalBoolean(props,
+                                               FedoraOAIDriver.PROP_FAN_OUT,
+                                               false)) {
+            this.scans =
+                    new FormatScanCache(new FormatScanner(),
+                                        FedoraOAIDriver
+                                                .getMetadataFormats(props)
+                                                .values(),
+                                        ITQLQueryFactory.getSpool(props),
+                                        SCAN_MAX_AGE);
+        }
     }
 
     public Date latestRecordDate(Iterator<? extends MetadataFormat> fedoraMetadataFormats) {
@@ -182,6 +214,31 @@ public class MPTQueryFactory
         InvocationSpec mdSpec = format.getMetadataSpec();
         InvocationSpec aboutSpec = format.getAboutSpec();
 
+        /* The set memberships shared with the other formats, if any */
+        SetMembership sets = null;
+        if (setIndex != null) {
+            sets = setIndex.get(from, until);
+        }
+        boolean hasSets = setSpecPath != null && setSpecPath.length() > 0;
+
+        /*
+         * If the memberships are not needed or are shared, the records may
+         * be read from one scan shared with the other formats
+         */
+        if (scans != null && scans.handles(format)
+                && (sets != null || !hasSets)) {
+            BufferedReader[] readers = scans.open(from, until, format);
+            ResultCombiner combiner =
+                    new ResultCombiner(readers[0], null, readers[1]);
+            return new CombinerRecordIterator(format.getPrefix(),
+                                              mdSpec.getDisseminationType(),
+                                              aboutSpec == null ? null
+                                                      : aboutSpec
+                                                              .getDisseminationType(),
+                                              combiner,
+                                              sets);
+        }
+
         GraphQuery query = new GraphQuery();
 
         GraphPattern requiredPath = new GraphPattern();
@@ -230,8 +287,11 @@ public class MPTQueryFactory
         }
         query.addRequired(requiredPath);
 
-        /* Next, the setSpec, if asked for) */
-        if (setSpecPath != null && setSpecPath.length() > 0) {
+        /*
+         * Next, the setSpec, if asked for and not in the memberships shared
+         * with the other formats
+         */
+        if (hasSets && sets == null) {
             query.addOptional(parseSetSpecPath(setSpecPath));
         }
 
@@ -250,9 +310,11 @@ public class MPTQueryFactory
                 new LinkedList<String>(Arrays.asList("$item",
                                                      "$itemID",
                                                      "$date",
-                                                     "$state",
-                                                     "$setSpec"));
-        
+                                                     "$state"));
+        if (sets == null) {
+            targets.add("$setSpec");
+        }
+
         if (aboutDissTarget != null) {
             targets.add(aboutDissTarget);
         }
@@ -267,7 +329,11 @@ public class MPTQueryFactory
         } catch (QueryException e) {
             logger.error("Error building ListRecords query", e);
         }
-        return new MPTItemIterator(builder, dataSource, format, aboutDissTarget);
+        return new MPTItemIterator(builder,
+                                   dataSource,
+                                   format,
+                                   aboutDissTarget,
+                                   sets);
     }
 
     public RemoteIterator<SetInfo> listSetInfo(InvocationSpec setInfoSpec) {
@@ -325,13 +391,221 @@ public class MPTQueryFactory
         } catch (QueryException e) {
             logger.error("Error building SetInfo query", e);
         }
-        return new MPTSetInfoIterator(client,
+        return new MPTSetInfoIterator(source,
                                       builder,
                                       dataSource,
                                       dissTarget,
                                       setInfoSpec);
     }
 
+    /**
+     * Loads the set memberships of all items modified within a range, for
+     * every format, with one query.
+     */
+    private class SetMembershipLoader
+            implements SetMembershipIndex.Loader {
+
+        public void load(Date from,
+                         Date until,
+                         SetMembership.Builder builder)
+                throws RepositoryException {
+            GraphQuery query = new GraphQuery();
+            GraphPattern requiredPath = new GraphPattern();
+            try {
+                requiredPath.addTriplePattern(getPattern("$item", "<"
+                        + itemID + ">", "$itemID"));
+                if (from != null || until != null) {
+                    requiredPath.addTriplePattern(getPattern("$item", "<"
+                            + Constants.VIEW.LAST_MODIFIED_DATE + ">", "$date"));
+                }
+                if (from != null) {
+                    requiredPath.addFilter(getFilter("$date", ">", "\""
+                            + DateUtility.convertDateToString(new Date(from
+                                    .getTime() - 1)) + "\""));
+                }
+                if (until != null) {
+                    requiredPath.addFilter(getFilter("$date", "<", "\""
+                            + DateUtility.convertDateToString(new Date(until
+                                    .getTime() + 1)) + "\""));
+                }
+            } catch (ParseException e) {
+                throw new RepositoryException("Could not parse itemID", e);
+            }
+            query.addRequired(requiredPath);
+            query.addRequired(parseSetSpecPath(setSpecPath));
+
+            GraphQuerySQLProvider provider =
+                    new GraphQuerySQLProvider(adaptor, query, backslashIsEscape);
+            provider.setTargets(Arrays.asList("$itemID", "$setSpec"));
+
+            MPTResultSetsManager results;
+            try {
+                logger.debug("Using set membership query "
+                        + provider.getSQL());
+                results = new MPTResultSetsManager(dataSource, provider);
+            } catch (QueryException e) {
+                throw new RepositoryException("Could not run set membership "
+                        + "query", e);
+            }
+            try {
+                while (results.hasNext()) {
+                    List<Node> result = results.next();
+                    if (!builder.add(result.get(0).getValue(), result.get(1)
+                            .getValue())) {
+                        return;
+                    }
+                }
+            } catch (SQLException e) {
+                throw new RepositoryException("Could not read set membership "
+                        + "result", e);
+            } finally {
+                try {
+                    results.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+
+        public Date getSetsModified() throws RepositoryException {
+            String mods;
+            String specs;
+            try {
+                mods =
+                        adaptor.getTableFor(NTriplesUtil.parsePredicate("<"
+                                + Constants.VIEW.LAST_MODIFIED_DATE + ">"));
+                specs =
+                        adaptor.getTableFor(NTriplesUtil.parsePredicate("<"
+                                + setSpec + ">"));
+            } catch (ParseException e) {
+                throw new RepositoryException("Could not parse predicate", e);
+            }
+            if (mods == null || specs == null) return null;
+
+            String date;
+            try {
+                Connection c = dataSource.getConnection();
+                try {
+                    PreparedStatement s =
+                            c.prepareStatement("SELECT max(m.o) FROM " + mods
+                                    + " m, " + specs + " s WHERE m.s = s.s",
+                                               ResultSet.FETCH_FORWARD,
+                                               ResultSet.CONCUR_READ_ONLY);
+                    ResultSet r = s.executeQuery();
+                    r.next();
+                    date = r.getString(1);
+                } finally {
+                    c.close();
+                }
+            } catch (SQLException e) {
+                throw new RepositoryException("Could not query when sets "
+                        + "were modified", e);
+            }
+            if (date == null) return null;
+            String[] dateParts = date.split("\"");
+            if (dateParts.length < 2) {
+                throw new RepositoryException("Unknown date format: " + date);
+            }
+            return ITQLQueryFactory.parseDatetime(dateParts[1]);
+        }
+    }
+
+    /**
+     * Scans for the types of all items modified within a range with one
+     * query, with an optional dissemination path for each type.
+     */
+    private class FormatScanner
+            implements FormatScanCache.Scanner {
+
+        public void scan(Date from,
+                         Date until,
+                         String[] types,
+                         FormatScan.Writer writer)
+                throws RepositoryException, IOException {
+            GraphQuery query = new GraphQuery();
+            GraphPattern requiredPath = new GraphPattern();
+            List<String> targets =
+                    new ArrayList<String>(Arrays.asList("$item",
+                                                        "$itemID",
+                                                        "$date",
+                                                        "$state"));
+            try {
+                requiredPath.addTriplePattern(getPattern("$item", "<"
+                        + itemID + ">", "$itemID"));
+                requiredPath.addTriplePattern(getPattern("$item", "<"
+                        + Constants.VIEW.LAST_MODIFIED_DATE + ">", "$date"));
+                if (deletedState.equals("")) {
+                    requiredPath.addTriplePattern(getPattern("$item", "<"
+                            + Constants.MODEL.STATE + ">", "$state"));
+                } else {
+                    requiredPath.addTriplePattern(getPattern("$item", "<"
+                            + deletedState + ">", "$state"));
+                }
+                if (from != null) {
+                    requiredPath.addFilter(getFilter("$date", ">", "\""
+                            + DateUtility.convertDateToString(new Date(from
+                                    .getTime() - 1)) + "\""));
+                }
+                if (until != null) {
+                    requiredPath.addFilter(getFilter("$date", "<", "\""
+                            + DateUtility.convertDateToString(new Date(until
+                                    .getTime() + 1)) + "\""));
+                }
+                query.addRequired(requiredPath);
+
+                for (int i = 0; i < types.length; i++) {
+                    GraphPattern dissPath = new GraphPattern();
+                    String diss = "$diss_" + i;
+                    dissPath.addTriplePattern(getPattern("$item", "<"
+                            + Constants.VIEW.DISSEMINATES + ">", diss));
+                    dissPath.addTriplePattern(getPattern(diss, "<"
+                            + Constants.VIEW.DISSEMINATION_TYPE + ">", "<"
+                            + types[i] + ">"));
+                    query.addOptional(dissPath);
+                    targets.add(diss);
+                }
+            } catch (ParseException e) {
+                throw new RepositoryException("Could not parse format scan "
+                        + "query", e);
+            }
+
+            GraphQuerySQLProvider provider =
+                    new GraphQuerySQLProvider(adaptor, query, backslashIsEscape);
+            provider.setTargets(targets);
+            provider.orderBy("$itemID", false);
+
+            MPTResultSetsManager results;
+            try {
+                logger.debug("Using format scan query " + provider.getSQL());
+                results = new MPTResultSetsManager(dataSource, provider);
+            } catch (QueryException e) {
+                throw new RepositoryException("Could not run format scan "
+                        + "query", e);
+            }
+            try {
+                while (results.hasNext()) {
+                    List<Node> result = results.next();
+                    for (int i = 0; i < types.length; i++) {
+                        if (result.get(4 + i) != null) {
+                            writer.add(result.get(0).getValue(),
+                                       result.get(1).getValue(),
+                                       result.get(2).getValue(),
+                                       result.get(3).getValue(),
+                                       types[i]);
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                throw new RepositoryException("Could not read format scan "
+                        + "result", e);
+            } finally {
+                try {
+                    results.close();
+                } catch (SQLException e) {
+                }
+            }
+        }
+    }
+
     private TableManager getTableManager(Properties props) {
 
         /* Initialize the DDL generator */
@@ -10,7 +10,6 @@ import org.nsdl.mptstore.query.QueryException;
 import org.nsdl.mptstore.query.provider.SQLProvider;
 import org.nsdl.mptstore.rdf.Node;
 
-import fedora.client.FedoraClient;
 import fedora.common.PID;
 
 import proai.SetInfo;
@@ -20,7 +19,7 @@ import proai.error.RepositoryException;
 public class MPTSetInfoIterator
         implements RemoteIterator<SetInfo> {
 
-    private final FedoraClient client;
+    private final DisseminationSource source;
 
     private final MPTResultSetsManager results;
 
@@ -34,12 +33,12 @@ public class MPTSetInfoIterator
 
     private final InvocationSpec m_setInfoSpec;
 
-    public MPTSetInfoIterator(FedoraClient client,
+    public MPTSetInfoIterator(DisseminationSource source,
                               SQLProvider queryEngine,
                               DataSource d,
                               String disseminationTarget,
                               InvocationSpec setInfoSpec) {
-        this.client = client;
+        this.source = source;
         try {
             results = new MPTResultSetsManager(d, queryEngine);
         } catch (QueryException e) {
@@ -118,7 +117,7 @@ public class MPTSetInfoIterator
                     setDissType = m_setInfoSpec.getDisseminationType();
                 }
 
-                return new FedoraSetInfo(client,
+                return new FedoraSetInfo(source,
                                          setObject.toString(),
                                          setSpec,
                                          setName,
@@ -0,0 +1,205 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Joins CSV query results that list their items in the same order, one item
+ * of the primary input at a time, without holding more than the current
+ * rows of each input.
+ * <p>
+ * Each side input gives something about the items of the primary input, and
+ * is joined to it by a key column with one of these modes:
+ * </p>
+ * <ul>
+ * <li>EXISTS: whether the side input has a row for the item.</li>
+ * <li>COLLECT: the values of a column in all of its rows for the item.</li>
+ * <li>VALUE: the value of a column in its first row for the item.</li>
+ * </ul>
+ * <p>
+ * Keys are compared where CSVFieldReader parsed them, without being copied.
+ * Rows of a side input are consumed while their key is the key of the
+ * current primary row; a side input whose next row is for an item not in the
+ * primary input gives nothing more.
+ * </p>
+ */
+public class MergeJoin {
+
+    public static final int EXISTS = 0;
+
+    public static final int COLLECT = 1;
+
+    public static final int VALUE = 2;
+
+    private final CSVFieldReader m_primary;
+
+    private final int m_keyColumn;
+
+    private final List<Side> m_sides = new ArrayList<Side>();
+
+    private boolean m_started;
+
+    /**
+     * @param keyColumn
+     *        the column of the primary input that side inputs are joined on.
+     */
+    public MergeJoin(CSVFieldReader primary, int keyColumn) {
+        m_primary = primary;
+        m_keyColumn = keyColumn;
+    }
+
+    /**
+     * Add a side input, before the first call to next().
+     *
+     * @param mode
+     *        EXISTS, COLLECT or VALUE.
+     * @param valueColumn
+     *        the column to give the values of; ignored for EXISTS.
+     * @return the index of the input, by which its results are given.
+     */
+    public int add(CSVFieldReader input,
+                   int keyColumn,
+                   int mode,
+                   int valueColumn) {
+        if (m_started) {
+            throw new IllegalStateException("Can't add an input once started");
+        }
+        if (mode < EXISTS || mode > VALUE) {
+            throw new IllegalArgumentException("Unknown join mode: " + mode);
+        }
+        m_sides.add(new Side(input, keyColumn, mode, valueColumn));
+        return m_sides.size() - 1;
+    }
+
+    /**
+     * Move to the next row of the primary input and join the side inputs to
+     * it.
+     *
+     * @return false if there are no more.
+     * @throws IOException
+     *         if an input can't be read or is missing a column.
+     */
+    public boolean next() throws IOException {
+        if (!m_started) {
+            m_started = true;
+            for (Side side : m_sides) {
+                side.advance();
+            }
+        }
+        if (!m_primary.next()) return false;
+        checkColumns(m_primary, m_keyColumn);
+        for (Side side : m_sides) {
+            side.join();
+        }
+        return true;
+    }
+
+    /**
+     * Get the current row of the primary input. It is only valid until the
+     * next call to next().
+     */
+    public CSVFieldReader getPrimary() {
+        return m_primary;
+    }
+
+    /**
+     * Tell whether a side input had a row for the current item.
+     */
+    public boolean exists(int input) {
+        return m_sides.get(input).m_count > 0;
+    }
+
+    /**
+     * Get the value a side input had for the current item, or null if none.
+     * For COLLECT inputs, this is the first of the values.
+     */
+    public String getValue(int input) {
+        Side side = m_sides.get(input);
+        return side.m_count > 0 ? side.m_values.get(0) : null;
+    }
+
+    /**
+     * Get the values a side input had for the current item.
+     */
+    public String[] getValues(int input) {
+        List<String> values = m_sides.get(input).m_values;
+        return values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * Close all of the inputs.
+     */
+    public void close() {
+        try {
+            m_primary.close();
+        } catch (Throwable th) {
+        }
+        for (Side side : m_sides) {
+            try {
+                side.m_input.close();
+            } catch (Throwable th) {
+            }
+        }
+    }
+
+    private static void checkColumns(CSVFieldReader row, int column)
+            throws IOException {
+        if (row.getFieldCount() <= column) {
+            throw new IOException("Expected at least " + (column + 1)
+                    + " values in query results, got: " + row);
+        }
+    }
+
+    private class Side {
+
+        private final CSVFieldReader m_input;
+
+        private final int m_keyColumn;
+
+        private final int m_mode;
+
+        private final int m_valueColumn;
+
+        // values of the current item, reused for each
+        private final List<String> m_values = new ArrayList<String>();
+
+        // rows of the current item
+        private int m_count;
+
+        private boolean m_hasRow;
+
+        public Side(CSVFieldReader input,
+                    int keyColumn,
+                    int mode,
+                    int valueColumn) {
+            m_input = input;
+            m_keyColumn = keyColumn;
+            m_mode = mode;
+            m_valueColumn = mode == EXISTS ? keyColumn : valueColumn;
+        }
+
+        public void advance() throws IOException {
+            m_hasRow = m_input.next();
+            if (m_hasRow) {
+                checkColumns(m_input, Math.max(m_keyColumn, m_valueColumn));
+            }
+        }
+
+        public void join() throws IOException {
+            m_values.clear();
+            m_count = 0;
+            while (m_hasRow
+                    && m_input.fieldEquals(m_keyColumn,
+                                           m_primary,
+                                           MergeJoin.this.m_keyColumn)) {
+                if (m_mode == COLLECT || (m_mode == VALUE && m_count == 0)) {
+                    m_values.add(m_input.getField(m_valueColumn));
+                }
+                m_count++;
+                advance();
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Reads disseminations from Fedora using a NioHttpClient.
+ * <p>
+ * Dissemination URIs are resolved against the Fedora base URL the same way
+ * FedoraClient does (<code>info:fedora/X</code> becomes
+ * <code>{baseURL}get/X</code>), credentials are sent preemptively to the
+ * Fedora host, and redirects are followed. Anything the NIO client can't
+ * handle (such as <code>https</code> URLs) is read from a fallback source
+ * instead.
+ * </p>
+ */
+public class NioDisseminationSource
+        implements AbortableDisseminationSource {
+
+    private static final int MAX_REDIRECTS = 5;
+
+    private final NioHttpClient m_client;
+
+    private final URL m_baseURL;
+
+    private final String m_authorization;
+
+    private final DisseminationSource m_fallback;
+
+    /**
+     * @param client
+     *        the client to make requests with; closed when this source is.
+     * @param baseURL
+     *        the Fedora base URL, ending with a slash.
+     * @param user
+     *        the Fedora user, or null to not authenticate.
+     * @param pass
+     *        the Fedora password.
+     * @param fallback
+     *        where to read disseminations the client can't, or null.
+     */
+    public NioDisseminationSource(NioHttpClient client,
+                                  String baseURL,
+                                  String user,
+                                  String pass,
+                                  DisseminationSource fallback)
+            throws IOException {
+        m_client = client;
+        m_baseURL = new URL(baseURL);
+        if (user != null) {
+            m_authorization =
+                    "Basic "
+                            + new String(Base64.encodeBase64((user + ":" + pass)
+                                    .getBytes("UTF-8")), "US-ASCII");
+        } else {
+            m_authorization = null;
+        }
+        m_fallback = fallback;
+    }
+
+    public InputStream get(String dissURI, String date) throws IOException {
+        return get(dissURI, date, null);
+    }
+
+    /**
+     * Get a dissemination, cancelling the request on the I/O thread if it is
+     * aborted. The fallback source is only given the abort if it takes one.
+     */
+    public InputStream get(String dissURI, String date, RequestAbort abort)
+            throws IOException {
+        URL url = getURL(dissURI);
+        for (int i = 0; i <= MAX_REDIRECTS; i++) {
+            if (!url.getProtocol().equals("http") && m_fallback != null) {
+                if (abort != null
+                        && m_fallback instanceof AbortableDisseminationSource) {
+                    return ((AbortableDisseminationSource) m_fallback)
+                            .get(url.toString(), date, abort);
+                }
+                return m_fallback.get(url.toString(), date);
+            }
+            Map<String, String> headers = new HashMap<String, String>();
+            if (m_authorization != null && isFedoraHost(url)) {
+                headers.put("Authorization", m_authorization);
+            }
+            NioHttpClient.Response response =
+                    m_client.get(url, headers, abort);
+            int status = response.getStatusCode();
+            if (status >= 200 && status < 300) {
+                return response;
+            }
+            response.close();
+            String location = response.getHeader("Location");
+            if ((status == 301 || status == 302 || status == 303 || status == 307)
+                    && location != null) {
+                url = new URL(url, location);
+            } else {
+                throw new IOException("Request failed [" + status + " "
+                        + response.getStatusText() + "]");
+            }
+        }
+        throw new IOException("Too many redirects for " + dissURI);
+    }
+
+    public void close() {
+        m_client.close();
+        if (m_fallback != null) {
+            m_fallback.close();
+        }
+    }
+
+    /**
+     * Resolve a dissemination URI (or URL, or path) against the base URL.
+     */
+    URL getURL(String dissURI) throws IOException {
+        if (dissURI.startsWith("info:fedora/")) {
+            return new URL(m_baseURL, "get/" + dissURI.substring(12));
+        }
+        return new URL(m_baseURL, dissURI);
+    }
+
+    private boolean isFedoraHost(URL url) {
+        return url.getHost().equalsIgnoreCase(m_baseURL.getHost())
+                && url.getPort() == m_baseURL.getPort();
+    }
+}
@@ -0,0 +1,1025 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A minimal HTTP/1.1 client that does all its network I/O on a single thread
+ * using non-blocking channels, so the number of requests in flight is not
+ * limited by the number of threads.
+ * <p>
+ * Callers still see a blocking interface: <code>get</code> returns once the
+ * response headers have arrived, and the body is read from the returned
+ * stream as it arrives. Each response buffers a bounded amount of body;
+ * reading from the connection is paused until the caller catches up.
+ * </p>
+ * <p>
+ * Connections are kept alive and reused, up to a maximum number per host;
+ * further requests wait for a connection to become free. Only plain
+ * <code>http</code> URLs are supported.
+ * </p>
+ * <p>
+ * Response bodies with a gzip or deflate <code>Content-Encoding</code> are
+ * decompressed as they are read.
+ * </p>
+ */
+public class NioHttpClient {
+
+    private static final Logger logger =
+            Logger.getLogger(NioHttpClient.class.getName());
+
+    private static final int READ_BUFFER_SIZE = 16384;
+
+    /** Body bytes buffered per response before reading pauses. */
+    private static final int MAX_BUFFERED = 65536;
+
+    private static final int MAX_HEADER_SIZE = 65536;
+
+    /** How often timeouts are checked, in milliseconds. */
+    private static final long TICK = 100;
+
+    private final int m_connectTimeout;
+
+    private final int m_socketTimeout;
+
+    private final int m_maxPerHost;
+
+    private final Selector m_selector;
+
+    private final Thread m_thread;
+
+    private final ConcurrentLinkedQueue<Runnable> m_tasks;
+
+    /** Selector thread only. */
+    private final Map<String, Host> m_hosts;
+
+    /** Selector thread only. */
+    private final Set<Connection> m_connections;
+
+    private volatile boolean m_closed;
+
+    private volatile TransferStats m_stats;
+
+    /**
+     * @param connectTimeout
+     *        the most time to wait for a connection to be established, in
+     *        milliseconds, or 0 to wait indefinitely.
+     * @param socketTimeout
+     *        the most time to wait for data while sending a request or
+     *        receiving a response, in milliseconds, or 0 to wait
+     *        indefinitely.
+     * @param maxPerHost
+     *        the most connections to open to any one host.
+     */
+    public NioHttpClient(int connectTimeout, int socketTimeout, int maxPerHost)
+            throws IOException {
+        m_connectTimeout = connectTimeout;
+        m_socketTimeout = socketTimeout;
+        m_maxPerHost = maxPerHost;
+        m_selector = Selector.open();
+        m_tasks = new ConcurrentLinkedQueue<Runnable>();
+        m_hosts = new HashMap<String, Host>();
+        m_connections = new HashSet<Connection>();
+        m_thread = new Thread(new Runnable() {
+
+            public void run() {
+                loop();
+            }
+        }, "oaiprovider-nio");
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    /**
+     * Send a GET request and wait for the response headers.
+     *
+     * @param url
+     *        an <code>http</code> URL.
+     * @param headers
+     *        additional request headers, may be null.
+     * @return the response, whose body is read as it arrives.
+     * @throws IOException
+     *         if the request can't be sent or no response is received.
+     */
+    public Response get(URL url, Map<String, String> headers)
+            throws IOException {
+        return get(url, headers, null);
+    }
+
+    /**
+     * Same as <code>get(url, headers)</code>, except that the request can be
+     * aborted: it is taken off the queue of requests waiting for a
+     * connection, or its connection is closed, and the request (or reading
+     * the response body) fails.
+     *
+     * @param abort
+     *        what the request can be aborted with, may be null.
+     */
+    public Response get(URL url,
+                        Map<String, String> headers,
+                        RequestAbort abort) throws IOException {
+        if (!url.getProtocol().equals("http")) {
+            throw new IOException("Unsupported protocol: " + url);
+        }
+        if (m_closed) {
+            throw new IOException("Client is closed");
+        }
+        final Exchange exchange = new Exchange(url, headers);
+        if (abort != null) {
+            abort.setAction(new Runnable() {
+
+                public void run() {
+                    submit(new Runnable() {
+
+                        public void run() {
+                            abort(exchange);
+                        }
+                    });
+                }
+            });
+        }
+        submit(new Runnable() {
+
+            public void run() {
+                start(exchange);
+            }
+        });
+        return exchange.awaitResponse();
+    }
+
+    /**
+     * Ask for compressed responses from now on, and record the bytes
+     * transferred for each response in the given stats.
+     */
+    public void setCompression(TransferStats stats) {
+        m_stats = stats;
+    }
+
+    /**
+     * Abort all requests, close all connections and stop the I/O thread.
+     */
+    public void close() {
+        m_closed = true;
+        m_selector.wakeup();
+        try {
+            m_thread.join(5000);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private void submit(Runnable task) {
+        m_tasks.add(task);
+        m_selector.wakeup();
+    }
+
+    //////////////////////////////////////////////////////////////////////////
+    ////////////////////// Everything below runs on m_thread /////////////////
+    //////////////////////////////////////////////////////////////////////////
+
+    private void loop() {
+        try {
+            while (!m_closed) {
+                m_selector.select(TICK);
+                Runnable task = m_tasks.poll();
+                while (task != null) {
+                    task.run();
+                    task = m_tasks.poll();
+                }
+                Iterator<SelectionKey> keys =
+                        m_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Connection conn = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            conn.finishConnect();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            conn.read();
+                        }
+                    } catch (IOException e) {
+                        conn.fail(e);
+                    }
+                }
+                checkTimeouts();
+            }
+        } catch (Throwable th) {
+            logger.error("Unexpected error in HTTP I/O thread", th);
+        } finally {
+            m_closed = true;
+            IOException closed = new IOException("Client is closed");
+            for (Connection conn : new HashSet<Connection>(m_connections)) {
+                conn.fail(closed);
+            }
+            for (Host host : m_hosts.values()) {
+                Exchange exchange = host.waiting.poll();
+                while (exchange != null) {
+                    exchange.fail(closed);
+                    exchange = host.waiting.poll();
+                }
+            }
+            // requests submitted after the loop ended fail in start()
+            Runnable task = m_tasks.poll();
+            while (task != null) {
+                task.run();
+                task = m_tasks.poll();
+            }
+            try {
+                m_selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void start(Exchange exchange) {
+        if (m_closed) {
+            exchange.fail(new IOException("Client is closed"));
+            return;
+        }
+        if (exchange.aborted) {
+            exchange.fail(new IOException("Request aborted"));
+            return;
+        }
+        Host host = m_hosts.get(exchange.hostKey);
+        if (host == null) {
+            host = new Host();
+            m_hosts.put(exchange.hostKey, host);
+        }
+        Connection conn = host.idle.poll();
+        if (conn != null) {
+            conn.begin(exchange);
+        } else if (host.open < m_maxPerHost) {
+            try {
+                conn = new Connection(host, exchange.address);
+                conn.begin(exchange);
+            } catch (IOException e) {
+                exchange.fail(e);
+            }
+        } else {
+            host.waiting.add(exchange);
+        }
+    }
+
+    /**
+     * Stop an exchange wherever it is. Once its response has been received in
+     * full, closing the response is left to the caller.
+     */
+    private void abort(Exchange exchange) {
+        exchange.aborted = true;
+        IOException e = new IOException("Request aborted");
+        Connection conn = exchange.connection;
+        if (conn != null && conn.m_exchange == exchange) {
+            conn.fail(e);
+        } else if (exchange.response == null) {
+            Host host = m_hosts.get(exchange.hostKey);
+            if (host != null) host.waiting.remove(exchange);
+            exchange.fail(e);
+        }
+    }
+
+    private void checkTimeouts() {
+        long now = System.currentTimeMillis();
+        for (Connection conn : new HashSet<Connection>(m_connections)) {
+            conn.checkTimeout(now);
+        }
+    }
+
+    private static class Host {
+
+        public int open;
+
+        public final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+        public final LinkedList<Exchange> waiting = new LinkedList<Exchange>();
+    }
+
+    /**
+     * A connection to a host, used for one exchange at a time.
+     */
+    private class Connection {
+
+        private static final int CONNECTING = 0;
+
+        private static final int SENDING = 1;
+
+        private static final int HEADERS = 2;
+
+        private static final int BODY = 3;
+
+        private static final int IDLE = 4;
+
+        private static final int CLOSED = 5;
+
+        private final Host m_host;
+
+        private final SocketChannel m_channel;
+
+        private final SelectionKey m_key;
+
+        private final ByteBuffer m_in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        private int m_state;
+
+        private long m_since;
+
+        private Exchange m_exchange;
+
+        private ByteBuffer m_out;
+
+        private boolean m_reused;
+
+        private boolean m_received;
+
+        private boolean m_paused;
+
+        private final StringBuilder m_headerText = new StringBuilder();
+
+        private BodyDecoder m_body;
+
+        private boolean m_keepAlive;
+
+        public Connection(Host host, InetSocketAddress address)
+                throws IOException {
+            m_host = host;
+            m_channel = SocketChannel.open();
+            try {
+                m_channel.configureBlocking(false);
+                m_channel.socket().setTcpNoDelay(true);
+                boolean connected = m_channel.connect(address);
+                m_key =
+                        m_channel.register(m_selector,
+                                           connected ? 0
+                                                   : SelectionKey.OP_CONNECT,
+                                           this);
+                m_state = connected ? SENDING : CONNECTING;
+            } catch (IOException e) {
+                m_channel.close();
+                throw e;
+            }
+            m_since = System.currentTimeMillis();
+            host.open++;
+            m_connections.add(this);
+        }
+
+        public void begin(Exchange exchange) {
+            m_reused = m_state == IDLE;
+            m_exchange = exchange;
+            exchange.connection = this;
+            m_out = ByteBuffer.wrap(exchange.request);
+            m_received = false;
+            m_paused = false;
+            m_headerText.setLength(0);
+            m_body = null;
+            m_since = System.currentTimeMillis();
+            if (m_state == IDLE) {
+                m_state = SENDING;
+            }
+            if (m_state == SENDING) {
+                m_key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        public void finishConnect() throws IOException {
+            m_channel.finishConnect();
+            m_state = SENDING;
+            m_since = System.currentTimeMillis();
+            m_key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        public void write() throws IOException {
+            m_channel.write(m_out);
+            m_since = System.currentTimeMillis();
+            if (!m_out.hasRemaining()) {
+                m_state = HEADERS;
+                m_key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        public void read() throws IOException {
+            m_in.clear();
+            int n = m_channel.read(m_in);
+            if (n == -1) {
+                if (m_state == IDLE) {
+                    // the server closed an idle connection
+                    close();
+                    return;
+                }
+                if (m_state == BODY && m_body.endsAtClose()) {
+                    m_keepAlive = false;
+                    complete();
+                    return;
+                }
+                throw new IOException("Connection closed by server");
+            }
+            if (m_state == IDLE) {
+                close();
+                return;
+            }
+            m_since = System.currentTimeMillis();
+            m_received = true;
+            m_in.flip();
+            if (m_state == HEADERS) {
+                readHeaders();
+            }
+            if (m_state == BODY && m_in.hasRemaining()) {
+                m_body.decode(m_in);
+                if (m_body.isDone()) {
+                    complete();
+                } else if (m_exchange.response.isFull()) {
+                    m_paused = true;
+                    m_key.interestOps(0);
+                }
+            }
+        }
+
+        private void readHeaders() throws IOException {
+            while (m_in.hasRemaining()) {
+                char c = (char) (m_in.get() & 0xFF);
+                m_headerText.append(c);
+                int len = m_headerText.length();
+                if (c == '\n' && len >= 4 && m_headerText.charAt(len - 2) == '\r'
+                        && m_headerText.charAt(len - 3) == '\n'
+                        && m_headerText.charAt(len - 4) == '\r') {
+                    if (parseHeaders()) return;
+                } else if (len > MAX_HEADER_SIZE) {
+                    throw new IOException("Response headers too large");
+                }
+            }
+        }
+
+        /**
+         * @return false if this was an interim (1xx) response, to be
+         *         followed by another.
+         */
+        private boolean parseHeaders() throws IOException {
+            String[] lines = m_headerText.toString().split("\r\n");
+            m_headerText.setLength(0);
+            String[] status = lines[0].split(" ", 3);
+            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                throw new IOException("Bad status line: " + lines[0]);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(status[1]);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad status line: " + lines[0]);
+            }
+            if (code >= 100 && code < 200) return false;
+            Map<String, String> headers = new HashMap<String, String>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim()
+                            .toLowerCase(), lines[i].substring(colon + 1)
+                            .trim());
+                }
+            }
+            String connection = headers.get("connection");
+            m_keepAlive =
+                    status[0].equals("HTTP/1.1")
+                            && !"close".equalsIgnoreCase(connection);
+            String encoding = headers.get("transfer-encoding");
+            String length = headers.get("content-length");
+            if (code == 204 || code == 304) {
+                m_body = new LengthDecoder(0);
+            } else if (encoding != null && !encoding.equalsIgnoreCase("identity")) {
+                m_body = new ChunkedDecoder();
+            } else if (length != null) {
+                try {
+                    m_body = new LengthDecoder(Long.parseLong(length));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad Content-Length: " + length);
+                }
+            } else {
+                m_body = new CloseDecoder();
+                m_keepAlive = false;
+            }
+            Response response =
+                    new Response(this,
+                                 code,
+                                 status.length > 2 ? status[2] : "",
+                                 headers);
+            m_state = BODY;
+            m_exchange.respond(response);
+            if (m_body.isDone()) {
+                complete();
+            }
+            return true;
+        }
+
+        /**
+         * The whole response has been received.
+         */
+        private void complete() {
+            Exchange exchange = m_exchange;
+            m_exchange = null;
+            exchange.response.finish();
+            if (m_keepAlive && !m_in.hasRemaining()) {
+                m_state = IDLE;
+                m_since = System.currentTimeMillis();
+                // stay interested in reads to notice the server closing
+                m_key.interestOps(SelectionKey.OP_READ);
+                Exchange next = m_host.waiting.poll();
+                if (next != null) {
+                    begin(next);
+                } else {
+                    m_host.idle.add(this);
+                }
+            } else {
+                close();
+            }
+        }
+
+        /**
+         * The caller has read enough of the body to resume reading.
+         */
+        public void resume() {
+            if (m_paused && m_state == BODY) {
+                m_paused = false;
+                m_since = System.currentTimeMillis();
+                m_key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * The caller closed the response before reading all of it.
+         */
+        public void abort() {
+            if (m_state == BODY) {
+                m_exchange = null;
+                close();
+            }
+        }
+
+        public void checkTimeout(long now) {
+            if (m_state == CONNECTING) {
+                if (m_connectTimeout > 0 && now - m_since > m_connectTimeout) {
+                    fail(new SocketTimeoutException("Connect timed out"));
+                }
+            } else if (m_state != IDLE && !m_paused && m_socketTimeout > 0
+                    && now - m_since > m_socketTimeout) {
+                fail(new SocketTimeoutException("Read timed out"));
+            }
+        }
+
+        public void fail(IOException e) {
+            Exchange exchange = m_exchange;
+            m_exchange = null;
+            boolean retry =
+                    exchange != null && m_reused && !m_received
+                            && !exchange.retried && !exchange.aborted;
+            close();
+            if (exchange != null) {
+                if (retry) {
+                    // a kept-alive connection the server had already closed
+                    exchange.retried = true;
+                    start(exchange);
+                } else {
+                    exchange.fail(e);
+                }
+            }
+        }
+
+        private void close() {
+            if (!m_connections.remove(this)) return;
+            m_state = CLOSED;
+            m_host.open--;
+            m_host.idle.remove(this);
+            m_key.cancel();
+            try {
+                m_channel.close();
+            } catch (IOException e) {
+            }
+            // let a waiting request have the connection slot
+            Exchange next = m_host.waiting.poll();
+            if (next != null) {
+                start(next);
+            }
+        }
+
+        private Response response() {
+            return m_exchange.response;
+        }
+
+        /**
+         * Decodes (a framing of) the response body.
+         */
+        private abstract class BodyDecoder {
+
+            public abstract void decode(ByteBuffer in) throws IOException;
+
+            public abstract boolean isDone();
+
+            public boolean endsAtClose() {
+                return false;
+            }
+
+            protected void deliver(ByteBuffer in, int len) {
+                byte[] data = new byte[len];
+                in.get(data);
+                response().offer(data);
+            }
+        }
+
+        private class LengthDecoder
+                extends BodyDecoder {
+
+            private long m_remaining;
+
+            public LengthDecoder(long length) {
+                m_remaining = length;
+            }
+
+            public void decode(ByteBuffer in) {
+                int len = (int) Math.min(in.remaining(), m_remaining);
+                if (len > 0) {
+                    deliver(in, len);
+                    m_remaining -= len;
+                }
+            }
+
+            public boolean isDone() {
+                return m_remaining == 0;
+            }
+        }
+
+        private class CloseDecoder
+                extends BodyDecoder {
+
+            public void decode(ByteBuffer in) {
+                deliver(in, in.remaining());
+            }
+
+            public boolean isDone() {
+                return false;
+            }
+
+            public boolean endsAtClose() {
+                return true;
+            }
+        }
+
+        private class ChunkedDecoder
+                extends BodyDecoder {
+
+            private static final int SIZE = 0;
+
+            private static final int DATA = 1;
+
+            private static final int DATA_END = 2;
+
+            private static final int TRAILER = 3;
+
+            private static final int DONE = 4;
+
+            private int m_chunkState = SIZE;
+
+            private long m_remaining;
+
+            private final StringBuilder m_line = new StringBuilder();
+
+            public void decode(ByteBuffer in) throws IOException {
+                while (in.hasRemaining() && m_chunkState != DONE) {
+                    if (m_chunkState == DATA) {
+                        int len = (int) Math.min(in.remaining(), m_remaining);
+                        deliver(in, len);
+                        m_remaining -= len;
+                        if (m_remaining == 0) {
+                            m_chunkState = DATA_END;
+                        }
+                        continue;
+                    }
+                    char c = (char) (in.get() & 0xFF);
+                    if (c != '\n') {
+                        if (m_line.length() > 1024) {
+                            throw new IOException("Bad chunk framing");
+                        }
+                        if (c != '\r') m_line.append(c);
+                        continue;
+                    }
+                    String line = m_line.toString().trim();
+                    m_line.setLength(0);
+                    if (m_chunkState == SIZE) {
+                        int semi = line.indexOf(';');
+                        if (semi != -1) line = line.substring(0, semi).trim();
+                        try {
+                            m_remaining = Long.parseLong(line, 16);
+                        } catch (NumberFormatException e) {
+                            throw new IOException("Bad chunk size: " + line);
+                        }
+                        m_chunkState = m_remaining == 0 ? TRAILER : DATA;
+                    } else if (m_chunkState == DATA_END) {
+                        m_chunkState = SIZE;
+                    } else if (m_chunkState == TRAILER && line.length() == 0) {
+                        m_chunkState = DONE;
+                    }
+                }
+            }
+
+            public boolean isDone() {
+                return m_chunkState == DONE;
+            }
+        }
+    }
+
+    /**
+     * A request and, once it arrives, its response.
+     */
+    private class Exchange {
+
+        public final String hostKey;
+
+        public final InetSocketAddress address;
+
+        public final byte[] request;
+
+        public Connection connection;
+
+        public boolean retried;
+
+        public boolean aborted;
+
+        public Response response;
+
+        private IOException m_error;
+
+        public Exchange(URL url, Map<String, String> headers)
+                throws IOException {
+            int port = url.getPort() == -1 ? 80 : url.getPort();
+            hostKey = url.getHost() + ":" + port;
+            // resolved here so the I/O thread never blocks on DNS
+            address = new InetSocketAddress(url.getHost(), port);
+            if (address.isUnresolved()) {
+                throw new IOException("Unknown host: " + url.getHost());
+            }
+            StringBuilder req = new StringBuilder();
+            String path = url.getFile();
+            req.append("GET " + (path.length() == 0 ? "/" : path)
+                    + " HTTP/1.1\r\n");
+            req.append("Host: " + url.getHost()
+                    + (url.getPort() == -1 ? "" : ":" + port) + "\r\n");
+            if (headers != null) {
+                for (Map.Entry<String, String> header : headers.entrySet()) {
+                    req.append(header.getKey() + ": " + header.getValue()
+                            + "\r\n");
+                }
+            }
+            if (m_stats != null
+                    && (headers == null || !headers
+                            .containsKey("Accept-Encoding"))) {
+                req.append("Accept-Encoding: "
+                        + ContentEncoding.ACCEPT_ENCODING + "\r\n");
+            }
+            req.append("\r\n");
+            request = req.toString().getBytes("ISO-8859-1");
+        }
+
+        public synchronized void respond(Response response) {
+            this.response = response;
+            notifyAll();
+        }
+
+        public synchronized void fail(IOException e) {
+            if (response != null) {
+                response.fail(e);
+            } else {
+                m_error = e;
+                notifyAll();
+            }
+        }
+
+        public synchronized Response awaitResponse() throws IOException {
+            while (response == null && m_error == null) {
+                if (!m_thread.isAlive()) {
+                    throw new IOException("Client is closed");
+                }
+                try {
+                    wait(TICK * 10);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for response");
+                }
+            }
+            if (m_error != null) {
+                IOException e = new IOException(m_error.getMessage());
+                e.initCause(m_error);
+                throw e;
+            }
+            return response;
+        }
+    }
+
+    /**
+     * The status, headers and (streamed) body of a response.
+     */
+    public class Response
+            extends InputStream {
+
+        private final Connection m_connection;
+
+        private final int m_statusCode;
+
+        private final String m_statusText;
+
+        private final Map<String, String> m_headers;
+
+        private final LinkedList<byte[]> m_chunks = new LinkedList<byte[]>();
+
+        private byte[] m_current;
+
+        private int m_pos;
+
+        private int m_buffered;
+
+        private boolean m_done;
+
+        private boolean m_closed;
+
+        private IOException m_error;
+
+        private ContentEncoding.CountingInputStream m_wire;
+
+        private ContentEncoding.CountingInputStream m_content;
+
+        private Response(Connection connection,
+                         int statusCode,
+                         String statusText,
+                         Map<String, String> headers) {
+            m_connection = connection;
+            m_statusCode = statusCode;
+            m_statusText = statusText;
+            m_headers = headers;
+        }
+
+        public int getStatusCode() {
+            return m_statusCode;
+        }
+
+        public String getStatusText() {
+            return m_statusText;
+        }
+
+        /**
+         * Get the value of a response header, or null.
+         */
+        public String getHeader(String name) {
+            return m_headers.get(name.toLowerCase());
+        }
+
+        public String getContentType() {
+            return getHeader("Content-Type");
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (m_content == null) {
+                m_wire = new ContentEncoding.CountingInputStream(new Body());
+                m_content =
+                        new ContentEncoding.CountingInputStream(ContentEncoding
+                                .decode(m_wire, getHeader("Content-Encoding")));
+            }
+            return m_content.read(b, off, len);
+        }
+
+        private int readBody(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int n;
+            boolean resume = false;
+            synchronized (this) {
+                while (m_current == null || m_pos == m_current.length) {
+                    if (m_closed) throw new IOException("Stream closed");
+                    if (!m_chunks.isEmpty()) {
+                        m_current = m_chunks.removeFirst();
+                        m_pos = 0;
+                    } else if (m_error != null) {
+                        IOException e = new IOException(m_error.getMessage());
+                        e.initCause(m_error);
+                        throw e;
+                    } else if (m_done) {
+                        return -1;
+                    } else {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                    }
+                }
+                n = Math.min(len, m_current.length - m_pos);
+                System.arraycopy(m_current, m_pos, b, off, n);
+                m_pos += n;
+                int before = m_buffered;
+                m_buffered -= n;
+                resume = before > MAX_BUFFERED / 2
+                        && m_buffered <= MAX_BUFFERED / 2;
+            }
+            if (resume) {
+                submit(new Runnable() {
+
+                    public void run() {
+                        m_connection.resume();
+                    }
+                });
+            }
+            return n;
+        }
+
+        public synchronized int available() {
+            if (ContentEncoding.isEncoded(getHeader("Content-Encoding"))) {
+                return 0;
+            }
+            return m_buffered;
+        }
+
+        public void close() {
+            boolean abort;
+            synchronized (this) {
+                if (m_closed) return;
+                m_closed = true;
+                abort = !m_done && m_error == null;
+                m_chunks.clear();
+                m_current = null;
+                notifyAll();
+            }
+            TransferStats stats = m_stats;
+            if (stats != null) {
+                stats.record(ContentEncoding
+                        .isEncoded(getHeader("Content-Encoding")),
+                             m_wire == null ? 0 : m_wire.getCount(),
+                             m_content == null ? 0 : m_content.getCount());
+            }
+            if (abort) {
+                submit(new Runnable() {
+
+                    public void run() {
+                        m_connection.abort();
+                    }
+                });
+            }
+        }
+
+        /**
+         * The body as received.
+         */
+        private class Body
+                extends InputStream {
+
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int n = readBody(b, 0, 1);
+                return n == -1 ? -1 : b[0] & 0xFF;
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return readBody(b, off, len);
+            }
+        }
+
+        private synchronized void offer(byte[] data) {
+            if (m_closed) return;
+            m_chunks.add(data);
+            m_buffered += data.length;
+            notifyAll();
+        }
+
+        private synchronized boolean isFull() {
+            return m_buffered > MAX_BUFFERED;
+        }
+
+        private synchronized void finish() {
+            m_done = true;
+            notifyAll();
+        }
+
+        private synchronized void fail(IOException e) {
+            m_error = e;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.log4j.Logger;
+
+import fedora.client.FedoraClient;
+import fedora.client.HttpInputStream;
+
+/**
+ * A FedoraClient whose HTTP connections come from a given ConnectionPool,
+ * so the pool can be configured and monitored.
+ * <p>
+ * As with FedoraClient, the timeouts and connection limits in the public
+ * fields are applied to the pool whenever a request is made.
+ * </p>
+ * <p>
+ * GET requests can be aborted from another thread with a RequestAbort.
+ * </p>
+ */
+public class PooledFedoraClient
+        extends FedoraClient {
+
+    private static final Logger logger =
+            Logger.getLogger(PooledFedoraClient.class.getName());
+
+    private final ConnectionPool m_pool;
+
+    private final AuthScope m_authScope;
+
+    private final UsernamePasswordCredentials m_creds;
+
+    /** The abort of the request being made by each thread, if any. */
+    private final ThreadLocal<RequestAbort> m_abort =
+            new ThreadLocal<RequestAbort>();
+
+    public PooledFedoraClient(String baseURL,
+                              String user,
+                              String pass,
+                              ConnectionPool pool)
+            throws MalformedURLException {
+        super(baseURL, user, pass);
+        m_pool = pool;
+        m_authScope =
+                new AuthScope(new URL(baseURL).getHost(),
+                              AuthScope.ANY_PORT,
+                              AuthScope.ANY_REALM);
+        m_creds = new UsernamePasswordCredentials(user, pass);
+        MAX_CONNECTIONS_PER_HOST =
+                pool.getParams().getDefaultMaxConnectionsPerHost();
+        MAX_TOTAL_CONNECTIONS = pool.getParams().getMaxTotalConnections();
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return m_pool;
+    }
+
+    public HttpClient getHttpClient() {
+        HttpConnectionManagerParams params = m_pool.getParams();
+        params.setDefaultMaxConnectionsPerHost(MAX_CONNECTIONS_PER_HOST);
+        params.setMaxTotalConnections(MAX_TOTAL_CONNECTIONS);
+        params.setConnectionTimeout(TIMEOUT_SECONDS * 1000);
+        params.setSoTimeout(SOCKET_TIMEOUT_SECONDS * 1000);
+        HttpClient client = new HttpClient(m_pool);
+        client.getState().setCredentials(m_authScope, m_creds);
+        client.getParams().setAuthenticationPreemptive(true);
+        return client;
+    }
+
+    /**
+     * Same as <code>get(locator, failIfNotOK)</code>, except that the
+     * request (and any redirect followed) can be aborted with
+     * <code>HttpMethod.abort()</code> from another thread.
+     */
+    public HttpInputStream get(String locator,
+                               boolean failIfNotOK,
+                               RequestAbort abort) throws IOException {
+        m_abort.set(abort);
+        try {
+            return get(locator, failIfNotOK);
+        } finally {
+            m_abort.remove();
+        }
+    }
+
+    /**
+     * Same as the superclass, except that the request can be aborted and is
+     * sent by <code>execute</code>.
+     */
+    public HttpInputStream get(URL url,
+                               boolean failIfNotOK,
+                               boolean followRedirects) throws IOException {
+        String location = url.toString();
+        logger.debug("Getting " + location);
+        final GetMethod getMethod = new GetMethod(location);
+        getMethod.setDoAuthentication(true);
+        getMethod.setFollowRedirects(false);
+        RequestAbort abort = m_abort.get();
+        if (abort != null) {
+            abort.setAction(new Runnable() {
+
+                public void run() {
+                    getMethod.abort();
+                }
+            });
+        }
+        HttpInputStream in;
+        try {
+            in = execute(getHttpClient(), getMethod, location);
+        } catch (IllegalStateException e) {
+            // aborted before it was sent
+            if (!getMethod.isAborted()) throw e;
+            throw new IOException("Request aborted");
+        }
+        int status = in.getStatusCode();
+        if (failIfNotOK && status != 200) {
+            Header redirect = in.getResponseHeader("location");
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+            if (followRedirects && status >= 300 && status <= 399
+                    && redirect != null) {
+                logger.debug("Following redirect to " + redirect.getValue());
+                return get(redirect.getValue(), failIfNotOK, followRedirects);
+            }
+            throw new IOException("Request failed [" + status + " "
+                    + in.getStatusText() + "]");
+        }
+        return in;
+    }
+
+    /**
+     * Send a GET request and give its response.
+     */
+    protected HttpInputStream execute(HttpClient client,
+                                      GetMethod getMethod,
+                                      String location) throws IOException {
+        return new HttpInputStream(client, getMethod, location);
+    }
+}
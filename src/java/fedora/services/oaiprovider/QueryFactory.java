@@ -17,7 +17,15 @@ import fedora.client.FedoraClient;
  */
 public interface QueryFactory {
 
-    public void init(FedoraClient client,
+    /**
+     * @param source
+     *        where to get set description disseminations from.
+     * @param queryClient
+     *        the client to query the Resource Index with.
+     * @param props
+     *        the driver properties.
+     */
+    public void init(DisseminationSource source,
                      FedoraClient queryClient,
                      Properties props);
 
@@ -0,0 +1,54 @@
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+
+/**
+ * Lets an HTTP request made on one thread be aborted from another, whether
+ * it is still waiting for its response or its body is being read.
+ * <p>
+ * The client making the request sets how to abort it before sending it, and
+ * again for each redirect that is followed. Once aborted, the request (or
+ * reading its body) fails with an IOException.
+ * </p>
+ */
+public class RequestAbort {
+
+    private Runnable m_action;
+
+    private boolean m_aborted;
+
+    /**
+     * Set how to abort the request now being made.
+     *
+     * @throws IOException
+     *         if the request has already been aborted.
+     */
+    public void setAction(Runnable action) throws IOException {
+        synchronized (this) {
+            if (!m_aborted) {
+                m_action = action;
+                return;
+            }
+        }
+        throw new IOException("Request aborted");
+    }
+
+    /**
+     * Abort the request, if one is being made, and any later request this is
+     * given to.
+     */
+    public void abort() {
+        Runnable action;
+        synchronized (this) {
+            if (m_aborted) return;
+            m_aborted = true;
+            action = m_action;
+            m_action = null;
+        }
+        if (action != null) action.run();
+    }
+
+    public synchronized boolean isAborted() {
+        return m_aborted;
+    }
+}
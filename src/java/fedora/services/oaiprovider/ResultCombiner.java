@@ -8,12 +8,17 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 
+import proai.error.RepositoryException;
+
 /**
  * Combines three RDF query results into a single iterator that can be used to
  * construct FedoraRecord objects.
  * <h2>Input</h2>
  * The input is provided to the constructor using Files or BufferedReaders in
- * CSV format.
+ * CSV format, and is read with CSVFieldReader, so values may be quoted. The
+ * second and third are joined to the first by itemID with a MergeJoin, so all
+ * three must list their items in the same order. Query results can be read as
+ * they arrive by wrapping their TupleIterators in a CSVTupleReader.
  * 
  * <pre>
  * File 1:
@@ -39,7 +44,9 @@ import java.io.InputStreamReader;
  * </pre>
  * 
  * <h2>Output</h2>
- * The output is given one line at a time in the format below. The header is not
+ * Each item is given by next(), with the values from the first query given
+ * as they were read and those from the others already matched. The same is
+ * available one line at a time in the format below. The header is not
  * actually provided, but is shown here for clarity. Each item has exactly one
  * line with at least five comma-separated values. An additional value is
  * provided for each set the item is a member of.
@@ -64,17 +71,14 @@ public class ResultCombiner {
 
     private boolean m_deleteOnClose;
 
-    private BufferedReader m_r1;
-
-    private BufferedReader m_r2;
-
-    private BufferedReader m_r3;
+    private MergeJoin m_join;
 
-    private String m_l2;
+    // the join inputs of the second and third queries, or -1 if not given
+    private int m_sets = -1;
 
-    private String m_l3;
+    private int m_abouts = -1;
 
-    private static final String _START = "START";
+    private boolean m_done;
 
     /**
      * Initialize with BufferedReaders containing the input data.
@@ -91,11 +95,7 @@ public class ResultCombiner {
     public ResultCombiner(BufferedReader r1,
                           BufferedReader r2,
                           BufferedReader r3) {
-        m_r1 = r1;
-        m_r2 = r2;
-        m_r3 = r3;
-        m_l2 = _START;
-        m_l3 = _START;
+        init(r1, r2, r3);
     }
 
     /**
@@ -120,91 +120,100 @@ public class ResultCombiner {
         m_f2 = f2;
         m_f3 = f3;
         m_deleteOnClose = deleteOnClose;
-        m_r1 =
+        BufferedReader r1 =
                 new BufferedReader(new InputStreamReader(new FileInputStream(m_f1)));
+        BufferedReader r2 = null;
         if (m_f2 != null)
-            m_r2 =
+            r2 =
                     new BufferedReader(new InputStreamReader(new FileInputStream(m_f2)));
+        BufferedReader r3 = null;
         if (m_f3 != null)
-            m_r3 =
+            r3 =
                     new BufferedReader(new InputStreamReader(new FileInputStream(m_f3)));
-        m_l2 = _START;
-        m_l3 = _START;
+        init(r1, r2, r3);
     }
 
     /**
-     * Get the next line of output, or null if we've reached the end.
+     * Join the setSpecs of the second query and the itemIDs of the third to
+     * the first by itemID.
      */
-    public String readLine() {
-        String l1 = nextLine(m_r1);
-        if (l1 == null) {
-            close();
-            return null;
-        } else {
-            StringBuffer line = new StringBuffer();
-            line.append(l1 + ",");
-            String itemID = l1.split(",")[1];
-            line.append(hasAbout(itemID));
-            line.append(setSpecs(itemID));
-            return line.toString();
+    private void init(BufferedReader r1, BufferedReader r2, BufferedReader r3) {
+        m_join = new MergeJoin(new CSVFieldReader(r1), 1);
+        if (r2 != null) {
+            m_sets =
+                    m_join.add(new CSVFieldReader(r2), 0, MergeJoin.COLLECT, 1);
+        }
+        if (r3 != null) {
+            m_abouts =
+                    m_join.add(new CSVFieldReader(r3), 0, MergeJoin.EXISTS, 0);
         }
     }
 
-    // tell whether this item has an about dissemination
-    private boolean hasAbout(String itemID) {
-        if (m_r3 == null) return false;
-        if (m_l3 == _START) {
-            m_l3 = nextLine(m_r3);
-        }
-        if (m_l3 == null) {
-            return false;
-        } else {
-            if (m_l3.equals(itemID)) {
-                m_l3 = nextLine(m_r3);
-                return true;
-            } else {
+    /**
+     * Move to the next item, whose values are then given by getFields(),
+     * hasAbout() and getSetSpecs().
+     * 
+     * @return false if there are no more.
+     * @throws RepositoryException
+     *         if the input can't be read, so that a failed query is not
+     *         mistaken for the end of its results.
+     */
+    public boolean next() throws RepositoryException {
+        if (m_done) return false;
+        try {
+            if (!m_join.next()) {
+                m_done = true;
+                close();
                 return false;
             }
+            if (m_join.getPrimary().getFieldCount() < 4) {
+                throw new RepositoryException("Expected at least 4 values in "
+                        + "primary query results, got: "
+                        + m_join.getPrimary());
+            }
+            return true;
+        } catch (IOException e) {
+            throw new RepositoryException("Error reading query results: "
+                    + e.getMessage(), e);
         }
     }
 
-    // get comma-separated setSpecs for this item, or the empty string if none
-    private String setSpecs(String itemID) {
-        if (m_r2 == null) return "";
-        if (m_l2 == _START) {
-            m_l2 = nextLine(m_r2);
-        }
-        if (m_l2 == null) {
-            return "";
-        } else {
-            StringBuffer out = new StringBuffer();
-            while (m_l2 != null && m_l2.split(",")[0].equals(itemID)) {
-                out.append("," + m_l2.split(",")[1]);
-                m_l2 = nextLine(m_r2);
-            }
-            return out.toString();
-        }
+    /**
+     * Get the values of the current item from the first query: item, itemID,
+     * date and state. They are only valid until the next call to next().
+     */
+    public CSVFieldReader getFields() {
+        return m_join.getPrimary();
     }
 
     /**
-     * Get the next line, skipping any that start with " or are blank.
+     * Tell whether the current item has an about dissemination.
      */
-    private static String nextLine(BufferedReader r) {
-        try {
-            String line = r.readLine();
-            while (line != null
-                    && (line.startsWith("\"") || (line.trim().equals("")))) {
-                line = r.readLine();
-            }
-            if (line == null) {
-                return null;
-            } else {
-                return line.trim();
-            }
-        } catch (IOException e) {
-            System.err.println("WARNING: " + e.getMessage());
-            return null;
+    public boolean hasAbout() {
+        return m_abouts != -1 && m_join.exists(m_abouts);
+    }
+
+    /**
+     * Get the setSpecs of the current item.
+     */
+    public String[] getSetSpecs() {
+        return m_sets == -1 ? new String[0] : m_join.getValues(m_sets);
+    }
+
+    /**
+     * Get the next line of output, or null if we've reached the end.
+     */
+    public String readLine() throws RepositoryException {
+        if (!next()) return null;
+        StringBuilder line = new StringBuilder();
+        getFields().appendRecord(line);
+        line.append(',');
+        line.append(hasAbout());
+        for (String setSpec : getSetSpecs()) {
+            line.append(',');
+            CSVFieldReader.appendQuoted(setSpec, line);
         }
+        return line.toString();
     }
 
     /**
@@ -212,18 +221,7 @@ public class ResultCombiner {
      * was constructed with the option to do so.
      */
     public void close() {
-        try {
-            m_r1.close();
-        } catch (Throwable th) {
-        }
-        try {
-            m_r2.close();
-        } catch (Throwable th) {
-        }
-        try {
-            m_r3.close();
-        } catch (Throwable th) {
-        }
+        m_join.close();
         if (m_deleteOnClose) {
             m_f1.delete();
             if (m_f2 != null) m_f2.delete();
@@ -0,0 +1,293 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sorts the lines of CSV query results by the value in one column, using a
+ * bounded amount of memory.
+ * <p>
+ * Lines are collected in memory until the limit is reached, then sorted and
+ * written to a spool as a run. The runs are merged as the sorted lines are
+ * read. Lines are read with CSVFieldReader and values are compared unquoted,
+ * as ResultCombiner compares them, so that results sorted here can be
+ * combined with each other. Header and blank lines are dropped.
+ * </p>
+ */
+public class ResultSorter {
+
+    private static final Logger logger =
+            Logger.getLogger(ResultSorter.class.getName());
+
+    // the most runs merged at once; more are first merged into longer runs
+    private static final int MAX_MERGE = 64;
+
+    // rough size in memory of a line, beyond its characters
+    private static final int LINE_BYTES = 56;
+
+    private final ResultSpool m_spool;
+
+    private final long m_memory;
+
+    /**
+     * @param memory
+     *        the most memory to hold lines in while sorting, in bytes.
+     */
+    public ResultSorter(ResultSpool spool, long memory) {
+        m_spool = spool;
+        m_memory = memory;
+    }
+
+    /**
+     * Read all of the lines of query results and give them back sorted by
+     * the value in a column. The input is closed, and the runs are deleted
+     * when the returned reader is closed.
+     *
+     * @param column
+     *        the index of the column to sort by.
+     */
+    public BufferedReader sort(BufferedReader in, int column)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        Comparator<String> order = new ColumnOrder(column);
+        List<Run> runs = new ArrayList<Run>();
+        List<String> lines = new ArrayList<String>();
+        long bytes = 0;
+        long count = 0;
+        boolean sorted = false;
+        CSVFieldReader records = new CSVFieldReader(in);
+        StringBuilder record = new StringBuilder();
+        try {
+            while (records.next()) {
+                record.setLength(0);
+                records.appendRecord(record);
+                String line = record.toString();
+                lines.add(line);
+                count++;
+                bytes += LINE_BYTES + line.length() * 2;
+                if (bytes >= m_memory) {
+                    Collections.sort(lines, order);
+                    runs.add(write(new Run(lines.iterator())));
+                    lines.clear();
+                    bytes = 0;
+                }
+            }
+            Collections.sort(lines, order);
+            runs.add(new Run(lines.iterator()));
+            int spilled = runs.size() - 1;
+            while (runs.size() > MAX_MERGE) {
+                List<Run> merged = runs.subList(0, MAX_MERGE);
+                MergeReader merge =
+                        new MergeReader(new ArrayList<Run>(merged), order);
+                Run run = write(new Run(new CSVFieldReader(merge)));
+                merged.clear();
+                runs.add(run);
+            }
+            sorted = true;
+            logger.debug("Sorted " + count + " lines by column " + column
+                    + " in " + (System.currentTimeMillis() - start) + "ms ("
+                    + spilled + " runs spilled)");
+            return new BufferedReader(new MergeReader(runs, order));
+        } finally {
+            in.close();
+            if (!sorted) {
+                for (Run run : runs) {
+                    run.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the lines of a run to a new spool and give them back as a new
+     * run.
+     */
+    private Run write(Run lines) throws IOException {
+        ResultSpool.Spool spool = m_spool.create();
+        try {
+            Writer out =
+                    new BufferedWriter(new OutputStreamWriter(spool, "UTF-8"));
+            while (lines.next()) {
+                out.write(lines.getLine());
+                out.write('\n');
+            }
+            out.close();
+            return new Run(new CSVFieldReader(new BufferedReader(new InputStreamReader(spool
+                    .getInputStream(), "UTF-8"))));
+        } catch (IOException e) {
+            spool.delete();
+            throw e;
+        } finally {
+            lines.close();
+        }
+    }
+
+    /**
+     * Compare two lines by the unquoted value in a column, then by the whole
+     * line.
+     */
+    static int compare(String a, String b, int column) {
+        int diff = CSVFieldReader.compareField(a, b, column);
+        return diff != 0 ? diff : a.compareTo(b);
+    }
+
+    private static class ColumnOrder
+            implements Comparator<String> {
+
+        private final int m_column;
+
+        public ColumnOrder(int column) {
+            m_column = column;
+        }
+
+        public int compare(String a, String b) {
+            return ResultSorter.compare(a, b, m_column);
+        }
+    }
+
+    /**
+     * Sorted lines, either held in memory or read from a spool.
+     */
+    private static class Run {
+
+        private final Iterator<String> m_lines;
+
+        private final CSVFieldReader m_reader;
+
+        private final StringBuilder m_record;
+
+        private String m_line;
+
+        public Run(Iterator<String> lines) {
+            m_lines = lines;
+            m_reader = null;
+            m_record = null;
+        }
+
+        public Run(CSVFieldReader reader) {
+            m_lines = null;
+            m_reader = reader;
+            m_record = new StringBuilder();
+        }
+
+        public String getLine() {
+            return m_line;
+        }
+
+        /**
+         * Move to the next line.
+         *
+         * @return false if there are no more.
+         */
+        public boolean next() throws IOException {
+            if (m_reader != null) {
+                m_line = null;
+                if (m_reader.next()) {
+                    m_record.setLength(0);
+                    m_reader.appendRecord(m_record);
+                    m_line = m_record.toString();
+                }
+            } else if (m_lines.hasNext()) {
+                m_line = m_lines.next();
+            } else {
+                m_line = null;
+            }
+            return m_line != null;
+        }
+
+        public void close() {
+            if (m_reader != null) {
+                try {
+                    m_reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the lines of several runs in order.
+     */
+    private static class MergeReader
+            extends Reader {
+
+        private final List<Run> m_runs;
+
+        private final PriorityQueue<Run> m_queue;
+
+        private String m_line = "";
+
+        private int m_pos;
+
+        private boolean m_started;
+
+        public MergeReader(List<Run> runs, final Comparator<String> order) {
+            m_runs = runs;
+            m_queue =
+                    new PriorityQueue<Run>(Math.max(1, runs.size()),
+                                           new Comparator<Run>() {
+
+                                               public int compare(Run a,
+                                                                  Run b) {
+                                                   return order.compare(a
+                                                           .getLine(), b
+                                                           .getLine());
+                                               }
+                                           });
+        }
+
+        public int read(char[] buf, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (m_pos == m_line.length() && !nextLine()) {
+                return -1;
+            }
+            int n = Math.min(len, m_line.length() - m_pos);
+            m_line.getChars(m_pos, m_pos + n, buf, off);
+            m_pos += n;
+            return n;
+        }
+
+        private boolean nextLine() throws IOException {
+            if (!m_started) {
+                m_started = true;
+                for (Run run : m_runs) {
+                    if (run.next()) {
+                        m_queue.add(run);
+                    } else {
+                        run.close();
+                    }
+                }
+            }
+            Run run = m_queue.poll();
+            if (run == null) return false;
+            m_line = run.getLine() + "\n";
+            m_pos = 0;
+            if (run.next()) {
+                m_queue.add(run);
+            } else {
+                run.close();
+            }
+            return true;
+        }
+
+        public void close() {
+            for (Run run : m_runs) {
+                run.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,546 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Temporary storage for query results that are written once and read back
+ * once, or shared by several readers.
+ * <p>
+ * Each spool is kept in memory until it grows past the memory threshold,
+ * after which it is moved to a file in the spool directory. The file is
+ * written as a series of independently deflated blocks, each preceded by its
+ * uncompressed and compressed lengths. The total size of the files is
+ * bounded by a quota; a spool that would exceed it fails immediately.
+ * </p>
+ * <p>
+ * Spool files are locked while in use. Unlocked spool files found in the
+ * directory when it is opened were left behind by a process that didn't
+ * exit cleanly, and are deleted.
+ * </p>
+ */
+public class ResultSpool {
+
+    private static final Logger logger =
+            Logger.getLogger(ResultSpool.class.getName());
+
+    private static final String PREFIX = "oaiprovider-spool";
+
+    private static final String SUFFIX = ".blocks";
+
+    /** The prefix of the uncompressed files written by older versions. */
+    private static final String OLD_PREFIX = "oaiprovider-listrec-tuples";
+
+    /** How old a file written by an older version must be to be deleted. */
+    private static final long OLD_AGE = 24 * 60 * 60 * 1000L;
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    /** Bytes before the content of each block (the two lengths). */
+    private static final int BLOCK_HEADER_SIZE = 8;
+
+    private final File m_dir;
+
+    private final long m_memoryThreshold;
+
+    private final long m_quota;
+
+    private long m_used;
+
+    private long m_spills;
+
+    /**
+     * @param dir
+     *        the directory to keep spool files in; created if needed.
+     * @param memoryThreshold
+     *        the most bytes a spool may hold in memory.
+     * @param quota
+     *        the most bytes all spool files may take up together, or 0 for
+     *        no limit.
+     */
+    public ResultSpool(File dir, long memoryThreshold, long quota)
+            throws IOException {
+        m_dir = dir;
+        m_memoryThreshold = memoryThreshold;
+        m_quota = quota;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + dir);
+        }
+        sweep();
+    }
+
+    /**
+     * Start a new, empty spool.
+     */
+    public Spool create() {
+        return new Spool();
+    }
+
+    public File getDirectory() {
+        return m_dir;
+    }
+
+    /**
+     * Get the number of bytes currently taken up by spool files.
+     */
+    public synchronized long getUsed() {
+        return m_used;
+    }
+
+    /**
+     * Get the number of spools that have been moved to disk.
+     */
+    public synchronized long getSpills() {
+        return m_spills;
+    }
+
+    /**
+     * Delete spool files that are not in use.
+     */
+    private void sweep() {
+        final long oldBefore = System.currentTimeMillis() - OLD_AGE;
+        File[] files = m_dir.listFiles(new FileFilter() {
+
+            public boolean accept(File file) {
+                String name = file.getName();
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    return true;
+                }
+                return name.startsWith(OLD_PREFIX) && name.endsWith(".csv")
+                        && file.lastModified() < oldBefore;
+            }
+        });
+        if (files == null) return;
+        int count = 0;
+        long bytes = 0;
+        for (int i = 0; i < files.length; i++) {
+            long length = files[i].length();
+            if (!isLocked(files[i]) && files[i].delete()) {
+                count++;
+                bytes += length;
+            }
+        }
+        if (count > 0) {
+            logger.info("Deleted " + count + " leftover spool files (" + bytes
+                    + " bytes) from " + m_dir);
+        }
+    }
+
+    private static boolean isLocked(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            FileLock lock = raf.getChannel().tryLock();
+            if (lock == null) return true;
+            lock.release();
+            return false;
+        } catch (OverlappingFileLockException e) {
+            // locked by this process
+            return true;
+        } catch (IOException e) {
+            return true;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private synchronized void reserve(long bytes) throws IOException {
+        if (m_quota > 0 && m_used + bytes > m_quota) {
+            throw new IOException("Spool quota of " + m_quota + " bytes in "
+                    + m_dir + " exceeded");
+        }
+        m_used += bytes;
+    }
+
+    private synchronized void release(long bytes) {
+        m_used -= bytes;
+    }
+
+    private synchronized void spilled() {
+        m_spills++;
+    }
+
+    /**
+     * A single spool. Once everything has been written and the spool is
+     * closed, its content can be read back once. Closing the input stream
+     * (or calling delete) frees the memory or file used by the spool.
+     */
+    public class Spool
+            extends OutputStream {
+
+        private MemoryBuffer m_memory = new MemoryBuffer();
+
+        private File m_file;
+
+        private RandomAccessFile m_raf;
+
+        private FileChannel m_channel;
+
+        private byte[] m_block;
+
+        private int m_blockLength;
+
+        private byte[] m_compressed;
+
+        private Deflater m_deflater;
+
+        private long m_length;
+
+        private long m_diskBytes;
+
+        private boolean m_closed;
+
+        private boolean m_deleted;
+
+        private Spool() {
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        public synchronized void write(byte[] b, int off, int len)
+                throws IOException {
+            if (m_closed) throw new IOException("Spool is closed");
+            if (m_channel == null) {
+                if (m_memory.size() + len <= m_memoryThreshold) {
+                    m_memory.write(b, off, len);
+                    m_length += len;
+                    return;
+                }
+                spill();
+            }
+            m_length += len;
+            while (len > 0) {
+                int n = Math.min(len, BLOCK_SIZE - m_blockLength);
+                System.arraycopy(b, off, m_block, m_blockLength, n);
+                m_blockLength += n;
+                off += n;
+                len -= n;
+                if (m_blockLength == BLOCK_SIZE) {
+                    writeBlock();
+                }
+            }
+        }
+
+        public synchronized void close() throws IOException {
+            if (m_closed) return;
+            m_closed = true;
+            if (m_channel != null) {
+                try {
+                    if (m_blockLength > 0) {
+                        writeBlock();
+                    }
+                } finally {
+                    m_deflater.end();
+                    m_block = null;
+                    m_compressed = null;
+                }
+            }
+        }
+
+        /**
+         * Get the number of bytes written.
+         */
+        public synchronized long getLength() {
+            return m_length;
+        }
+
+        /**
+         * Get the number of bytes taken up on disk, or 0 if the spool is in
+         * memory.
+         */
+        public synchronized long getDiskBytes() {
+            return m_diskBytes;
+        }
+
+        public synchronized boolean isOnDisk() {
+            return m_file != null;
+        }
+
+        /**
+         * Read back what was written. The spool is deleted when the stream
+         * is closed.
+         */
+        public synchronized InputStream getInputStream() throws IOException {
+            if (!m_closed) throw new IOException("Spool is still open");
+            if (m_deleted) throw new IOException("Spool has been deleted");
+            if (m_channel == null) {
+                return new SpoolInputStream(m_memory.getInputStream());
+            } else {
+                m_channel.position(0);
+                return new SpoolInputStream(new BlockInputStream(Channels
+                        .newInputStream(m_channel)));
+            }
+        }
+
+        /**
+         * Read back what was written, leaving the spool in place when the
+         * stream is closed. Any number of these streams may be open at once.
+         */
+        public synchronized InputStream getSharedInputStream()
+                throws IOException {
+            if (!m_closed) throw new IOException("Spool is still open");
+            if (m_deleted) throw new IOException("Spool has been deleted");
+            if (m_channel == null) {
+                return m_memory.getInputStream();
+            } else {
+                return new BlockInputStream(new ChannelInputStream(m_channel));
+            }
+        }
+
+        /**
+         * Discard the content of the spool.
+         */
+        public synchronized void delete() {
+            if (m_deleted) return;
+            m_deleted = true;
+            m_closed = true;
+            m_memory = null;
+            if (m_raf != null) {
+                try {
+                    m_raf.close(); // releases the lock
+                } catch (IOException e) {
+                }
+                m_file.delete();
+                release(m_diskBytes);
+                if (m_deflater != null) {
+                    m_deflater.end();
+                }
+            }
+        }
+
+        private void spill() throws IOException {
+            m_file = File.createTempFile(PREFIX, SUFFIX, m_dir);
+            m_raf = new RandomAccessFile(m_file, "rw");
+            m_channel = m_raf.getChannel();
+            m_channel.lock();
+            spilled();
+            m_block = new byte[BLOCK_SIZE];
+            m_compressed = new byte[BLOCK_SIZE + BLOCK_SIZE / 16 + 64];
+            m_deflater = new Deflater(Deflater.BEST_SPEED);
+            MemoryBuffer memory = m_memory;
+            m_memory = null;
+            m_length = 0;
+            write(memory.getBuffer(), 0, memory.size());
+        }
+
+        private void writeBlock() throws IOException {
+            m_deflater.reset();
+            m_deflater.setInput(m_block, 0, m_blockLength);
+            m_deflater.finish();
+            int compressedLength = 0;
+            while (!m_deflater.finished()) {
+                if (compressedLength == m_compressed.length) {
+                    byte[] larger = new byte[m_compressed.length * 2];
+                    System.arraycopy(m_compressed, 0, larger, 0, compressedLength);
+                    m_compressed = larger;
+                }
+                compressedLength +=
+                        m_deflater.deflate(m_compressed,
+                                           compressedLength,
+                                           m_compressed.length
+                                                   - compressedLength);
+            }
+            long size = BLOCK_HEADER_SIZE + compressedLength;
+            reserve(size);
+            m_diskBytes += size;
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            header.putInt(m_blockLength).putInt(compressedLength).flip();
+            writeFully(header);
+            writeFully(ByteBuffer.wrap(m_compressed, 0, compressedLength));
+            m_blockLength = 0;
+        }
+
+        private void writeFully(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                m_channel.write(buf);
+            }
+        }
+
+        /**
+         * Deletes the spool when closed.
+         */
+        private class SpoolInputStream
+                extends InputStream {
+
+            private final InputStream m_in;
+
+            public SpoolInputStream(InputStream in) {
+                m_in = in;
+            }
+
+            public int read() throws IOException {
+                return m_in.read();
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return m_in.read(b, off, len);
+            }
+
+            public int available() throws IOException {
+                return m_in.available();
+            }
+
+            public void close() {
+                try {
+                    m_in.close();
+                } catch (IOException e) {
+                }
+                delete();
+            }
+        }
+    }
+
+    /**
+     * Reads a file channel from the start without moving its position, so
+     * that other streams can read it at the same time.
+     */
+    private static class ChannelInputStream
+            extends InputStream {
+
+        private final FileChannel m_channel;
+
+        private long m_position;
+
+        public ChannelInputStream(FileChannel channel) {
+            m_channel = channel;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int n = m_channel.read(ByteBuffer.wrap(b, off, len), m_position);
+            if (n > 0) m_position += n;
+            return n;
+        }
+    }
+
+    /**
+     * Reads the blocks of a spool file.
+     */
+    private static class BlockInputStream
+            extends InputStream {
+
+        private final DataInputStream m_in;
+
+        private final Inflater m_inflater = new Inflater();
+
+        private byte[] m_compressed = new byte[0];
+
+        private final byte[] m_block = new byte[BLOCK_SIZE];
+
+        private int m_blockLength;
+
+        private int m_pos;
+
+        private boolean m_eof;
+
+        public BlockInputStream(InputStream in) {
+            m_in = new DataInputStream(in);
+        }
+
+        public int read() throws IOException {
+            if (m_pos == m_blockLength && !nextBlock()) return -1;
+            return m_block[m_pos++] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (m_pos == m_blockLength && !nextBlock()) return -1;
+            int n = Math.min(len, m_blockLength - m_pos);
+            System.arraycopy(m_block, m_pos, b, off, n);
+            m_pos += n;
+            return n;
+        }
+
+        public int available() {
+            return m_blockLength - m_pos;
+        }
+
+        public void close() {
+            m_inflater.end();
+        }
+
+        private boolean nextBlock() throws IOException {
+            if (m_eof) return false;
+            int length;
+            try {
+                length = m_in.readInt();
+            } catch (EOFException e) {
+                m_eof = true;
+                return false;
+            }
+            int compressedLength = m_in.readInt();
+            if (length <= 0 || length > BLOCK_SIZE || compressedLength < 0) {
+                throw new IOException("Corrupt spool file block");
+            }
+            if (m_compressed.length < compressedLength) {
+                m_compressed = new byte[compressedLength];
+            }
+            m_in.readFully(m_compressed, 0, compressedLength);
+            m_inflater.reset();
+            m_inflater.setInput(m_compressed, 0, compressedLength);
+            try {
+                int n = 0;
+                while (n < length && !m_inflater.finished()) {
+                    int len = m_inflater.inflate(m_block, n, length - n);
+                    if (len == 0 && m_inflater.needsInput()) break;
+                    n += len;
+                }
+                if (n != length) {
+                    throw new IOException("Corrupt spool file block");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt spool file block: "
+                        + e.getMessage());
+            }
+            m_blockLength = length;
+            m_pos = 0;
+            return true;
+        }
+    }
+
+    /**
+     * A ByteArrayOutputStream whose content can be read without copying.
+     */
+    private static class MemoryBuffer
+            extends ByteArrayOutputStream {
+
+        public byte[] getBuffer() {
+            return buf;
+        }
+
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reader that adds attributes to the start tag of the root element of an XML
+ * document as it is read.
+ * <p>
+ * The attributes are only added if the root element has the expected
+ * (qualified) name, has at least one attribute already, and the start tag
+ * does not already mention a given marker string (typically the namespace
+ * URI of the attributes being added). Only the root start tag is buffered;
+ * everything after it is passed through as-is.
+ * </p>
+ */
+public class RootAttributeFilter
+        extends FilterReader {
+
+    private final String m_elementName;
+
+    private final String m_marker;
+
+    private final String m_attributes;
+
+    private boolean m_done;
+
+    private StringBuilder m_pending;
+
+    private int m_pendingPos;
+
+    /**
+     * @param in
+     *        the XML to read.
+     * @param elementName
+     *        the qualified name the root element must have, e.g.
+     *        <code>oai_dc:dc</code>.
+     * @param marker
+     *        if this string already occurs in the root start tag, no
+     *        attributes are added.
+     * @param attributes
+     *        the attributes to add, e.g. <code>a="1" b="2"</code>.
+     */
+    public RootAttributeFilter(Reader in,
+                               String elementName,
+                               String marker,
+                               String attributes) {
+        super(in);
+        m_elementName = elementName;
+        m_marker = marker;
+        m_attributes = attributes;
+        m_pending = new StringBuilder();
+    }
+
+    @Override
+    public int read() throws IOException {
+        char[] c = new char[1];
+        int len = read(c, 0, 1);
+        if (len == -1) return -1;
+        return c[0];
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (m_pendingPos == m_pending.length()) {
+            if (m_done) return in.read(cbuf, off, len);
+            m_pending.setLength(0);
+            m_pendingPos = 0;
+            if (!readMarkup()) {
+                m_done = true;
+                if (m_pending.length() == 0) return in.read(cbuf, off, len);
+            }
+        }
+        int n = Math.min(len, m_pending.length() - m_pendingPos);
+        m_pending.getChars(m_pendingPos, m_pendingPos + n, cbuf, off);
+        m_pendingPos += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        char[] buf = new char[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+            int len = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+            if (len == -1) break;
+            skipped += len;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException {
+        throw new IOException("mark() not supported");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("reset() not supported");
+    }
+
+    /**
+     * Read up to and including the next piece of markup into the pending
+     * buffer. Text, comments, processing instructions and doctype
+     * declarations before the root element are passed through; when the root
+     * start tag is reached it is rewritten if needed.
+     *
+     * @return true if more markup may precede the root element, false once
+     *         the root start tag (or the end of input) has been reached.
+     */
+    private boolean readMarkup() throws IOException {
+        int c = in.read();
+        while (c != -1 && c != '<') {
+            m_pending.append((char) c);
+            c = in.read();
+        }
+        if (c == -1) return false;
+        m_pending.append('<');
+        c = in.read();
+        if (c == -1) return false;
+        m_pending.append((char) c);
+        if (c == '?') {
+            // a processing instruction ends at "?>"
+            return readUntil("?>", m_pending.length());
+        }
+        if (c == '!') {
+            c = in.read();
+            if (c == -1) return false;
+            m_pending.append((char) c);
+            if (c == '-') {
+                c = in.read();
+                if (c == -1) return false;
+                m_pending.append((char) c);
+                if (c == '-') {
+                    // a comment ends at "-->"
+                    return readUntil("-->", m_pending.length());
+                }
+            }
+            return readDeclaration(c);
+        }
+        // the root start tag; read it up to its closing '>'
+        int tagStart = m_pending.length() - 2;
+        char quote = 0;
+        c = in.read();
+        while (c != -1 && (quote != 0 || c != '>')) {
+            m_pending.append((char) c);
+            if (quote == 0 && (c == '"' || c == '\'')) {
+                quote = (char) c;
+            } else if (c == quote) {
+                quote = 0;
+            }
+            c = in.read();
+        }
+        if (c != -1) m_pending.append('>');
+        int nameEnd = tagStart + 1 + m_elementName.length();
+        if (nameEnd < m_pending.length()
+                && m_pending.indexOf(m_elementName, tagStart + 1) == tagStart + 1
+                && Character.isWhitespace(m_pending.charAt(nameEnd))
+                && m_pending.indexOf(m_marker, tagStart) == -1) {
+            m_pending.insert(nameEnd, " " + m_attributes);
+        }
+        return false;
+    }
+
+    /**
+     * Pass through markup up to and including a string that ends it, which
+     * is looked for from an index of the pending buffer.
+     *
+     * @return false if the input ended first.
+     */
+    private boolean readUntil(String end, int from) throws IOException {
+        int c = in.read();
+        while (c != -1) {
+            m_pending.append((char) c);
+            int endStart = m_pending.length() - end.length();
+            if (c == end.charAt(end.length() - 1) && endStart >= from
+                    && m_pending.indexOf(end, endStart) == endStart) {
+                return true;
+            }
+            c = in.read();
+        }
+        return false;
+    }
+
+    /**
+     * Pass through a declaration such as DOCTYPE, whose last character read
+     * is given, up to the '>' that is not quoted or within an internal
+     * subset. Comments in the internal subset are skipped whole.
+     *
+     * @return false if the input ended first.
+     */
+    private boolean readDeclaration(int c) throws IOException {
+        int depth = 0;
+        char quote = 0;
+        while (c != -1) {
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = (char) c;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+            } else if (c == '>' && depth <= 0) {
+                return true;
+            } else if (c == '-' && depth > 0
+                    && m_pending.lastIndexOf("<!--") == m_pending.length() - 4) {
+                if (!readUntil("-->", m_pending.length())) return false;
+            }
+            c = in.read();
+            if (c != -1) m_pending.append((char) c);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,237 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import org.trippi.TupleIterator;
+
+import proai.driver.RemoteIterator;
+import proai.error.RepositoryException;
+
+import fedora.client.FedoraClient;
+import fedora.server.utilities.DateUtility;
+
+/**
+ * A QueryFactory that gets the records for ListRecords with one SPARQL
+ * query rather than three ITQL queries.
+ * <p>
+ * Set membership and about dissemination availability are OPTIONAL parts of
+ * the query, so the Resource Index does one join and one sort instead of
+ * three. The results are streamed, and the setSpecs of each item are grouped
+ * as they are read. Everything else is done as by ITQLQueryFactory; its
+ * spooling, checkpoint and window options do not apply to ListRecords.
+ * </p>
+ */
+public class SPARQLQueryFactory
+        extends ITQLQueryFactory {
+
+    private static final String QUERY_LANGUAGE = "sparql";
+
+    private static final Logger logger =
+            Logger.getLogger(SPARQLQueryFactory.class.getName());
+
+    private FedoraClient m_queryClient;
+
+    private String m_oaiItemID;
+
+    private String m_deleted;
+
+    private String m_itemSetSpecPath;
+
+    public SPARQLQueryFactory() {
+    }
+
+    public void init(DisseminationSource source,
+                     FedoraClient queryClient,
+                     Properties props) {
+        super.init(source, queryClient, props);
+        m_queryClient = queryClient;
+        m_oaiItemID =
+                FedoraOAIDriver.getRequired(props, FedoraOAIDriver.PROP_ITEMID);
+        m_deleted =
+                FedoraOAIDriver
+                        .getOptional(props, FedoraOAIDriver.PROP_DELETED);
+        if (!FedoraOAIDriver.getOptional(props, FedoraOAIDriver.PROP_SETSPEC)
+                .equals("")) {
+            // already validated by the superclass
+            m_itemSetSpecPath =
+                    toGraphPattern(FedoraOAIDriver
+                            .getRequired(props,
+                                         FedoraOAIDriver.PROP_ITEM_SETSPEC_PATH));
+        }
+    }
+
+    public RemoteIterator<FedoraRecord> listRecords(Date from,
+                                                    Date until,
+                                                    FedoraMetadataFormat format) {
+        String query =
+                getListRecordsQuery(from == null ? null : DateUtility
+                        .convertDateToString(from), until == null ? null
+                        : DateUtility.convertDateToString(until), format);
+        long start = System.currentTimeMillis();
+        TupleIterator tuples = getTuples(query);
+        logger.info("ListRecords query for " + format.getPrefix()
+                + " started streaming after "
+                + (System.currentTimeMillis() - start) + "ms");
+
+        String aboutDissType = null;
+        if (format.getAboutSpec() != null) {
+            aboutDissType = format.getAboutSpec().getDisseminationType();
+        }
+        try {
+            return new SPARQLRecordIterator(format.getPrefix(),
+                                            format.getMetadataSpec()
+                                                    .getDisseminationType(),
+                                            aboutDissType,
+                                            tuples);
+        } catch (RepositoryException e) {
+            try {
+                tuples.close();
+            } catch (Exception ce) {
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @param fromUTC
+     *        the inclusive start of the date range, or null.
+     * @param untilUTC
+     *        the inclusive end of the date range, or null.
+     */
+    protected String getListRecordsQuery(String fromUTC,
+                                         String untilUTC,
+                                         FedoraMetadataFormat format) {
+        boolean sets = m_itemSetSpecPath != null;
+        boolean about = format.getAboutSpec() != null;
+
+        StringBuilder out = new StringBuilder();
+        out.append("SELECT ?item ?itemID ?date ?state");
+        if (sets) out.append(" ?setSpec");
+        if (about) out.append(" ?about");
+        out.append("\n");
+        out.append("FROM <#ri>\n");
+        out.append("WHERE {\n");
+        out.append("  ?item <" + m_oaiItemID + "> ?itemID .\n");
+        if (m_deleted.equals("")) {
+            out.append("  ?item <" + MODEL.STATE + "> ?state .\n");
+        } else {
+            out.append("  ?item <" + m_deleted + "> ?state .\n");
+        }
+        appendDissType(format.getMetadataSpec(), "?diss", out);
+        out.append("  ?item <" + VIEW.LAST_MODIFIED_DATE + "> ?date .\n");
+        if (fromUTC != null) {
+            out.append("  FILTER (?date >= \"" + fromUTC + "\"^^<"
+                    + RDF_XSD.DATE_TIME + ">)\n");
+        }
+        if (untilUTC != null) {
+            out.append("  FILTER (?date <= \"" + untilUTC + "\"^^<"
+                    + RDF_XSD.DATE_TIME + ">)\n");
+        }
+        if (sets) {
+            out.append("  OPTIONAL {\n");
+            out.append(m_itemSetSpecPath);
+            out.append("  }\n");
+        }
+        if (about) {
+            out.append("  OPTIONAL {\n");
+            appendDissType(format.getAboutSpec(), "?about", out);
+            out.append("  }\n");
+        }
+        out.append("}\n");
+        // ordering is required to group the rows of each item
+        out.append("ORDER BY ?itemID");
+        return out.toString();
+    }
+
+    /**
+     * Append the patterns that match items with the given dissemination,
+     * binding <code>var</code>.
+     */
+    private void appendDissType(InvocationSpec spec,
+                                String var,
+                                StringBuilder out) {
+        if (spec.isDatastreamInvocation()) {
+            out.append("  ?item <" + VIEW.DISSEMINATES + "> " + var + " .\n");
+            out.append("  " + var + " <" + VIEW.DISSEMINATION_TYPE + "> <"
+                    + spec.getDisseminationType() + "> .\n");
+        } else {
+            String model = var + "Model";
+            out.append("  ?item <" + MODEL.HAS_MODEL + "> " + model + " .\n");
+            out.append("  " + model + " <" + MODEL.HAS_SERVICE + "> " + var
+                    + " .\n");
+            out.append("  " + var + " <" + MODEL.DEFINES_METHOD + "> \""
+                    + spec.method() + "\" .\n");
+            if (spec.service() != null) {
+                out.append("  FILTER (" + var + " = <"
+                        + spec.service().toURI() + ">)\n");
+            }
+        }
+    }
+
+    /**
+     * Convert an itemSetSpecPath such as
+     * <code>$item &lt;predicate&gt; $set $set &lt;predicate&gt; $setSpec</code>
+     * to SPARQL triple patterns. Variables other than $item, $set and
+     * $setSpec are renamed so they can't clash with those of the query, and
+     * the fedora, fedora-model, fedora-view and fedora-rels-ext aliases are
+     * expanded.
+     */
+    protected static String toGraphPattern(String itemSetSpecPath) {
+        String[] path = itemSetSpecPath.trim().split("\\s+");
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < path.length; i++) {
+            if (i % 3 == 0) {
+                out.append("    ");
+            } else {
+                out.append(" ");
+            }
+            if (path[i].startsWith("$")) {
+                String name = path[i].substring(1);
+                if (!(name.equals("item") || name.equals("set") || name
+                        .equals("setSpec"))) {
+                    name = "path_" + name;
+                }
+                out.append("?" + name);
+            } else {
+                out.append(translate(path[i]));
+            }
+            if (i % 3 == 2) {
+                out.append(" .\n");
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Expand the aliases the Resource Index defines for ITQL, which are
+     * not known to SPARQL.
+     */
+    private static String translate(String node) {
+        return node.replace("<fedora-rels-ext:", "<" + RELS_EXT.uri)
+                .replace("<fedora-model:", "<" + MODEL.uri)
+                .replace("<fedora-view:", "<" + VIEW.uri)
+                .replace("<fedora:", "<info:fedora/");
+    }
+
+    private TupleIterator getTuples(String query) throws RepositoryException {
+        logger.debug("getTuples() called with query:\n" + query);
+        Map<String, String> parameters = new HashMap<String, String>();
+        parameters.put("lang", QUERY_LANGUAGE);
+        parameters.put("query", query);
+        parameters.put("stream", "true"); // stream immediately from server
+
+        try {
+            return m_queryClient.getTuples(parameters);
+        } catch (IOException e) {
+            throw new RepositoryException("Error getting tuples from Fedora: "
+                    + e.getMessage(), e);
+        }
+    }
+}
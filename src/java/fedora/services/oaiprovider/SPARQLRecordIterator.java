@@ -0,0 +1,155 @@
+
+package fedora.services.oaiprovider;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import org.jrdf.graph.Literal;
+import org.jrdf.graph.Node;
+import org.jrdf.graph.URIReference;
+import org.trippi.TrippiException;
+import org.trippi.TupleIterator;
+
+import proai.driver.RemoteIterator;
+import proai.error.RepositoryException;
+
+import fedora.common.Constants;
+
+/**
+ * Iterates over the records in the results of a single ListRecords query.
+ * <p>
+ * The results must be ordered by itemID and have the columns item, itemID,
+ * date and state, and optionally setSpec and about. An item has one row for
+ * each of its sets, or a single row with no setSpec if it is in none; its
+ * record is given every setSpec in its rows, and an about dissemination if
+ * any of its rows has an about value. Rows are read as they are needed.
+ * </p>
+ */
+public class SPARQLRecordIterator
+        implements RemoteIterator<FedoraRecord>, Constants {
+
+    private static final Logger logger =
+            Logger.getLogger(SPARQLRecordIterator.class.getName());
+
+    private final String m_mdPrefix;
+
+    private final String m_dissTypeURI;
+
+    private final String m_aboutDissTypeURI;
+
+    private final TupleIterator m_tuples;
+
+    private Map<String, Node> m_row;
+
+    public SPARQLRecordIterator(String mdPrefix,
+                                String dissTypeURI,
+                                String aboutDissTypeURI,
+                                TupleIterator tuples)
+            throws RepositoryException {
+        m_mdPrefix = mdPrefix;
+        m_dissTypeURI = dissTypeURI;
+        m_aboutDissTypeURI = aboutDissTypeURI;
+        m_tuples = tuples;
+        m_row = readRow();
+    }
+
+    public boolean hasNext() {
+        return m_row != null;
+    }
+
+    public FedoraRecord next() throws RepositoryException {
+        if (m_row == null) {
+            throw new NoSuchElementException("No more records");
+        }
+        String item = getString(m_row, "item");
+        String itemID = getString(m_row, "itemID");
+        String date = getString(m_row, "date");
+        String state = getString(m_row, "state");
+        if (item == null || itemID == null || date == null || state == null) {
+            throw new RepositoryException("Missing value in query result: "
+                    + m_row);
+        }
+        boolean hasAbout = false;
+        Set<String> setSpecs = new LinkedHashSet<String>();
+        do {
+            String setSpec = getString(m_row, "setSpec");
+            if (setSpec != null) {
+                setSpecs.add(setSpec);
+            }
+            if (getString(m_row, "about") != null) {
+                hasAbout = true;
+            }
+            m_row = readRow();
+        } while (m_row != null && itemID.equals(getString(m_row, "itemID")));
+
+        logger.debug("Constructing record for " + itemID + " with "
+                + setSpecs.size() + " sets");
+        try {
+            String pid = item.substring(12); // everything after info:fedora/
+            String aboutDissURI = null;
+            if (hasAbout && m_aboutDissTypeURI != null) {
+                aboutDissURI =
+                        CombinerRecordIterator.getDissURI(pid,
+                                                          m_aboutDissTypeURI);
+            }
+            return new FedoraRecord(itemID,
+                                    m_mdPrefix,
+                                    CombinerRecordIterator.getDissURI(pid,
+                                                                      m_dissTypeURI),
+                                    CombinerRecordIterator.formatDatetime(date),
+                                    !state.equals(MODEL.ACTIVE.uri),
+                                    setSpecs.toArray(new String[setSpecs
+                                            .size()]),
+                                    aboutDissURI);
+        } catch (Exception e) {
+            throw new RepositoryException("Error constructing record for "
+                    + itemID + ": " + e.getMessage(), e);
+        }
+    }
+
+    public void close() throws RepositoryException {
+        m_row = null;
+        try {
+            m_tuples.close();
+        } catch (TrippiException e) {
+            throw new RepositoryException("Unable to close tuple iterator", e);
+        }
+    }
+
+    public void remove() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("SPARQLRecordIterator does not support remove().");
+    }
+
+    @SuppressWarnings("unchecked")
+    /* trippi is not generic */
+    private Map<String, Node> readRow() throws RepositoryException {
+        try {
+            if (m_tuples.hasNext()) {
+                return m_tuples.next();
+            } else {
+                return null;
+            }
+        } catch (TrippiException e) {
+            throw new RepositoryException("Error reading query results: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    private static String getString(Map<String, Node> row, String name)
+            throws RepositoryException {
+        Node node = row.get(name);
+        if (node == null) return null;
+        if (node instanceof Literal) {
+            return ((Literal) node).getLexicalForm();
+        } else if (node instanceof URIReference) {
+            return ((URIReference) node).getURI().toString();
+        } else {
+            throw new RepositoryException("Unhandled node type: "
+                    + node.getClass().getName());
+        }
+    }
+}
@@ -0,0 +1,153 @@
+
+package fedora.services.oaiprovider;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The setSpecs of a group of items, held compactly in memory.
+ * <p>
+ * Each distinct setSpec is kept once and numbered, and each item maps to the
+ * numbers of its sets, in the order they were added.
+ * </p>
+ */
+public class SetMembership {
+
+    private static final String[] NONE = new String[0];
+
+    private final String[] m_setSpecs;
+
+    private final Map<String, int[]> m_items;
+
+    private final long m_bytes;
+
+    private SetMembership(String[] setSpecs,
+                          Map<String, int[]> items,
+                          long bytes) {
+        m_setSpecs = setSpecs;
+        m_items = items;
+        m_bytes = bytes;
+    }
+
+    /**
+     * Get the setSpecs of an item.
+     *
+     * @return the setSpecs, or an empty array if the item is in no sets.
+     */
+    public String[] getSetSpecs(String itemID) {
+        int[] sets = m_items.get(itemID);
+        if (sets == null) return NONE;
+        String[] setSpecs = new String[sets.length];
+        for (int i = 0; i < sets.length; i++) {
+            setSpecs[i] = m_setSpecs[sets[i]];
+        }
+        return setSpecs;
+    }
+
+    public int getItemCount() {
+        return m_items.size();
+    }
+
+    public int getSetCount() {
+        return m_setSpecs.length;
+    }
+
+    /**
+     * Get roughly how much memory this takes, in bytes.
+     */
+    public long getEstimatedBytes() {
+        return m_bytes;
+    }
+
+    /**
+     * Collects memberships up to a memory limit.
+     */
+    public static class Builder {
+
+        // rough sizes of a map entry and of the header of a string or array
+        private static final int ENTRY = 48;
+
+        private static final int HEADER = 40;
+
+        private final long m_max;
+
+        private final Map<String, Integer> m_ordinals =
+                new HashMap<String, Integer>();
+
+        private final List<String> m_setSpecs = new ArrayList<String>();
+
+        private final Map<String, int[]> m_items =
+                new HashMap<String, int[]>();
+
+        private long m_bytes;
+
+        private boolean m_full;
+
+        /**
+         * @param max
+         *        the most memory to use, in bytes, or 0 for no limit.
+         */
+        public Builder(long max) {
+            m_max = max;
+        }
+
+        /**
+         * Add a membership.
+         *
+         * @return false if the limit has been reached, in which case
+         *         everything added is discarded and no more can be added.
+         */
+        public boolean add(String itemID, String setSpec) {
+            if (m_full) return false;
+            Integer ordinal = m_ordinals.get(setSpec);
+            if (ordinal == null) {
+                ordinal = Integer.valueOf(m_setSpecs.size());
+                m_ordinals.put(setSpec, ordinal);
+                m_setSpecs.add(setSpec);
+                m_bytes += ENTRY * 2 + HEADER + setSpec.length() * 2;
+            }
+            int set = ordinal.intValue();
+            int[] sets = m_items.get(itemID);
+            if (sets == null) {
+                m_items.put(itemID, new int[] {set});
+                m_bytes += ENTRY + HEADER * 2 + itemID.length() * 2 + 4;
+            } else {
+                for (int i = 0; i < sets.length; i++) {
+                    if (sets[i] == set) return true;
+                }
+                int[] more = new int[sets.length + 1];
+                System.arraycopy(sets, 0, more, 0, sets.length);
+                more[sets.length] = set;
+                m_items.put(itemID, more);
+                m_bytes += 4;
+            }
+            if (m_max > 0 && m_bytes > m_max) {
+                m_full = true;
+                m_ordinals.clear();
+                m_setSpecs.clear();
+                m_items.clear();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Tell whether the limit was reached.
+         */
+        public boolean isFull() {
+            return m_full;
+        }
+
+        public SetMembership build() {
+            if (m_full) {
+                throw new IllegalStateException("Memory limit was reached");
+            }
+            return new SetMembership(m_setSpecs.toArray(new String[m_setSpecs
+                                             .size()]),
+                                     new HashMap<String, int[]>(m_items),
+                                     m_bytes);
+        }
+    }
+}
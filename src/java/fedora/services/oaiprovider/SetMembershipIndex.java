@@ -0,0 +1,132 @@
+
+package fedora.services.oaiprovider;
+
+import java.util.Date;
+
+import org.apache.log4j.Logger;
+
+import proai.error.RepositoryException;
+
+import fedora.server.utilities.DateUtility;
+
+/**
+ * Shares the set memberships of the items modified within a date range
+ * between the ListRecords requests for each metadata format.
+ * <p>
+ * An update asks for the records of every format modified within the same
+ * range, so the memberships are loaded by the first request and used by the
+ * rest. They are loaded again if the range is different or if the sets have
+ * been modified since. If they don't fit within the memory limit, or can't
+ * be loaded, null is given so that each request can query for them itself.
+ * </p>
+ */
+public class SetMembershipIndex {
+
+    private static final Logger logger =
+            Logger.getLogger(SetMembershipIndex.class.getName());
+
+    /**
+     * Queries for set memberships.
+     */
+    public interface Loader {
+
+        /**
+         * Add the memberships of the items modified within a range, stopping
+         * if the builder is full.
+         *
+         * @param from
+         *        the inclusive start of the range, or null for no start.
+         * @param until
+         *        the inclusive end of the range, or null for no end.
+         */
+        void load(Date from, Date until, SetMembership.Builder builder)
+                throws RepositoryException;
+
+        /**
+         * Get the latest modification date of the sets.
+         *
+         * @return the date, or null if there are no sets.
+         */
+        Date getSetsModified() throws RepositoryException;
+    }
+
+    private final Loader m_loader;
+
+    private final long m_maxBytes;
+
+    private boolean m_loaded;
+
+    private Date m_from;
+
+    private Date m_until;
+
+    private Date m_setsModified;
+
+    private SetMembership m_membership;
+
+    /**
+     * @param maxBytes
+     *        the most memory to use, in bytes.
+     */
+    public SetMembershipIndex(Loader loader, long maxBytes) {
+        m_loader = loader;
+        m_maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the memberships of the items modified within a range, loading them
+     * if needed.
+     *
+     * @return the memberships, or null if they should be queried for
+     *         separately.
+     */
+    public synchronized SetMembership get(Date from, Date until) {
+        Date setsModified;
+        try {
+            setsModified = m_loader.getSetsModified();
+        } catch (RepositoryException e) {
+            logger.warn("Unable to check when sets were modified; not using "
+                    + "shared set memberships", e);
+            return null;
+        }
+        if (m_loaded && same(from, m_from) && same(until, m_until)) {
+            if (same(setsModified, m_setsModified)) {
+                return m_membership;
+            }
+            logger.info("Sets were modified at "
+                    + DateUtility.convertDateToString(setsModified)
+                    + "; loading set memberships again");
+        }
+
+        m_membership = null;
+        m_loaded = true;
+        m_from = from;
+        m_until = until;
+        m_setsModified = setsModified;
+
+        long start = System.currentTimeMillis();
+        SetMembership.Builder builder = new SetMembership.Builder(m_maxBytes);
+        try {
+            m_loader.load(from, until, builder);
+        } catch (RepositoryException e) {
+            logger.warn("Unable to load shared set memberships; each format "
+                    + "will query for them instead", e);
+            return null;
+        }
+        if (builder.isFull()) {
+            logger.warn("Set memberships need more than " + m_maxBytes
+                    + " bytes; each format will query for them instead");
+            return null;
+        }
+        m_membership = builder.build();
+        logger.info("Loaded memberships of " + m_membership.getItemCount()
+                + " items in " + m_membership.getSetCount() + " sets (about "
+                + m_membership.getEstimatedBytes() / 1024 + "KB) in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return m_membership;
+    }
+
+    private static boolean same(Date a, Date b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,78 @@
+
+package fedora.services.oaiprovider;
+
+/**
+ * Counts the bytes transferred for HTTP responses, before and after content
+ * decoding, to show how much bandwidth compression saves.
+ */
+public class TransferStats {
+
+    private final String m_name;
+
+    private long m_responses;
+
+    private long m_compressedResponses;
+
+    private long m_wireBytes;
+
+    private long m_contentBytes;
+
+    /**
+     * @param name
+     *        what the responses are for, used in log messages.
+     */
+    public TransferStats(String name) {
+        m_name = name;
+    }
+
+    /**
+     * Record a response that has been closed.
+     *
+     * @param compressed
+     *        whether the response had a content encoding.
+     * @param wireBytes
+     *        the bytes of body read from the connection.
+     * @param contentBytes
+     *        the bytes of content read after decoding.
+     */
+    public synchronized void record(boolean compressed,
+                                    long wireBytes,
+                                    long contentBytes) {
+        m_responses++;
+        if (compressed) m_compressedResponses++;
+        m_wireBytes += wireBytes;
+        m_contentBytes += contentBytes;
+    }
+
+    public synchronized long getResponses() {
+        return m_responses;
+    }
+
+    public synchronized long getCompressedResponses() {
+        return m_compressedResponses;
+    }
+
+    /**
+     * Get the body bytes read from connections.
+     */
+    public synchronized long getWireBytes() {
+        return m_wireBytes;
+    }
+
+    /**
+     * Get the content bytes read after decoding.
+     */
+    public synchronized long getContentBytes() {
+        return m_contentBytes;
+    }
+
+    public synchronized String getStats() {
+        long saved =
+                m_contentBytes == 0 ? 0 : 100 - m_wireBytes * 100
+                        / m_contentBytes;
+        return m_name + ": " + m_responses + " responses ("
+                + m_compressedResponses + " compressed), " + m_wireBytes
+                + " bytes transferred for " + m_contentBytes
+                + " bytes of content (" + saved + "% saved)";
+    }
+}
@@ -0,0 +1,315 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.InterruptedIOException;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+import proai.driver.RemoteIterator;
+import proai.error.RepositoryException;
+
+import fedora.server.utilities.DateUtility;
+
+/**
+ * Iterates over the records modified within a date range by querying for
+ * them one window of the range at a time.
+ * <p>
+ * Windows are queried in date order, and a bounded number of windows ahead
+ * of the one being read are started early so that their queries run while
+ * earlier records are being processed. If a window's queries time out, the
+ * window is split in half and each half is queried instead, and the size of
+ * later windows is halved. Each window that succeeds lets the size grow
+ * back, up to the configured size.
+ * </p>
+ * <p>
+ * If the range has no start, windows are sized from an earliest date; the
+ * first window still has no start, so records older than that date are not
+ * missed.
+ * </p>
+ */
+public class WindowedRecordIterator
+        implements RemoteIterator<FedoraRecord> {
+
+    private static final Logger logger =
+            Logger.getLogger(WindowedRecordIterator.class.getName());
+
+    /**
+     * Starts the queries for a window.
+     */
+    public interface Source {
+
+        /**
+         * Start querying for the records modified within the given range,
+         * without waiting for the results.
+         *
+         * @param from
+         *        the inclusive start of the range, or null for no start.
+         * @param until
+         *        the inclusive end of the range, or null for no end.
+         */
+        Window start(Date from, Date until) throws RepositoryException;
+    }
+
+    /**
+     * The queries for one window, which may still be running.
+     */
+    public interface Window {
+
+        /**
+         * Wait for the queries to finish and get their records.
+         */
+        RemoteIterator<FedoraRecord> getRecords() throws RepositoryException;
+
+        /**
+         * Stop the queries and discard their results.
+         */
+        void cancel();
+    }
+
+    /**
+     * The current window size, shared by all iterators of a query factory so
+     * that what is learned from a timeout is kept.
+     */
+    public static class WindowSize {
+
+        private final long m_max;
+
+        private final long m_min;
+
+        private long m_size;
+
+        /**
+         * @param max
+         *        the largest (and initial) window size, in milliseconds.
+         * @param min
+         *        the smallest window size, in milliseconds. Windows this size
+         *        are not split further.
+         */
+        public WindowSize(long max, long min) {
+            m_max = max;
+            m_min = Math.min(min, max);
+            m_size = max;
+        }
+
+        public synchronized long get() {
+            return m_size;
+        }
+
+        public long getMin() {
+            return m_min;
+        }
+
+        public synchronized void shrink() {
+            m_size = Math.max(m_min, m_size / 2);
+        }
+
+        public synchronized void grow() {
+            m_size = Math.min(m_max, m_size * 2);
+        }
+    }
+
+    private final Source m_source;
+
+    private final WindowSize m_size;
+
+    private final int m_ahead;
+
+    /** Where the next window starts, as if the range started there. */
+    private long m_next;
+
+    /** Whether the next window is the first, which has no start. */
+    private boolean m_openStart;
+
+    /** The end of the range, as used to plan the windows. */
+    private final long m_end;
+
+    /** Whether the range has no end. */
+    private final boolean m_openEnd;
+
+    private boolean m_planned;
+
+    private final LinkedList<Started> m_started = new LinkedList<Started>();
+
+    private RemoteIterator<FedoraRecord> m_current;
+
+    private int m_windows;
+
+    /**
+     * @param source
+     *        starts the queries for each window.
+     * @param from
+     *        the inclusive start of the range, or null for no start.
+     * @param until
+     *        the inclusive end of the range, or null for no end, in which
+     *        case windows are planned up to the current time and the last one
+     *        has no end.
+     * @param earliest
+     *        the date to size windows from if the range has no start.
+     * @param size
+     *        the window size.
+     * @param ahead
+     *        the most windows to query at once.
+     */
+    public WindowedRecordIterator(Source source,
+                                  Date from,
+                                  Date until,
+                                  Date earliest,
+                                  WindowSize size,
+                                  int ahead) {
+        m_source = source;
+        m_size = size;
+        m_ahead = Math.max(1, ahead);
+        m_openStart = from == null;
+        m_next = from == null ? earliest.getTime() : from.getTime();
+        m_openEnd = until == null;
+        m_end = until == null ? System.currentTimeMillis() : until.getTime();
+        if (m_end < m_next) {
+            m_next = m_end;
+        }
+    }
+
+    public boolean hasNext() throws RepositoryException {
+        while (m_current == null || !m_current.hasNext()) {
+            if (m_current != null) {
+                m_current.close();
+                m_current = null;
+            }
+            startWindows();
+            if (m_started.isEmpty()) {
+                logger.info("Finished querying " + m_windows + " windows");
+                return false;
+            }
+            Started window = m_started.removeFirst();
+            try {
+                m_current = window.window.getRecords();
+                m_windows++;
+                m_size.grow();
+            } catch (RepositoryException e) {
+                if (!isTimeout(e) || window.length() <= m_size.getMin()) {
+                    close();
+                    throw e;
+                }
+                m_size.shrink();
+                long middle = window.start + window.length() / 2 - 1;
+                logger.warn("Query timed out for records modified "
+                        + window + "; trying again in two halves");
+                try {
+                    Started first =
+                            start(window.start, middle, window.openStart, false);
+                    Started second =
+                            start(middle + 1, window.end, false, window.openEnd);
+                    m_started.addFirst(second);
+                    m_started.addFirst(first);
+                } catch (RepositoryException re) {
+                    close();
+                    throw re;
+                }
+            }
+        }
+        return true;
+    }
+
+    public FedoraRecord next() throws RepositoryException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("No more records");
+        }
+        return m_current.next();
+    }
+
+    public void close() {
+        if (m_current != null) {
+            m_current.close();
+            m_current = null;
+        }
+        while (!m_started.isEmpty()) {
+            m_started.removeFirst().window.cancel();
+        }
+        m_planned = true;
+    }
+
+    public void remove() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("WindowedRecordIterator does not support remove().");
+    }
+
+    /**
+     * Start windows until enough are running or there are no more.
+     */
+    private void startWindows() throws RepositoryException {
+        while (!m_planned && m_started.size() < m_ahead) {
+            long start = m_next;
+            long end = start + m_size.get() - 1;
+            if (end >= m_end || end < start) {
+                end = m_end;
+                m_planned = true;
+            }
+            try {
+                m_started.addLast(start(start,
+                                        end,
+                                        m_openStart,
+                                        m_planned && m_openEnd));
+            } catch (RepositoryException e) {
+                close();
+                throw e;
+            }
+            m_openStart = false;
+            m_next = end + 1;
+        }
+    }
+
+    private Started start(long start,
+                          long end,
+                          boolean openStart,
+                          boolean openEnd) throws RepositoryException {
+        Started started = new Started(start, end, openStart, openEnd);
+        logger.debug("Starting queries for records modified " + started);
+        started.window =
+                m_source.start(openStart ? null : new Date(start),
+                               openEnd ? null : new Date(end));
+        return started;
+    }
+
+    /**
+     * Tell whether the problem was a timeout.
+     */
+    static boolean isTimeout(Throwable th) {
+        while (th != null) {
+            if (th instanceof InterruptedIOException) return true;
+            th = th.getCause();
+        }
+        return false;
+    }
+
+    private static class Started {
+
+        public final long start;
+
+        public final long end;
+
+        public final boolean openStart;
+
+        public final boolean openEnd;
+
+        public Window window;
+
+        public Started(long start, long end, boolean openStart, boolean openEnd) {
+            this.start = start;
+            this.end = end;
+            this.openStart = openStart;
+            this.openEnd = openEnd;
+        }
+
+        public long length() {
+            return end - start + 1;
+        }
+
+        public String toString() {
+            return (openStart ? "any time" : "from "
+                    + DateUtility.convertDateToString(new Date(start)))
+                    + (openEnd ? " onwards" : " until "
+                            + DateUtility.convertDateToString(new Date(end)));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reader that drops the XML declaration (and the whitespace around it) from
+ * the start of an XML document as it is read.
+ * <p>
+ * Only the first few characters of the document are ever buffered, so the
+ * memory used does not depend on the size of the document. If the document
+ * does not start with a declaration, it is passed through unchanged.
+ * </p>
+ */
+public class XMLDeclarationFilter
+        extends FilterReader {
+
+    private static final String _DECL_START = "<?xml";
+
+    private static final String _DECL_END = "?>";
+
+    private boolean m_started;
+
+    private StringBuilder m_pending;
+
+    private int m_pendingPos;
+
+    public XMLDeclarationFilter(Reader in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        char[] c = new char[1];
+        int len = read(c, 0, 1);
+        if (len == -1) return -1;
+        return c[0];
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (!m_started) {
+            m_pending = readProlog();
+            m_started = true;
+        }
+        if (m_pending != null) {
+            int n = Math.min(len, m_pending.length() - m_pendingPos);
+            if (n > 0) {
+                m_pending.getChars(m_pendingPos, m_pendingPos + n, cbuf, off);
+                m_pendingPos += n;
+                return n;
+            }
+            m_pending = null;
+        }
+        return in.read(cbuf, off, len);
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        char[] buf = new char[(int) Math.min(n, 4096)];
+        long skipped = 0;
+        while (skipped < n) {
+            int len = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+            if (len == -1) break;
+            skipped += len;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException {
+        throw new IOException("mark() not supported");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("reset() not supported");
+    }
+
+    /**
+     * Consume the declaration, if any, and return whatever was read from the
+     * underlying reader that must still be passed through.
+     */
+    private StringBuilder readProlog() throws IOException {
+        StringBuilder read = new StringBuilder();
+        int c = in.read();
+        while (c != -1 && Character.isWhitespace(c)) {
+            read.append((char) c);
+            c = in.read();
+        }
+        int whitespace = read.length();
+        while (c != -1 && read.length() - whitespace < _DECL_START.length()
+                && c == _DECL_START.charAt(read.length() - whitespace)) {
+            read.append((char) c);
+            c = in.read();
+        }
+        if (read.length() - whitespace < _DECL_START.length()
+                || (c != -1 && !Character.isWhitespace(c) && c != '?')) {
+            // not a declaration (perhaps <?xml-stylesheet ...?>)
+            if (c != -1) read.append((char) c);
+            return read;
+        }
+        // skip to the end of the declaration
+        int matched = 0;
+        while (c != -1 && matched < _DECL_END.length()) {
+            if (c == _DECL_END.charAt(matched)) {
+                matched++;
+            } else {
+                matched = (c == _DECL_END.charAt(0)) ? 1 : 0;
+            }
+            c = in.read();
+        }
+        // and the whitespace after it
+        while (c != -1 && Character.isWhitespace(c)) {
+            c = in.read();
+        }
+        read.setLength(0);
+        if (c != -1) read.append((char) c);
+        return read;
+    }
+}
@@ -0,0 +1,155 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import fedora.client.HttpInputStream;
+
+/**
+ * Utility methods for reading XML disseminations.
+ */
+public abstract class XMLStreams {
+
+    private static final Logger logger =
+            Logger.getLogger(XMLStreams.class.getName());
+
+    /** The default encoding of XML without a BOM or declaration. */
+    public static final String DEFAULT_ENCODING = "UTF-8";
+
+    /** How much of the stream may be examined to determine the encoding. */
+    private static final int PEEK_SIZE = 512;
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private static final Pattern _DECL_ENCODING =
+            Pattern.compile("^<\\?xml\\s[^>]*?encoding\\s*=\\s*[\"']([A-Za-z][A-Za-z0-9._\\-]*)[\"']");
+
+    private static final Pattern _CONTENT_TYPE_CHARSET =
+            Pattern.compile(";\\s*charset\\s*=\\s*\"?([^\";\\s]+)",
+                            Pattern.CASE_INSENSITIVE);
+
+    private static final ThreadLocal<char[]> _COPY_BUFFER =
+            new ThreadLocal<char[]>() {
+
+                protected char[] initialValue() {
+                    return new char[COPY_BUFFER_SIZE];
+                }
+            };
+
+    /**
+     * Get a reader for the given XML stream, decoding it with the encoding
+     * the document is in rather than the platform default.
+     * <p>
+     * The encoding is taken from the byte order mark if there is one, then
+     * from the encoding in the XML declaration, then from the charset of the
+     * HTTP response the stream came from (if it is an
+     * <code>HttpInputStream</code> or <code>NioHttpClient.Response</code>).
+     * Otherwise it is UTF-8. A UTF-8 byte order mark is not passed on to the
+     * reader.
+     * </p>
+     */
+    public static Reader newReader(InputStream in) throws IOException {
+        String contentType = null;
+        if (in instanceof HttpInputStream) {
+            contentType = ((HttpInputStream) in).getContentType();
+        } else if (in instanceof NioHttpClient.Response) {
+            contentType = ((NioHttpClient.Response) in).getContentType();
+        }
+        BufferedInputStream buffered = new BufferedInputStream(in, PEEK_SIZE);
+        buffered.mark(PEEK_SIZE);
+        byte[] head = new byte[PEEK_SIZE];
+        int len = 0;
+        int n = buffered.read(head, 0, head.length);
+        while (n != -1 && len + n < head.length) {
+            len += n;
+            n = buffered.read(head, len, head.length - len);
+        }
+        if (n != -1) len += n;
+        buffered.reset();
+        if (startsWith(head, len, 0xEF, 0xBB, 0xBF)) {
+            buffered.skip(3);
+        }
+        return new InputStreamReader(buffered,
+                                     getCharset(head, len, contentType));
+    }
+
+    /**
+     * Determine the encoding of an XML document given its first bytes and
+     * the content type it was served with (which may be null).
+     */
+    public static Charset getCharset(byte[] head, int len, String contentType) {
+        String name = null;
+        if (startsWith(head, len, 0xEF, 0xBB, 0xBF)) {
+            return Charset.forName("UTF-8");
+        } else if (startsWith(head, len, 0xFE, 0xFF)
+                || startsWith(head, len, 0xFF, 0xFE)) {
+            return Charset.forName("UTF-16");
+        } else if (startsWith(head, len, 0x00, '<', 0x00, '?')) {
+            return Charset.forName("UTF-16BE");
+        } else if (startsWith(head, len, '<', 0x00, '?', 0x00)) {
+            return Charset.forName("UTF-16LE");
+        }
+        try {
+            Matcher m =
+                    _DECL_ENCODING.matcher(new String(head, 0, len, "ISO-8859-1"));
+            if (m.find()) {
+                name = m.group(1);
+            }
+        } catch (IOException e) {
+            // ISO-8859-1 is always supported
+        }
+        if (name == null && contentType != null) {
+            Matcher m = _CONTENT_TYPE_CHARSET.matcher(contentType);
+            if (m.find()) {
+                name = m.group(1);
+            }
+        }
+        if (name != null) {
+            try {
+                return Charset.forName(name);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unsupported XML encoding '" + name
+                        + "', assuming " + DEFAULT_ENCODING);
+            }
+        }
+        return Charset.forName(DEFAULT_ENCODING);
+    }
+
+    /**
+     * Copy all characters from the reader to the writer, using a buffer that
+     * is reused by later copies on the same thread.
+     *
+     * @return the last character copied, or -1 if there were none.
+     */
+    public static int copy(Reader reader, Writer out) throws IOException {
+        char[] buf = _COPY_BUFFER.get();
+        int last = -1;
+        int len = reader.read(buf);
+        while (len != -1) {
+            if (len > 0) {
+                out.write(buf, 0, len);
+                last = buf[len - 1];
+            }
+            len = reader.read(buf);
+        }
+        return last;
+    }
+
+    private static boolean startsWith(byte[] head, int len, int... prefix) {
+        if (len < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if ((head[i] & 0xFF) != prefix[i]) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,239 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares throughput and bytes allocated per item of combining the three
+ * ListRecords query results and reading the values of each record: the way
+ * lines used to be split and joined, and ResultCombiner reading them with
+ * CSVFieldReader.
+ * <p>
+ * The query results are generated as they are read, so that neither method
+ * is limited by I/O. The time taken to generate them alone is given first.
+ * </p>
+ * <p>
+ * Usage: <code>java CSVCombineBenchmark [items]</code>. Without arguments,
+ * 10M items are combined.
+ * </p>
+ */
+public class CSVCombineBenchmark {
+
+    private static final String ACTIVE =
+            "info:fedora/fedora-system:def/model#Active";
+
+    private static final String[] METHODS =
+            {"input", "split", "CSVFieldReader"};
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory
+                        .getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        System.out.println("items  method  ms  items/s  bytes/item");
+        for (int method = 0; method < METHODS.length; method++) {
+            // warm up
+            run(method, Math.min(count, 1000000));
+            long alloc = threads.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            long check = run(method, count);
+            long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+            alloc = threads.getThreadAllocatedBytes(id) - alloc;
+            System.out.println(count + "  " + METHODS[method] + "  " + ms
+                    + "  " + count * 1000L / ms + "  " + alloc / count + "  ("
+                    + check + ")");
+        }
+    }
+
+    /**
+     * Combine the results and read the values of each record, giving a
+     * checksum of them.
+     */
+    private static long run(int method, int count) throws Exception {
+        BufferedReader primary = new BufferedReader(new Results(0, count));
+        BufferedReader sets = new BufferedReader(new Results(1, count));
+        BufferedReader abouts = new BufferedReader(new Results(2, count));
+        long check = 0;
+        if (method == 0) {
+            char[] buf = new char[8192];
+            Reader[] inputs = {primary, sets, abouts};
+            for (Reader in : inputs) {
+                int n = in.read(buf);
+                while (n != -1) {
+                    check += n;
+                    n = in.read(buf);
+                }
+            }
+        } else if (method == 1) {
+            SplitCombiner combiner =
+                    new SplitCombiner(primary, sets, abouts);
+            String line = combiner.readLine();
+            while (line != null) {
+                String[] parts = line.split(",");
+                String pid = parts[0].substring(12);
+                String itemID = parts[1];
+                String date = CombinerRecordIterator.formatDatetime(parts[2]);
+                boolean deleted = !parts[3].equals(ACTIVE);
+                boolean about = parts[4].equals("true");
+                String[] setSpecs = new String[parts.length - 5];
+                for (int i = 5; i < parts.length; i++) {
+                    setSpecs[i - 5] = parts[i];
+                }
+                check +=
+                        pid.length() + itemID.length() + date.length()
+                                + (deleted ? 1 : 0) + (about ? 1 : 0)
+                                + setSpecs.length;
+                line = combiner.readLine();
+            }
+        } else {
+            ResultCombiner combiner =
+                    new ResultCombiner(primary, sets, abouts);
+            StringBuilder dateBuf = new StringBuilder();
+            while (combiner.next()) {
+                CSVFieldReader fields = combiner.getFields();
+                String pid = fields.getField(0, 12);
+                String itemID = fields.getField(1);
+                dateBuf.setLength(0);
+                fields.appendField(2, dateBuf);
+                String date = CombinerRecordIterator.formatDatetime(dateBuf);
+                boolean deleted = !fields.fieldEquals(3, ACTIVE);
+                boolean about = combiner.hasAbout();
+                String[] setSpecs = combiner.getSetSpecs();
+                check +=
+                        pid.length() + itemID.length() + date.length()
+                                + (deleted ? 1 : 0) + (about ? 1 : 0)
+                                + setSpecs.length;
+            }
+        }
+        return check;
+    }
+
+    /**
+     * Generates the primary (0), set membership (1) or about (2) query
+     * results of a number of items. Every item is in one set and every other
+     * item is in a second set and has an about dissemination.
+     */
+    private static class Results
+            extends Reader {
+
+        private final int m_query;
+
+        private final int m_count;
+
+        private final StringBuilder m_line = new StringBuilder();
+
+        private int m_item;
+
+        private int m_pos;
+
+        public Results(int query, int count) {
+            m_query = query;
+            m_count = count;
+            if (query == 0) {
+                m_line.append("\"item\",\"itemID\",\"date\",\"state\"\n");
+            } else if (query == 1) {
+                m_line.append("\"itemID\",\"setSpec\"\n");
+            } else {
+                m_line.append("\"itemID\"\n");
+            }
+        }
+
+        public int read(char[] buf, int off, int len) {
+            if (len == 0) return 0;
+            if (m_pos == m_line.length()) {
+                m_line.setLength(0);
+                m_pos = 0;
+                while (m_line.length() == 0) {
+                    if (m_item == m_count) return -1;
+                    nextItem();
+                }
+            }
+            int n = Math.min(len, m_line.length() - m_pos);
+            m_line.getChars(m_pos, m_pos + n, buf, off);
+            m_pos += n;
+            return n;
+        }
+
+        private void nextItem() {
+            int n = 1000000000 + m_item++;
+            boolean even = n % 2 == 0;
+            if (m_query == 0) {
+                m_line.append("info:fedora/nsdl:").append(n);
+                m_line.append(",oai:nsdl.org:nsdl:").append(n);
+                m_line.append(",2005-09-20T12:49:14.77,").append(ACTIVE);
+                m_line.append('\n');
+            } else if (m_query == 1) {
+                m_line.append("oai:nsdl.org:nsdl:").append(n);
+                m_line.append(",5101\n");
+                if (even) {
+                    m_line.append("oai:nsdl.org:nsdl:").append(n);
+                    m_line.append(",set2\n");
+                }
+            } else if (even) {
+                m_line.append("oai:nsdl.org:nsdl:").append(n).append('\n');
+            }
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * The way ResultCombiner used to combine lines, by splitting them on
+     * commas.
+     */
+    private static class SplitCombiner {
+
+        private final BufferedReader m_r1;
+
+        private final BufferedReader m_r2;
+
+        private final BufferedReader m_r3;
+
+        private String m_l2;
+
+        private String m_l3;
+
+        public SplitCombiner(BufferedReader r1,
+                             BufferedReader r2,
+                             BufferedReader r3) throws IOException {
+            m_r1 = r1;
+            m_r2 = r2;
+            m_r3 = r3;
+            m_l2 = nextLine(m_r2);
+            m_l3 = nextLine(m_r3);
+        }
+
+        public String readLine() throws IOException {
+            String l1 = nextLine(m_r1);
+            if (l1 == null) return null;
+            String itemID = l1.split(",")[1];
+            StringBuffer line = new StringBuffer();
+            line.append(l1 + ",");
+            if (m_l3 != null && m_l3.equals(itemID)) {
+                line.append(true);
+                m_l3 = nextLine(m_r3);
+            } else {
+                line.append(false);
+            }
+            while (m_l2 != null && m_l2.split(",")[0].equals(itemID)) {
+                line.append("," + m_l2.split(",")[1]);
+                m_l2 = nextLine(m_r2);
+            }
+            return line.toString();
+        }
+
+        private static String nextLine(BufferedReader r) throws IOException {
+            String line = r.readLine();
+            while (line != null
+                    && (line.startsWith("\"") || (line.trim().equals("")))) {
+                line = r.readLine();
+            }
+            return line == null ? null : line.trim();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the bytes allocated by ElementContentCopier with the old
+ * buffer-the-whole-document approach as the wrapped content grows.
+ * <p>
+ * Usage: <code>java ElementContentCopierBenchmark [maxMegabytes]</code>
+ * </p>
+ */
+public class ElementContentCopierBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int maxMB = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory
+                        .getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        ElementContentCopier copier =
+                new ElementContentCopier("abouts", "abouts xml");
+        System.out.println("size(MB)  buffered(bytes/op)  streaming(bytes/op)");
+        for (int mb = 1; mb <= maxMB; mb *= 2) {
+            byte[] doc = document(mb * 1024 * 1024);
+            long buffered = 0;
+            long streaming = 0;
+            for (int i = 0; i < ROUNDS; i++) {
+                long start = threads.getThreadAllocatedBytes(id);
+                buffered(doc, new NullWriter());
+                long mid = threads.getThreadAllocatedBytes(id);
+                copier.copy(new InputStreamReader(new ByteArrayInputStream(doc),
+                                                  "UTF-8"), new NullWriter());
+                long end = threads.getThreadAllocatedBytes(id);
+                // ignore the first (warm-up) round
+                if (i > 0) {
+                    buffered += mid - start;
+                    streaming += end - mid;
+                }
+            }
+            System.out.println(mb + "  " + buffered / (ROUNDS - 1) + "  "
+                    + streaming / (ROUNDS - 1));
+        }
+    }
+
+    /**
+     * The approach ElementContentCopier replaced.
+     */
+    private static void buffered(byte[] doc, Writer out) throws IOException {
+        BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new ByteArrayInputStream(doc),
+                                                         "UTF-8"));
+        StringBuffer buf = new StringBuffer();
+        String line = reader.readLine();
+        while (line != null) {
+            buf.append(line + "\n");
+            line = reader.readLine();
+        }
+        String xml = buf.toString().replaceAll("\\s*<\\?xml.*?\\?>\\s*", "");
+        int i = xml.indexOf("<abouts>");
+        xml = xml.substring(i + 8);
+        i = xml.lastIndexOf("</abouts>");
+        out.write(xml.substring(0, i));
+    }
+
+    private static byte[] document(int size) throws IOException {
+        StringBuilder xml =
+                new StringBuilder("<?xml version=\"1.0\"?>\n<abouts>\n");
+        int i = 0;
+        while (xml.length() < size) {
+            xml.append("  <about><provenance id=\"" + i++
+                    + "\">some text</provenance></about>\n");
+        }
+        xml.append("</abouts>\n");
+        return xml.toString().getBytes("UTF-8");
+    }
+
+    private static class NullWriter
+            extends Writer {
+
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+}
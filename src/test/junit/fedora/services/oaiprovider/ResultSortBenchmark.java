@@ -0,0 +1,164 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the ways primary query results can reach the combiner in itemID
+ * order: already ordered by the triplestore, sorted in memory all at once
+ * (as the triplestore does), or sorted locally by ResultSorter with bounded
+ * memory.
+ * <p>
+ * The triplestore's own sort can't be timed here; reading presorted results
+ * shows what it leaves for the provider to do, and the in-memory sort shows
+ * the cost and memory of sorting everything at once.
+ * </p>
+ * <p>
+ * Usage: <code>java ResultSortBenchmark [tuples [sortMemoryMB]]</code>.
+ * Without arguments, 1M and 10M tuples are sorted with 16MB.
+ * </p>
+ */
+public class ResultSortBenchmark {
+
+    private static final String[] METHODS =
+            {"presorted", "in-memory", "external"};
+
+    public static void main(String[] args) throws Exception {
+        int[] counts =
+                args.length > 0 ? new int[] {Integer.parseInt(args[0])}
+                        : new int[] {1000000, 10000000};
+        long memory =
+                (args.length > 1 ? Integer.parseInt(args[1]) : 16) * 1024L
+                        * 1024L;
+        File dir = File.createTempFile("oaiprovider-sort-benchmark", "");
+        dir.delete();
+        ResultSpool spools = new ResultSpool(dir, 1024 * 1024, 0);
+        System.out.println("tuples  method  ms  tuples/s  heapMB");
+        for (int count : counts) {
+            ResultSpool.Spool sorted = write(spools, count, false);
+            ResultSpool.Spool shuffled = write(spools, count, true);
+            for (int method = 0; method < METHODS.length; method++) {
+                ResultSpool.Spool input = method == 0 ? sorted : shuffled;
+                System.gc();
+                long start = System.currentTimeMillis();
+                String result;
+                try {
+                    long heap = run(method, input, spools, memory);
+                    long ms = Math.max(1, System.currentTimeMillis() - start);
+                    result =
+                            ms + "  " + count * 1000L / ms + "  " + heap
+                                    / (1024 * 1024);
+                } catch (OutOfMemoryError e) {
+                    result = "out of memory";
+                }
+                System.out.println(count + "  " + METHODS[method] + "  "
+                        + result);
+            }
+            sorted.delete();
+            shuffled.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Read the results in order and give the heap held by the method once
+     * the results are ready to be read.
+     */
+    private static long run(int method,
+                            ResultSpool.Spool input,
+                            ResultSpool spools,
+                            long memory) throws IOException {
+        BufferedReader in =
+                new BufferedReader(new InputStreamReader(input
+                        .getSharedInputStream(), "UTF-8"));
+        BufferedReader ordered;
+        long heap;
+        if (method == 0) {
+            ordered = in;
+            heap = used();
+        } else if (method == 1) {
+            List<String> lines = new ArrayList<String>();
+            String line = in.readLine();
+            while (line != null) {
+                lines.add(line);
+                line = in.readLine();
+            }
+            in.close();
+            Collections.sort(lines, new Comparator<String>() {
+
+                public int compare(String a, String b) {
+                    return ResultSorter.compare(a, b, 1);
+                }
+            });
+            heap = used();
+            final List<String> all = lines;
+            ordered = new BufferedReader(new Reader() {
+
+                private int m_next;
+
+                private String m_line = "";
+
+                private int m_pos;
+
+                public int read(char[] buf, int off, int len) {
+                    if (m_pos == m_line.length()) {
+                        if (m_next == all.size()) return -1;
+                        m_line = all.get(m_next++) + "\n";
+                        m_pos = 0;
+                    }
+                    int n = Math.min(len, m_line.length() - m_pos);
+                    m_line.getChars(m_pos, m_pos + n, buf, off);
+                    m_pos += n;
+                    return n;
+                }
+
+                public void close() {
+                }
+            });
+        } else {
+            ordered = new ResultSorter(spools, memory).sort(in, 1);
+            heap = used();
+        }
+        String line = ordered.readLine();
+        while (line != null) {
+            line = ordered.readLine();
+        }
+        ordered.close();
+        return heap;
+    }
+
+    private static ResultSpool.Spool write(ResultSpool spools,
+                                           int count,
+                                           boolean shuffled)
+            throws IOException {
+        Random random = new Random(count);
+        ResultSpool.Spool spool = spools.create();
+        Writer out =
+                new BufferedWriter(new OutputStreamWriter(spool, "UTF-8"));
+        for (int i = 0; i < count; i++) {
+            int n = shuffled ? random.nextInt(count) : i;
+            String pid = "nsdl:" + (1000000000 + n);
+            out.write("info:fedora/" + pid + ",oai:nsdl.org:" + pid
+                    + ",2005-09-20T12:49:14.77,"
+                    + "info:fedora/fedora-system:def/model#Active\n");
+        }
+        out.close();
+        return spool;
+    }
+
+    /**
+     * Get the heap in use after a collection, so garbage left by reading the
+     * input isn't counted.
+     */
+    private static long used() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,153 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+import proai.error.RepositoryException;
+
+public class TestCSVFieldReader
+        extends TestCase {
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestCSVFieldReader.class);
+    }
+
+    public void testQuotedValues() throws Exception {
+        CSVFieldReader in =
+                reader("\"item\",\"itemID\"\r\n" + "a,b\r\n" + "\r\n"
+                        + "\"has, a comma\",\"has \"\"quotes\"\"\"\n"
+                        + "\"two\nlines\",,\n" + "last,\"\"");
+        assertTrue(in.next());
+        assertEquals(2, in.getFieldCount());
+        assertEquals("a", in.getField(0));
+        assertEquals("b", in.getField(1));
+
+        assertTrue(in.next());
+        assertEquals("has, a comma", in.getField(0));
+        assertEquals("has \"quotes\"", in.getField(1));
+        assertEquals("\"has, a comma\",\"has \"\"quotes\"\"\"", in.toString());
+
+        assertTrue(in.next());
+        assertEquals(3, in.getFieldCount());
+        assertEquals("two\nlines", in.getField(0));
+        assertEquals("", in.getField(1));
+        assertEquals("", in.getField(2));
+
+        assertTrue(in.next());
+        assertEquals("last", in.getField(0));
+        assertEquals("", in.getField(1));
+        assertFalse(in.next());
+        assertFalse(in.next());
+    }
+
+    /**
+     * Only quoted column names at the start are taken as a header.
+     */
+    public void testHeader() throws Exception {
+        CSVFieldReader in = reader("\"oai:a,b\"\n\"itemID\"\n");
+        assertTrue(in.next());
+        assertEquals("oai:a,b", in.getField(0));
+        assertTrue(in.next());
+        assertEquals("itemID", in.getField(0));
+        assertFalse(in.next());
+    }
+
+    public void testMalformed() throws Exception {
+        assertMalformed("\"unterminated\n");
+        assertMalformed("\"quoted\"text,b\n");
+    }
+
+    public void testCompare() throws Exception {
+        CSVFieldReader a = reader("x,\"oai:a,b\"\n");
+        CSVFieldReader b = reader("\"oai:a,b\",y\n");
+        assertTrue(a.next());
+        assertTrue(b.next());
+        assertTrue(a.fieldEquals(1, b, 0));
+        assertTrue(a.fieldEquals(1, "oai:a,b"));
+        assertFalse(a.fieldEquals(0, b, 0));
+        assertTrue(a.compareField(0, b, 0) > 0);
+        assertTrue(a.compareField(1, b, 1) < 0);
+    }
+
+    /**
+     * Lines are compared by their unquoted values, as records are.
+     */
+    public void testCompareLines() {
+        assertEquals(0, CSVFieldReader.compareField("x,\"oai:a,b\"",
+                                                    "y,\"oai:a,b\"",
+                                                    1));
+        assertEquals(0, CSVFieldReader.compareField("\"a\"\"b\",x",
+                                                    "a\"b,y",
+                                                    0));
+        assertTrue(CSVFieldReader.compareField("x,\"oai:a,b\"", "x,oai:a", 1) > 0);
+        assertTrue(CSVFieldReader.compareField("x,\"oai:a,b\"", "x,oai:b", 1) < 0);
+        assertTrue(CSVFieldReader.compareField("oai:1", "oai:1,set", 1) < 0);
+    }
+
+    public void testQuote() {
+        assertEquals("plain", CSVFieldReader.quote("plain"));
+        assertEquals("\"a,b\"", CSVFieldReader.quote("a,b"));
+        assertEquals("\"a\"\"b\"", CSVFieldReader.quote("a\"b"));
+        assertEquals("\"a\nb\"", CSVFieldReader.quote("a\nb"));
+    }
+
+    /**
+     * Values with commas and quotes are combined whole.
+     */
+    public void testCombine() throws Exception {
+        String active = "info:fedora/fedora-system:def/model#Active";
+        ResultCombiner combiner =
+                new ResultCombiner(buffered("\"item\",\"itemID\",\"date\",\"state\"\n"
+                                           + "info:fedora/demo:1,\"oai:demo:1,a\",2005-01-01T00:00:00,"
+                                           + active + "\n"
+                                           + "info:fedora/demo:2,oai:demo:2,2005-01-01T00:00:00,"
+                                           + active + "\n"),
+                                   buffered("\"itemID\",\"setSpec\"\n"
+                                           + "\"oai:demo:1,a\",\"set,1\"\n"
+                                           + "\"oai:demo:1,a\",set2\n"
+                                           + "oai:demo:2,\"set \"\"3\"\"\"\n"),
+                                   buffered("\"itemID\"\n\"oai:demo:1,a\"\n"));
+        assertTrue(combiner.next());
+        assertEquals("oai:demo:1,a", combiner.getFields().getField(1));
+        assertTrue(combiner.hasAbout());
+        String[] setSpecs = combiner.getSetSpecs();
+        assertEquals(2, setSpecs.length);
+        assertEquals("set,1", setSpecs[0]);
+        assertEquals("set2", setSpecs[1]);
+        assertEquals("info:fedora/demo:2,oai:demo:2,2005-01-01T00:00:00,"
+                + active + ",false,\"set \"\"3\"\"\"", combiner.readLine());
+        assertNull(combiner.readLine());
+    }
+
+    public void testCombineMalformed() throws Exception {
+        ResultCombiner combiner =
+                new ResultCombiner(buffered("info:fedora/demo:1,\"oai:demo:1\n"),
+                                   null,
+                                   null);
+        try {
+            combiner.next();
+            fail("Expected RepositoryException");
+        } catch (RepositoryException e) {
+        }
+    }
+
+    private static void assertMalformed(String csv) {
+        try {
+            reader(csv).next();
+            fail("Expected IOException for " + csv);
+        } catch (IOException e) {
+        }
+    }
+
+    private static CSVFieldReader reader(String csv) {
+        return new CSVFieldReader(new StringReader(csv));
+    }
+
+    private static BufferedReader buffered(String csv) {
+        return new BufferedReader(new StringReader(csv));
+    }
+}
@@ -0,0 +1,140 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import junit.framework.TestCase;
+
+import org.trippi.RDFFormat;
+import org.trippi.TupleIterator;
+
+import proai.error.RepositoryException;
+
+public class TestCSVTupleReader
+        extends TestCase {
+
+    private static final String ACTIVE =
+            "info:fedora/fedora-system:def/model#Active";
+
+    private static final String PRIMARY =
+            sparql(new String[] {"item", "itemID", "date", "state"},
+                   new String[] {
+                           "<item uri=\"info:fedora/demo:1\"/>"
+                                   + "<itemID>oai:demo:1</itemID>"
+                                   + date("2005-09-20T12:49:14.77")
+                                   + "<state uri=\"" + ACTIVE + "\"/>",
+                           "<item uri=\"info:fedora/demo:2\"/>"
+                                   + "<itemID>oai:demo:2</itemID>"
+                                   + date("2005-09-20T12:50:01")
+                                   + "<state uri=\"" + ACTIVE + "\"/>",
+                           "<item uri=\"info:fedora/demo:3\"/>"
+                                   + "<itemID>oai:demo:3</itemID>"
+                                   + date("2005-09-20T12:50:02.123")
+                                   + "<state uri=\"" + ACTIVE + "\"/>"});
+
+    private static final String SETS =
+            sparql(new String[] {"itemID", "setSpec"}, new String[] {
+                    "<itemID>oai:demo:2</itemID><setSpec>set1</setSpec>",
+                    "<itemID>oai:demo:2</itemID><setSpec>set2</setSpec>",
+                    "<itemID>oai:demo:3</itemID><setSpec>set1</setSpec>"});
+
+    private static final String ABOUTS =
+            sparql(new String[] {"itemID"},
+                   new String[] {"<itemID>oai:demo:1</itemID>",
+                           "<itemID>oai:demo:3</itemID>"});
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestCSVTupleReader.class);
+    }
+
+    /**
+     * The text read is the same as the text written by toStream.
+     */
+    public void testSameAsCSV() throws Exception {
+        String odd =
+                sparql(new String[] {"a", "b"}, new String[] {
+                        "<a>has, a comma</a><b>has \"quotes\"</b>",
+                        "<a uri=\"urn:x\"/><b>plain</b>"});
+        assertEquals(spool(PRIMARY), read(PRIMARY));
+        assertEquals(spool(SETS), read(SETS));
+        assertEquals(spool(odd), read(odd));
+    }
+
+    public void testCombine() throws Exception {
+        ResultCombiner combiner =
+                new ResultCombiner(reader(PRIMARY),
+                                   reader(SETS),
+                                   reader(ABOUTS));
+        assertEquals("info:fedora/demo:1,oai:demo:1,2005-09-20T12:49:14.77,"
+                + ACTIVE + ",true", combiner.readLine());
+        assertEquals("info:fedora/demo:2,oai:demo:2,2005-09-20T12:50:01,"
+                + ACTIVE + ",false,set1,set2", combiner.readLine());
+        assertEquals("info:fedora/demo:3,oai:demo:3,2005-09-20T12:50:02.123,"
+                + ACTIVE + ",true,set1", combiner.readLine());
+        assertNull(combiner.readLine());
+    }
+
+    /**
+     * A broken stream is reported rather than taken as the end of the
+     * results.
+     */
+    public void testTruncated() throws Exception {
+        String truncated = PRIMARY.substring(0, PRIMARY.indexOf("demo:2"));
+        ResultCombiner combiner =
+                new ResultCombiner(reader(truncated), null, null);
+        try {
+            combiner.readLine();
+            combiner.readLine();
+            fail("Expected RepositoryException");
+        } catch (RepositoryException e) {
+        } finally {
+            combiner.close();
+        }
+    }
+
+    private static BufferedReader reader(String sparql) throws Exception {
+        return new BufferedReader(new CSVTupleReader(tuples(sparql)));
+    }
+
+    private static String read(String sparql) throws Exception {
+        Reader in = reader(sparql);
+        StringWriter out = new StringWriter();
+        char[] buf = new char[7];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        return out.toString();
+    }
+
+    private static String spool(String sparql) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tuples(sparql).toStream(out, RDFFormat.CSV);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    private static TupleIterator tuples(String sparql) throws Exception {
+        return TupleIterator.fromStream(new ByteArrayInputStream(sparql
+                .getBytes("UTF-8")), RDFFormat.SPARQL);
+    }
+
+    private static String date(String value) {
+        return "<date datatype=\"http://www.w3.org/2001/XMLSchema#dateTime\">"
+                + value + "</date>";
+    }
+
+    private static String sparql(String[] names, String[] results) {
+        StringBuffer s = new StringBuffer();
+        s.append("<sparql xmlns=\"http://www.w3.org/2001/sw/DataAccess/"
+                + "rf1/result\"><head>");
+        for (int i = 0; i < names.length; i++) {
+            s.append("<variable name=\"" + names[i] + "\"/>");
+        }
+        s.append("</head><results>");
+        for (int i = 0; i < results.length; i++) {
+            s.append("<result>" + results[i] + "</result>");
+        }
+        return s.append("</results></sparql>").toString();
+    }
+}
@@ -0,0 +1,113 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class TestCheckpointStore
+        extends TestCase {
+
+    private static final String QUERY = "select $item from <#ri> where ...";
+
+    private static final String CONTENT =
+            "\"item\",\"itemID\"\ninfo:fedora/demo:1,oai:demo:1\n";
+
+    private File m_dir;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestCheckpointStore.class);
+    }
+
+    public void setUp() throws Exception {
+        m_dir = File.createTempFile("oaiprovider-checkpoint-test", "");
+        m_dir.delete();
+        m_dir.mkdirs();
+    }
+
+    public void tearDown() {
+        File[] files = m_dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        m_dir.delete();
+    }
+
+    public void testCommit() throws Exception {
+        CheckpointStore store = new CheckpointStore(m_dir, 60000);
+        assertNull(store.open(QUERY));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CheckpointStore.Checkpoint checkpoint = store.create(QUERY, out);
+        checkpoint.write(CONTENT.getBytes("UTF-8"));
+        checkpoint.commit();
+        assertEquals(CONTENT, new String(out.toByteArray(), "UTF-8"));
+        assertEquals(1, store.getCommitted());
+
+        // a new store over the same directory finds it
+        store = new CheckpointStore(m_dir, 60000);
+        assertEquals(CONTENT, read(store.open(QUERY)));
+        assertEquals(CONTENT, read(store.open(QUERY)));
+        assertEquals(2, store.getResumed());
+        assertNull(store.open(QUERY + " "));
+
+        store.remove(Arrays.asList(new String[] {QUERY}));
+        assertNull(store.open(QUERY));
+        assertEquals(0, m_dir.list().length);
+    }
+
+    public void testNotCommitted() throws Exception {
+        CheckpointStore store = new CheckpointStore(m_dir, 60000);
+        CheckpointStore.Checkpoint checkpoint =
+                store.create(QUERY, new ByteArrayOutputStream());
+        checkpoint.write(CONTENT.getBytes("UTF-8"));
+        checkpoint.close();
+        assertNull(store.open(QUERY));
+        assertEquals(0, m_dir.list().length);
+    }
+
+    public void testCorrupt() throws Exception {
+        CheckpointStore store = new CheckpointStore(m_dir, 60000);
+        save(store);
+        File file = m_dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length() - 6);
+        raf.write(0xFF ^ raf.read());
+        raf.close();
+        assertNull(store.open(QUERY));
+        assertFalse(file.exists());
+    }
+
+    public void testExpire() throws Exception {
+        CheckpointStore store = new CheckpointStore(m_dir, 60000);
+        save(store);
+        File file = m_dir.listFiles()[0];
+        file.setLastModified(System.currentTimeMillis() - 120000);
+        new CheckpointStore(m_dir, 60000);
+        assertFalse(file.exists());
+
+        save(store);
+        m_dir.listFiles()[0].setLastModified(System.currentTimeMillis() - 120000);
+        assertNull(store.open(QUERY));
+        assertEquals(0, m_dir.list().length);
+    }
+
+    private static void save(CheckpointStore store) throws IOException {
+        CheckpointStore.Checkpoint checkpoint =
+                store.create(QUERY, new ByteArrayOutputStream());
+        checkpoint.write(CONTENT.getBytes("UTF-8"));
+        checkpoint.commit();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
@@ -0,0 +1,186 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import fedora.client.FedoraClient;
+import fedora.services.oaiprovider.test.StubHttpServer;
+
+public class TestConnectionPool
+        extends TestCase {
+
+    private static final int THREADS = 16;
+
+    private static final int REQUESTS_PER_THREAD = 20;
+
+    private StubHttpServer m_server;
+
+    private ConnectionPool m_pool;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestConnectionPool.class);
+    }
+
+    public void setUp() throws Exception {
+        m_server = new StubHttpServer();
+        for (int i = 0; i < 10; i++) {
+            m_server.put("/fedora/get/demo:" + i + "/DC",
+                         200,
+                         "text/xml",
+                         ("<dc id=\"" + i + "\"/>").getBytes("UTF-8"),
+                         i % 2 == 0);
+        }
+    }
+
+    public void tearDown() {
+        if (m_pool != null) m_pool.shutdown();
+        m_server.stop();
+    }
+
+    /**
+     * Many threads sharing one client reuse a bounded number of keep-alive
+     * connections.
+     */
+    public void testConcurrentRequests() throws Exception {
+        m_pool = new ConnectionPool("test", 8, 4, 0, true);
+        final FedoraClient client = newClient();
+        final List<String> errors =
+                Collections.synchronizedList(new ArrayList<String>());
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+
+                public void run() {
+                    for (int r = 0; r < REQUESTS_PER_THREAD; r++) {
+                        int i = (offset + r) % 10;
+                        try {
+                            String body =
+                                    read(client.get("info:fedora/demo:" + i
+                                            + "/DC", true));
+                            if (!body.equals("<dc id=\"" + i + "\"/>")) {
+                                errors.add("Wrong body for " + i + ": "
+                                        + body);
+                            }
+                        } catch (IOException e) {
+                            errors.add(e.toString());
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < THREADS; t++) {
+            threads[t].join();
+        }
+        assertEquals(Collections.EMPTY_LIST, errors);
+        assertEquals(THREADS * REQUESTS_PER_THREAD, m_pool.getBorrows());
+        assertTrue(m_pool.getStats(), m_pool.getMaxInUse() <= 4);
+        assertTrue(m_pool.getStats(), m_server.getConnectionCount() <= 4);
+        assertEquals(0, m_pool.getInUse());
+    }
+
+    public void testWaitTime() throws Exception {
+        m_server.delay("/fedora/get/demo:1/DC", 300);
+        m_pool = new ConnectionPool("test", 1, 1, 0, true);
+        final FedoraClient client = newClient();
+        Thread slow = new Thread() {
+
+            public void run() {
+                try {
+                    read(client.get("info:fedora/demo:1/DC", true));
+                } catch (IOException e) {
+                }
+            }
+        };
+        slow.start();
+        while (m_pool.getBorrows() == 0) {
+            Thread.sleep(10);
+        }
+        read(client.get("info:fedora/demo:2/DC", true));
+        slow.join();
+        assertEquals(2, m_pool.getBorrows());
+        assertTrue(m_pool.getStats(), m_pool.getMaxWait() >= 100);
+        assertEquals(1, m_server.getConnectionCount());
+    }
+
+    public void testAbort() throws Exception {
+        m_server.delay("/fedora/get/demo:1/DC", 3000);
+        m_pool = new ConnectionPool("test", 8, 4, 0, true);
+        PooledFedoraClient client = newClient();
+        final RequestAbort abort = new RequestAbort();
+        new Thread() {
+
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                }
+                abort.abort();
+            }
+        }.start();
+        long start = System.currentTimeMillis();
+        try {
+            client.get("info:fedora/demo:1/DC", true, abort);
+            fail("Expected IOException");
+        } catch (IOException e) {
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(0, m_pool.getInUse());
+
+        // a request already aborted is never sent
+        try {
+            client.get("info:fedora/demo:2/DC", true, abort);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Request aborted", e.getMessage());
+        }
+        assertEquals("<dc id=\"2\"/>", read(client.get("info:fedora/demo:2/DC",
+                                                       true)));
+    }
+
+    public void testIdleEviction() throws Exception {
+        m_pool = new ConnectionPool("test", 8, 4, 200, true);
+        FedoraClient client = newClient();
+        read(client.get("info:fedora/demo:1/DC", true));
+        assertEquals(1, m_pool.getConnectionsInPool());
+        long start = System.currentTimeMillis();
+        while (m_pool.getConnectionsInPool() > 0
+                && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(50);
+        }
+        assertEquals(0, m_pool.getConnectionsInPool());
+
+        // a new connection is opened as needed
+        read(client.get("info:fedora/demo:1/DC", true));
+        assertEquals(2, m_server.getConnectionCount());
+    }
+
+    private PooledFedoraClient newClient() throws Exception {
+        PooledFedoraClient client =
+                new PooledFedoraClient(m_server.getBaseURL() + "fedora/",
+                                       "fedoraAdmin",
+                                       "pass",
+                                       m_pool);
+        client.TIMEOUT_SECONDS = 5;
+        client.SOCKET_TIMEOUT_SECONDS = 5;
+        return client;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
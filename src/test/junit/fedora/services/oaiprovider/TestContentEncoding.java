@@ -0,0 +1,171 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.net.URL;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import fedora.client.FedoraClient;
+import fedora.client.HttpInputStream;
+import fedora.services.oaiprovider.test.StubHttpServer;
+
+public class TestContentEncoding
+        extends TestCase {
+
+    private static final String CONTENT;
+
+    static {
+        StringBuffer s = new StringBuffer("<records>");
+        for (int i = 0; i < 2000; i++) {
+            s.append("<record id=\"" + i + "\">Some repetitive text</record>");
+        }
+        CONTENT = s.append("</records>").toString();
+    }
+
+    private StubHttpServer m_server;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestContentEncoding.class);
+    }
+
+    public void setUp() throws Exception {
+        m_server = new StubHttpServer();
+        m_server.put("/fedora/get/demo:1/DC", 200, "text/xml; charset=UTF-8",
+                     CONTENT.getBytes("UTF-8"), false);
+        m_server.compress("/fedora/get/demo:1/DC", "gzip");
+        m_server.put("/fedora/get/demo:2/DC", 200, "text/xml",
+                     CONTENT.getBytes("UTF-8"), true);
+        m_server.compress("/fedora/get/demo:2/DC", "deflate");
+    }
+
+    public void tearDown() {
+        m_server.stop();
+    }
+
+    public void testDecode() throws Exception {
+        byte[] content = CONTENT.getBytes("UTF-8");
+        assertEquals(CONTENT, read(ContentEncoding.decode(compress(content,
+                                                                  "gzip",
+                                                                  false),
+                                                          "gzip")));
+        assertEquals(CONTENT, read(ContentEncoding.decode(compress(content,
+                                                                  "deflate",
+                                                                  false),
+                                                          "Deflate")));
+        assertEquals(CONTENT, read(ContentEncoding.decode(compress(content,
+                                                                  "deflate",
+                                                                  true),
+                                                          "deflate")));
+        assertEquals(CONTENT, read(ContentEncoding
+                .decode(new ByteArrayInputStream(content), "identity")));
+        assertEquals(CONTENT, read(ContentEncoding
+                .decode(new ByteArrayInputStream(content), null)));
+        try {
+            ContentEncoding.decode(new ByteArrayInputStream(content), "br");
+            fail("Expected IOException");
+        } catch (IOException e) {
+        }
+    }
+
+    public void testFedoraClient() throws Exception {
+        TransferStats stats = new TransferStats("test");
+        ConnectionPool pool = new ConnectionPool("test", 2, 2, 0, true);
+        FedoraClient client =
+                new CompressingFedoraClient(m_server.getBaseURL() + "fedora/",
+                                            "fedoraAdmin",
+                                            "pass",
+                                            pool,
+                                            stats);
+        HttpInputStream in = client.get("info:fedora/demo:1/DC", true);
+        assertEquals("text/xml; charset=UTF-8", in.getContentType());
+        assertEquals(CONTENT, read(in));
+        assertEquals(CONTENT, read(client.get("info:fedora/demo:2/DC", true)));
+        assertEquals("gzip, deflate", m_server.getAcceptEncodings().get(0));
+        assertStats(stats, 2, 2);
+
+        try {
+            client.get("info:fedora/demo:3/DC", true);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage()
+                    .startsWith("Request failed [404"));
+        }
+        pool.shutdown();
+    }
+
+    public void testNioHttpClient() throws Exception {
+        TransferStats stats = new TransferStats("test");
+        NioHttpClient client = new NioHttpClient(2000, 2000, 2);
+        try {
+            client.setCompression(stats);
+            NioHttpClient.Response in =
+                    client.get(new URL(m_server.getBaseURL()
+                            + "fedora/get/demo:1/DC"), null);
+            assertEquals("text/xml; charset=UTF-8", in.getContentType());
+            assertEquals(CONTENT, read(in));
+            assertEquals(CONTENT, read(client.get(new URL(m_server
+                    .getBaseURL()
+                    + "fedora/get/demo:2/DC"), null)));
+            assertEquals("gzip, deflate", m_server.getAcceptEncodings().get(0));
+            assertStats(stats, 2, 2);
+        } finally {
+            client.close();
+        }
+    }
+
+    public void testNotCompressedUnlessAsked() throws Exception {
+        NioHttpClient client = new NioHttpClient(2000, 2000, 2);
+        try {
+            assertEquals(CONTENT, read(client.get(new URL(m_server
+                    .getBaseURL()
+                    + "fedora/get/demo:1/DC"), null)));
+            assertNull(m_server.getAcceptEncodings().get(0));
+        } finally {
+            client.close();
+        }
+    }
+
+    private static void assertStats(TransferStats stats,
+                                     int responses,
+                                     int compressed) throws Exception {
+        assertEquals(responses, stats.getResponses());
+        assertEquals(compressed, stats.getCompressedResponses());
+        assertEquals(responses * CONTENT.getBytes("UTF-8").length, stats
+                .getContentBytes());
+        assertTrue(stats.getStats(), stats.getWireBytes() * 10 < stats
+                .getContentBytes());
+    }
+
+    private static InputStream compress(byte[] content,
+                                        String encoding,
+                                        boolean raw) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out;
+        if (encoding.equals("gzip")) {
+            out = new GZIPOutputStream(bytes);
+        } else {
+            out =
+                    new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION,
+                                                                 raw));
+        }
+        out.write(content);
+        out.close();
+        return new ByteArrayInputStream(bytes.toByteArray());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}
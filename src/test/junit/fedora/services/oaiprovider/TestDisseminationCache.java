@@ -0,0 +1,205 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class TestDisseminationCache
+        extends TestCase {
+
+    private File m_dir;
+
+    private MapSource m_source;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestDisseminationCache.class);
+    }
+
+    public void setUp() throws Exception {
+        m_dir = File.createTempFile("oaiprovider-cache", "");
+        m_dir.delete();
+        m_source = new MapSource();
+    }
+
+    public void tearDown() {
+        File[] files = m_dir.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                files[i].delete();
+            }
+        }
+        m_dir.delete();
+    }
+
+    public void testHitAndMiss() throws Exception {
+        m_source.put("info:fedora/demo:1/DC", "<dc/>");
+        DisseminationCache cache = newCache(1024 * 1024);
+        assertEquals("<dc/>", read(cache, "info:fedora/demo:1/DC", "d1"));
+        assertEquals("<dc/>", read(cache, "info:fedora/demo:1/DC", "d1"));
+        assertEquals(1, m_source.getCount());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // a new date means the object changed
+        m_source.put("info:fedora/demo:1/DC", "<dc>new</dc>");
+        assertEquals("<dc>new</dc>", read(cache, "info:fedora/demo:1/DC", "d2"));
+        assertEquals(2, m_source.getCount());
+    }
+
+    public void testNoDate() throws Exception {
+        m_source.put("info:fedora/demo:1/DC", "<dc/>");
+        DisseminationCache cache = newCache(1024 * 1024);
+        read(cache, "info:fedora/demo:1/DC", null);
+        read(cache, "info:fedora/demo:1/DC", null);
+        assertEquals(2, m_source.getCount());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testPartialRead() throws Exception {
+        m_source.put("info:fedora/demo:1/DC", "<dc>some content</dc>");
+        DisseminationCache cache = newCache(1024 * 1024);
+        InputStream in = cache.get("info:fedora/demo:1/DC", "d1");
+        in.read();
+        in.close();
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, m_dir.list().length);
+        assertEquals("<dc>some content</dc>",
+                     read(cache, "info:fedora/demo:1/DC", "d1"));
+        assertEquals(2, m_source.getCount());
+        assertEquals(1, cache.getEntryCount());
+    }
+
+    public void testEviction() throws Exception {
+        DisseminationCache cache = newCache(1600);
+        for (int i = 0; i < 20; i++) {
+            m_source.put("info:fedora/demo:" + i + "/DC", pad(i, 90));
+            read(cache, "info:fedora/demo:" + i + "/DC", "d1");
+            // keep the first one in use
+            read(cache, "info:fedora/demo:0/DC", "d1");
+        }
+        assertTrue(cache.getSize() <= 1600);
+        assertTrue(cache.getEvictions() > 0);
+        assertEquals(cache.getEntryCount(), m_dir.list().length);
+        int count = m_source.getCount();
+        read(cache, "info:fedora/demo:0/DC", "d1");
+        read(cache, "info:fedora/demo:19/DC", "d1");
+        assertEquals(count, m_source.getCount());
+        read(cache, "info:fedora/demo:1/DC", "d1");
+        assertEquals(count + 1, m_source.getCount());
+    }
+
+    public void testTooLarge() throws Exception {
+        m_source.put("info:fedora/demo:1/DC", pad(1, 200));
+        DisseminationCache cache = newCache(1600);
+        assertEquals(pad(1, 200), read(cache, "info:fedora/demo:1/DC", "d1"));
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testCorruptEntry() throws Exception {
+        m_source.put("info:fedora/demo:1/DC", "<dc/>");
+        DisseminationCache cache = newCache(1024 * 1024);
+        read(cache, "info:fedora/demo:1/DC", "d1");
+        File entry = m_dir.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(entry, "rw");
+        file.write('x');
+        file.close();
+        try {
+            read(cache, "info:fedora/demo:1/DC", "d1");
+            fail("Expected IOException");
+        } catch (IOException e) {
+        }
+        assertEquals(1, cache.getCorrupt());
+        assertEquals(0, cache.getEntryCount());
+        assertFalse(entry.exists());
+        assertEquals(1, m_source.getCount());
+        assertEquals("<dc/>", read(cache, "info:fedora/demo:1/DC", "d1"));
+        assertEquals(2, m_source.getCount());
+    }
+
+    public void testTruncatedEntry() throws Exception {
+        m_source.put("info:fedora/demo:1/DC", "<dc>some content</dc>");
+        DisseminationCache cache = newCache(1024 * 1024);
+        read(cache, "info:fedora/demo:1/DC", "d1");
+        File entry = m_dir.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(entry, "rw");
+        file.setLength(10);
+        file.close();
+        try {
+            read(cache, "info:fedora/demo:1/DC", "d1");
+            fail("Expected IOException");
+        } catch (IOException e) {
+        }
+        assertEquals(1, cache.getCorrupt());
+        assertEquals(0, cache.getEntryCount());
+    }
+
+    public void testReload() throws Exception {
+        m_source.put("info:fedora/demo:1/DC", "<dc/>");
+        read(newCache(1024 * 1024), "info:fedora/demo:1/DC", "d1");
+        new FileOutputStream(new File(m_dir, "leftover.part")).close();
+        DisseminationCache cache = newCache(1024 * 1024);
+        assertEquals(1, cache.getEntryCount());
+        assertEquals("<dc/>", read(cache, "info:fedora/demo:1/DC", "d1"));
+        assertEquals(1, m_source.getCount());
+        assertFalse(new File(m_dir, "leftover.part").exists());
+    }
+
+    private DisseminationCache newCache(long maxSize) throws IOException {
+        return new DisseminationCache(m_source, m_dir, maxSize);
+    }
+
+    private static String pad(int n, int length) {
+        StringBuffer s = new StringBuffer("<dc>" + n);
+        while (s.length() < length - 5) {
+            s.append('.');
+        }
+        return s.append("</dc>").toString();
+    }
+
+    private static String read(DisseminationSource source,
+                               String dissURI,
+                               String date) throws IOException {
+        InputStream in = source.get(dissURI, date);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[3];
+            int len = in.read(buf);
+            while (len != -1) {
+                out.write(buf, 0, len);
+                len = in.read(buf);
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static class MapSource
+            implements DisseminationSource {
+
+        private Map<String, String> m_content = new HashMap<String, String>();
+
+        private int m_count;
+
+        public void put(String dissURI, String content) {
+            m_content.put(dissURI, content);
+        }
+
+        public int getCount() {
+            return m_count;
+        }
+
+        public InputStream get(String dissURI, String date) throws IOException {
+            m_count++;
+            String content = m_content.get(dissURI);
+            if (content == null) throw new FileNotFoundException(dissURI);
+            return new ByteArrayInputStream(content.getBytes("UTF-8"));
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,129 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class TestDisseminationCircuitBreaker
+        extends TestCase {
+
+    private static final String SDEF = "info:fedora/*/demo:sdef/get";
+
+    private FailingSource m_source;
+
+    private long m_now;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestDisseminationCircuitBreaker.class);
+    }
+
+    public void setUp() {
+        m_source = new FailingSource();
+        m_now = 1000000;
+    }
+
+    public void testGetService() {
+        assertEquals(SDEF, DisseminationCircuitBreaker
+                .getService("info:fedora/demo:1/demo:sdef/get"));
+        assertEquals("info:fedora/*/DC", DisseminationCircuitBreaker
+                .getService("info:fedora/demo:1/DC"));
+    }
+
+    public void testOpensAndCloses() throws Exception {
+        DisseminationCircuitBreaker breaker = newBreaker(3, 0);
+        m_source.failing.add("demo:sdef");
+        for (int i = 0; i < 3; i++) {
+            assertFails(breaker, "info:fedora/demo:" + i + "/demo:sdef/get");
+        }
+        assertEquals(3, m_source.count);
+        assertTrue(breaker.getStates().get(SDEF).startsWith("open"));
+
+        // fails fast while open, other services are unaffected
+        assertFails(breaker, "info:fedora/demo:9/demo:sdef/get");
+        assertEquals(3, m_source.count);
+        breaker.get("info:fedora/demo:9/DC", null);
+        assertEquals(4, m_source.count);
+
+        // a failed trial re-opens it
+        m_now += 60000;
+        assertTrue(breaker.getStates().get(SDEF).startsWith("half-open"));
+        assertFails(breaker, "info:fedora/demo:9/demo:sdef/get");
+        assertEquals(5, m_source.count);
+        assertFails(breaker, "info:fedora/demo:9/demo:sdef/get");
+        assertEquals(5, m_source.count);
+
+        // a successful trial closes it
+        m_now += 60000;
+        m_source.failing.clear();
+        breaker.get("info:fedora/demo:9/demo:sdef/get", null);
+        assertTrue(breaker.getStates().get(SDEF).startsWith("closed"));
+        breaker.get("info:fedora/demo:8/demo:sdef/get", null);
+        assertEquals(7, m_source.count);
+    }
+
+    public void testSuccessResetsCount() throws Exception {
+        DisseminationCircuitBreaker breaker = newBreaker(2, 0);
+        m_source.failing.add("demo:1");
+        assertFails(breaker, "info:fedora/demo:1/demo:sdef/get");
+        breaker.get("info:fedora/demo:2/demo:sdef/get", null);
+        assertFails(breaker, "info:fedora/demo:1/demo:sdef/get");
+        breaker.get("info:fedora/demo:2/demo:sdef/get", null);
+        assertEquals(4, m_source.count);
+    }
+
+    public void testRemembersFailures() throws Exception {
+        DisseminationCircuitBreaker breaker = newBreaker(0, 30000);
+        m_source.failing.add("demo:1");
+        assertFails(breaker, "info:fedora/demo:1/DC");
+        assertFails(breaker, "info:fedora/demo:1/DC");
+        assertEquals(1, m_source.count);
+        assertEquals(1, breaker.getFailureCount());
+        m_now += 30000;
+        m_source.failing.clear();
+        breaker.get("info:fedora/demo:1/DC", null);
+        assertEquals(2, m_source.count);
+        assertEquals(0, breaker.getFailureCount());
+    }
+
+    private DisseminationCircuitBreaker newBreaker(int threshold, long ttl) {
+        return new DisseminationCircuitBreaker(m_source, threshold, 60000, ttl) {
+
+            protected long now() {
+                return m_now;
+            }
+        };
+    }
+
+    private static void assertFails(DisseminationSource source, String dissURI) {
+        try {
+            source.get(dissURI, null);
+            fail("Expected IOException for " + dissURI);
+        } catch (IOException e) {
+        }
+    }
+
+    private static class FailingSource
+            implements DisseminationSource {
+
+        public Set<String> failing = new HashSet<String>();
+
+        public int count;
+
+        public InputStream get(String dissURI, String date) throws IOException {
+            count++;
+            for (String s : failing) {
+                if (dissURI.indexOf(s) != -1) {
+                    throw new IOException("Request failed [500]");
+                }
+            }
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package fedora.services.oaiprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TestDisseminationFetcher
+        extends TestCase {
+
+    private LatchSource m_source;
+
+    private DisseminationFetcher m_fetcher;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestDisseminationFetcher.class);
+    }
+
+    public void setUp() {
+        m_source = new LatchSource();
+        m_fetcher = new DisseminationFetcher(m_source, 2);
+    }
+
+    public void tearDown() {
+        m_source.release.countDown();
+        m_fetcher.close();
+    }
+
+    /**
+     * The request is made without waiting for the stream to be taken, and
+     * the source's stream is given back as-is.
+     */
+    public void testFetchesAhead() throws Exception {
+        DisseminationFetcher.Fetch fetch =
+                m_fetcher.fetch("info:fedora/demo:1/about", "d1");
+        assertTrue(m_source.requested.await(5, TimeUnit.SECONDS));
+        m_source.release.countDown();
+        InputStream in = fetch.get();
+        assertSame(m_source.stream, in);
+        assertEquals("info:fedora/demo:1/about d1", read(in));
+
+        // once taken, the stream is the caller's to close
+        fetch.discard();
+        assertFalse(m_source.stream.closed);
+        in.close();
+    }
+
+    /**
+     * A stream that arrives after its fetch was discarded is closed.
+     */
+    public void testDiscardBeforeArrival() throws Exception {
+        DisseminationFetcher.Fetch fetch =
+                m_fetcher.fetch("info:fedora/demo:1/about", "d1");
+        assertTrue(m_source.requested.await(5, TimeUnit.SECONDS));
+        fetch.discard();
+        m_source.release.countDown();
+        assertTrue(m_source.returned.await(5, TimeUnit.SECONDS));
+        assertClosed(m_source.stream);
+    }
+
+    public void testDiscardAfterArrival() throws Exception {
+        m_source.release.countDown();
+        DisseminationFetcher.Fetch fetch =
+                m_fetcher.fetch("info:fedora/demo:1/about", "d1");
+        assertTrue(m_source.returned.await(5, TimeUnit.SECONDS));
+        fetch.discard();
+        assertClosed(m_source.stream);
+    }
+
+    public void testError() throws Exception {
+        m_source.release.countDown();
+        DisseminationFetcher.Fetch fetch =
+                m_fetcher.fetch("info:fedora/demo:1/missing", "d1");
+        try {
+            fetch.get();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("No such dissemination", e.getMessage());
+        }
+    }
+
+    private static void assertClosed(TrackedStream stream)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!stream.closed && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(stream.closed);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        StringBuffer s = new StringBuffer();
+        int c = in.read();
+        while (c != -1) {
+            s.append((char) c);
+            c = in.read();
+        }
+        return s.toString();
+    }
+
+    /**
+     * Gives the dissemination URI and date as content once released, and
+     * remembers the last stream given.
+     */
+    private static class LatchSource
+            implements DisseminationSource {
+
+        public final CountDownLatch requested = new CountDownLatch(1);
+
+        public final CountDownLatch release = new CountDownLatch(1);
+
+        public final CountDownLatch returned = new CountDownLatch(1);
+
+        public volatile TrackedStream stream;
+
+        public InputStream get(String dissURI, String date)
+                throws IOException {
+            requested.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // as a blocked request would, carry on
+            }
+            if (dissURI.endsWith("missing")) {
+                throw new IOException("No such dissemination");
+            }
+            stream = new TrackedStream(dissURI + " " + date);
+            returned.countDown();
+            return stream;
+        }
+
+        public void close() {
+        }
+    }
+
+    private static class TrackedStream
+            extends ByteArrayInputStream {
+
+        public volatile boolean closed;
+
+        public TrackedStream(String content) {
+            super(content.getBytes());
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TestDisseminationHedger
+        extends TestCase {
+
+    private DelayedSource m_source;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestDisseminationHedger.class);
+    }
+
+    public void setUp() {
+        m_source = new DelayedSource();
+    }
+
+    public void testFastResponseNotHedged() throws Exception {
+        DisseminationHedger hedger = new DisseminationHedger(m_source, 95, 500, 100, 4);
+        m_source.delays.add(Long.valueOf(0));
+        assertEquals("1", read(hedger.get("info:fedora/demo:1/DC", null)));
+        assertEquals(0, hedger.getHedges());
+        assertEquals(1, m_source.getCount());
+        hedger.close();
+    }
+
+    public void testSlowResponseHedged() throws Exception {
+        DisseminationHedger hedger = new DisseminationHedger(m_source, 95, 50, 100, 4);
+        m_source.delays.add(Long.valueOf(2000));
+        m_source.delays.add(Long.valueOf(0));
+        long start = System.currentTimeMillis();
+        assertEquals("2", read(hedger.get("info:fedora/demo:1/DC", null)));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(1, hedger.getHedges());
+        assertEquals(1, hedger.getHedgeWins());
+        // the losing response is closed once it arrives
+        Thread.sleep(2500);
+        assertTrue(m_source.streams[0].closed);
+        hedger.close();
+    }
+
+    public void testLoserAborted() throws Exception {
+        AbortableSource source = new AbortableSource();
+        DisseminationHedger hedger = new DisseminationHedger(source, 95, 50, 100, 4);
+        long start = System.currentTimeMillis();
+        assertEquals("2", read(hedger.get("info:fedora/demo:1/DC", null)));
+        assertEquals(1, hedger.getHedgeWins());
+        // the first request is aborted rather than waited for
+        assertTrue(source.aborted.await(1000, TimeUnit.MILLISECONDS));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        hedger.close();
+    }
+
+    public void testThreadsBounded() throws Exception {
+        final DisseminationHedger hedger =
+                new DisseminationHedger(m_source, 95, 5000, 0, 2);
+        Thread[] threads = new Thread[6];
+        for (int i = 0; i < threads.length; i++) {
+            m_source.delays.add(Long.valueOf(100));
+            threads[i] = new Thread() {
+
+                public void run() {
+                    try {
+                        read(hedger.get("info:fedora/demo:1/DC", null));
+                    } catch (IOException e) {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertEquals(6, m_source.getCount());
+        assertTrue(m_source.getMaxActive() <= 2);
+        hedger.close();
+    }
+
+    public void testBudget() throws Exception {
+        DisseminationHedger hedger = new DisseminationHedger(m_source, 95, 10, 0, 4);
+        m_source.delays.add(Long.valueOf(100));
+        assertEquals("1", read(hedger.get("info:fedora/demo:1/DC", null)));
+        assertEquals(0, hedger.getHedges());
+        assertEquals(1, m_source.getCount());
+        hedger.close();
+    }
+
+    public void testFailureNotHedged() throws Exception {
+        DisseminationHedger hedger = new DisseminationHedger(m_source, 95, 500, 100, 4);
+        m_source.delays.add(Long.valueOf(-1));
+        try {
+            hedger.get("info:fedora/demo:1/DC", null);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Request failed [500]", e.getMessage());
+        }
+        assertEquals(0, hedger.getHedges());
+        hedger.close();
+    }
+
+    public void testDelayFromPercentile() throws Exception {
+        DisseminationHedger hedger = new DisseminationHedger(m_source, 50, 1, 0, 4);
+        for (int i = 0; i < 100; i++) {
+            m_source.delays.add(Long.valueOf(i < 60 ? 0 : 30));
+            read(hedger.get("info:fedora/demo:1/DC", null));
+        }
+        assertTrue(hedger.getDelay() < 10);
+        for (int i = 0; i < 100; i++) {
+            m_source.delays.add(Long.valueOf(30));
+            read(hedger.get("info:fedora/demo:1/DC", null));
+        }
+        assertTrue(hedger.getDelay() >= 30);
+        hedger.close();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int c = in.read();
+            while (c != -1) {
+                out.write(c);
+                c = in.read();
+            }
+            return out.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Responds to the nth request after the nth delay (or fails if the
+     * delay is negative) with the content "n".
+     */
+    private static class DelayedSource
+            implements DisseminationSource {
+
+        public List<Long> delays =
+                Collections.synchronizedList(new ArrayList<Long>());
+
+        public TrackedStream[] streams = new TrackedStream[1000];
+
+        private int m_count;
+
+        private int m_active;
+
+        private int m_maxActive;
+
+        public synchronized int getCount() {
+            return m_count;
+        }
+
+        public synchronized int getMaxActive() {
+            return m_maxActive;
+        }
+
+        public InputStream get(String dissURI, String date) throws IOException {
+            int n;
+            synchronized (this) {
+                n = ++m_count;
+                m_maxActive = Math.max(m_maxActive, ++m_active);
+            }
+            try {
+                long delay = delays.get(n - 1).longValue();
+                if (delay < 0) throw new IOException("Request failed [500]");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                }
+                TrackedStream in =
+                        new TrackedStream(String.valueOf(n).getBytes());
+                streams[n - 1] = in;
+                return in;
+            } finally {
+                synchronized (this) {
+                    m_active--;
+                }
+            }
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Never responds to the first request until it is aborted, and responds
+     * to the second at once with the content "2".
+     */
+    private static class AbortableSource
+            implements AbortableDisseminationSource {
+
+        public final CountDownLatch aborted = new CountDownLatch(1);
+
+        private int m_count;
+
+        public InputStream get(String dissURI, String date) throws IOException {
+            return get(dissURI, date, new RequestAbort());
+        }
+
+        public InputStream get(String dissURI, String date, RequestAbort abort)
+                throws IOException {
+            synchronized (this) {
+                if (++m_count > 1) {
+                    return new ByteArrayInputStream("2".getBytes());
+                }
+            }
+            abort.setAction(new Runnable() {
+
+                public void run() {
+                    aborted.countDown();
+                }
+            });
+            try {
+                aborted.await();
+            } catch (InterruptedException e) {
+            }
+            throw new IOException("Request aborted");
+        }
+
+        public void close() {
+        }
+    }
+
+    private static class TrackedStream
+            extends ByteArrayInputStream {
+
+        public volatile boolean closed;
+
+        public TrackedStream(byte[] buf) {
+            super(buf);
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+}
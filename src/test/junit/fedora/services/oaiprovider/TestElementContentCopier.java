@@ -0,0 +1,81 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import junit.framework.TestCase;
+
+import proai.error.RepositoryException;
+
+public class TestElementContentCopier
+        extends TestCase {
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestElementContentCopier.class);
+    }
+
+    public void testCopiesContent() throws Exception {
+        assertEquals("\n  <about>x</about>\n",
+                     copy("<?xml version=\"1.0\"?>\n<abouts>\n  <about>x</about>\n</abouts>\n"));
+        assertEquals("", copy("<abouts></abouts>"));
+        assertEquals("a", copy("<abouts xmlns:x='urn:a>b'>a</abouts >"));
+    }
+
+    public void testIgnoresSimilarNames() throws Exception {
+        assertEquals("<aboutsX>a</aboutsX><about/>",
+                     copy("<r><aboutsX/><abouts><aboutsX>a</aboutsX><about/></abouts></r>"));
+        assertEquals("<<a>", copy("<abouts><<a></abouts>"));
+    }
+
+    public void testNestedWrapper() throws Exception {
+        assertEquals("<abouts><abouts/>a</abouts>",
+                     copy("<abouts><abouts><abouts/>a</abouts></abouts>"));
+    }
+
+    public void testMissingStart() throws Exception {
+        try {
+            copy("<about>x</about>");
+            fail("Expected RepositoryException");
+        } catch (RepositoryException e) {
+            assertEquals("Bad abouts xml: opening <abouts> not found",
+                         e.getMessage());
+        }
+    }
+
+    public void testMissingEnd() throws Exception {
+        try {
+            copy("<abouts><about>x</about>");
+            fail("Expected RepositoryException");
+        } catch (RepositoryException e) {
+            assertEquals("Bad abouts xml: closing </abouts> not found",
+                         e.getMessage());
+        }
+    }
+
+    public void testBufferBoundaries() throws Exception {
+        for (int pad = 4070; pad < 4110; pad++) {
+            StringBuilder content = new StringBuilder();
+            for (int i = 0; i < pad; i++) {
+                content.append((char) ('a' + i % 26));
+            }
+            assertEquals(content.toString(), copy("<abouts>" + content
+                    + "</abouts>"));
+        }
+    }
+
+    public void testLargeDocument() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            content.append("<about>" + i + "</about>\n");
+        }
+        assertEquals(content.toString(), copy("<abouts>" + content
+                + "</abouts>"));
+    }
+
+    private static String copy(String xml) throws IOException {
+        StringWriter out = new StringWriter();
+        new ElementContentCopier("abouts", "abouts xml")
+                .copy(new StringReader(xml), out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,244 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class TestExportDisseminationSource
+        extends TestCase {
+
+    private static final String BASE_URL = "http://localhost:8080/fedora/";
+
+    private static final String EXPORT_URL =
+            BASE_URL + "objects/demo:1/export?context=archive";
+
+    private static final String FOXML =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<foxml:digitalObject VERSION=\"1.1\" PID=\"demo:1\""
+                    + " xmlns:foxml=\"info:fedora/fedora-system:def/foxml#\">\n"
+                    + "<foxml:datastream ID=\"DC\" STATE=\"A\" CONTROL_GROUP=\"X\">\n"
+                    + "<foxml:datastreamVersion ID=\"DC.1\" CREATED=\"2008-01-02T00:00:00.000Z\">\n"
+                    + "<foxml:xmlContent>\n"
+                    + "<oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\""
+                    + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\">"
+                    + "<dc:title>New &amp; improved</dc:title></oai_dc:dc>\n"
+                    + "</foxml:xmlContent>\n"
+                    + "</foxml:datastreamVersion>\n"
+                    + "<foxml:datastreamVersion ID=\"DC.0\" CREATED=\"2008-01-01T00:00:00.000Z\">\n"
+                    + "<foxml:xmlContent><oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\"/></foxml:xmlContent>\n"
+                    + "</foxml:datastreamVersion>\n"
+                    + "</foxml:datastream>\n"
+                    + "<foxml:datastream ID=\"MODS\" STATE=\"A\" CONTROL_GROUP=\"M\">\n"
+                    + "<foxml:datastreamVersion ID=\"MODS.0\" CREATED=\"2008-01-01T00:00:00.000Z\">\n"
+                    + "<foxml:binaryContent>PG1vZHMvPg==</foxml:binaryContent>\n"
+                    + "</foxml:datastreamVersion>\n"
+                    + "</foxml:datastream>\n"
+                    + "<foxml:datastream ID=\"OLD\" STATE=\"D\" CONTROL_GROUP=\"X\">\n"
+                    + "<foxml:datastreamVersion ID=\"OLD.0\" CREATED=\"2008-01-01T00:00:00.000Z\">\n"
+                    + "<foxml:xmlContent><old/></foxml:xmlContent>\n"
+                    + "</foxml:datastreamVersion>\n"
+                    + "</foxml:datastream>\n"
+                    + "<foxml:datastream ID=\"EXT\" STATE=\"A\" CONTROL_GROUP=\"E\">\n"
+                    + "<foxml:datastreamVersion ID=\"EXT.0\" CREATED=\"2008-01-01T00:00:00.000Z\">\n"
+                    + "<foxml:contentLocation TYPE=\"URL\" REF=\"http://example.org/ext\"/>\n"
+                    + "</foxml:datastreamVersion>\n"
+                    + "</foxml:datastream>\n"
+                    + "</foxml:digitalObject>\n";
+
+    private MapSource m_source;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestExportDisseminationSource.class);
+    }
+
+    public void setUp() {
+        m_source = new MapSource();
+        m_source.content.put(EXPORT_URL, FOXML);
+        m_source.content.put("info:fedora/demo:1/EXT", "<ext/>");
+        m_source.content.put("info:fedora/demo:1/OLD", "<old/>");
+        m_source.content.put("info:fedora/demo:1/demo:sdef/get", "<sdef/>");
+    }
+
+    public void testParse() throws Exception {
+        Map<String, byte[]> content =
+                FoxmlDatastreamParser.parse(toStream(FOXML),
+                                            getDatastreamIDs());
+        assertEquals(new HashSet<String>(Arrays.asList("DC", "MODS")),
+                     content.keySet());
+        assertEquals("<oai_dc:dc xmlns:dc=\"http://purl.org/dc/elements/1.1/\""
+                             + " xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\">"
+                             + "<dc:title>New &amp; improved</dc:title></oai_dc:dc>",
+                     sortDeclarations(new String(content.get("DC"), "UTF-8")));
+        assertEquals("<mods/>", new String(content.get("MODS"), "UTF-8"));
+    }
+
+    /**
+     * The latest version is found by date, not by comparing the dates as
+     * strings, and versions created at the same time are taken in document
+     * order.
+     */
+    public void testParseLatestVersion() throws Exception {
+        String foxml =
+                "<foxml:digitalObject xmlns:foxml=\"info:fedora/fedora-system:def/foxml#\">"
+                        + "<foxml:datastream ID=\"DC\">"
+                        + "<foxml:datastreamVersion ID=\"DC.0\" CREATED=\"2008-01-01T00:00:01Z\">"
+                        + "<foxml:xmlContent><old/></foxml:xmlContent></foxml:datastreamVersion>"
+                        + "<foxml:datastreamVersion ID=\"DC.1\" CREATED=\"2008-01-01T00:00:01.1Z\">"
+                        + "<foxml:xmlContent><new/></foxml:xmlContent></foxml:datastreamVersion>"
+                        + "</foxml:datastream>"
+                        + "<foxml:datastream ID=\"MODS\">"
+                        + "<foxml:datastreamVersion ID=\"MODS.0\" CREATED=\"2008-01-01T00:00:02.1Z\">"
+                        + "<foxml:xmlContent><old/></foxml:xmlContent></foxml:datastreamVersion>"
+                        + "<foxml:datastreamVersion ID=\"MODS.1\" CREATED=\"2008-01-01T00:00:02.10Z\">"
+                        + "<foxml:xmlContent><new/></foxml:xmlContent></foxml:datastreamVersion>"
+                        + "</foxml:datastream>"
+                        + "</foxml:digitalObject>";
+        Map<String, byte[]> content =
+                FoxmlDatastreamParser.parse(toStream(foxml), getDatastreamIDs());
+        assertEquals("<new/>", new String(content.get("DC"), "UTF-8"));
+        assertEquals("<new/>", new String(content.get("MODS"), "UTF-8"));
+    }
+
+    public void testParseDeclaresInheritedNamespaces() throws Exception {
+        String foxml =
+                "<foxml:digitalObject xmlns:foxml=\"info:fedora/fedora-system:def/foxml#\""
+                        + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\""
+                        + " xmlns=\"urn:unused\">"
+                        + "<foxml:datastream ID=\"DC\">"
+                        + "<foxml:datastreamVersion ID=\"DC.0\" CREATED=\"2008\">"
+                        + "<foxml:xmlContent><dc:title xml:lang=\"en\">\u00e9</dc:title></foxml:xmlContent>"
+                        + "</foxml:datastreamVersion></foxml:datastream>"
+                        + "</foxml:digitalObject>";
+        Map<String, byte[]> content =
+                FoxmlDatastreamParser.parse(toStream(foxml), getDatastreamIDs());
+        assertEquals("<dc:title xmlns:dc=\"http://purl.org/dc/elements/1.1/\""
+                + " xml:lang=\"en\">\u00e9</dc:title>", new String(content
+                .get("DC"), "UTF-8"));
+    }
+
+    public void testOneExportPerItem() throws Exception {
+        ExportDisseminationSource source = newSource(10);
+        String dc = read(source.get("info:fedora/demo:1/DC", "2008"));
+        assertTrue(dc, dc.indexOf("New &amp; improved") != -1);
+        assertEquals("<mods/>", read(source.get("info:fedora/demo:1/MODS",
+                                                "2008")));
+        assertEquals(Arrays.asList(EXPORT_URL), m_source.requests);
+        assertEquals(1, source.getExportCount());
+        assertEquals(2, source.getHits());
+
+        // a new record date means a new export
+        source.get("info:fedora/demo:1/DC", "2009");
+        assertEquals(2, source.getExportCount());
+    }
+
+    public void testFallsBack() throws Exception {
+        ExportDisseminationSource source = newSource(10);
+
+        // not in the export inline, or deleted
+        assertEquals("<ext/>", read(source.get("info:fedora/demo:1/EXT",
+                                               "2008")));
+        assertEquals("<old/>", read(source.get("info:fedora/demo:1/OLD",
+                                               "2008")));
+        assertEquals(Arrays.asList(EXPORT_URL,
+                                   "info:fedora/demo:1/EXT",
+                                   "info:fedora/demo:1/OLD"),
+                     m_source.requests);
+
+        // not a datastream, or no date
+        m_source.requests.clear();
+        assertEquals("<sdef/>", read(source
+                .get("info:fedora/demo:1/demo:sdef/get", "2008")));
+        source.get("info:fedora/demo:1/EXT", null);
+        assertEquals(Arrays.asList("info:fedora/demo:1/demo:sdef/get",
+                                   "info:fedora/demo:1/EXT"),
+                     m_source.requests);
+    }
+
+    public void testExportFails() throws Exception {
+        m_source.content.remove(EXPORT_URL);
+        m_source.content.put("info:fedora/demo:1/DC", "<dc/>");
+        ExportDisseminationSource source = newSource(10);
+        assertEquals("<dc/>", read(source.get("info:fedora/demo:1/DC", "2008")));
+        assertEquals(Arrays.asList(EXPORT_URL, "info:fedora/demo:1/DC"),
+                     m_source.requests);
+    }
+
+    public void testEviction() throws Exception {
+        m_source.content.put(EXPORT_URL.replace("demo:1", "demo:2"), FOXML);
+        ExportDisseminationSource source = newSource(1);
+        source.get("info:fedora/demo:1/DC", "2008");
+        source.get("info:fedora/demo:2/DC", "2008");
+        source.get("info:fedora/demo:1/DC", "2008");
+        assertEquals(3, source.getExportCount());
+    }
+
+    private ExportDisseminationSource newSource(int maxItems) {
+        return new ExportDisseminationSource(m_source,
+                                             BASE_URL,
+                                             getDatastreamIDs(),
+                                             maxItems,
+                                             60000);
+    }
+
+    private static Set<String> getDatastreamIDs() {
+        return new HashSet<String>(Arrays.asList("DC", "MODS", "EXT", "OLD"));
+    }
+
+    private static InputStream toStream(String s) throws IOException {
+        return new ByteArrayInputStream(s.getBytes("UTF-8"));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        return new String(readBytes(in), "UTF-8");
+    }
+
+    private static byte[] readBytes(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Put the two namespace declarations on the root in a known order.
+     */
+    private static String sortDeclarations(String xml) {
+        String dc = " xmlns:dc=\"http://purl.org/dc/elements/1.1/\"";
+        String oaiDC = " xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\"";
+        int end = xml.indexOf('>');
+        String start = xml.substring(0, end).replace(dc, "").replace(oaiDC, "");
+        return start + dc + oaiDC + xml.substring(end);
+    }
+
+    private static class MapSource
+            implements DisseminationSource {
+
+        public final Map<String, String> content =
+                new HashMap<String, String>();
+
+        public final List<String> requests = new ArrayList<String>();
+
+        public InputStream get(String dissURI, String date) throws IOException {
+            requests.add(dissURI);
+            String s = content.get(dissURI);
+            if (s == null) throw new IOException("Not found: " + dissURI);
+            return toStream(s);
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,179 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.trippi.RDFFormat;
+import org.trippi.TupleIterator;
+
+import proai.SetInfo;
+import proai.driver.RemoteIterator;
+
+import fedora.client.FedoraClient;
+
+public class TestFedoraSetInfoIterator
+        extends TestCase {
+
+    private static final String SET_INFO = "info:fedora/*/SetInfo.xml";
+
+    /** set, setSpec, setName; sets 2 and 4 have descriptions */
+    private static final String[][] SETS =
+            { {"demo:Set1", "one", "Set One"},
+                    {"demo:Set2", "two words", "Set Two"},
+                    {"demo:Set2", "two words", "Set Two, again"},
+                    {"demo:Set3", "three", "Set Three"},
+                    {"demo:Set4", "four", "Set Four"}};
+
+    private static final String[] DESCRIBED = {"demo:Set2", "demo:Set4"};
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestFedoraSetInfoIterator.class);
+    }
+
+    public void testMerge() throws Exception {
+        StubClient client = new StubClient();
+        ITQLQueryFactory factory = new ITQLQueryFactory();
+        factory.init(new StubSource(), client, getProperties());
+
+        List<String> sets =
+                write(factory.listSetInfo(InvocationSpec
+                        .getInstance(SET_INFO)));
+        assertEquals(2, client.queries.size());
+        for (String query : client.queries) {
+            assertEquals(query, -1, query.indexOf("subquery"));
+            assertTrue(query, query.endsWith("order  by $set asc"));
+        }
+
+        assertEquals(4, sets.size());
+        assertEquals("<set>\n  <setSpec>one</setSpec>\n"
+                + "  <setName>Set One</setName>\n</set>\n", sets.get(0));
+        assertEquals("<set>\n  <setSpec>two_words</setSpec>\n"
+                + "  <setName>Set Two, again</setName>\n"
+                + "<setDescription>demo:Set2</setDescription></set>\n",
+                     sets.get(1));
+        assertEquals(-1, sets.get(2).indexOf("setDescription"));
+        assertTrue(sets.get(3), sets.get(3)
+                .indexOf("<setDescription>demo:Set4</setDescription>") != -1);
+    }
+
+    public void testWithoutSetInfo() throws Exception {
+        StubClient client = new StubClient();
+        ITQLQueryFactory factory = new ITQLQueryFactory();
+        factory.init(new StubSource(), client, getProperties());
+
+        List<String> sets = write(factory.listSetInfo(null));
+        assertEquals(1, client.queries.size());
+        assertEquals(4, sets.size());
+        for (String set : sets) {
+            assertEquals(-1, set.indexOf("setDescription"));
+        }
+    }
+
+    private static Properties getProperties() {
+        Properties props = new Properties();
+        props.put(FedoraOAIDriver.PROP_ITEMID,
+                  "http://www.openarchives.org/OAI/2.0/itemID");
+        props.put(FedoraOAIDriver.PROP_SETSPEC,
+                  "http://www.openarchives.org/OAI/2.0/setSpec");
+        props.put(FedoraOAIDriver.PROP_SETSPEC_NAME,
+                  "http://www.openarchives.org/OAI/2.0/setName");
+        props.put(FedoraOAIDriver.PROP_ITEM_SETSPEC_PATH,
+                  "$item <fedora-rels-ext:isMemberOf> $set "
+                          + "$set <http://www.openarchives.org/OAI/2.0/setSpec> $setSpec");
+        return props;
+    }
+
+    private static List<String> write(RemoteIterator<SetInfo> sets)
+            throws Exception {
+        List<String> xml = new ArrayList<String>();
+        try {
+            while (sets.hasNext()) {
+                StringWriter s = new StringWriter();
+                PrintWriter out = new PrintWriter(s);
+                sets.next().write(out);
+                out.flush();
+                xml.add(s.toString().replaceAll("\r\n", "\n"));
+            }
+        } finally {
+            sets.close();
+        }
+        return xml;
+    }
+
+    /**
+     * Gives a description naming the set.
+     */
+    private static class StubSource
+            implements DisseminationSource {
+
+        public InputStream get(String dissURI, String date) {
+            String pid = dissURI.split("/")[1];
+            String xml =
+                    "<setDescriptions><setDescription>" + pid
+                            + "</setDescription></setDescriptions>";
+            try {
+                return new ByteArrayInputStream(xml.getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Answers the sets query with SETS and the descriptions query with
+     * DESCRIBED.
+     */
+    private static class StubClient
+            extends FedoraClient {
+
+        public final List<String> queries = new ArrayList<String>();
+
+        public StubClient() throws IOException {
+            super("http://localhost:1/fedora/", "user", "pass");
+        }
+
+        @SuppressWarnings("unchecked")
+        public TupleIterator getTuples(Map params) throws IOException {
+            String query = (String) params.get("query");
+            queries.add(query);
+            StringBuffer s = new StringBuffer();
+            s.append("<sparql xmlns=\"http://www.w3.org/2001/sw/DataAccess/"
+                    + "rf1/result\"><head><variable name=\"set\"/>");
+            if (query.startsWith("select $set $setSpec $setName")) {
+                s.append("<variable name=\"setSpec\"/>"
+                        + "<variable name=\"setName\"/></head><results>");
+                for (int i = 0; i < SETS.length; i++) {
+                    s.append("<result><set uri=\"info:fedora/" + SETS[i][0]
+                            + "\"/><setSpec>" + SETS[i][1] + "</setSpec>"
+                            + "<setName>" + SETS[i][2] + "</setName></result>");
+                }
+            } else {
+                s.append("</head><results>");
+                for (int i = 0; i < DESCRIBED.length; i++) {
+                    s.append("<result><set uri=\"info:fedora/" + DESCRIBED[i]
+                            + "\"/></result>");
+                }
+            }
+            s.append("</results></sparql>");
+            try {
+                return TupleIterator.fromStream(new ByteArrayInputStream(s
+                        .toString().getBytes("UTF-8")), RDFFormat.SPARQL);
+            } catch (Exception e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+}
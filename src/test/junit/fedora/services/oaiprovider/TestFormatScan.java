@@ -0,0 +1,234 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.trippi.RDFFormat;
+import org.trippi.TupleIterator;
+
+import proai.driver.RemoteIterator;
+
+import fedora.client.FedoraClient;
+
+public class TestFormatScan
+        extends TestCase {
+
+    private static final String DC = "info:fedora/*/oai_dc";
+
+    private static final String ABOUT = "info:fedora/*/about_dc";
+
+    private static final String TEST = "info:fedora/*/TEST";
+
+    private static final String ACTIVE =
+            "info:fedora/fedora-system:def/model#Active";
+
+    /** pid, dissemination types */
+    private static final String[][] ITEMS =
+            { {"demo:1", DC, ABOUT, TEST}, {"demo:2", DC}, {"demo:3", TEST},
+                    {"demo:4", ABOUT}};
+
+    private File m_dir;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestFormatScan.class);
+    }
+
+    public void setUp() throws Exception {
+        m_dir = File.createTempFile("oaiprovider-scan-test", "");
+        m_dir.delete();
+        m_dir.mkdirs();
+    }
+
+    public void tearDown() {
+        File[] files = m_dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        m_dir.delete();
+    }
+
+    public void testReaders() throws Exception {
+        FormatScan scan = scan(new ResultSpool(m_dir, 1024, 0));
+        assertEquals("info:fedora/demo:1,oai:demo:1,2005-01-01T00:00:00,"
+                + ACTIVE + "\ninfo:fedora/demo:2,oai:demo:2,"
+                + "\"2005-01-01T00:00:00,x\"," + ACTIVE + "\n",
+                     read(scan.getReader(DC, null)));
+        assertEquals("oai:demo:1\n", read(scan.getReader(DC, ABOUT)));
+        assertEquals("info:fedora/demo:1,oai:demo:1,2005-01-01T00:00:00,"
+                + ACTIVE + "\ninfo:fedora/demo:3,oai:demo:3,"
+                + "2005-01-01T00:00:00," + ACTIVE + "\n", read(scan
+                .getReader(TEST, null)));
+        assertEquals("oai:demo:1\n", read(scan.getReader(TEST, ABOUT)));
+        try {
+            scan.getReader("info:fedora/*/other", null);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+        scan.release();
+    }
+
+    /**
+     * The spool is kept until the scan is released and all of its readers
+     * are closed.
+     */
+    public void testRelease() throws Exception {
+        ResultSpool spools = new ResultSpool(m_dir, 0, 0);
+        FormatScan scan = scan(spools);
+        assertTrue(spools.getUsed() > 0);
+        BufferedReader reader = scan.getReader(DC, null);
+        scan.release();
+        assertTrue(spools.getUsed() > 0);
+        assertNotNull(reader.readLine());
+        reader.close();
+        assertEquals(0, spools.getUsed());
+    }
+
+    /**
+     * The records of every format are read from one query.
+     */
+    public void testOneQuery() throws Exception {
+        StubClient client = new StubClient();
+        Properties props = new Properties();
+        props.put(FedoraOAIDriver.PROP_ITEMID,
+                  "http://www.openarchives.org/OAI/2.0/itemID");
+        props.put(FedoraOAIDriver.PROP_SPOOL_DIR, m_dir.getPath());
+        props.put(FedoraOAIDriver.PROP_FAN_OUT, "true");
+        props.put(FedoraOAIDriver.PROP_FORMATS, "oai_dc test");
+        addFormat(props, "oai_dc", DC, ABOUT);
+        addFormat(props, "test", TEST, null);
+        ITQLQueryFactory factory = new ITQLQueryFactory();
+        factory.init(null, client, props);
+
+        List<String> dc =
+                read(factory.listRecords(null, null, FedoraOAIDriver
+                        .getMetadataFormats(props).get("oai_dc")));
+        List<String> test =
+                read(factory.listRecords(null, null, FedoraOAIDriver
+                        .getMetadataFormats(props).get("test")));
+        assertEquals(1, client.queries.size());
+        String query = client.queries.get(0);
+        assertTrue(query, query.startsWith("select $item $itemID $date "
+                + "$state $dissType\n"));
+        assertTrue(query, query.indexOf("<" + ABOUT + ">") != -1);
+
+        assertEquals(2, dc.size());
+        assertTrue(dc.get(0), dc.get(0).startsWith("oai:demo:1 oai_dc "));
+        assertTrue(dc.get(0), dc.get(0).indexOf("about_dc") != -1);
+        assertTrue(dc.get(1), dc.get(1).startsWith("oai:demo:2 oai_dc "));
+        assertEquals(-1, dc.get(1).indexOf("about_dc"));
+        assertEquals(2, test.size());
+        assertTrue(test.get(0).startsWith("oai:demo:1 test "));
+        assertTrue(test.get(1).startsWith("oai:demo:3 test "));
+    }
+
+    private static FormatScan scan(ResultSpool spools) throws Exception {
+        String[] types = new String[] {DC, ABOUT, TEST};
+        ResultSpool.Spool spool = spools.create();
+        FormatScan.Writer writer = new FormatScan.Writer(types, spool);
+        writer.add("info:fedora/demo:1", "oai:demo:1",
+                   "2005-01-01T00:00:00", ACTIVE, DC);
+        writer.add("info:fedora/demo:1", "oai:demo:1",
+                   "2005-01-01T00:00:00", ACTIVE, ABOUT);
+        writer.add("info:fedora/demo:1", "oai:demo:1",
+                   "2005-01-01T00:00:00", ACTIVE, TEST);
+        writer.add("info:fedora/demo:2", "oai:demo:2",
+                   "2005-01-01T00:00:00,x", ACTIVE, DC);
+        writer.add("info:fedora/demo:3", "oai:demo:3",
+                   "2005-01-01T00:00:00", ACTIVE, TEST);
+        writer.add("info:fedora/demo:4", "oai:demo:4",
+                   "2005-01-01T00:00:00", ACTIVE, "info:fedora/*/other");
+        writer.close();
+        assertEquals(3, writer.getItemCount());
+        return new FormatScan(types, spool);
+    }
+
+    private static String read(BufferedReader reader) throws IOException {
+        StringBuffer s = new StringBuffer();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            s.append(line + "\n");
+        }
+        reader.close();
+        return s.toString();
+    }
+
+    private static List<String> read(RemoteIterator<FedoraRecord> records)
+            throws Exception {
+        List<String> lines = new ArrayList<String>();
+        try {
+            while (records.hasNext()) {
+                FedoraRecord record = records.next();
+                lines.add(record.getItemID() + " " + record.getPrefix() + " "
+                        + record.getSourceInfo());
+            }
+        } finally {
+            records.close();
+        }
+        return lines;
+    }
+
+    private static void addFormat(Properties props,
+                                  String prefix,
+                                  String dissType,
+                                  String about) {
+        String start = FedoraOAIDriver.PROP_FORMAT_START + prefix;
+        props.put(start + FedoraOAIDriver.PROP_FORMAT_URI_END,
+                  "http://example.org/" + prefix + "/");
+        props.put(start + FedoraOAIDriver.PROP_FORMAT_LOC_END,
+                  "http://example.org/" + prefix + ".xsd");
+        props.put(start + FedoraOAIDriver.PROP_FORMAT_DISSTYPE_END, dissType);
+        if (about != null) {
+            props.put(start + FedoraOAIDriver.PROP_FORMAT_ABOUT_END, about);
+        }
+    }
+
+    /**
+     * Answers the scan query with one row per item and type of ITEMS.
+     */
+    private static class StubClient
+            extends FedoraClient {
+
+        public final List<String> queries = new ArrayList<String>();
+
+        public StubClient() throws IOException {
+            super("http://localhost:1/fedora/", "user", "pass");
+        }
+
+        @SuppressWarnings("unchecked")
+        public TupleIterator getTuples(Map params) throws IOException {
+            queries.add((String) params.get("query"));
+            StringBuffer s = new StringBuffer();
+            s.append("<sparql xmlns=\"http://www.w3.org/2001/sw/DataAccess/"
+                    + "rf1/result\"><head><variable name=\"item\"/>"
+                    + "<variable name=\"itemID\"/><variable name=\"date\"/>"
+                    + "<variable name=\"state\"/><variable name=\"dissType\"/>"
+                    + "</head><results>");
+            for (int i = 0; i < ITEMS.length; i++) {
+                for (int j = 1; j < ITEMS[i].length; j++) {
+                    s.append("<result><item uri=\"info:fedora/" + ITEMS[i][0]
+                            + "\"/><itemID>oai:" + ITEMS[i][0] + "</itemID>"
+                            + "<date datatype=\"http://www.w3.org/2001/"
+                            + "XMLSchema#dateTime\">2005-01-01T00:00:00</date>"
+                            + "<state uri=\"" + ACTIVE + "\"/><dissType uri=\""
+                            + ITEMS[i][j] + "\"/></result>");
+                }
+            }
+            s.append("</results></sparql>");
+            try {
+                return TupleIterator.fromStream(new ByteArrayInputStream(s
+                        .toString().getBytes("UTF-8")), RDFFormat.SPARQL);
+            } catch (Exception e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.trippi.RDFFormat;
+import org.trippi.TupleIterator;
+
+import fedora.client.FedoraClient;
+import fedora.server.utilities.DateUtility;
+
+public class TestHighWaterMark
+        extends TestCase {
+
+    private static final List<FedoraMetadataFormat> FORMATS =
+            new ArrayList<FedoraMetadataFormat>();
+    static {
+        FORMATS.add(new FedoraMetadataFormat("oai_dc",
+                                             "http://www.openarchives.org/OAI/2.0/oai_dc/",
+                                             "http://www.openarchives.org/OAI/2.0/oai_dc.xsd",
+                                             InvocationSpec
+                                                     .getInstance("info:fedora/*/oai_dc"),
+                                             null));
+        FORMATS.add(new FedoraMetadataFormat("test_format",
+                                             "http://example.org/test/",
+                                             "http://example.org/test.xsd",
+                                             InvocationSpec
+                                                     .getInstance("info:fedora/*/demo:sdef/test"),
+                                             null));
+    }
+
+    private File m_file;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestHighWaterMark.class);
+    }
+
+    public void setUp() throws Exception {
+        m_file = File.createTempFile("oaiprovider-latest", ".txt");
+        m_file.delete();
+    }
+
+    public void tearDown() {
+        m_file.delete();
+    }
+
+    public void testOnlyMovesForward() throws Exception {
+        HighWaterMark mark = new HighWaterMark(null, 0);
+        assertNull(mark.getDate());
+        assertEquals(new Date(2000), mark.update(new Date(2000)));
+        assertEquals(new Date(2000), mark.update(new Date(1000)));
+        assertEquals(new Date(2000), mark.update(null));
+        assertEquals(new Date(3000), mark.update(new Date(3000)));
+    }
+
+    public void testPersisted() throws Exception {
+        HighWaterMark mark = new HighWaterMark(m_file, 0);
+        mark.update(new Date(1127220554770L));
+        assertEquals(new Date(1127220554770L),
+                     new HighWaterMark(m_file, 0).getDate());
+        assertFalse(new File(m_file.getPath() + ".new").exists());
+    }
+
+    public void testCurrent() throws Exception {
+        HighWaterMark mark = new HighWaterMark(null, 60000);
+        assertNull(mark.getCurrent());
+        mark.update(new Date(1000));
+        assertEquals(new Date(1000), mark.getCurrent());
+        assertNull(new HighWaterMark(null, 0).getCurrent());
+    }
+
+    public void testParseDatetime() throws Exception {
+        assertEquals(1127220554770L,
+                     ITQLQueryFactory.parseDatetime("2005-09-20T12:49:14.77")
+                             .getTime());
+        assertEquals(1127220554700L,
+                     ITQLQueryFactory.parseDatetime("2005-09-20T12:49:14.7Z")
+                             .getTime());
+        assertEquals(1127220554000L,
+                     ITQLQueryFactory.parseDatetime("2005-09-20T12:49:14")
+                             .getTime());
+        assertNull(ITQLQueryFactory.parseDatetime("junk"));
+    }
+
+    /**
+     * The latest date of any format is used, and later queries only look
+     * for items modified after it.
+     */
+    public void testLatestRecordDate() throws Exception {
+        StubClient client = new StubClient();
+        client.dates.add("2005-09-20T12:49:14.77");
+        client.dates.add("2006-01-01T00:00:00");
+        ITQLQueryFactory factory = getFactory(client, 0);
+
+        assertEquals("2006-01-01T00:00:00.000Z", latest(factory));
+        assertEquals(2, client.queries.size());
+        String query = client.queries.get(0);
+        assertTrue(query, query.startsWith("select $date\n"));
+        assertTrue(query, query.endsWith("order  by $date desc\nlimit  1"));
+        assertEquals(-1, query.indexOf("after"));
+
+        // nothing newer
+        client.queries.clear();
+        assertEquals("2006-01-01T00:00:00.000Z", latest(factory));
+        query = client.queries.get(0);
+        assertTrue(query, query.indexOf("'2006-01-01T00:00:00.000Z'") != -1);
+
+        // the mark is kept between instances
+        client.queries.clear();
+        client.dates.add("2007-01-01T00:00:00Z");
+        assertEquals("2007-01-01T00:00:00.000Z",
+                     latest(getFactory(client, 0)));
+        query = client.queries.get(0);
+        assertTrue(query, query.indexOf("'2006-01-01T00:00:00.000Z'") != -1);
+    }
+
+    public void testCached() throws Exception {
+        StubClient client = new StubClient();
+        client.dates.add("2006-01-01T00:00:00");
+        ITQLQueryFactory factory = getFactory(client, 60);
+        assertEquals("2006-01-01T00:00:00.000Z", latest(factory));
+        assertEquals(2, client.queries.size());
+        assertEquals("2006-01-01T00:00:00.000Z", latest(factory));
+        assertEquals(2, client.queries.size());
+    }
+
+    public void testQueryFails() throws Exception {
+        StubClient client = new StubClient();
+        client.fail = true;
+        long before = System.currentTimeMillis();
+        Date date = getFactory(client, 0).latestRecordDate(FORMATS.iterator());
+        assertTrue(date.getTime() >= before);
+        assertNull(new HighWaterMark(m_file, 0).getDate());
+    }
+
+    private ITQLQueryFactory getFactory(FedoraClient client, int ttl) {
+        Properties props = new Properties();
+        props.put(FedoraOAIDriver.PROP_ITEMID,
+                  "http://www.openarchives.org/OAI/2.0/itemID");
+        props.put(FedoraOAIDriver.PROP_LATEST_DATE_FILE, m_file.getPath());
+        props.put(FedoraOAIDriver.PROP_LATEST_DATE_TTL, "" + ttl);
+        ITQLQueryFactory factory = new ITQLQueryFactory();
+        factory.init(null, client, props);
+        return factory;
+    }
+
+    private static String latest(ITQLQueryFactory factory) {
+        return DateUtility.convertDateToString(factory
+                .latestRecordDate(FORMATS.iterator()));
+    }
+
+    /**
+     * Answers with the latest of its dates that is after the date in the
+     * query, if any.
+     */
+    private static class StubClient
+            extends FedoraClient {
+
+        public final List<String> dates = new ArrayList<String>();
+
+        public final List<String> queries = new ArrayList<String>();
+
+        public boolean fail;
+
+        public StubClient() throws IOException {
+            super("http://localhost:1/fedora/", "user", "pass");
+        }
+
+        @SuppressWarnings("unchecked")
+        public TupleIterator getTuples(Map params) throws IOException {
+            if (fail) throw new IOException("Connection refused");
+            String query = (String) params.get("query");
+            queries.add(query);
+            Date after = new Date(Long.MIN_VALUE);
+            int i = query.indexOf("#after> '");
+            if (i != -1) {
+                after =
+                        DateUtility.convertStringToDate(query
+                                .substring(i + 9, query.indexOf('\'', i + 9)));
+            }
+            String latest = null;
+            for (String date : dates) {
+                if (ITQLQueryFactory.parseDatetime(date).after(after)
+                        && (latest == null || ITQLQueryFactory
+                                .parseDatetime(date)
+                                .after(ITQLQueryFactory.parseDatetime(latest)))) {
+                    latest = date;
+                }
+            }
+            StringBuffer s = new StringBuffer();
+            s.append("<sparql xmlns=\"http://www.w3.org/2001/sw/DataAccess/"
+                    + "rf1/result\"><head><variable name=\"date\"/></head>"
+                    + "<results>");
+            if (latest != null) {
+                s.append("<result><date datatype=\"http://www.w3.org/2001/"
+                        + "XMLSchema#dateTime\">" + latest + "</date></result>");
+            }
+            s.append("</results></sparql>");
+            try {
+                return TupleIterator.fromStream(new ByteArrayInputStream(s
+                        .toString().getBytes("UTF-8")), RDFFormat.SPARQL);
+            } catch (Exception e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.trippi.TupleIterator;
+
+import proai.error.RepositoryException;
+
+import fedora.client.FedoraClient;
+
+public class TestListRecordsQueries
+        extends TestCase {
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestListRecordsQueries.class);
+    }
+
+    /**
+     * A failed set membership query is noticed, and the primary query
+     * cancelled, without waiting for the primary query to finish.
+     */
+    public void testFailureCancelsOthers() throws Exception {
+        StubClient client = new StubClient();
+        Properties props = new Properties();
+        props.put(FedoraOAIDriver.PROP_ITEMID,
+                  "http://www.openarchives.org/OAI/2.0/itemID");
+        props.put(FedoraOAIDriver.PROP_SETSPEC,
+                  "http://www.openarchives.org/OAI/2.0/setSpec");
+        props.put(FedoraOAIDriver.PROP_SETSPEC_NAME,
+                  "http://www.openarchives.org/OAI/2.0/setName");
+        props.put(FedoraOAIDriver.PROP_ITEM_SETSPEC_PATH,
+                  "$item <fedora-rels-ext:isMemberOf> $set "
+                          + "$set <http://www.openarchives.org/OAI/2.0/"
+                          + "setSpec> $setSpec");
+        props.put(FedoraOAIDriver.PROP_FORMATS, "oai_dc");
+        String start = FedoraOAIDriver.PROP_FORMAT_START + "oai_dc";
+        props.put(start + FedoraOAIDriver.PROP_FORMAT_URI_END,
+                  "http://www.openarchives.org/OAI/2.0/oai_dc/");
+        props.put(start + FedoraOAIDriver.PROP_FORMAT_LOC_END,
+                  "http://www.openarchives.org/OAI/2.0/oai_dc.xsd");
+        props.put(start + FedoraOAIDriver.PROP_FORMAT_DISSTYPE_END,
+                  "info:fedora/*/oai_dc");
+        ITQLQueryFactory factory = new ITQLQueryFactory();
+        factory.init(null, client, props);
+
+        long before = System.currentTimeMillis();
+        try {
+            factory.listRecords(null, null, FedoraOAIDriver
+                    .getMetadataFormats(props).get("oai_dc"));
+            fail("Expected RepositoryException");
+        } catch (RepositoryException e) {
+            assertTrue(e.getMessage(),
+                       e.getMessage().indexOf("Set query failed") != -1);
+        }
+        assertTrue(System.currentTimeMillis() - before < 5000);
+        assertTrue(client.primaryCancelled.await(5, TimeUnit.SECONDS));
+        client.release.countDown();
+    }
+
+    /**
+     * Blocks the primary query until it is interrupted (or released), and
+     * fails the set membership query.
+     */
+    private static class StubClient
+            extends FedoraClient {
+
+        public final CountDownLatch primaryCancelled = new CountDownLatch(1);
+
+        public final CountDownLatch release = new CountDownLatch(1);
+
+        public StubClient() throws IOException {
+            super("http://localhost:1/fedora/", "user", "pass");
+        }
+
+        @SuppressWarnings("unchecked")
+        public TupleIterator getTuples(Map params) throws IOException {
+            String query = (String) params.get("query");
+            if (query.startsWith("select $itemID $setSpec")) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                throw new IOException("Set query failed");
+            }
+            try {
+                if (!release.await(30, TimeUnit.SECONDS)) {
+                    throw new IOException("Primary query was not cancelled");
+                }
+            } catch (InterruptedException e) {
+                primaryCancelled.countDown();
+            }
+            throw new IOException("Primary query cancelled");
+        }
+    }
+}
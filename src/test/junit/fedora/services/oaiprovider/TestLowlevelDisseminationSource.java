@@ -0,0 +1,235 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import proai.error.RepositoryException;
+
+public class TestLowlevelDisseminationSource
+        extends TestCase {
+
+    private static final String FOXML =
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<foxml:digitalObject VERSION=\"1.1\" PID=\"demo:1\""
+                    + " xmlns:foxml=\"info:fedora/fedora-system:def/foxml#\">\n"
+                    + "<foxml:datastream ID=\"DC\" STATE=\"A\" CONTROL_GROUP=\"X\">\n"
+                    + "<foxml:datastreamVersion ID=\"DC.0\" CREATED=\"2008-01-01T00:00:00.000Z\">\n"
+                    + "<foxml:xmlContent><dc/></foxml:xmlContent>\n"
+                    + "</foxml:datastreamVersion>\n"
+                    + "</foxml:datastream>\n"
+                    + "<foxml:datastream ID=\"MODS\" STATE=\"A\" CONTROL_GROUP=\"M\">\n"
+                    + "<foxml:datastreamVersion ID=\"MODS.0\" CREATED=\"2008-01-01T00:00:00.000Z\">\n"
+                    + "<foxml:contentLocation TYPE=\"INTERNAL_ID\" REF=\"demo:1+MODS+MODS.0\"/>\n"
+                    + "</foxml:datastreamVersion>\n"
+                    + "<foxml:datastreamVersion ID=\"MODS.1\" CREATED=\"2008-01-02T00:00:00.000Z\">\n"
+                    + "<foxml:contentLocation TYPE=\"INTERNAL_ID\" REF=\"demo:1+MODS+MODS.1\"/>\n"
+                    + "</foxml:datastreamVersion>\n"
+                    + "</foxml:datastream>\n"
+                    + "<foxml:datastream ID=\"GONE\" STATE=\"A\" CONTROL_GROUP=\"M\">\n"
+                    + "<foxml:datastreamVersion ID=\"GONE.0\" CREATED=\"2008-01-01T00:00:00.000Z\">\n"
+                    + "<foxml:contentLocation TYPE=\"INTERNAL_ID\" REF=\"demo:1+GONE+GONE.0\"/>\n"
+                    + "</foxml:datastreamVersion>\n"
+                    + "</foxml:datastream>\n"
+                    + "<foxml:datastream ID=\"EXT\" STATE=\"A\" CONTROL_GROUP=\"E\">\n"
+                    + "<foxml:datastreamVersion ID=\"EXT.0\" CREATED=\"2008-01-01T00:00:00.000Z\">\n"
+                    + "<foxml:contentLocation TYPE=\"URL\" REF=\"http://example.org/ext\"/>\n"
+                    + "</foxml:datastreamVersion>\n"
+                    + "</foxml:datastream>\n"
+                    + "</foxml:digitalObject>\n";
+
+    private File m_dir;
+
+    private File m_objectStore;
+
+    private File m_datastreamStore;
+
+    private RecordingSource m_source;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestLowlevelDisseminationSource.class);
+    }
+
+    public void setUp() throws Exception {
+        m_dir = File.createTempFile("oaiprovider-llstore", "");
+        m_dir.delete();
+        m_objectStore = new File(m_dir, "objectStore");
+        m_datastreamStore = new File(m_dir, "datastreamStore");
+        write(new File(m_objectStore, "3d/info%3Afedora%2Fdemo%3A1"), FOXML);
+        write(new File(m_datastreamStore,
+                       "71/info%3Afedora%2Fdemo%3A1%2FMODS%2FMODS.1"),
+              "<mods/>");
+        write(new File(m_datastreamStore,
+                       "71/info%3Afedora%2Fdemo%3A1%2FMODS%2FMODS.0"),
+              "<old/>");
+        m_source = new RecordingSource();
+    }
+
+    public void tearDown() {
+        delete(m_dir);
+    }
+
+    public void testGetPath() {
+        assertEquals(new File(m_objectStore, "3d/info%3Afedora%2Fdemo%3A1"),
+                     LowlevelDisseminationSource
+                             .getPath(m_objectStore,
+                                      "info:fedora/demo:1",
+                                      "##"));
+        assertEquals(new File(m_objectStore, "3/d/info%3Afedora%2Fdemo%3A1"),
+                     LowlevelDisseminationSource
+                             .getPath(m_objectStore,
+                                      "info:fedora/demo:1",
+                                      "#/#"));
+        assertEquals("info%3Afedora%2Fdemo%3A1%2FDS%5F1%2FDS%5F1.0",
+                     LowlevelDisseminationSource
+                             .encode("info:fedora/demo:1/DS_1/DS_1.0"));
+        assertEquals("a%2Bb%2E", LowlevelDisseminationSource.encode("a+b."));
+    }
+
+    public void testReadsFromStorage() throws Exception {
+        LowlevelDisseminationSource source = newSource();
+        assertEquals("<dc/>", read(source.get("info:fedora/demo:1/DC", null)));
+        assertEquals("<mods/>", read(source.get("info:fedora/demo:1/MODS",
+                                                "2008")));
+        assertEquals(0, m_source.requests.size());
+        assertEquals(2, source.getHits());
+    }
+
+    public void testFallsBack() throws Exception {
+        LowlevelDisseminationSource source = newSource();
+        String[] uris =
+                new String[] {"info:fedora/demo:1/EXT",
+                        "info:fedora/demo:1/GONE", "info:fedora/demo:1/NONE",
+                        "info:fedora/demo:2/DC",
+                        "info:fedora/demo:1/demo:sdef/get"};
+        for (int i = 0; i < uris.length; i++) {
+            assertEquals(uris[i], read(source.get(uris[i], null)));
+        }
+        assertEquals(Arrays.asList(uris), m_source.requests);
+        assertEquals(0, source.getHits());
+    }
+
+    public void testRegistryLayout() throws Exception {
+        File objectStore = new File(m_dir, "legacyObjects");
+        File datastreamStore = new File(m_dir, "legacyDatastreams");
+        write(new File(objectStore, "2008/0101/00/00/demo_1"), FOXML);
+        write(new File(datastreamStore, "2008/0102/00/00/demo_1+MODS+MODS.1"),
+              "<mods/>");
+        StubRegistryLayout layout =
+                new StubRegistryLayout(objectStore, datastreamStore);
+        layout.paths.put("objectPaths demo:1", new File(objectStore,
+                "2008/0101/00/00/demo_1").getPath());
+        layout.paths.put("datastreamPaths demo:1+MODS+MODS.1",
+                         "2008/0102/00/00/demo_1+MODS+MODS.1");
+        LowlevelDisseminationSource source =
+                new LowlevelDisseminationSource(m_source, layout);
+        assertEquals("<dc/>", read(source.get("info:fedora/demo:1/DC", null)));
+        assertEquals("<mods/>", read(source.get("info:fedora/demo:1/MODS",
+                                                null)));
+        assertEquals("info:fedora/demo:1/GONE",
+                     read(source.get("info:fedora/demo:1/GONE", null)));
+        assertEquals("info:fedora/demo:2/DC",
+                     read(source.get("info:fedora/demo:2/DC", null)));
+        assertEquals(2, source.getHits());
+    }
+
+    public void testLayoutMismatch() throws Exception {
+        File legacyStore = new File(m_dir, "legacy");
+        write(new File(legacyStore, "2008/0101/00/00/demo_1"), FOXML);
+        try {
+            new LowlevelDisseminationSource.HashLayout(legacyStore,
+                                                       legacyStore,
+                                                       "##");
+            fail("Expected RepositoryException");
+        } catch (RepositoryException e) {
+        }
+        try {
+            new StubRegistryLayout(m_objectStore, m_datastreamStore);
+            fail("Expected RepositoryException");
+        } catch (RepositoryException e) {
+        }
+        try {
+            new LowlevelDisseminationSource.HashLayout(new File(m_dir, "none"),
+                                                       m_datastreamStore,
+                                                       "##");
+            fail("Expected RepositoryException");
+        } catch (RepositoryException e) {
+        }
+    }
+
+    private LowlevelDisseminationSource newSource() {
+        return new LowlevelDisseminationSource(m_source,
+                                               new LowlevelDisseminationSource.HashLayout(m_objectStore,
+                                                                                          m_datastreamStore,
+                                                                                          "##"));
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = new FileOutputStream(file);
+        out.write(content.getBytes("UTF-8"));
+        out.close();
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                delete(files[i]);
+            }
+        }
+        file.delete();
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    /**
+     * Looks paths up in a map of "table token" keys instead of a database.
+     */
+    private static class StubRegistryLayout
+            extends LowlevelDisseminationSource.RegistryLayout {
+
+        public final Map<String, String> paths = new HashMap<String, String>();
+
+        public StubRegistryLayout(File objectStore, File datastreamStore) {
+            super(objectStore, datastreamStore, null);
+        }
+
+        protected String lookup(String table, String token) {
+            return paths.get(table + " " + token);
+        }
+    }
+
+    /**
+     * Answers every request with the URI that was asked for.
+     */
+    private static class RecordingSource
+            implements DisseminationSource {
+
+        public final List<String> requests = new ArrayList<String>();
+
+        public InputStream get(String dissURI, String date) throws IOException {
+            requests.add(dissURI);
+            return new ByteArrayInputStream(dissURI.getBytes("UTF-8"));
+        }
+
+        public void close() {
+        }
+    }
+}
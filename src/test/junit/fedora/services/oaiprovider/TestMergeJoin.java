@@ -0,0 +1,92 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import junit.framework.TestCase;
+
+public class TestMergeJoin
+        extends TestCase {
+
+    private static final String ITEMS =
+            "\"item\",\"itemID\"\n" + "info:fedora/demo:1,oai:1\n"
+                    + "info:fedora/demo:2,\"oai:2,b\"\n"
+                    + "info:fedora/demo:3,oai:3\n";
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestMergeJoin.class);
+    }
+
+    public void testModes() throws Exception {
+        MergeJoin join = new MergeJoin(reader(ITEMS), 1);
+        int sets =
+                join.add(reader("oai:1,set1\noai:1,set2\n\"oai:2,b\",set3\n"),
+                         0,
+                         MergeJoin.COLLECT,
+                         1);
+        // duplicate rows are consumed with the first
+        int abouts =
+                join.add(reader("\"oai:2,b\"\n\"oai:2,b\"\noai:3\n"),
+                         0,
+                         MergeJoin.EXISTS,
+                         0);
+        // keyed by a column other than the first
+        int rights =
+                join.add(reader("open,oai:1\nclosed,oai:3\nopen,oai:3\n"),
+                         1,
+                         MergeJoin.VALUE,
+                         0);
+        int none = join.add(reader(""), 0, MergeJoin.EXISTS, 0);
+
+        assertTrue(join.next());
+        assertEquals("info:fedora/demo:1", join.getPrimary().getField(0));
+        assertEquals(2, join.getValues(sets).length);
+        assertEquals("set2", join.getValues(sets)[1]);
+        assertFalse(join.exists(abouts));
+        assertEquals("open", join.getValue(rights));
+        assertFalse(join.exists(none));
+
+        assertTrue(join.next());
+        assertEquals("oai:2,b", join.getPrimary().getField(1));
+        assertEquals("set3", join.getValue(sets));
+        assertTrue(join.exists(abouts));
+        assertNull(join.getValue(rights));
+        assertEquals(0, join.getValues(rights).length);
+
+        assertTrue(join.next());
+        assertEquals(0, join.getValues(sets).length);
+        assertTrue(join.exists(abouts));
+        assertEquals("closed", join.getValue(rights));
+        assertEquals(1, join.getValues(rights).length);
+
+        assertFalse(join.next());
+        join.close();
+    }
+
+    public void testMissingColumn() throws Exception {
+        MergeJoin join = new MergeJoin(reader(ITEMS), 1);
+        join.add(reader("oai:1\n"), 0, MergeJoin.COLLECT, 1);
+        try {
+            join.next();
+            fail("Expected IOException");
+        } catch (IOException e) {
+        }
+        join.close();
+    }
+
+    public void testAddAfterStart() throws Exception {
+        MergeJoin join = new MergeJoin(reader(ITEMS), 1);
+        assertTrue(join.next());
+        try {
+            join.add(reader(""), 0, MergeJoin.EXISTS, 0);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+        join.close();
+    }
+
+    private static CSVFieldReader reader(String csv) {
+        return new CSVFieldReader(new StringReader(csv));
+    }
+}
@@ -0,0 +1,221 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import fedora.services.oaiprovider.test.StubHttpServer;
+
+public class TestNioDisseminationSource
+        extends TestCase {
+
+    private StubHttpServer m_server;
+
+    private NioDisseminationSource m_source;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestNioDisseminationSource.class);
+    }
+
+    public void setUp() throws Exception {
+        m_server = new StubHttpServer();
+        m_source = newSource(2000);
+    }
+
+    public void tearDown() {
+        m_source.close();
+        m_server.stop();
+    }
+
+    public void testGet() throws Exception {
+        m_server.put("/fedora/get/demo:1/DC", 200, "text/xml; charset=UTF-8",
+                     "<dc/>".getBytes("UTF-8"), false);
+        NioHttpClient.Response in =
+                (NioHttpClient.Response) m_source.get("info:fedora/demo:1/DC",
+                                                      null);
+        assertEquals("text/xml; charset=UTF-8", in.getContentType());
+        assertEquals("<dc/>", read(in));
+        assertEquals("/fedora/get/demo:1/DC", m_server.getRequests().get(0));
+        assertEquals("Basic ZmVkb3JhQWRtaW46cGFzcw==", m_server
+                .getAuthorizations().get(0));
+    }
+
+    public void testLargeBodies() throws Exception {
+        byte[] body = new byte[1024 * 1024 + 17];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        m_server.put("/fedora/get/demo:1/big", 200, "text/plain", body, true);
+        m_server.put("/fedora/get/demo:2/big", 200, "text/plain", body, false);
+        String expected = new String(body, "US-ASCII");
+        assertEquals(expected, read(m_source.get("info:fedora/demo:1/big", null)));
+        assertEquals(expected, read(m_source.get("info:fedora/demo:2/big", null)));
+    }
+
+    public void testNotFound() throws Exception {
+        try {
+            m_source.get("info:fedora/demo:1/nothing", null);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Request failed [404"));
+        }
+        // the connection is still usable
+        m_server.put("/fedora/get/demo:1/DC", 200, "text/xml",
+                     "<dc/>".getBytes("UTF-8"), false);
+        assertEquals("<dc/>", read(m_source.get("info:fedora/demo:1/DC", null)));
+    }
+
+    public void testRedirect() throws Exception {
+        m_server.redirect("/fedora/get/demo:1/R", "/elsewhere/content.xml");
+        m_server.put("/elsewhere/content.xml", 200, "text/xml",
+                     "<moved/>".getBytes("UTF-8"), false);
+        assertEquals("<moved/>", read(m_source.get("info:fedora/demo:1/R", null)));
+    }
+
+    public void testSocketTimeout() throws Exception {
+        m_server.put("/fedora/get/demo:1/slow", 200, "text/xml",
+                     "<slow/>".getBytes("UTF-8"), false);
+        m_server.delay("/fedora/get/demo:1/slow", 3000);
+        NioDisseminationSource source = newSource(500);
+        long start = System.currentTimeMillis();
+        try {
+            source.get("info:fedora/demo:1/slow", null);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Read timed out", e.getMessage());
+        } finally {
+            source.close();
+        }
+        assertTrue(System.currentTimeMillis() - start < 2500);
+    }
+
+    public void testAbort() throws Exception {
+        m_server.put("/fedora/get/demo:1/slow", 200, "text/xml",
+                     "<slow/>".getBytes("UTF-8"), false);
+        m_server.delay("/fedora/get/demo:1/slow", 3000);
+        final RequestAbort abort = new RequestAbort();
+        new Thread() {
+
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                }
+                abort.abort();
+            }
+        }.start();
+        long start = System.currentTimeMillis();
+        try {
+            m_source.get("info:fedora/demo:1/slow", null, abort);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Request aborted", e.getMessage());
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+
+        // a request already aborted is never sent
+        try {
+            m_source.get("info:fedora/demo:1/slow", null, abort);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertEquals("Request aborted", e.getMessage());
+        }
+        assertEquals(1, m_server.getRequests().size());
+    }
+
+    public void testConnectionRefused() throws Exception {
+        NioDisseminationSource source =
+                new NioDisseminationSource(new NioHttpClient(1000, 1000, 4),
+                                           "http://127.0.0.1:1/fedora/",
+                                           null,
+                                           null,
+                                           null);
+        try {
+            source.get("info:fedora/demo:1/DC", null);
+            fail("Expected IOException");
+        } catch (IOException e) {
+        } finally {
+            source.close();
+        }
+    }
+
+    public void testEarlyClose() throws Exception {
+        m_server.put("/fedora/get/demo:1/big", 200, "text/plain",
+                     new byte[512 * 1024], true);
+        m_server.put("/fedora/get/demo:1/DC", 200, "text/xml",
+                     "<dc/>".getBytes("UTF-8"), false);
+        for (int i = 0; i < 5; i++) {
+            InputStream in = m_source.get("info:fedora/demo:1/big", null);
+            in.read(new byte[100]);
+            in.close();
+        }
+        assertEquals("<dc/>", read(m_source.get("info:fedora/demo:1/DC", null)));
+    }
+
+    public void testConcurrentRequests() throws Exception {
+        for (int i = 0; i < 40; i++) {
+            m_server.put("/fedora/get/demo:" + i + "/DC", 200, "text/xml",
+                         ("<dc>" + i + "</dc>").getBytes("UTF-8"), i % 2 == 0);
+        }
+        final List<String> errors = new ArrayList<String>();
+        Thread[] threads = new Thread[40];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++) {
+                            String content =
+                                    read(m_source.get("info:fedora/demo:" + n
+                                            + "/DC", null));
+                            if (!content.equals("<dc>" + n + "</dc>")) {
+                                throw new IOException("Got " + content);
+                            }
+                        }
+                    } catch (IOException e) {
+                        synchronized (errors) {
+                            errors.add(e.getMessage());
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+        }
+        assertEquals(new ArrayList<String>(), errors);
+        assertEquals(200, m_server.getRequests().size());
+    }
+
+    private NioDisseminationSource newSource(int socketTimeout)
+            throws IOException {
+        return new NioDisseminationSource(new NioHttpClient(2000,
+                                                            socketTimeout,
+                                                            4),
+                                          m_server.getBaseURL() + "fedora/",
+                                          "fedoraAdmin",
+                                          "pass",
+                                          null);
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1000];
+            int len = in.read(buf);
+            while (len != -1) {
+                out.write(buf, 0, len);
+                len = in.read(buf);
+            }
+            return out.toString("ISO-8859-1");
+        } finally {
+            in.close();
+        }
+    }
+}
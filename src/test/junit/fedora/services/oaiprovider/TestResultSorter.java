@@ -0,0 +1,115 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class TestResultSorter
+        extends TestCase {
+
+    private File m_dir;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestResultSorter.class);
+    }
+
+    public void setUp() throws Exception {
+        m_dir = File.createTempFile("oaiprovider-sort-test", "");
+        m_dir.delete();
+        m_dir.mkdirs();
+    }
+
+    public void tearDown() {
+        File[] files = m_dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        m_dir.delete();
+    }
+
+    public void testInMemory() throws Exception {
+        ResultSorter sorter =
+                new ResultSorter(new ResultSpool(m_dir, 1024, 0), 1024 * 1024);
+        assertEquals("info:fedora/demo:1,oai:demo:1,2005\n"
+                + "info:fedora/demo:10,oai:demo:10,2005\n"
+                + "info:fedora/demo:2,oai:demo:2,2005\n", read(sorter
+                .sort(reader("\"item\",\"itemID\",\"date\"\n"
+                        + "info:fedora/demo:2,oai:demo:2,2005\n\n"
+                        + "info:fedora/demo:10,oai:demo:10,2005\n"
+                        + "info:fedora/demo:1,oai:demo:1,2005\n"), 1)));
+    }
+
+    /**
+     * Lines are ordered by the value in the column alone, as the combiner
+     * compares them, not by the rest of the line.
+     */
+    public void testColumnOrder() throws Exception {
+        assertTrue(ResultSorter.compare("oai:1,b", "oai:1+x,a", 0) < 0);
+        assertTrue(ResultSorter.compare("z,oai:1", "a,oai:2", 1) < 0);
+        assertTrue(ResultSorter.compare("a,oai:1", "b,oai:1", 1) < 0);
+        assertEquals(0, ResultSorter.compare("a,oai:1", "a,oai:1", 1));
+        assertTrue(ResultSorter.compare("oai:1", "oai:1,set", 1) < 0);
+    }
+
+    /**
+     * With little memory, runs are spilled, merged more than once, and
+     * deleted when the sorted results are closed.
+     */
+    public void testSpilled() throws Exception {
+        ResultSpool spool = new ResultSpool(m_dir, 0, 0);
+        ResultSorter sorter = new ResultSorter(spool, 1000);
+        List<String> lines = new ArrayList<String>();
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            lines.add("oai:demo:" + random.nextInt(500) + ",set" + i);
+        }
+        StringBuffer in = new StringBuffer("\"itemID\",\"setSpec\"\n");
+        for (String line : lines) {
+            in.append(line + "\n");
+        }
+        BufferedReader sorted = sorter.sort(reader(in.toString()), 0);
+        assertTrue(spool.getSpills() > 64);
+        assertTrue(spool.getUsed() > 0);
+
+        Collections.sort(lines);
+        String previous = null;
+        int count = 0;
+        String line = sorted.readLine();
+        while (line != null) {
+            if (previous != null) {
+                assertTrue(previous + " > " + line, ResultSorter
+                        .compare(previous, line, 0) <= 0);
+            }
+            assertTrue(Collections.binarySearch(lines, line) >= 0);
+            previous = line;
+            count++;
+            line = sorted.readLine();
+        }
+        assertEquals(lines.size(), count);
+        sorted.close();
+        assertEquals(0, spool.getUsed());
+    }
+
+    private static BufferedReader reader(String s) {
+        return new BufferedReader(new StringReader(s));
+    }
+
+    private static String read(BufferedReader reader) throws IOException {
+        StringBuffer s = new StringBuffer();
+        String line = reader.readLine();
+        while (line != null) {
+            s.append(line + "\n");
+            line = reader.readLine();
+        }
+        reader.close();
+        return s.toString();
+    }
+}
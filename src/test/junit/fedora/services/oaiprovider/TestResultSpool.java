@@ -0,0 +1,130 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import junit.framework.TestCase;
+
+public class TestResultSpool
+        extends TestCase {
+
+    private File m_dir;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestResultSpool.class);
+    }
+
+    public void setUp() throws Exception {
+        m_dir = File.createTempFile("oaiprovider-spool-test", "");
+        m_dir.delete();
+        m_dir.mkdirs();
+    }
+
+    public void tearDown() {
+        File[] files = m_dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        m_dir.delete();
+    }
+
+    public void testInMemory() throws Exception {
+        ResultSpool spools = new ResultSpool(m_dir, 1024, 0);
+        byte[] content = content(1000);
+        ResultSpool.Spool spool = write(spools, content);
+        assertFalse(spool.isOnDisk());
+        assertEquals(0, m_dir.list().length);
+        assertEquals(content.length, spool.getLength());
+        assertEquals(new String(content, "UTF-8"), read(spool));
+    }
+
+    public void testSpill() throws Exception {
+        ResultSpool spools = new ResultSpool(m_dir, 1024, 0);
+        byte[] content = content(500000);
+        ResultSpool.Spool spool = write(spools, content);
+        assertTrue(spool.isOnDisk());
+        assertEquals(1, m_dir.list().length);
+        assertEquals(content.length, spool.getLength());
+        assertTrue("Expected compression, got " + spool.getDiskBytes(),
+                   spool.getDiskBytes() * 5 < content.length);
+        assertEquals(spool.getDiskBytes(), spools.getUsed());
+        assertEquals(new String(content, "UTF-8"), read(spool));
+
+        // reading to the end and closing deletes the file
+        assertEquals(0, m_dir.list().length);
+        assertEquals(0, spools.getUsed());
+        assertEquals(1, spools.getSpills());
+    }
+
+    public void testQuota() throws Exception {
+        ResultSpool spools = new ResultSpool(m_dir, 1024, 4096);
+        ResultSpool.Spool spool = spools.create();
+        byte[] random = new byte[100000];
+        new java.util.Random(1).nextBytes(random);
+        try {
+            spool.write(random);
+            spool.close();
+            fail("Expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().indexOf("quota") != -1);
+        }
+        spool.delete();
+        assertEquals(0, m_dir.list().length);
+        assertEquals(0, spools.getUsed());
+    }
+
+    /**
+     * Leftover files are removed when the directory is opened, but files in
+     * use are not.
+     */
+    public void testSweep() throws Exception {
+        File leftover = new File(m_dir, "oaiprovider-spool123.blocks");
+        new FileOutputStream(leftover).close();
+        File other = new File(m_dir, "other.txt");
+        new FileOutputStream(other).close();
+        ResultSpool spools = new ResultSpool(m_dir, 0, 0);
+        assertFalse(leftover.exists());
+        assertTrue(other.exists());
+
+        byte[] content = content(10000);
+        ResultSpool.Spool spool = write(spools, content);
+        assertTrue(spool.isOnDisk());
+        new ResultSpool(m_dir, 0, 0);
+        assertEquals(new String(content, "UTF-8"), read(spool));
+        other.delete();
+    }
+
+    private static ResultSpool.Spool write(ResultSpool spools, byte[] content)
+            throws IOException {
+        ResultSpool.Spool spool = spools.create();
+        // write in uneven pieces to cross block boundaries
+        for (int i = 0; i < content.length; i += 777) {
+            spool.write(content, i, Math.min(777, content.length - i));
+        }
+        spool.close();
+        return spool;
+    }
+
+    private static String read(ResultSpool.Spool spool) throws IOException {
+        InputStream in = spool.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[5000];
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        in.close();
+        return new String(out.toByteArray(), "UTF-8");
+    }
+
+    private static byte[] content(int length) throws IOException {
+        StringBuffer s = new StringBuffer();
+        for (int i = 0; s.length() < length; i++) {
+            s.append("info:fedora/demo:" + i + ",oai:demo:" + i
+                    + ",2005-09-20T12:49:14.77,"
+                    + "info:fedora/fedora-system:def/model#Active\n");
+        }
+        s.setLength(length);
+        return s.toString().getBytes("UTF-8");
+    }
+}
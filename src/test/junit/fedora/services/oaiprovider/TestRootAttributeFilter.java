@@ -0,0 +1,95 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import junit.framework.TestCase;
+
+public class TestRootAttributeFilter
+        extends TestCase {
+
+    private static final String XSI = "http://www.w3.org/2001/XMLSchema-instance";
+
+    private static final String ATTRS =
+            "xmlns:xsi=\"" + XSI + "\" xsi:schemaLocation=\"urn:a urn:a.xsd\"";
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestRootAttributeFilter.class);
+    }
+
+    public void testAddsAttributes() throws Exception {
+        assertEquals("<oai_dc:dc " + ATTRS
+                + " xmlns:oai_dc=\"urn:a\">\n<dc:title>x</dc:title>\n</oai_dc:dc>",
+                     filter("<oai_dc:dc xmlns:oai_dc=\"urn:a\">\n<dc:title>x</dc:title>\n</oai_dc:dc>"));
+    }
+
+    public void testSkipsPrologMarkup() throws Exception {
+        assertEquals("<!-- c --><?pi x?>\n<oai_dc:dc " + ATTRS + " a='>'>x</oai_dc:dc>",
+                     filter("<!-- c --><?pi x?>\n<oai_dc:dc a='>'>x</oai_dc:dc>"));
+    }
+
+    /**
+     * Markup in the prolog may contain '>' and what looks like a start tag.
+     */
+    public void testPrologComment() throws Exception {
+        assertEquals("<!-- a > b <c> --><!---->\n<oai_dc:dc " + ATTRS
+                + " a=\"b\">x</oai_dc:dc>",
+                     filter("<!-- a > b <c> --><!---->\n<oai_dc:dc a=\"b\">x</oai_dc:dc>"));
+    }
+
+    public void testPrologProcessingInstruction() throws Exception {
+        assertEquals("<?pi a > b <c> ?>\n<oai_dc:dc " + ATTRS
+                + " a=\"b\">x</oai_dc:dc>",
+                     filter("<?pi a > b <c> ?>\n<oai_dc:dc a=\"b\">x</oai_dc:dc>"));
+    }
+
+    public void testPrologDoctype() throws Exception {
+        String doctype =
+                "<!DOCTYPE oai_dc:dc SYSTEM \"urn:x>y\" [\n"
+                        + "  <!ENTITY e \"<c>\">\n"
+                        + "  <!-- don't end at ] or > -->\n" + "]>\n";
+        assertEquals(doctype + "<oai_dc:dc " + ATTRS
+                + " a=\"b\">x</oai_dc:dc>",
+                     filter(doctype + "<oai_dc:dc a=\"b\">x</oai_dc:dc>"));
+    }
+
+    public void testLeavesExistingAttributes() throws Exception {
+        String xml =
+                "<oai_dc:dc xmlns:xsi=\"" + XSI
+                        + "\" xsi:schemaLocation=\"urn:b urn:b.xsd\">x</oai_dc:dc>";
+        assertEquals(xml, filter(xml));
+    }
+
+    public void testLeavesOtherElements() throws Exception {
+        assertEquals("<dc xmlns=\"urn:a\">x</dc>",
+                     filter("<dc xmlns=\"urn:a\">x</dc>"));
+        assertEquals("<oai_dc:dcx a=\"b\">x</oai_dc:dcx>",
+                     filter("<oai_dc:dcx a=\"b\">x</oai_dc:dcx>"));
+        assertEquals("<oai_dc:dc>x</oai_dc:dc>",
+                     filter("<oai_dc:dc>x</oai_dc:dc>"));
+        assertEquals("<a><oai_dc:dc b=\"c\"/></a>",
+                     filter("<a><oai_dc:dc b=\"c\"/></a>"));
+    }
+
+    public void testTruncatedInput() throws Exception {
+        assertEquals("", filter(""));
+        assertEquals("text", filter("text"));
+        assertEquals("<oai_dc:d", filter("<oai_dc:d"));
+    }
+
+    private static String filter(String xml) throws IOException {
+        Reader reader =
+                new RootAttributeFilter(new StringReader(xml),
+                                        "oai_dc:dc",
+                                        XSI,
+                                        ATTRS);
+        StringWriter out = new StringWriter();
+        char[] buf = new char[5];
+        int len = reader.read(buf);
+        while (len != -1) {
+            out.write(buf, 0, len);
+            len = reader.read(buf);
+        }
+        return out.toString();
+    }
+}
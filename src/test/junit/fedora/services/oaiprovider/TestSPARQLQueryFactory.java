@@ -0,0 +1,380 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import junit.framework.TestCase;
+
+import org.trippi.RDFFormat;
+import org.trippi.TupleIterator;
+
+import proai.driver.RemoteIterator;
+
+import fedora.client.FedoraClient;
+
+/**
+ * Checks that SPARQLQueryFactory lists the same records as ITQLQueryFactory
+ * when the Resource Index holds the same items.
+ */
+public class TestSPARQLQueryFactory
+        extends TestCase {
+
+    private static final String ACTIVE =
+            "info:fedora/fedora-system:def/model#Active";
+
+    private static final String DELETED =
+            "info:fedora/fedora-system:def/model#Deleted";
+
+    private static final String IS_MEMBER_OF =
+            "info:fedora/fedora-system:def/relations-external#isMemberOf";
+
+    private static final String SET_PATH =
+            "$item <fedora-rels-ext:isMemberOf> $set "
+                    + "$set <http://www.openarchives.org/OAI/2.0/setSpec> $setSpec";
+
+    /** pid, date, state, about, setSpecs */
+    private static final Object[][] ITEMS =
+            {
+                    {"demo:1", "2005-09-20T12:49:14.77", ACTIVE, true,
+                            new String[0]},
+                    {"demo:2", "2005-09-20T12:50:01", ACTIVE, false,
+                            new String[] {"set1", "set2", "set3"}},
+                    {"demo:3", "2005-09-20T12:50:02.123Z", DELETED, true,
+                            new String[] {"set1"}},
+                    {"demo:4", "2006-01-01T00:00:00", ACTIVE, true,
+                            new String[] {"set2", "set3"}},
+                    {"demo:5", "2006-01-02T00:00:00", ACTIVE, false,
+                            new String[0]}};
+
+    private static final FedoraMetadataFormat WITH_ABOUT =
+            new FedoraMetadataFormat("oai_dc",
+                                     "http://www.openarchives.org/OAI/2.0/oai_dc/",
+                                     "http://www.openarchives.org/OAI/2.0/oai_dc.xsd",
+                                     InvocationSpec
+                                             .getInstance("info:fedora/*/oai_dc"),
+                                     InvocationSpec
+                                             .getInstance("info:fedora/*/about_dc"));
+
+    private static final FedoraMetadataFormat WITHOUT_ABOUT =
+            new FedoraMetadataFormat("test_format",
+                                     "http://example.org/test/",
+                                     "http://example.org/test.xsd",
+                                     InvocationSpec
+                                             .getInstance("info:fedora/*/demo:sdef/test"),
+                                     null);
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestSPARQLQueryFactory.class);
+    }
+
+    public void testParity() throws Exception {
+        assertParity(true, WITH_ABOUT);
+    }
+
+    public void testParityWithoutAbout() throws Exception {
+        assertParity(true, WITHOUT_ABOUT);
+    }
+
+    public void testParityWithoutSets() throws Exception {
+        assertParity(false, WITH_ABOUT);
+    }
+
+    /**
+     * The ITQL queries are not ordered when their results are sorted
+     * locally.
+     */
+    public void testParityWithLocalSort() throws Exception {
+        Properties props = getProperties(true);
+        props.put(FedoraOAIDriver.PROP_LOCAL_SORT, "true");
+        StubClient client = new StubClient();
+        ITQLQueryFactory itql = new ITQLQueryFactory();
+        itql.init(null, client, props);
+        SPARQLQueryFactory sparql = new SPARQLQueryFactory();
+        sparql.init(null, new StubClient(), getProperties(true));
+
+        assertEquals(read(sparql.listRecords(null, null, WITH_ABOUT)),
+                     read(itql.listRecords(null, null, WITH_ABOUT)));
+        for (String query : client.queries) {
+            assertEquals(query, -1, query.indexOf("order  by $itemID"));
+        }
+    }
+
+    /**
+     * The set memberships shared between formats are only loaded when asked
+     * for.
+     */
+    public void testParityWithSetIndex() throws Exception {
+        Properties props = getProperties(true);
+        props.put(FedoraOAIDriver.PROP_SET_INDEX_MEMORY, "1");
+        StubClient client = new StubClient();
+        ITQLQueryFactory itql = new ITQLQueryFactory();
+        itql.init(null, client, props);
+        SPARQLQueryFactory sparql = new SPARQLQueryFactory();
+        sparql.init(null, new StubClient(), getProperties(true));
+
+        assertEquals(read(sparql.listRecords(null, null, WITH_ABOUT)),
+                     read(itql.listRecords(null, null, WITH_ABOUT)));
+        assertTrue(client.queries.toString(), indexQueried(client.queries));
+
+        client = new StubClient();
+        itql = new ITQLQueryFactory();
+        itql.init(null, client, getProperties(true));
+        read(itql.listRecords(null, null, WITH_ABOUT));
+        assertFalse(client.queries.toString(), indexQueried(client.queries));
+    }
+
+    /**
+     * The set memberships are not loaded over the whole range when windows
+     * are used.
+     */
+    public void testNoSetIndexWithWindows() throws Exception {
+        Properties props = getProperties(true);
+        props.put(FedoraOAIDriver.PROP_SET_INDEX_MEMORY, "1");
+        props.put(FedoraOAIDriver.PROP_WINDOW_SIZE, "43200");
+        StubClient client = new StubClient();
+        ITQLQueryFactory itql = new ITQLQueryFactory();
+        itql.init(null, client, props);
+        read(itql.listRecords(new Date(1125532800000L),
+                              new Date(1138752000000L),
+                              WITH_ABOUT));
+        assertTrue(client.queries.size() > 3);
+        assertFalse(client.queries.toString(), indexQueried(client.queries));
+    }
+
+    private static boolean indexQueried(List<String> queries) {
+        for (String query : queries) {
+            if (query.startsWith("select $date")) return true;
+        }
+        return false;
+    }
+
+    public void testOneQuery() throws Exception {
+        StubClient client = new StubClient();
+        SPARQLQueryFactory factory = new SPARQLQueryFactory();
+        factory.init(null, client, getProperties(true));
+        read(factory.listRecords(new Date(0L), new Date(1000000000000L),
+                                 WITH_ABOUT));
+        assertEquals(1, client.queries.size());
+
+        String query = client.queries.get(0);
+        assertTrue(query, query.startsWith("SELECT ?item ?itemID ?date "
+                + "?state ?setSpec ?about\n"));
+        assertTrue(query, query.indexOf("FILTER (?date >= \"1970-01-01T00:00:00") != -1);
+        assertTrue(query, query.indexOf("FILTER (?date <= \"2001-09-09T01:46:40") != -1);
+        assertTrue(query, query.indexOf("  OPTIONAL {\n"
+                + "    ?item <" + IS_MEMBER_OF + "> ?set .\n"
+                + "    ?set <http://www.openarchives.org/OAI/2.0/setSpec> "
+                + "?setSpec .\n  }\n") != -1);
+        assertTrue(query, query.indexOf("?about <"
+                + "info:fedora/fedora-system:def/view#disseminationType> "
+                + "<info:fedora/*/about_dc>") != -1);
+        assertTrue(query, query.endsWith("ORDER BY ?itemID"));
+    }
+
+    public void testServiceQuery() throws Exception {
+        SPARQLQueryFactory factory = new SPARQLQueryFactory();
+        factory.init(null, null, getProperties(false));
+        String query = factory.getListRecordsQuery(null, null, WITHOUT_ABOUT);
+        assertTrue(query, query.startsWith("SELECT ?item ?itemID ?date "
+                + "?state\n"));
+        assertTrue(query, query.indexOf("?diss <info:fedora/fedora-system:"
+                + "def/model#definesMethod> \"test\" .\n") != -1);
+        assertTrue(query, query.indexOf("FILTER (?diss = "
+                + "<info:fedora/demo:sdef>)") != -1);
+        assertEquals(-1, query.indexOf("FILTER (?date"));
+        assertEquals(-1, query.indexOf("OPTIONAL"));
+    }
+
+    public void testGraphPattern() throws Exception {
+        assertEquals("    ?item <urn:a> ?path_x .\n"
+                + "    ?path_x <urn:b> ?set .\n"
+                + "    ?set <urn:c> ?setSpec .\n",
+                     SPARQLQueryFactory
+                             .toGraphPattern(" $item <urn:a> $x\n$x <urn:b> $set "
+                                     + "$set <urn:c> $setSpec "));
+        assertEquals("    ?item <" + IS_MEMBER_OF + "> ?set .\n"
+                + "    ?set <info:fedora/fedora-system:def/model#hasModel> "
+                + "<info:fedora/demo:SetModel> .\n"
+                + "    ?set <info:fedora/fedora-system:def/view#disseminates> "
+                + "?setSpec .\n",
+                     SPARQLQueryFactory
+                             .toGraphPattern("$item <fedora-rels-ext:isMemberOf> "
+                                     + "$set $set <fedora-model:hasModel> "
+                                     + "<fedora:demo:SetModel> "
+                                     + "$set <fedora-view:disseminates> "
+                                     + "$setSpec"));
+    }
+
+    private void assertParity(boolean sets, FedoraMetadataFormat format)
+            throws Exception {
+        ITQLQueryFactory itql = new ITQLQueryFactory();
+        itql.init(null, new StubClient(), getProperties(sets));
+        SPARQLQueryFactory sparql = new SPARQLQueryFactory();
+        sparql.init(null, new StubClient(), getProperties(sets));
+
+        List<String> expected = read(itql.listRecords(null, null, format));
+        List<String> actual = read(sparql.listRecords(null, null, format));
+        assertEquals(ITEMS.length, expected.size());
+        assertEquals(expected, actual);
+    }
+
+    private static Properties getProperties(boolean sets) {
+        Properties props = new Properties();
+        props.put(FedoraOAIDriver.PROP_ITEMID,
+                  "http://www.openarchives.org/OAI/2.0/itemID");
+        if (sets) {
+            props.put(FedoraOAIDriver.PROP_SETSPEC,
+                      "http://www.openarchives.org/OAI/2.0/setSpec");
+            props.put(FedoraOAIDriver.PROP_SETSPEC_NAME,
+                      "http://www.openarchives.org/OAI/2.0/setName");
+            props.put(FedoraOAIDriver.PROP_ITEM_SETSPEC_PATH, SET_PATH);
+        }
+        return props;
+    }
+
+    private static List<String> read(RemoteIterator<FedoraRecord> records)
+            throws Exception {
+        List<String> lines = new ArrayList<String>();
+        try {
+            while (records.hasNext()) {
+                FedoraRecord record = records.next();
+                lines.add(record.getItemID() + " " + record.getPrefix() + " "
+                        + record.getSourceInfo());
+            }
+        } finally {
+            records.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Answers each query with ITEMS in the form the query asks for: one
+     * joined result for SPARQL, or the primary, set membership or about
+     * result for ITQL. Date constraints are not applied, and the sets were
+     * never modified.
+     */
+    private static class StubClient
+            extends FedoraClient {
+
+        public final List<String> queries = new ArrayList<String>();
+
+        public StubClient() throws IOException {
+            super("http://localhost:1/fedora/", "user", "pass");
+        }
+
+        @SuppressWarnings("unchecked")
+        public TupleIterator getTuples(Map params) throws IOException {
+            String query = (String) params.get("query");
+            queries.add(query);
+            String result;
+            if (params.get("lang").equals("sparql")) {
+                result = joined(query);
+            } else if (query.startsWith("select $item $itemID")) {
+                result = primary();
+            } else if (query.startsWith("select $itemID $setSpec")) {
+                result = sets();
+            } else if (query.startsWith("select $date")) {
+                result = tail(head(new String[] {"date"}));
+            } else {
+                result = abouts();
+            }
+            try {
+                return TupleIterator.fromStream(new ByteArrayInputStream(result
+                        .getBytes("UTF-8")), RDFFormat.SPARQL);
+            } catch (Exception e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+
+    private static String primary() {
+        StringBuffer s = head(new String[] {"item", "itemID", "date", "state"});
+        for (int i = 0; i < ITEMS.length; i++) {
+            s.append("<result>" + common(ITEMS[i]) + "</result>");
+        }
+        return tail(s);
+    }
+
+    private static String sets() {
+        StringBuffer s = head(new String[] {"itemID", "setSpec"});
+        for (int i = 0; i < ITEMS.length; i++) {
+            String[] setSpecs = (String[]) ITEMS[i][4];
+            for (int j = 0; j < setSpecs.length; j++) {
+                s.append("<result><itemID>oai:" + ITEMS[i][0] + "</itemID>"
+                        + "<setSpec>" + setSpecs[j] + "</setSpec></result>");
+            }
+        }
+        return tail(s);
+    }
+
+    private static String abouts() {
+        StringBuffer s = head(new String[] {"itemID"});
+        for (int i = 0; i < ITEMS.length; i++) {
+            if (((Boolean) ITEMS[i][3]).booleanValue()) {
+                s.append("<result><itemID>oai:" + ITEMS[i][0]
+                        + "</itemID></result>");
+            }
+        }
+        return tail(s);
+    }
+
+    /**
+     * One row per item and set, with no setSpec for items in no sets, as an
+     * OPTIONAL join gives. Set memberships only match the full isMemberOf
+     * predicate.
+     */
+    private static String joined(String query) {
+        boolean sets =
+                query.indexOf("?setSpec") != -1
+                        && query.indexOf("?item <" + IS_MEMBER_OF + "> ?set") != -1;
+        boolean about = query.indexOf("?about") != -1;
+        StringBuffer s =
+                head(new String[] {"item", "itemID", "date", "state",
+                        "setSpec", "about"});
+        for (int i = 0; i < ITEMS.length; i++) {
+            String[] setSpecs = (String[]) ITEMS[i][4];
+            if (!sets || setSpecs.length == 0) {
+                setSpecs = new String[] {null};
+            }
+            for (int j = 0; j < setSpecs.length; j++) {
+                s.append("<result>" + common(ITEMS[i]));
+                if (setSpecs[j] != null) {
+                    s.append("<setSpec>" + setSpecs[j] + "</setSpec>");
+                }
+                if (about && ((Boolean) ITEMS[i][3]).booleanValue()) {
+                    s.append("<about uri=\"info:fedora/" + ITEMS[i][0]
+                            + "/about_dc\"/>");
+                }
+                s.append("</result>");
+            }
+        }
+        return tail(s);
+    }
+
+    private static String common(Object[] item) {
+        return "<item uri=\"info:fedora/" + item[0] + "\"/>" + "<itemID>oai:"
+                + item[0] + "</itemID>" + "<date datatype=\""
+                + "http://www.w3.org/2001/XMLSchema#dateTime\">" + item[1]
+                + "</date>" + "<state uri=\"" + item[2] + "\"/>";
+    }
+
+    private static StringBuffer head(String[] names) {
+        StringBuffer s = new StringBuffer();
+        s.append("<sparql xmlns=\"http://www.w3.org/2001/sw/DataAccess/"
+                + "rf1/result\"><head>");
+        for (int i = 0; i < names.length; i++) {
+            s.append("<variable name=\"" + names[i] + "\"/>");
+        }
+        return s.append("</head><results>");
+    }
+
+    private static String tail(StringBuffer s) {
+        return s.append("</results></sparql>").toString();
+    }
+}
@@ -0,0 +1,120 @@
+
+package fedora.services.oaiprovider;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import proai.error.RepositoryException;
+
+public class TestSetMembership
+        extends TestCase {
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestSetMembership.class);
+    }
+
+    public void testBuild() throws Exception {
+        SetMembership.Builder builder = new SetMembership.Builder(0);
+        assertTrue(builder.add("oai:1", "set2"));
+        assertTrue(builder.add("oai:1", "set1"));
+        assertTrue(builder.add("oai:1", "set2"));
+        assertTrue(builder.add("oai:2", "set1"));
+        SetMembership sets = builder.build();
+        assertEquals(2, sets.getItemCount());
+        assertEquals(2, sets.getSetCount());
+        assertEquals(Arrays.asList(new String[] {"set2", "set1"}), Arrays
+                .asList(sets.getSetSpecs("oai:1")));
+        assertEquals(Arrays.asList(new String[] {"set1"}), Arrays.asList(sets
+                .getSetSpecs("oai:2")));
+        assertEquals(0, sets.getSetSpecs("oai:3").length);
+
+        // setSpecs are shared, not copied per item
+        assertSame(sets.getSetSpecs("oai:1")[1], sets.getSetSpecs("oai:2")[0]);
+    }
+
+    public void testLimit() throws Exception {
+        SetMembership.Builder builder = new SetMembership.Builder(10000);
+        int i = 0;
+        while (builder.add("oai:" + i, "set" + i % 10)) {
+            i++;
+        }
+        assertTrue(i > 10);
+        assertTrue(builder.isFull());
+        assertFalse(builder.add("oai:x", "set1"));
+        try {
+            builder.build();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    /**
+     * Memberships are loaded once for each range, and again if the sets are
+     * modified.
+     */
+    public void testShared() throws Exception {
+        StubLoader loader = new StubLoader();
+        SetMembershipIndex index = new SetMembershipIndex(loader, 0);
+
+        SetMembership sets = index.get(new Date(0), new Date(1000));
+        assertEquals("set1", sets.getSetSpecs("oai:1")[0]);
+        assertSame(sets, index.get(new Date(0), new Date(1000)));
+        assertEquals(1, loader.loads);
+
+        assertNotSame(sets, index.get(new Date(1000), null));
+        assertEquals(2, loader.loads);
+        assertNotNull(index.get(new Date(1000), null));
+        assertEquals(2, loader.loads);
+
+        loader.modified = new Date(500);
+        assertNotNull(index.get(new Date(1000), null));
+        assertEquals(3, loader.loads);
+    }
+
+    /**
+     * If the memberships don't fit, each format queries for its own, and
+     * they aren't loaded again for the same range.
+     */
+    public void testTooBig() throws Exception {
+        StubLoader loader = new StubLoader();
+        loader.items = 1000;
+        SetMembershipIndex index = new SetMembershipIndex(loader, 1000);
+        assertNull(index.get(null, null));
+        assertNull(index.get(null, null));
+        assertEquals(1, loader.loads);
+    }
+
+    public void testLoadFails() throws Exception {
+        StubLoader loader = new StubLoader();
+        loader.fail = true;
+        SetMembershipIndex index = new SetMembershipIndex(loader, 0);
+        assertNull(index.get(null, null));
+        assertEquals(1, loader.loads);
+    }
+
+    private static class StubLoader
+            implements SetMembershipIndex.Loader {
+
+        public int items = 3;
+
+        public int loads;
+
+        public boolean fail;
+
+        public Date modified;
+
+        public void load(Date from, Date until, SetMembership.Builder builder) {
+            loads++;
+            if (fail) throw new RepositoryException("Read timed out");
+            for (int i = 1; i <= items; i++) {
+                if (!builder.add("oai:" + i, "set" + i)) return;
+            }
+        }
+
+        public Date getSetsModified() {
+            return modified;
+        }
+    }
+}
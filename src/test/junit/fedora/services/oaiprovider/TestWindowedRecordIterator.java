@@ -0,0 +1,218 @@
+
+package fedora.services.oaiprovider;
+
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import proai.driver.RemoteIterator;
+import proai.driver.impl.RemoteIteratorImpl;
+import proai.error.RepositoryException;
+
+public class TestWindowedRecordIterator
+        extends TestCase {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestWindowedRecordIterator.class);
+    }
+
+    public void testWindows() throws Exception {
+        StubSource source = new StubSource(100, 0);
+        WindowedRecordIterator.WindowSize size =
+                new WindowedRecordIterator.WindowSize(10 * HOUR, HOUR);
+        List<String> ids =
+                read(new WindowedRecordIterator(source,
+                                                new Date(5 * HOUR),
+                                                new Date(44 * HOUR),
+                                                new Date(0),
+                                                size,
+                                                2));
+        assertEquals(expected(5, 44), ids);
+        assertEquals(4, source.windows.size());
+        assertEquals("5-14", source.windows.get(0));
+        assertEquals("35-44", source.windows.get(3));
+        assertTrue(source.maxRunning <= 2);
+        assertEquals(0, source.running);
+    }
+
+    /**
+     * Without a start or end, the first and last windows are open.
+     */
+    public void testOpenRange() throws Exception {
+        StubSource source = new StubSource(20, 0);
+        WindowedRecordIterator.WindowSize size =
+                new WindowedRecordIterator.WindowSize(100000 * HOUR, HOUR);
+        List<String> ids =
+                read(new WindowedRecordIterator(source,
+                                                null,
+                                                null,
+                                                new Date(5 * HOUR),
+                                                size,
+                                                3));
+        assertEquals(expected(0, 19), ids);
+        assertEquals("*-100004", source.windows.get(0));
+        assertEquals("*",
+                     source.windows.get(source.windows.size() - 1)
+                             .substring(source.windows
+                                     .get(source.windows.size() - 1)
+                                     .indexOf('-') + 1));
+    }
+
+    /**
+     * Windows that time out are split in half.
+     */
+    public void testTimeout() throws Exception {
+        StubSource source = new StubSource(100, 4);
+        WindowedRecordIterator.WindowSize size =
+                new WindowedRecordIterator.WindowSize(16 * HOUR, HOUR);
+        List<String> ids =
+                read(new WindowedRecordIterator(source,
+                                                new Date(0),
+                                                new Date(63 * HOUR),
+                                                new Date(0),
+                                                size,
+                                                1));
+        assertEquals(expected(0, 63), ids);
+        assertEquals("0-15", source.windows.get(0));
+        assertEquals("0-7", source.windows.get(1));
+        assertEquals("8-15", source.windows.get(2));
+        assertEquals("0-3", source.windows.get(3));
+        assertEquals("4-7", source.windows.get(4));
+        assertEquals(0, source.running);
+
+        size.shrink();
+        assertEquals(8 * HOUR, size.get());
+        size.shrink();
+        size.shrink();
+        size.shrink();
+        size.shrink();
+        assertEquals(HOUR, size.get());
+        size.grow();
+        assertEquals(2 * HOUR, size.get());
+    }
+
+    /**
+     * A timeout of the smallest window fails.
+     */
+    public void testTimeoutAtMinSize() throws Exception {
+        StubSource source = new StubSource(100, 4);
+        WindowedRecordIterator.WindowSize size =
+                new WindowedRecordIterator.WindowSize(16 * HOUR, 8 * HOUR);
+        WindowedRecordIterator iter =
+                new WindowedRecordIterator(source,
+                                           new Date(0),
+                                           new Date(63 * HOUR),
+                                           new Date(0),
+                                           size,
+                                           2);
+        try {
+            read(iter);
+            fail("Expected RepositoryException");
+        } catch (RepositoryException e) {
+            assertTrue(WindowedRecordIterator.isTimeout(e));
+        }
+        assertEquals(0, source.running);
+    }
+
+    public void testClose() throws Exception {
+        StubSource source = new StubSource(100, 0);
+        WindowedRecordIterator iter =
+                new WindowedRecordIterator(source,
+                                           new Date(0),
+                                           new Date(99 * HOUR),
+                                           new Date(0),
+                                           new WindowedRecordIterator.WindowSize(10 * HOUR,
+                                                                                 HOUR),
+                                           3);
+        iter.next();
+        assertEquals(2, source.running);
+        iter.close();
+        assertEquals(0, source.running);
+    }
+
+    private static List<String> read(RemoteIterator<FedoraRecord> iter)
+            throws Exception {
+        List<String> ids = new ArrayList<String>();
+        while (iter.hasNext()) {
+            ids.add(iter.next().getItemID());
+        }
+        iter.close();
+        return ids;
+    }
+
+    private static List<String> expected(int first, int last) {
+        List<String> ids = new ArrayList<String>();
+        for (int i = first; i <= last; i++) {
+            ids.add("oai:" + i);
+        }
+        return ids;
+    }
+
+    /**
+     * Has one record modified each hour, and times out on windows longer
+     * than a given number of hours.
+     */
+    private static class StubSource
+            implements WindowedRecordIterator.Source {
+
+        private final int m_records;
+
+        private final int m_maxHours;
+
+        public final List<String> windows = new ArrayList<String>();
+
+        public int running;
+
+        public int maxRunning;
+
+        public StubSource(int records, int maxHours) {
+            m_records = records;
+            m_maxHours = maxHours;
+        }
+
+        public WindowedRecordIterator.Window start(final Date from,
+                                                   final Date until) {
+            windows.add((from == null ? "*" : "" + from.getTime() / HOUR)
+                    + "-" + (until == null ? "*" : "" + until.getTime() / HOUR));
+            running++;
+            maxRunning = Math.max(maxRunning, running);
+            return new WindowedRecordIterator.Window() {
+
+                public RemoteIterator<FedoraRecord> getRecords() {
+                    running--;
+                    long start = from == null ? 0 : from.getTime();
+                    long end =
+                            until == null ? m_records * HOUR : until.getTime();
+                    if (m_maxHours > 0 && end - start >= m_maxHours * HOUR) {
+                        throw new RepositoryException("Error getting tuples",
+                                                      new SocketTimeoutException("Read timed out"));
+                    }
+                    List<FedoraRecord> records = new ArrayList<FedoraRecord>();
+                    for (int i = 0; i < m_records; i++) {
+                        if (i * HOUR >= start && i * HOUR <= end) {
+                            records.add(new FedoraRecord("oai:" + i,
+                                                         "oai_dc",
+                                                         "info:fedora/demo:"
+                                                                 + i + "/DC",
+                                                         "",
+                                                         false,
+                                                         new String[0],
+                                                         null));
+                        }
+                    }
+                    return new RemoteIteratorImpl<FedoraRecord>(records
+                            .iterator());
+                }
+
+                public void cancel() {
+                    running--;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,56 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import junit.framework.TestCase;
+
+public class TestXMLDeclarationFilter
+        extends TestCase {
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestXMLDeclarationFilter.class);
+    }
+
+    public void testStripsDeclaration() throws Exception {
+        assertEquals("<a>text</a>\n",
+                     filter("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<a>text</a>\n"));
+        assertEquals("<a/>", filter("  \n<?xml version='1.0'?>  \n\n<a/>"));
+        assertEquals("<a/>", filter("<?xml version=\"1.0\"?><a/>"));
+    }
+
+    public void testPassesThroughWithoutDeclaration() throws Exception {
+        assertEquals("<a>text</a>", filter("<a>text</a>"));
+        assertEquals("\n  <a/>", filter("\n  <a/>"));
+        assertEquals("<?xml-stylesheet href=\"s.xsl\"?><a/>",
+                     filter("<?xml-stylesheet href=\"s.xsl\"?><a/>"));
+        assertEquals("", filter(""));
+        assertEquals("<", filter("<"));
+    }
+
+    public void testDeclarationOnly() throws Exception {
+        assertEquals("", filter("<?xml version=\"1.0\"?>\n"));
+    }
+
+    public void testLargeDocument() throws Exception {
+        StringBuilder doc = new StringBuilder("<a>");
+        for (int i = 0; i < 10000; i++) {
+            doc.append("<b>" + i + "</b>\n");
+        }
+        doc.append("</a>");
+        assertEquals(doc.toString(), filter("<?xml version=\"1.0\"?>\n"
+                + doc));
+    }
+
+    private static String filter(String xml) throws IOException {
+        Reader reader = new XMLDeclarationFilter(new StringReader(xml));
+        StringWriter out = new StringWriter();
+        char[] buf = new char[7];
+        int len = reader.read(buf);
+        while (len != -1) {
+            out.write(buf, 0, len);
+            len = reader.read(buf);
+        }
+        return out.toString();
+    }
+}
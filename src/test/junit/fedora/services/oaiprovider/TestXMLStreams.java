@@ -0,0 +1,85 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import junit.framework.TestCase;
+
+public class TestXMLStreams
+        extends TestCase {
+
+    private static final String TEXT = "caf\u00e9 \u65e5\u672c";
+
+    public static void main(String[] args) {
+        junit.textui.TestRunner.run(TestXMLStreams.class);
+    }
+
+    public void testDefaultsToUTF8() throws Exception {
+        String xml = "<a>" + TEXT + "</a>";
+        assertEquals(xml, read(xml.getBytes("UTF-8")));
+    }
+
+    public void testDeclaredEncoding() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><a>caf\u00e9</a>";
+        assertEquals(xml, read(xml.getBytes("ISO-8859-1")));
+        xml = "<?xml version='1.0' encoding='UTF-8'?><a>" + TEXT + "</a>";
+        assertEquals(xml, read(xml.getBytes("UTF-8")));
+    }
+
+    public void testByteOrderMarks() throws Exception {
+        String xml = "<a>" + TEXT + "</a>";
+        byte[] utf8 = xml.getBytes("UTF-8");
+        byte[] withBOM = new byte[utf8.length + 3];
+        withBOM[0] = (byte) 0xEF;
+        withBOM[1] = (byte) 0xBB;
+        withBOM[2] = (byte) 0xBF;
+        System.arraycopy(utf8, 0, withBOM, 3, utf8.length);
+        assertEquals(xml, read(withBOM));
+        assertEquals(xml, read(xml.getBytes("UTF-16")));
+    }
+
+    public void testContentType() throws Exception {
+        byte[] head = "<a/>".getBytes("UTF-8");
+        assertEquals("ISO-8859-1",
+                     XMLStreams.getCharset(head, head.length,
+                                           "text/xml; charset=\"iso-8859-1\"")
+                             .name());
+        assertEquals("UTF-8", XMLStreams.getCharset(head,
+                                                    head.length,
+                                                    "text/xml").name());
+        // the declaration wins over the content type
+        head = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>".getBytes("UTF-8");
+        assertEquals("UTF-8",
+                     XMLStreams.getCharset(head, head.length,
+                                           "text/xml; charset=ISO-8859-1")
+                             .name());
+    }
+
+    public void testUnsupportedEncoding() throws Exception {
+        String xml = "<?xml version=\"1.0\" encoding=\"x-no-such-thing\"?><a/>";
+        assertEquals(xml, read(xml.getBytes("UTF-8")));
+    }
+
+    public void testLargeDocument() throws Exception {
+        StringBuilder xml = new StringBuilder("<a>");
+        for (int i = 0; i < 10000; i++) {
+            xml.append("<b>" + TEXT + i + "</b>\n");
+        }
+        xml.append("</a>");
+        assertEquals(xml.toString(), read(xml.toString().getBytes("UTF-8")));
+    }
+
+    public void testCopyReturnsLastChar() throws Exception {
+        StringWriter out = new StringWriter();
+        assertEquals(-1, XMLStreams.copy(new StringReader(""), out));
+        assertEquals('\n', XMLStreams.copy(new StringReader("<a/>\n"), out));
+        assertEquals("<a/>\n", out.toString());
+    }
+
+    private static String read(byte[] bytes) throws IOException {
+        StringWriter out = new StringWriter();
+        XMLStreams.copy(XMLStreams.newReader(new ByteArrayInputStream(bytes)),
+                        out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,93 @@
+
+package fedora.services.oaiprovider;
+
+import java.io.*;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares throughput and bytes allocated per record of the readLine loop
+ * that dissemination content used to be copied with and the
+ * XMLStreams.newReader/copy path.
+ * <p>
+ * Usage: <code>java XMLStreamsBenchmark [records]</code>
+ * </p>
+ */
+public class XMLStreamsBenchmark {
+
+    private static final int[] SIZES = {2 * 1024, 16 * 1024, 256 * 1024};
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory
+                        .getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        PrintWriter out = new PrintWriter(new NullWriter());
+        System.out.println("record(bytes)  method  MB/s  bytes/record");
+        for (int size : SIZES) {
+            byte[] record = record(size);
+            int count = Math.max(10, records * SIZES[0] / size);
+            for (int method = 0; method < 2; method++) {
+                // warm up
+                for (int i = 0; i < count; i++) {
+                    write(method, record, out);
+                }
+                long alloc = threads.getThreadAllocatedBytes(id);
+                long start = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    write(method, record, out);
+                }
+                long nanos = System.nanoTime() - start;
+                alloc = threads.getThreadAllocatedBytes(id) - alloc;
+                double mbps =
+                        (double) size * count / (1024 * 1024)
+                                / (nanos / 1000000000.0);
+                System.out.println(size + "  "
+                        + (method == 0 ? "readLine" : "XMLStreams") + "  "
+                        + Math.round(mbps) + "  " + alloc / count);
+            }
+        }
+    }
+
+    private static void write(int method, byte[] record, PrintWriter out)
+            throws IOException {
+        InputStream in = new ByteArrayInputStream(record);
+        if (method == 0) {
+            BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(in));
+            String line = reader.readLine();
+            while (line != null) {
+                out.println(line);
+                line = reader.readLine();
+            }
+        } else {
+            XMLStreams.copy(XMLStreams.newReader(in), out);
+        }
+    }
+
+    private static byte[] record(int size) throws IOException {
+        StringBuilder xml =
+                new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                        + "<oai_dc:dc xmlns:oai_dc=\"http://www.openarchives.org/OAI/2.0/oai_dc/\""
+                        + " xmlns:dc=\"http://purl.org/dc/elements/1.1/\">\n");
+        while (xml.length() < size) {
+            xml.append("  <dc:description>Some caf\u00e9 text</dc:description>\n");
+        }
+        xml.append("</oai_dc:dc>\n");
+        return xml.toString().getBytes("UTF-8");
+    }
+
+    private static class NullWriter
+            extends Writer {
+
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,232 @@
+
+package fedora.services.oaiprovider.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server that serves canned responses, for testing HTTP
+ * clients without a Fedora server.
+ */
+public class StubHttpServer {
+
+    private final HttpServer m_server;
+
+    private final ExecutorService m_executor;
+
+    private final Map<String, Stub> m_stubs = new HashMap<String, Stub>();
+
+    private final List<String> m_requests = new ArrayList<String>();
+
+    private final List<String> m_authorizations = new ArrayList<String>();
+
+    private final List<String> m_acceptEncodings = new ArrayList<String>();
+
+    private final Set<String> m_clients = new HashSet<String>();
+
+    /**
+     * Start a server on a free port on the loopback interface.
+     */
+    public StubHttpServer() throws IOException {
+        m_server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        m_executor = Executors.newCachedThreadPool();
+        m_server.setExecutor(m_executor);
+        m_server.createContext("/", new HttpHandler() {
+
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange);
+            }
+        });
+        m_server.start();
+    }
+
+    /**
+     * Get the base URL of the server, ending with a slash.
+     */
+    public String getBaseURL() {
+        return "http://127.0.0.1:" + m_server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * Serve the given content at the given path.
+     *
+     * @param chunked
+     *        whether to use chunked encoding rather than Content-Length.
+     */
+    public synchronized void put(String path,
+                                 int status,
+                                 String contentType,
+                                 byte[] body,
+                                 boolean chunked) {
+        Stub stub = new Stub();
+        stub.status = status;
+        stub.contentType = contentType;
+        stub.body = body;
+        stub.chunked = chunked;
+        m_stubs.put(path, stub);
+    }
+
+    /**
+     * Redirect requests for the given path.
+     */
+    public synchronized void redirect(String path, String location) {
+        Stub stub = new Stub();
+        stub.status = 302;
+        stub.location = location;
+        stub.body = new byte[0];
+        m_stubs.put(path, stub);
+    }
+
+    /**
+     * Wait before sending the response headers for the given path.
+     */
+    public synchronized void delay(String path, long millis) {
+        m_stubs.get(path).delay = millis;
+    }
+
+    /**
+     * Compress the content at the given path with the given encoding (gzip
+     * or deflate) when the request accepts it.
+     */
+    public synchronized void compress(String path, String encoding) {
+        m_stubs.get(path).encoding = encoding;
+    }
+
+    /**
+     * Get the paths (and queries) requested so far.
+     */
+    public synchronized List<String> getRequests() {
+        return new ArrayList<String>(m_requests);
+    }
+
+    /**
+     * Get the Authorization headers (or nulls) sent so far.
+     */
+    public synchronized List<String> getAuthorizations() {
+        return new ArrayList<String>(m_authorizations);
+    }
+
+    /**
+     * Get the Accept-Encoding headers (or nulls) sent so far.
+     */
+    public synchronized List<String> getAcceptEncodings() {
+        return new ArrayList<String>(m_acceptEncodings);
+    }
+
+    /**
+     * Get the number of distinct connections requests have been received on.
+     */
+    public synchronized int getConnectionCount() {
+        return m_clients.size();
+    }
+
+    public void stop() {
+        m_server.stop(0);
+        m_executor.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().toString();
+        Stub stub;
+        synchronized (this) {
+            m_requests.add(path);
+            m_authorizations.add(exchange.getRequestHeaders()
+                    .getFirst("Authorization"));
+            m_acceptEncodings.add(exchange.getRequestHeaders()
+                    .getFirst("Accept-Encoding"));
+            m_clients.add(exchange.getRemoteAddress().toString());
+            stub = m_stubs.get(path);
+        }
+        try {
+            if (stub == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            if (stub.delay > 0) {
+                try {
+                    Thread.sleep(stub.delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (stub.contentType != null) {
+                exchange.getResponseHeaders().set("Content-Type",
+                                                  stub.contentType);
+            }
+            if (stub.location != null) {
+                exchange.getResponseHeaders().set("Location", stub.location);
+            }
+            if (stub.body.length == 0) {
+                exchange.sendResponseHeaders(stub.status, -1);
+                return;
+            }
+            byte[] body = stub.body;
+            String accept =
+                    exchange.getRequestHeaders().getFirst("Accept-Encoding");
+            if (stub.encoding != null && accept != null
+                    && accept.indexOf(stub.encoding) != -1) {
+                body = compress(body, stub.encoding);
+                exchange.getResponseHeaders().set("Content-Encoding",
+                                                  stub.encoding);
+            }
+            exchange.sendResponseHeaders(stub.status, stub.chunked ? 0
+                    : body.length);
+            OutputStream out = exchange.getResponseBody();
+            // write in pieces so chunked responses have several chunks
+            for (int i = 0; i < body.length; i += 8192) {
+                out.write(body, i, Math.min(8192, body.length - i));
+                out.flush();
+            }
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static byte[] compress(byte[] body, String encoding)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out;
+        if (encoding.equals("gzip")) {
+            out = new GZIPOutputStream(bytes);
+        } else {
+            out = new DeflaterOutputStream(bytes);
+        }
+        out.write(body);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static class Stub {
+
+        public int status;
+
+        public String contentType;
+
+        public String location;
+
+        public byte[] body;
+
+        public boolean chunked;
+
+        public long delay;
+
+        public String encoding;
+    }
+}